@@ -0,0 +1,62 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import com.mercateo.sqs.utils.queue.Queue;
+import com.mercateo.sqs.utils.queue.QueueName;
+
+import io.awspring.cloud.sqs.MessagingHeaders;
+import io.awspring.cloud.sqs.listener.acknowledgement.AcknowledgementCallback;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.GenericMessage;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+
+final class BenchmarkMessages {
+
+    static final Queue QUEUE = new Queue(new QueueName("benchmark"), "https://sqs.local/benchmark", Map.of(
+            QueueAttributeName.VISIBILITY_TIMEOUT, "120"));
+
+    private static final AcknowledgementCallback<Integer> ACKNOWLEDGEMENT = new AcknowledgementCallback<>() {
+
+        @Override
+        public CompletableFuture<Void> onAcknowledge(Message<Integer> message) {
+            return CompletableFuture.completedFuture(null);
+        }
+    };
+
+    private static final Map<String, Object> HEADERS = new HashMap<>();
+
+    static {
+        HEADERS.put("ReceiptHandle", "receipt-handle");
+        HEADERS.put(MessagingHeaders.ACKNOWLEDGMENT_CALLBACK_HEADER, ACKNOWLEDGEMENT);
+    }
+
+    private BenchmarkMessages() {
+    }
+
+    /**
+     * @return a message with a new random id, like a message converted by the
+     *         listener container
+     */
+    static Message<Integer> newMessage() {
+        return new GenericMessage<>(42, HEADERS);
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import com.mercateo.sqs.utils.visibility.HashedWheelTimer;
+import com.mercateo.sqs.utils.visibility.VisibilityTimeoutExtenderFactory;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end submit throughput of
+ * {@link LongRunningMessageHandler#handleMessage}: every operation submits a
+ * new message, which is processed by an empty worker and acknowledged against
+ * a {@link StubSqsAsyncClient}. Use {@code -t} to simulate several listener
+ * threads and {@code -prof gc} for the allocation rate per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandleMessageBenchmark {
+
+    @Param({ "4", "32" })
+    private int numberOfThreads;
+
+    @Param({ "false", "true" })
+    private boolean batchAcknowledgement;
+
+    private HashedWheelTimer scheduler;
+
+    private BatchAcknowledger batchAcknowledger;
+
+    private LongRunningMessageHandler<Integer, Integer> handler;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        StubSqsAsyncClient sqsClient = new StubSqsAsyncClient();
+        scheduler = new HashedWheelTimer(Duration.ofMillis(100), 512);
+        batchAcknowledger = batchAcknowledgement
+                ? new BatchAcknowledger(sqsClient, scheduler, Duration.ofMillis(100), Runnable::run)
+                : null;
+        handler = new LongRunningMessageHandler<>(scheduler, HandlerOptions.builder()
+                .batchAcknowledger(batchAcknowledger).build(),
+                numberOfThreads, numberOfThreads, new MessageHandlingRunnableFactory(),
+                new VisibilityTimeoutExtenderFactory(sqsClient, Runnable::run), (payload, headers) -> payload,
+                BenchmarkMessages.QUEUE, (input, output) -> {
+                }, Duration.ofSeconds(60), Duration.ofSeconds(10), new DefaultErrorHandlingStrategy<>());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        handler.shutdown();
+        if (batchAcknowledger != null) {
+            batchAcknowledger.flush();
+        }
+        scheduler.shutdownNow();
+    }
+
+    @Benchmark
+    public void handleMessage() {
+        handler.handleMessage(BenchmarkMessages.newMessage());
+    }
+}
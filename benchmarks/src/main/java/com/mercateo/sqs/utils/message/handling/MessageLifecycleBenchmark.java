@@ -0,0 +1,97 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import com.mercateo.sqs.utils.metrics.HistogramMessageMetrics;
+import com.mercateo.sqs.utils.metrics.MessageMetrics;
+import com.mercateo.sqs.utils.visibility.VisibilityExtensionSchedule;
+import com.mercateo.sqs.utils.visibility.VisibilityTimeoutExtender;
+import com.mercateo.sqs.utils.visibility.VisibilityTimeoutExtenderFactory;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The life of one message on a single thread, without executor hand-offs:
+ * wrap, one visibility extension, work, acknowledge. Run with
+ * {@code -prof gc} and compare {@code gc.alloc.rate.norm} to see the bytes
+ * allocated per message; the metrics parameter shows the cost of
+ * {@link MessageMetrics#NOOP} against recording histograms.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageLifecycleBenchmark {
+
+    private static final VisibilityExtensionSchedule SCHEDULE = new VisibilityExtensionSchedule(BenchmarkMessages.QUEUE
+            .getDefaultVisibilityTimeout(), Duration.ofSeconds(60), 1);
+
+    @Param({ "noop", "histogram" })
+    private String metrics;
+
+    private MessageMetrics messageMetrics;
+
+    private VisibilityTimeoutExtenderFactory timeoutExtenderFactory;
+
+    private MessageHandlingRunnableFactory runnableFactory;
+
+    private SetWithUpperBound<String> messagesInProcessing;
+
+    private CompletionOptions<Integer, Integer> completionOptions;
+
+    private final CompletableFuture<Void> extensionHandle = new CompletableFuture<>();
+
+    private final ErrorHandlingStrategy<Integer> errorHandlingStrategy = new DefaultErrorHandlingStrategy<>();
+
+    @Setup
+    public void setUp() {
+        messageMetrics = "histogram".equals(metrics) ? new HistogramMessageMetrics() : MessageMetrics.NOOP;
+        timeoutExtenderFactory = new VisibilityTimeoutExtenderFactory(new StubSqsAsyncClient(), Runnable::run);
+        runnableFactory = new MessageHandlingRunnableFactory();
+        messagesInProcessing = new SetWithUpperBound<>(1);
+        completionOptions = CompletionOptions.<Integer, Integer> builder().metrics(messageMetrics).build();
+    }
+
+    @Benchmark
+    public MessageWrapper<Integer> processMessage() {
+        MessageWrapper<Integer> message = new MessageWrapper<>(BenchmarkMessages.newMessage());
+        messagesInProcessing.add(message.getMessageId());
+
+        VisibilityTimeoutExtender extender = timeoutExtenderFactory.get(message, BenchmarkMessages.QUEUE,
+                errorHandlingStrategy, SCHEDULE, messageMetrics);
+        extender.run();
+
+        runnableFactory.<Integer, Integer> get((payload, headers) -> payload, message, (input, output) -> {
+        }, messagesInProcessing, extensionHandle, errorHandlingStrategy, completionOptions).run();
+        return message;
+    }
+}
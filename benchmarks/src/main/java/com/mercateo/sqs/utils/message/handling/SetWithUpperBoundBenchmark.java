@@ -0,0 +1,103 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Contention on the in-flight gate of {@link LongRunningMessageHandler}.
+ * Listener threads follow the protocol of {@code handleMessage} (add, then wait
+ * for a free slot) and hand the message to worker threads, which remove it
+ * again. The number of listeners and workers can be changed with
+ * {@code -tg <listeners>,<workers>}.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SetWithUpperBoundBenchmark {
+
+    /** listeners must not block forever once the workers have stopped */
+    private static final Duration WAIT_TIMEOUT = Duration.ofMillis(10);
+
+    @Param({ "4", "64" })
+    private int capacity;
+
+    private SetWithUpperBound<Long> messages;
+
+    private ConcurrentLinkedQueue<Long> inFlight;
+
+    private AtomicLong ids;
+
+    @Setup
+    public void setUp() {
+        messages = new SetWithUpperBound<>(capacity);
+        inFlight = new ConcurrentLinkedQueue<>();
+        ids = new AtomicLong();
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(2)
+    public boolean listener() throws InterruptedException {
+        Long id = ids.incrementAndGet();
+        if (messages.contains(id)) {
+            return false;
+        }
+        messages.add(id);
+        inFlight.offer(id);
+        return messages.waitUntilAtLeastOneFree(WAIT_TIMEOUT);
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(4)
+    public Long worker() {
+        Long id = inFlight.poll();
+        if (id == null) {
+            Thread.onSpinWait();
+            return null;
+        }
+        messages.remove(id);
+        return id;
+    }
+
+    @Benchmark
+    @Group("freeCapacity")
+    @GroupThreads(4)
+    public int freeCapacity() {
+        return messages.free();
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import java.util.concurrent.CompletableFuture;
+
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResponse;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityResponse;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageResponse;
+
+/**
+ * Answers every request of the handler immediately with an empty response, so
+ * benchmarks only measure the library and not the network.
+ */
+class StubSqsAsyncClient implements SqsAsyncClient {
+
+    private static final CompletableFuture<ChangeMessageVisibilityResponse> CHANGE_VISIBILITY = CompletableFuture
+            .completedFuture(ChangeMessageVisibilityResponse.builder().build());
+
+    private static final CompletableFuture<ChangeMessageVisibilityBatchResponse> CHANGE_VISIBILITY_BATCH = CompletableFuture
+            .completedFuture(ChangeMessageVisibilityBatchResponse.builder().build());
+
+    private static final CompletableFuture<DeleteMessageResponse> DELETE = CompletableFuture.completedFuture(
+            DeleteMessageResponse.builder().build());
+
+    private static final CompletableFuture<DeleteMessageBatchResponse> DELETE_BATCH = CompletableFuture
+            .completedFuture(DeleteMessageBatchResponse.builder().build());
+
+    @Override
+    public CompletableFuture<ChangeMessageVisibilityResponse> changeMessageVisibility(
+            ChangeMessageVisibilityRequest request) {
+        return CHANGE_VISIBILITY;
+    }
+
+    @Override
+    public CompletableFuture<ChangeMessageVisibilityBatchResponse> changeMessageVisibilityBatch(
+            ChangeMessageVisibilityBatchRequest request) {
+        return CHANGE_VISIBILITY_BATCH;
+    }
+
+    @Override
+    public CompletableFuture<DeleteMessageResponse> deleteMessage(DeleteMessageRequest request) {
+        return DELETE;
+    }
+
+    @Override
+    public CompletableFuture<DeleteMessageBatchResponse> deleteMessageBatch(DeleteMessageBatchRequest request) {
+        return DELETE_BATCH;
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.visibility;
+
+import java.time.Duration;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Schedules and cancels as many periodic visibility extensions as there are
+ * messages in flight, on the hashed wheel timer used by
+ * {@code LongRunningMessageHandlerFactory} and, for comparison, on a
+ * {@link ScheduledThreadPoolExecutor}. The score is the average time for
+ * scheduling and cancelling all extensions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtenderSchedulingBenchmark {
+
+    private static final long INTERVAL_MILLIS = Duration.ofSeconds(60).toMillis();
+
+    private static final Runnable EXTENSION = () -> {
+    };
+
+    @Param({ "10000", "100000" })
+    private int extenders;
+
+    @Param({ "hashedWheelTimer", "scheduledThreadPool" })
+    private String scheduler;
+
+    private ScheduledExecutorService executor;
+
+    private ScheduledFuture<?>[] futures;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if ("hashedWheelTimer".equals(scheduler)) {
+            executor = new HashedWheelTimer(Duration.ofMillis(100), 512);
+        } else {
+            ScheduledThreadPoolExecutor threadPool = new ScheduledThreadPoolExecutor(1);
+            threadPool.setRemoveOnCancelPolicy(true);
+            executor = threadPool;
+        }
+        futures = new ScheduledFuture<?>[extenders];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public void scheduleAndCancel() {
+        for (int i = 0; i < extenders; i++) {
+            futures[i] = executor.scheduleAtFixedRate(EXTENSION, INTERVAL_MILLIS, INTERVAL_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+        for (int i = 0; i < extenders; i++) {
+            futures[i].cancel(false);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import com.mercateo.sqs.utils.metrics.MessageMetrics;
+
+import java.util.function.IntConsumer;
+
+import lombok.NonNull;
+
+/**
+ * Adapts the number of messages a handler works on in parallel to the
+ * observed duration and failures of the worker calls.
+ *
+ * <p>
+ * The samples are evaluated in windows of at least {@value #MIN_WINDOW} and
+ * at least {@code limit} worker calls. A window with more than
+ * {@value #MAX_ERROR_RATE} failed calls cuts the limit by
+ * {@value #BACKOFF_RATIO} (multiplicative decrease). Otherwise the average
+ * duration of the successful calls is compared to a slowly following
+ * baseline: as long as it stays within {@value #TOLERANCE} times the
+ * baseline the limit grows by one (additive increase), above that it shrinks
+ * by the ratio of the two, but at most by half per window. The limit always
+ * stays between the configured bounds.
+ */
+class AdaptiveConcurrencyLimit implements MessageMetrics {
+
+    static final int MIN_WINDOW = 10;
+
+    static final double MAX_ERROR_RATE = 0.1;
+
+    static final double BACKOFF_RATIO = 0.9;
+
+    static final double TOLERANCE = 1.5;
+
+    private static final double BASELINE_SMOOTHING = 0.05;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final IntConsumer limitListener;
+
+    /** guarded by this */
+    private double limit;
+
+    /** guarded by this */
+    private double baselineNanos;
+
+    /** guarded by this */
+    private int samples;
+
+    /** guarded by this */
+    private int errors;
+
+    /** guarded by this */
+    private long successfulNanos;
+
+    /**
+     * @param minLimit
+     *            the lower bound, at least 1
+     * @param maxLimit
+     *            the upper bound and the initial limit
+     * @param limitListener
+     *            receives every changed limit, while the lock of this
+     *            instance is held
+     */
+    AdaptiveConcurrencyLimit(int minLimit, int maxLimit, @NonNull IntConsumer limitListener) {
+        if (minLimit < 1 || minLimit > maxLimit) {
+            throw new IllegalArgumentException("the bounds have to satisfy 1 <= min <= max, but are "
+                    + minLimit + " and " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limitListener = limitListener;
+        this.limit = maxLimit;
+    }
+
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    @Override
+    public synchronized void onWorked(long workNanos, boolean successful) {
+        samples++;
+        if (successful) {
+            successfulNanos += workNanos;
+        } else {
+            errors++;
+        }
+        if (samples >= Math.max(MIN_WINDOW, (int) limit)) {
+            evaluateWindow();
+        }
+    }
+
+    private void evaluateWindow() {
+        int successes = samples - errors;
+        double newLimit;
+        if (errors > samples * MAX_ERROR_RATE || successes == 0) {
+            newLimit = limit * BACKOFF_RATIO;
+        } else {
+            double averageNanos = (double) successfulNanos / successes;
+            if (baselineNanos == 0) {
+                baselineNanos = averageNanos;
+            }
+            double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * baselineNanos / averageNanos));
+            newLimit = gradient < 1.0 ? limit * gradient : limit + 1;
+            baselineNanos += BASELINE_SMOOTHING * (averageNanos - baselineNanos);
+        }
+        samples = 0;
+        errors = 0;
+        successfulNanos = 0;
+
+        int previous = (int) limit;
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        if ((int) limit != previous) {
+            limitListener.accept((int) limit);
+        }
+    }
+}
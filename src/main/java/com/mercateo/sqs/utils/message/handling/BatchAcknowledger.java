@@ -0,0 +1,195 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.SqsException;
+
+/**
+ * Collects acknowledgements per queue and deletes the messages with
+ * {@code DeleteMessageBatch} requests. A batch is sent as soon as it contains
+ * {@value #MAX_BATCH_SIZE} messages or the first message in it has waited for
+ * the linger time, whichever comes first.
+ */
+@Slf4j
+class BatchAcknowledger {
+
+    static final int MAX_BATCH_SIZE = 10;
+
+    private final SqsAsyncClient sqsClient;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Duration linger;
+
+    private final Executor callbackExecutor;
+
+    private final Map<String, List<PendingAcknowledgement<?>>> pending = new HashMap<>();
+
+    BatchAcknowledger(@NonNull SqsAsyncClient sqsClient, @NonNull ScheduledExecutorService scheduler,
+            @NonNull Duration linger, @NonNull Executor callbackExecutor) {
+        this.sqsClient = sqsClient;
+        this.scheduler = scheduler;
+        this.linger = linger;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * @param queueUrl
+     *            the queue the acknowledged messages belong to
+     * @return an acknowledger for the messages of that queue
+     */
+    MessageAcknowledger forQueue(@NonNull String queueUrl) {
+        return new MessageAcknowledger() {
+            @Override
+            public <I> CompletableFuture<Void> acknowledge(MessageWrapper<I> message,
+                    ErrorHandlingStrategy<I> errorHandlingStrategy) {
+                return BatchAcknowledger.this.acknowledge(queueUrl, message, errorHandlingStrategy);
+            }
+        };
+    }
+
+    <I> CompletableFuture<Void> acknowledge(@NonNull String queueUrl, @NonNull MessageWrapper<I> message,
+            @NonNull ErrorHandlingStrategy<I> errorHandlingStrategy) {
+        message.markAcknowledged();
+
+        PendingAcknowledgement<I> acknowledgement = new PendingAcknowledgement<>(message, errorHandlingStrategy);
+        List<PendingAcknowledgement<?>> full = null;
+        synchronized (pending) {
+            List<PendingAcknowledgement<?>> batch = pending.computeIfAbsent(queueUrl, url -> new ArrayList<>(
+                    MAX_BATCH_SIZE));
+            batch.add(acknowledgement);
+            if (batch.size() >= MAX_BATCH_SIZE) {
+                full = pending.remove(queueUrl);
+            } else if (batch.size() == 1) {
+                scheduler.schedule(() -> flush(queueUrl, batch), linger.toMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null) {
+            send(queueUrl, full);
+        }
+        return acknowledgement.result;
+    }
+
+    /**
+     * Sends all collected acknowledgements immediately, e.g. before shutting
+     * down.
+     */
+    void flush() {
+        Map<String, List<PendingAcknowledgement<?>>> batches;
+        synchronized (pending) {
+            batches = new HashMap<>(pending);
+            pending.clear();
+        }
+        batches.forEach(this::send);
+    }
+
+    private void flush(String queueUrl, List<PendingAcknowledgement<?>> batch) {
+        synchronized (pending) {
+            if (!pending.remove(queueUrl, batch)) {
+                return;
+            }
+        }
+        send(queueUrl, batch);
+    }
+
+    private void send(String queueUrl, List<PendingAcknowledgement<?>> batch) {
+        List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            entries.add(DeleteMessageBatchRequestEntry.builder()
+                    .id(String.valueOf(i))
+                    .receiptHandle(batch.get(i).message.getReceiptHandle())
+                    .build());
+        }
+        DeleteMessageBatchRequest request = DeleteMessageBatchRequest.builder()
+                .queueUrl(queueUrl)
+                .entries(entries)
+                .build();
+
+        CompletableFuture<DeleteMessageBatchResponse> response;
+        try {
+            response = sqsClient.deleteMessageBatch(request);
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        response.whenCompleteAsync((result, t) -> {
+            if (t != null) {
+                batch.forEach(acknowledgement -> acknowledgement.handleFailure(t));
+                return;
+            }
+            for (BatchResultErrorEntry failed : result.failed()) {
+                batch.get(Integer.parseInt(failed.id())).handleFailure(toException(failed));
+            }
+            batch.forEach(acknowledgement -> acknowledgement.result.complete(null));
+        }, callbackExecutor);
+    }
+
+    private static AwsServiceException toException(BatchResultErrorEntry failed) {
+        return SqsException.builder()
+                .message(failed.message())
+                .statusCode(Boolean.TRUE.equals(failed.senderFault()) ? 400 : 500)
+                .awsErrorDetails(AwsErrorDetails.builder()
+                        .errorCode(failed.code())
+                        .errorMessage(failed.message())
+                        .build())
+                .build();
+    }
+
+    @RequiredArgsConstructor
+    private static class PendingAcknowledgement<I> {
+
+        private final MessageWrapper<I> message;
+
+        private final ErrorHandlingStrategy<I> errorHandlingStrategy;
+
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        void handleFailure(Throwable t) {
+            Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            result.completeExceptionally(cause);
+            try {
+                if (cause instanceof AwsServiceException) {
+                    errorHandlingStrategy.handleAcknowledgeMessageException((AwsServiceException) cause, message);
+                } else {
+                    log.error("failure during acknowledge " + message.getMessageId(), cause);
+                }
+            } catch (Exception e) {
+                log.error("failure during acknowledge " + message.getMessageId(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import java.util.concurrent.Future;
+
+import lombok.NonNull;
+
+import org.springframework.lang.Nullable;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+
+/**
+ * A message in a batch passed to a {@link MessageBatchWorker}, together with
+ * its result. The result can be set from any thread, but only once.
+ *
+ * @param <I>
+ *            the input type of the message payload
+ * @param <O>
+ *            the output type of the message processing
+ */
+public final class BatchEntry<I, O> {
+
+    private final MessageWrapper<I> message;
+
+    private final Future<?> visibilityTimeoutExtender;
+
+    private final long createdNanos;
+
+    private MessageHandlingRunnable<I, O> completion;
+
+    /** guarded by this */
+    private boolean resolved;
+
+    /** guarded by this */
+    private O output;
+
+    /** guarded by this */
+    private Throwable failure;
+
+    BatchEntry(@NonNull MessageWrapper<I> message, @NonNull Future<?> visibilityTimeoutExtender,
+            long createdNanos) {
+        this.message = message;
+        this.visibilityTimeoutExtender = visibilityTimeoutExtender;
+        this.createdNanos = createdNanos;
+    }
+
+    public Message<I> getMessage() {
+        return message.getMessage();
+    }
+
+    public I getPayload() {
+        return message.getMessage().getPayload();
+    }
+
+    public MessageHeaders getHeaders() {
+        return message.getMessage().getHeaders();
+    }
+
+    public String getMessageId() {
+        return message.getMessageId();
+    }
+
+    MessageWrapper<I> getMessageWrapper() {
+        return message;
+    }
+
+    /**
+     * A batch worker is not interrupted if a single message loses its lease,
+     * but the message is not acknowledged. Long running batch workers can
+     * poll this to skip such a message.
+     *
+     * @return true if the visibility timeout of the message could no longer
+     *         be extended
+     */
+    public boolean isLeaseLost() {
+        return message.isLeaseLost();
+    }
+
+    /**
+     * Marks the message as successfully processed, it will be acknowledged.
+     *
+     * @param output
+     *            the output passed to the finished message callback
+     * @throws IllegalStateException
+     *             if the entry has already been marked
+     */
+    public synchronized void succeed(@Nullable O output) {
+        resolve();
+        this.output = output;
+    }
+
+    /**
+     * Marks the message as failed, it is passed to the
+     * {@link ErrorHandlingStrategy}.
+     *
+     * @param failure
+     *            the cause
+     * @throws IllegalStateException
+     *             if the entry has already been marked
+     */
+    public synchronized void fail(@NonNull Exception failure) {
+        resolve();
+        this.failure = failure;
+    }
+
+    private void resolve() {
+        if (resolved) {
+            throw new IllegalStateException("the result of message " + getMessageId() + " has already been set");
+        }
+        resolved = true;
+    }
+
+    synchronized void failIfUnresolved(@NonNull Throwable batchFailure) {
+        if (!resolved) {
+            resolved = true;
+            failure = batchFailure;
+        }
+    }
+
+    synchronized O getResult() throws Exception {
+        if (failure instanceof Exception) {
+            throw (Exception) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+        return output;
+    }
+
+    Future<?> getVisibilityTimeoutExtender() {
+        return visibilityTimeoutExtender;
+    }
+
+    long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    MessageHandlingRunnable<I, O> getCompletion() {
+        return completion;
+    }
+
+    void setCompletion(@NonNull MessageHandlingRunnable<I, O> completion) {
+        this.completion = completion;
+    }
+}
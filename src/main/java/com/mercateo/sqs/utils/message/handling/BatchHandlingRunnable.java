@@ -0,0 +1,87 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import com.mercateo.sqs.utils.metrics.MessageMetrics;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Calls a {@link MessageBatchWorker} with a batch of messages and then
+ * completes every message on its own: the finished message callback,
+ * the {@link ErrorHandlingStrategy}, the acknowledgement, freeing the worker
+ * slot and stopping the visibility timeout extension happen exactly as for a
+ * single message, see {@link MessageHandlingRunnable#complete()}. Messages
+ * whose acknowledgement the error handling strategy prevented are passed on
+ * to be retried.
+ */
+@Slf4j
+class BatchHandlingRunnable<I, O> implements Runnable {
+
+    private final MessageBatchWorker<I, O> worker;
+
+    private final List<BatchEntry<I, O>> batch;
+
+    private final MessageMetrics metrics;
+
+    private final Consumer<MessageWrapper<I>> retrier;
+
+    BatchHandlingRunnable(@NonNull MessageBatchWorker<I, O> worker, @NonNull List<BatchEntry<I, O>> batch,
+            @NonNull MessageMetrics metrics, @NonNull Consumer<MessageWrapper<I>> retrier) {
+        this.worker = worker;
+        this.batch = Collections.unmodifiableList(batch);
+        this.metrics = metrics;
+        this.retrier = retrier;
+    }
+
+    @Override
+    public void run() {
+        boolean measured = metrics != MessageMetrics.NOOP;
+        long start = measured ? System.nanoTime() : 0L;
+        if (measured) {
+            batch.forEach(entry -> metrics.onStarted(start - entry.getCreatedNanos()));
+        }
+        Throwable failure = null;
+        try {
+            log.info("starting processing of a batch of " + batch.size() + " messages");
+            worker.work(batch);
+        } catch (Throwable t) {
+            failure = t;
+        } finally {
+            if (measured) {
+                metrics.onWorked(System.nanoTime() - start, failure == null);
+            }
+        }
+
+        for (BatchEntry<I, O> entry : batch) {
+            if (failure != null) {
+                entry.failIfUnresolved(failure);
+            }
+            try {
+                entry.getCompletion().complete();
+            } catch (Throwable t) {
+                // the error handling strategy rethrows to prevent the acknowledgement
+                log.debug("message " + entry.getMessageId() + " has not been acknowledged", t);
+                retrier.accept(entry.getMessageWrapper());
+            }
+        }
+    }
+}
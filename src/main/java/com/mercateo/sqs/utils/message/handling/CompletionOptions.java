@@ -0,0 +1,59 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import com.mercateo.sqs.utils.metrics.MessageMetrics;
+
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.Value;
+
+import org.springframework.lang.Nullable;
+
+/**
+ * The optional collaborators of a {@link MessageHandlingRunnable} that take
+ * part in completing a message. The defaults complete a message without any
+ * of them.
+ *
+ * @param <I>
+ *            the input type of the message payload
+ * @param <O>
+ *            the output type of the message processing
+ */
+@Value
+@Builder(toBuilder = true)
+class CompletionOptions<I, O> {
+
+    /** acknowledges instead of the acknowledgement callback if not null */
+    @Nullable
+    MessageAcknowledger messageAcknowledger;
+
+    /** notified about the outcome of the message if not null */
+    @Nullable
+    MessageOutcomeListener<I, O> outcomeListener;
+
+    @NonNull
+    @Builder.Default
+    MessageMetrics metrics = MessageMetrics.NOOP;
+
+    /** remembers the acknowledged message if not null */
+    @Nullable
+    RecentlyCompletedMessages completedMessages;
+
+    static <I, O> CompletionOptions<I, O> none() {
+        return CompletionOptions.<I, O> builder().build();
+    }
+}
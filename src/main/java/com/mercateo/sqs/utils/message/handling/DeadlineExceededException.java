@@ -0,0 +1,37 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import java.time.Duration;
+
+import lombok.NonNull;
+
+/**
+ * The worker of a message did not finish within its processing deadline, see
+ * {@link LongRunningMessageHandlerFactory#setProcessingDeadline(Duration)}.
+ * The worker is interrupted, this exception is passed to the
+ * {@link ErrorHandlingStrategy} and reported as the failure of the message,
+ * and the message is returned to the queue instead of being acknowledged.
+ */
+public class DeadlineExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DeadlineExceededException(@NonNull String messageId, @NonNull Duration deadline) {
+        super("the processing of message " + messageId + " exceeded its deadline of " + deadline.toMillis()
+                + " ms");
+    }
+}
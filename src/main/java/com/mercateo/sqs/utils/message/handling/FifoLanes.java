@@ -0,0 +1,240 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs the tasks of a message group strictly one after another and in
+ * submission order, while tasks of different groups run in parallel on the
+ * shared executor.
+ *
+ * <p>
+ * The groups are striped over a fixed number of lanes by the hash of their
+ * id, so groups sharing a lane are serialized as well. Each lane hands at most
+ * one task at a time to the executor and re-enqueues itself after every task,
+ * so a busy lane cannot starve the others and the executor never holds more
+ * than one task per lane. A lane buffers at most {@code maxBacklog} waiting
+ * tasks; further submissions block until the lane has caught up.
+ *
+ * <p>
+ * A task that reports its message as not acknowledged stops its group: the
+ * tasks of the group that wait in the lane are skipped instead of run, until
+ * the lane holds none of them anymore. The queue redelivers the failed
+ * message before any later message of the group, so the skipped messages
+ * follow it in order.
+ */
+@Slf4j
+class FifoLanes {
+
+    private final Lane[] lanes;
+
+    private final int maxBacklog;
+
+    private final Executor executor;
+
+    FifoLanes(int numberOfLanes, int maxBacklog, @NonNull Executor executor) {
+        if (numberOfLanes < 1 || maxBacklog < 1) {
+            throw new IllegalArgumentException("at least one lane with a backlog of at least one task is required");
+        }
+        this.lanes = new Lane[numberOfLanes];
+        for (int i = 0; i < numberOfLanes; i++) {
+            lanes[i] = new Lane();
+        }
+        this.maxBacklog = maxBacklog;
+        this.executor = executor;
+    }
+
+    /**
+     * Appends the task to the lane of the message group.
+     *
+     * @param messageGroupId
+     *            the group the task belongs to
+     * @param task
+     *            the task
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting for room in the
+     *             lane
+     */
+    void execute(@NonNull String messageGroupId, @NonNull Runnable task) throws InterruptedException {
+        execute(messageGroupId, () -> {
+            task.run();
+            return true;
+        }, () -> {
+        });
+    }
+
+    /**
+     * Appends the task to the lane of the message group.
+     *
+     * @param messageGroupId
+     *            the group the task belongs to
+     * @param task
+     *            the task; returns false if its message has not been
+     *            acknowledged, so that the waiting tasks of the group must
+     *            not run
+     * @param skip
+     *            runs instead of the task if an earlier task of the group
+     *            returned false
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting for room in the
+     *             lane
+     */
+    void execute(@NonNull String messageGroupId, @NonNull BooleanSupplier task, @NonNull Runnable skip)
+            throws InterruptedException {
+        int hash = messageGroupId.hashCode();
+        lanes[Math.floorMod(hash ^ (hash >>> 16), lanes.length)].submit(new Entry(messageGroupId, task, skip));
+    }
+
+    /**
+     * Visible for Testing
+     *
+     * @return the number of tasks waiting in all lanes
+     */
+    int getBacklog() {
+        int backlog = 0;
+        for (Lane lane : lanes) {
+            backlog += lane.getBacklog();
+        }
+        return backlog;
+    }
+
+    private static final class Entry {
+
+        private final String messageGroupId;
+
+        private final BooleanSupplier task;
+
+        private final Runnable skip;
+
+        Entry(String messageGroupId, BooleanSupplier task, Runnable skip) {
+            this.messageGroupId = messageGroupId;
+            this.task = task;
+            this.skip = skip;
+        }
+    }
+
+    private class Lane {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final Condition notFull = lock.newCondition();
+
+        /** guarded by lock */
+        private final ArrayDeque<Entry> backlog = new ArrayDeque<>();
+
+        /** guarded by lock; the groups whose waiting tasks are skipped */
+        private final Set<String> stoppedGroups = new HashSet<>();
+
+        /** guarded by lock; true while a task of this lane is queued or running */
+        private boolean active;
+
+        void submit(Entry task) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (backlog.size() >= maxBacklog) {
+                    notFull.await();
+                }
+                backlog.add(task);
+                if (active) {
+                    return;
+                }
+                active = true;
+                try {
+                    executor.execute(this::runNext);
+                } catch (RuntimeException e) {
+                    backlog.removeLast();
+                    active = false;
+                    throw e;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void runNext() {
+            Entry entry;
+            boolean stopped;
+            lock.lock();
+            try {
+                entry = backlog.poll();
+                stopped = stoppedGroups.contains(entry.messageGroupId);
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+            boolean acknowledged = true;
+            try {
+                if (stopped) {
+                    entry.skip.run();
+                } else {
+                    acknowledged = entry.task.getAsBoolean();
+                }
+            } catch (Throwable t) {
+                // like a task submitted to the executor directly, a failing task must not stop its lane
+                log.debug("task failed", t);
+            } finally {
+                lock.lock();
+                try {
+                    if (stopped || !acknowledged) {
+                        updateStoppedGroup(entry.messageGroupId);
+                    }
+                    if (backlog.isEmpty()) {
+                        active = false;
+                    } else {
+                        executor.execute(this::runNext);
+                    }
+                } catch (RuntimeException e) {
+                    active = false;
+                    throw e;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Keeps the group stopped while tasks of it wait in the lane.
+         */
+        private void updateStoppedGroup(String messageGroupId) {
+            for (Entry waiting : backlog) {
+                if (waiting.messageGroupId.equals(messageGroupId)) {
+                    stoppedGroups.add(messageGroupId);
+                    return;
+                }
+            }
+            stoppedGroups.remove(messageGroupId);
+        }
+
+        int getBacklog() {
+            lock.lock();
+            try {
+                return backlog.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import com.mercateo.sqs.utils.metrics.MessageMetrics;
+import com.mercateo.sqs.utils.queue.Queue;
+import com.mercateo.sqs.utils.visibility.BatchVisibilityTimeoutExtender;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.Value;
+
+import org.springframework.lang.Nullable;
+
+/**
+ * The optional settings of a {@link LongRunningMessageHandler}, as configured
+ * on the {@link LongRunningMessageHandlerFactory}. The defaults keep the
+ * behaviour of a handler without any of these features.
+ */
+@Value
+@Builder(toBuilder = true)
+class HandlerOptions {
+
+    static final HandlerOptions DEFAULT = HandlerOptions.builder().build();
+
+    /** coalesces visibility extensions if not null */
+    @Nullable
+    BatchVisibilityTimeoutExtender batchTimeoutExtender;
+
+    /** deletes processed messages in batches if not null */
+    @Nullable
+    BatchAcknowledger batchAcknowledger;
+
+    boolean virtualThreads;
+
+    @NonNull
+    @Builder.Default
+    MessageMetrics metrics = MessageMetrics.NOOP;
+
+    @Builder.Default
+    double visibilityTimeoutGrowthFactor = 1;
+
+    /**
+     * lower bound of the adaptive concurrency limit; 0 keeps the limit fixed
+     * at {@code numberOfThreads}
+     */
+    int minConcurrency;
+
+    /**
+     * maximum number of messages waiting in a FIFO lane; 0 processes the
+     * messages without regard to their MessageGroupId
+     */
+    int fifoLaneBacklog;
+
+    /** runs the workers on a shared pool instead of an own one if not null */
+    @Nullable
+    WorkerShare workerShare;
+
+    /**
+     * acknowledges redeliveries of recently completed messages without
+     * processing them again if not null; one instance per handler
+     */
+    @Nullable
+    RecentlyCompletedMessages completedMessages;
+
+    /**
+     * how long a message may wait for a worker before it is returned to the
+     * queue; null lets it wait as long as it takes
+     */
+    @Nullable
+    Duration maxBufferDwell;
+
+    /**
+     * how long a worker may run before it is interrupted and its message is
+     * returned to the queue; null lets it run as long as it takes
+     */
+    @Nullable
+    Duration processingDeadline;
+
+    /**
+     * the message attribute that overrides the processing deadline with a
+     * number of seconds; null if the deadline cannot be overridden
+     */
+    @Nullable
+    String processingDeadlineAttribute;
+
+    /** the visibility timeout of a message returned after its deadline */
+    @NonNull
+    @Builder.Default
+    Duration deadlineBackoff = Duration.ZERO;
+
+    /**
+     * delays or dead-letters messages whose acknowledgement the error
+     * handling strategy prevented if not null
+     */
+    @Nullable
+    MessageRetrier messageRetrier;
+
+    /**
+     * the latest state of the queue, e.g. with a changed VisibilityTimeout;
+     * may return null. Called for every message, so it must not block.
+     */
+    @Nullable
+    Supplier<Queue> refreshedQueue;
+}
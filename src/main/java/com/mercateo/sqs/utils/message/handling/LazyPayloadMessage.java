@@ -0,0 +1,101 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import lombok.NonNull;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MessageConversionException;
+
+/**
+ * A message whose payload is decoded from the raw SQS message on the first
+ * call to {@link #getPayload()}, i.e. on the worker thread. Until then it
+ * only holds the raw body; afterwards only the decoded payload.
+ */
+class LazyPayloadMessage<I> implements Message<I> {
+
+    private final MessageHeaders headers;
+
+    private final PayloadDecoder<I> payloadDecoder;
+
+    /** guarded by this; null once the payload has been decoded */
+    private software.amazon.awssdk.services.sqs.model.Message sqsMessage;
+
+    private volatile I payload;
+
+    /** guarded by this */
+    private RuntimeException failure;
+
+    LazyPayloadMessage(@NonNull software.amazon.awssdk.services.sqs.model.Message sqsMessage,
+            @NonNull MessageHeaders headers, @NonNull PayloadDecoder<I> payloadDecoder) {
+        this.sqsMessage = sqsMessage;
+        this.headers = headers;
+        this.payloadDecoder = payloadDecoder;
+    }
+
+    /**
+     * @throws MessageConversionException
+     *             if the payload cannot be decoded; every call throws the same
+     *             exception
+     */
+    @Override
+    public I getPayload() {
+        I decoded = payload;
+        if (decoded != null) {
+            return decoded;
+        }
+        synchronized (this) {
+            if (payload != null) {
+                return payload;
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            try {
+                decoded = payloadDecoder.decode(sqsMessage);
+            } catch (Exception e) {
+                failure = new MessageConversionException(this, "could not decode the payload of message "
+                        + headers.get("id"), e);
+                throw failure;
+            }
+            if (decoded == null) {
+                failure = new MessageConversionException(this, "the payload of message " + headers.get("id")
+                        + " was decoded to null");
+                throw failure;
+            }
+            payload = decoded;
+            sqsMessage = null;
+            return decoded;
+        }
+    }
+
+    @Override
+    public MessageHeaders getHeaders() {
+        return headers;
+    }
+
+    boolean isDecoded() {
+        return payload != null;
+    }
+
+    @Override
+    public String toString() {
+        // must not decode, it is called for logging
+        return getClass().getSimpleName() + " [" + (isDecoded() ? "payload=" + payload : "not decoded")
+                + ", headers=" + headers + "]";
+    }
+}
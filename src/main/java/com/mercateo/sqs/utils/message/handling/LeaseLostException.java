@@ -0,0 +1,36 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import lombok.NonNull;
+
+/**
+ * The visibility timeout of a message could no longer be extended, e.g.
+ * because its receipt handle became invalid or the 12 hour limit was reached,
+ * so the message may already be processed elsewhere. Its worker is
+ * interrupted, the message is not acknowledged and this exception is reported
+ * as the failure of the message once the worker returns. Its slot stays
+ * occupied until then, so workers that do not react to interrupts should poll
+ * {@link MessageWrapper#isLeaseLost()}.
+ */
+public class LeaseLostException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public LeaseLostException(@NonNull String messageId, @NonNull Throwable cause) {
+        super("the visibility timeout of message " + messageId + " could not be extended", cause);
+    }
+}
@@ -15,46 +15,137 @@
  */
 package com.mercateo.sqs.utils.message.handling;
 
+import com.mercateo.sqs.utils.metrics.MessageMetrics;
 import com.mercateo.sqs.utils.queue.Queue;
+import com.mercateo.sqs.utils.visibility.BatchVisibilityTimeoutExtender;
+import com.mercateo.sqs.utils.visibility.VisibilityExtensionSchedule;
+import com.mercateo.sqs.utils.visibility.VisibilityTimeoutExtender;
 import com.mercateo.sqs.utils.visibility.VisibilityTimeoutExtenderFactory;
 
+import io.awspring.cloud.sqs.listener.SqsHeaders;
+
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
 import lombok.NonNull;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
+import org.springframework.lang.Nullable;
 import org.springframework.messaging.Message;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
 
 @Slf4j
 public class LongRunningMessageHandler<I, O> {
 
+    /**
+     * header with a {@link Runnable} that is run once the handler is done with
+     * the message, whether its worker returned or it has been returned or
+     * dropped unprocessed, e.g. to abort the unused download of a
+     * claim-checked payload
+     */
+    static final String ON_FINISHED_HEADER = "SqsUtils_OnFinished";
+
+    /** null if the handler runs on a shared pool */
     private final ThreadPoolTaskExecutor messageProcessingExecutor;
 
+    /** null unless the handler runs on a shared pool */
+    private final SharedWorkerPool.Member sharedPoolMember;
+
+    /** runs the message tasks, on the own or on the shared pool */
+    private final Executor taskExecutor;
+
     private final MessageHandlingRunnableFactory messageHandlingRunnableFactory;
 
     private final VisibilityTimeoutExtenderFactory timeoutExtenderFactory;
 
+    /** null in batch mode */
     private final MessageWorkerWithHeaders<I, O> worker;
 
-    private final Queue queue;
+    /** null unless in batch mode */
+    private final MessageBatchWorker<I, O> batchWorker;
+
+    /** null unless in batch mode */
+    private final MessageBatcher<BatchEntry<I, O>> batcher;
+
+    /** null unless in FIFO mode */
+    private final FifoLanes fifoLanes;
+
+    private volatile Queue queue;
 
     private final FinishedMessageCallback<I, O> finishedMessageCallback;
 
     private final SetWithUpperBound<String> messagesInProcessing;
 
+    private volatile VisibilityExtensionSchedule visibilityExtensionSchedule;
+
+    private final Supplier<Queue> refreshedQueue;
+
+    /** the last refreshed VisibilityTimeout that was ignored, so it is logged once */
+    private volatile Duration ignoredVisibilityTimeout;
+
+    /** null if redeliveries are not de-duplicated */
+    private final RecentlyCompletedMessages completedMessages;
+
     private final Duration timeUntilVisibilityTimeoutExtension;
 
+    private final double visibilityTimeoutGrowthFactor;
+
     private final ScheduledExecutorService timeoutExtensionExecutor;
+
+    private final BatchVisibilityTimeoutExtender batchTimeoutExtender;
+
+    private final MessageAcknowledger messageAcknowledger;
     
     private final ErrorHandlingStrategy<I> errorHandlingStrategy;
 
     private final Duration awaitShutDown;
 
+    /** null if buffered messages wait for a worker as long as it takes */
+    private final Duration maxBufferDwell;
+
+    /** null if workers may run as long as they take */
+    private final Duration processingDeadline;
+
+    /** null if the processing deadline cannot be overridden per message */
+    private final String processingDeadlineAttribute;
+
+    private final Duration deadlineBackoff;
+
+    /** null if failed messages come back after their visibility timeout */
+    private final MessageRetrier messageRetrier;
+
+    private final MessageMetrics metrics;
+
+    private volatile MessageOutcomeListener<I, O> outcomeListener;
+
+    /** the acknowledger, outcome listener, metrics and completed messages */
+    private volatile CompletionOptions<I, O> completionOptions;
+
+    /** messages that have been scheduled and whose processing has not finished yet */
+    private final ConcurrentHashMap<String, AdmittedMessage> admittedMessages = new ConcurrentHashMap<>();
+
+    /** messages whose processing has been interrupted by the shutdown */
+    private final ConcurrentLinkedQueue<MessageWrapper<I>> interruptedMessages = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean draining;
+
+    private volatile boolean forcedShutdown;
+
     LongRunningMessageHandler(@NonNull ScheduledExecutorService timeoutExtensionExecutor,
             int maxNumberOfMessages, int numberOfThreads,
             @NonNull MessageHandlingRunnableFactory messageHandlingRunnableFactory,
@@ -64,42 +155,195 @@ public class LongRunningMessageHandler<I, O> {
             @NonNull Duration timeUntilVisibilityTimeoutExtension,
             @NonNull Duration awaitShutDown,
             @NonNull ErrorHandlingStrategy<I> errorHandlingStrategy) {
+        this(timeoutExtensionExecutor, HandlerOptions.DEFAULT, maxNumberOfMessages, numberOfThreads,
+                messageHandlingRunnableFactory, timeoutExtenderFactory, worker, queue,
+                finishedMessageCallback, timeUntilVisibilityTimeoutExtension, awaitShutDown,
+                errorHandlingStrategy);
+    }
+
+    LongRunningMessageHandler(@NonNull ScheduledExecutorService timeoutExtensionExecutor,
+            @NonNull HandlerOptions options,
+            int maxNumberOfMessages, int numberOfThreads,
+            @NonNull MessageHandlingRunnableFactory messageHandlingRunnableFactory,
+            @NonNull VisibilityTimeoutExtenderFactory timeoutExtenderFactory,
+            @NonNull MessageWorkerWithHeaders<I, O> worker, @NonNull Queue queue,
+            @NonNull FinishedMessageCallback<I, O> finishedMessageCallback,
+            @NonNull Duration timeUntilVisibilityTimeoutExtension,
+            @NonNull Duration awaitShutDown,
+            @NonNull ErrorHandlingStrategy<I> errorHandlingStrategy) {
+        this(timeoutExtensionExecutor, options, maxNumberOfMessages, numberOfThreads,
+                messageHandlingRunnableFactory, timeoutExtenderFactory, worker, null, 0, null, queue,
+                finishedMessageCallback, timeUntilVisibilityTimeoutExtension, awaitShutDown,
+                errorHandlingStrategy);
+    }
+
+    /**
+     * Creates a handler in batch mode: the messages are collected into batches
+     * of up to {@code maxBatchSize} messages, a batch is processed as soon as
+     * it is full or its first message has waited for {@code batchLinger}. The
+     * visibility timeout of every message is extended until its batch has been
+     * processed. {@code numberOfThreads} still limits the number of messages
+     * in processing, so it has to be at least {@code maxBatchSize}.
+     */
+    LongRunningMessageHandler(@NonNull ScheduledExecutorService timeoutExtensionExecutor,
+            @NonNull HandlerOptions options,
+            int maxNumberOfMessages, int numberOfThreads,
+            @NonNull MessageHandlingRunnableFactory messageHandlingRunnableFactory,
+            @NonNull VisibilityTimeoutExtenderFactory timeoutExtenderFactory,
+            @NonNull MessageBatchWorker<I, O> batchWorker, int maxBatchSize, @NonNull Duration batchLinger,
+            @NonNull Queue queue,
+            @NonNull FinishedMessageCallback<I, O> finishedMessageCallback,
+            @NonNull Duration timeUntilVisibilityTimeoutExtension,
+            @NonNull Duration awaitShutDown,
+            @NonNull ErrorHandlingStrategy<I> errorHandlingStrategy) {
+        this(timeoutExtensionExecutor, options, maxNumberOfMessages, numberOfThreads,
+                messageHandlingRunnableFactory, timeoutExtenderFactory, null, batchWorker, maxBatchSize,
+                batchLinger, queue, finishedMessageCallback, timeUntilVisibilityTimeoutExtension, awaitShutDown,
+                errorHandlingStrategy);
+    }
+
+    private LongRunningMessageHandler(@NonNull ScheduledExecutorService timeoutExtensionExecutor,
+            @NonNull HandlerOptions options,
+            int maxNumberOfMessages, int numberOfThreads,
+            @NonNull MessageHandlingRunnableFactory messageHandlingRunnableFactory,
+            @NonNull VisibilityTimeoutExtenderFactory timeoutExtenderFactory,
+            @Nullable MessageWorkerWithHeaders<I, O> worker,
+            @Nullable MessageBatchWorker<I, O> batchWorker, int maxBatchSize, @Nullable Duration batchLinger,
+            @NonNull Queue queue,
+            @NonNull FinishedMessageCallback<I, O> finishedMessageCallback,
+            @NonNull Duration timeUntilVisibilityTimeoutExtension,
+            @NonNull Duration awaitShutDown,
+            @NonNull ErrorHandlingStrategy<I> errorHandlingStrategy) {
+        if (worker == null && batchWorker == null) {
+            throw new NullPointerException("worker is marked non-null but is null");
+        }
+        if (batchWorker != null && batchLinger == null) {
+            throw new NullPointerException("batchLinger is marked non-null but is null");
+        }
         if (timeUntilVisibilityTimeoutExtension.isZero() || timeUntilVisibilityTimeoutExtension
                 .isNegative()) {
             throw new IllegalArgumentException("the timeout has to be > 0");
         }
+        if (queue.getDefaultVisibilityTimeout().minusSeconds(5).compareTo(
+                timeUntilVisibilityTimeoutExtension) < 0) {
+            throw new IllegalStateException("The extension interval of "
+                    + timeUntilVisibilityTimeoutExtension.getSeconds()
+                    + " is too close to the VisibilityTimeout of " + queue
+                            .getDefaultVisibilityTimeout().getSeconds()
+                    + " seconds of the queue, has to be at least 5 seconds less.");
+        }
+        if (batchWorker != null && maxBatchSize > numberOfThreads) {
+            throw new IllegalArgumentException("the batch size of " + maxBatchSize
+                    + " exceeds the " + numberOfThreads + " messages that may be in processing");
+        }
+        if (batchWorker != null && options.getFifoLaneBacklog() > 0) {
+            throw new IllegalArgumentException("batches cannot keep the order of FIFO message groups");
+        }
+        if (batchWorker != null && (options.getProcessingDeadline() != null || options
+                .getProcessingDeadlineAttribute() != null)) {
+            throw new IllegalArgumentException("batches cannot enforce a processing deadline per message");
+        }
+        if (options.getWorkerShare() != null && options.isVirtualThreads()) {
+            throw new IllegalArgumentException("the shared worker pool runs on platform threads, "
+                    + "it cannot be combined with virtual threads");
+        }
         this.timeoutExtensionExecutor = timeoutExtensionExecutor;
+        this.batchTimeoutExtender = options.getBatchTimeoutExtender();
+        this.messageAcknowledger = options.getBatchAcknowledger() == null ? null : options.getBatchAcknowledger()
+                .forQueue(queue.getUrl());
         this.messageHandlingRunnableFactory = messageHandlingRunnableFactory;
         this.timeoutExtenderFactory = timeoutExtenderFactory;
         this.worker = worker;
+        this.batchWorker = batchWorker;
         this.queue = queue;
         this.finishedMessageCallback = finishedMessageCallback;
-        this.timeUntilVisibilityTimeoutExtension = timeUntilVisibilityTimeoutExtension;
         this.awaitShutDown = awaitShutDown;
+        this.maxBufferDwell = options.getMaxBufferDwell();
+        this.processingDeadline = options.getProcessingDeadline();
+        this.processingDeadlineAttribute = options.getProcessingDeadlineAttribute();
+        this.deadlineBackoff = options.getDeadlineBackoff();
+        this.messageRetrier = options.getMessageRetrier();
         this.errorHandlingStrategy = errorHandlingStrategy;
+        this.refreshedQueue = options.getRefreshedQueue();
+        this.completedMessages = options.getCompletedMessages();
+        this.timeUntilVisibilityTimeoutExtension = timeUntilVisibilityTimeoutExtension;
+        this.visibilityTimeoutGrowthFactor = options.getVisibilityTimeoutGrowthFactor();
 
-        messageProcessingExecutor = new ThreadPoolTaskExecutor();
-        messageProcessingExecutor.setCorePoolSize(numberOfThreads);
-        messageProcessingExecutor.setMaxPoolSize(numberOfThreads);
-        messageProcessingExecutor.setThreadNamePrefix(getClass().getSimpleName()+"-"+queue.getName().getId()+"-");
-        /*
-         * Since we only accept new messages if one slot in the messagesInProcessing-Set
-         * / executor is free we can schedule at least one message for instant execution
-         * while (maxNumberOfMessages - 1) will be put into the queue
-         */
-        messageProcessingExecutor.setQueueCapacity(maxNumberOfMessages - 1);
-        messageProcessingExecutor.afterPropertiesSet();
+        WorkerShare workerShare = options.getWorkerShare();
+        if (workerShare == null) {
+            messageProcessingExecutor = new ThreadPoolTaskExecutor();
+            messageProcessingExecutor.setCorePoolSize(numberOfThreads);
+            messageProcessingExecutor.setMaxPoolSize(numberOfThreads);
+            messageProcessingExecutor.setThreadNamePrefix(getClass().getSimpleName()+"-"+queue.getName().getId()+"-");
+            if (options.isVirtualThreads()) {
+                /*
+                 * the pool keeps its size and queue, so the in-flight limit and the
+                 * shutdown behaviour stay the same; only the carrier of each worker
+                 * is a cheap virtual thread instead of a platform thread
+                 */
+                messageProcessingExecutor.setThreadFactory(VirtualThreads.factory(messageProcessingExecutor
+                        .getThreadNamePrefix()));
+            }
+            /*
+             * Since we only accept new messages if one slot in the messagesInProcessing-Set
+             * / executor is free we can schedule at least one message for instant execution
+             * while (maxNumberOfMessages - 1) will be put into the queue.
+             * A worker frees its slot before its thread returns to the pool, so up
+             * to numberOfThreads tasks can be queued at the same time.
+             */
+            messageProcessingExecutor.setQueueCapacity(Math.max(maxNumberOfMessages - 1, numberOfThreads));
+            messageProcessingExecutor.afterPropertiesSet();
+            sharedPoolMember = null;
+            taskExecutor = messageProcessingExecutor::execute;
+        } else {
+            /*
+             * numberOfThreads is the maximum share of this handler in the
+             * pool, the tasks wait in the pool until it assigns a thread
+             */
+            messageProcessingExecutor = null;
+            sharedPoolMember = workerShare.getPool().register(queue.getName().getId(), workerShare.getWeight(),
+                    Math.min(workerShare.getMinShare(), numberOfThreads), numberOfThreads,
+                    this::returnDroppedMessages);
+            taskExecutor = sharedPoolMember;
+        }
 
         messagesInProcessing = new SetWithUpperBound<>(numberOfThreads);
 
-        if (queue.getDefaultVisibilityTimeout().minusSeconds(5).compareTo(
-                timeUntilVisibilityTimeoutExtension) < 0) {
-            throw new IllegalStateException("The extension interval of "
-                    + timeUntilVisibilityTimeoutExtension.getSeconds()
-                    + " is too close to the VisibilityTimeout of " + queue
-                            .getDefaultVisibilityTimeout().getSeconds()
-                    + " seconds of the queue, has to be at least 5 seconds less.");
+        if (options.getFifoLaneBacklog() > 0) {
+            /*
+             * one lane per thread: each lane occupies at most one thread or
+             * queue slot, so the lanes never overflow the executor queue
+             */
+            fifoLanes = new FifoLanes(numberOfThreads, options.getFifoLaneBacklog(), taskExecutor);
+        } else {
+            fifoLanes = null;
+        }
+
+        if (batchWorker != null) {
+            batcher = new MessageBatcher<>(maxBatchSize, batchLinger, timeoutExtensionExecutor, this::submitBatch);
+        } else {
+            batcher = null;
+        }
+
+        /*
+         * the executor keeps numberOfThreads threads, the adaptive limit only
+         * decides how many messages are admitted to them
+         */
+        if (options.getMinConcurrency() > 0 && options.getMinConcurrency() < numberOfThreads) {
+            AdaptiveConcurrencyLimit concurrencyLimit = new AdaptiveConcurrencyLimit(options.getMinConcurrency(),
+                    numberOfThreads, messagesInProcessing::setMaximumSize);
+            this.metrics = MessageMetrics.combine(options.getMetrics(), concurrencyLimit);
+        } else {
+            this.metrics = options.getMetrics();
         }
+        completionOptions = CompletionOptions.<I, O> builder()
+                .messageAcknowledger(messageAcknowledger)
+                .metrics(metrics)
+                .completedMessages(completedMessages)
+                .build();
+
+        visibilityExtensionSchedule = new VisibilityExtensionSchedule(queue.getDefaultVisibilityTimeout(),
+                timeUntilVisibilityTimeoutExtension, visibilityTimeoutGrowthFactor);
     }
 
     /**
@@ -123,25 +367,71 @@ public class LongRunningMessageHandler<I, O> {
      * to an internal ThreadPoolExecutor and waits for all the tasks to finish
      * before polling from SQS again. That means we can block each task / thread
      * from returning until a free worker is available without interfering with the
-     * dispatching of other message tasks.
+     * dispatching of other message tasks. Each finished message releases
+     * exactly one waiting task. If the waiting thread is interrupted, the
+     * method returns early with the interrupt flag set.
      *
      * @param message
      *            the message to be processed
      */
     public void handleMessage(@NonNull Message<I> message) {
+        if (!submitMessage(message)) {
+            return;
+        }
+
+        try {
+            messagesInProcessing.waitUntilAtLeastOneFree();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.info("interrupted while waiting for a free worker");
+        }
+    }
+
+    /**
+     * Schedules the processing and the visibility timeout extension of the
+     * message without waiting for a free worker afterwards. Callers have to
+     * make sure themselves not to submit more messages than there are free
+     * workers, see {@link #getFreeWorkerCapacity()}.
+     *
+     * @param message
+     *            the message to be processed
+     * @return false if the message is already in processing
+     */
+    boolean submitMessage(@NonNull Message<I> message) {
         MessageWrapper<I> messageWrapper = new MessageWrapper<>(message);
         String messageId = messageWrapper.getMessageId();
 
+        if (draining) {
+            log.info("returning message " + messageId + ", the handler is shutting down");
+            messageWrapper.release();
+            runOnFinished(messageWrapper);
+            timeoutExtenderFactory.release(queue.getUrl(), List.of(messageWrapper));
+            return false;
+        }
         if (messagesInProcessing.contains(messageId)) {
-            return;
+            runOnFinished(messageWrapper);
+            return false;
+        }
+        // checked after messagesInProcessing: a message is added here before it is removed there
+        if (completedMessages != null && completedMessages.contains(messageId)) {
+            runOnFinished(messageWrapper);
+            acknowledgeDuplicate(messageWrapper);
+            return false;
         }
         messagesInProcessing.add(messageId);
+        if (refreshedQueue != null) {
+            adoptRefreshedQueue();
+        }
+        if (metrics != MessageMetrics.NOOP) {
+            recordQueueDwellTime(message);
+        }
 
-        ScheduledFuture<?> timeoutExtender;
+        Future<?> timeoutExtender;
         try {
             timeoutExtender = scheduleNewVisibilityTimeoutExtender(messageWrapper);
         } catch (RuntimeException rex) {
             messagesInProcessing.remove(messageId);
+            runOnFinished(messageWrapper);
             log.error("error while trying to schedule timeout extender", rex);
             throw new RuntimeException(rex);
         }
@@ -149,13 +439,79 @@ public class LongRunningMessageHandler<I, O> {
         try {
             scheduleNewMessageTask(messageWrapper, timeoutExtender);
         } catch (RuntimeException rex) {
+            AdmittedMessage admitted = admittedMessages.remove(messageId);
+            if (admitted != null) {
+                // the buffer dwell must not return the message a second time
+                admitted.release();
+                if (admitted.dwellTimeout != null) {
+                    admitted.dwellTimeout.cancel(false);
+                }
+            }
             messagesInProcessing.remove(messageId);
             timeoutExtender.cancel(true);
+            runOnFinished(messageWrapper);
             log.error("error while trying to submit message processing task", rex);
             throw new RuntimeException(rex);
         }
+        return true;
+    }
 
-        messagesInProcessing.waitUntilAtLeastOneFree();
+    private void acknowledgeDuplicate(MessageWrapper<I> messageWrapper) {
+        log.info("acknowledging redelivery of recently completed message " + messageWrapper.getMessageId());
+        if (messageAcknowledger != null) {
+            messageAcknowledger.acknowledge(messageWrapper, errorHandlingStrategy);
+            return;
+        }
+        try {
+            messageWrapper.acknowledge();
+        } catch (AwsServiceException e) {
+            errorHandlingStrategy.handleAcknowledgeMessageException(e, messageWrapper);
+        } catch (Exception e) {
+            log.error("failure during acknowledge " + messageWrapper.getMessageId(), e);
+        }
+    }
+
+    private void adoptRefreshedQueue() {
+        Queue refreshed = refreshedQueue.get();
+        if (refreshed == null || refreshed == queue) {
+            return;
+        }
+        Duration visibilityTimeout = refreshed.getDefaultVisibilityTimeout();
+        if (!visibilityTimeout.equals(visibilityExtensionSchedule.getVisibilityTimeout())) {
+            if (visibilityTimeout.minusSeconds(5).compareTo(timeUntilVisibilityTimeoutExtension) < 0) {
+                if (!visibilityTimeout.equals(ignoredVisibilityTimeout)) {
+                    ignoredVisibilityTimeout = visibilityTimeout;
+                    log.warn("ignoring the new VisibilityTimeout of " + visibilityTimeout.getSeconds()
+                            + " seconds of queue " + refreshed.getName().getId()
+                            + ", it is too close to the extension interval of "
+                            + timeUntilVisibilityTimeoutExtension.getSeconds() + " seconds");
+                }
+            } else {
+                log.info("adopting the new VisibilityTimeout of " + visibilityTimeout.getSeconds()
+                        + " seconds of queue " + refreshed.getName().getId());
+                visibilityExtensionSchedule = new VisibilityExtensionSchedule(visibilityTimeout,
+                        timeUntilVisibilityTimeoutExtension, visibilityTimeoutGrowthFactor);
+            }
+        }
+        queue = refreshed;
+    }
+
+    private void recordQueueDwellTime(Message<I> message) {
+        Object sentTimestamp = message.getHeaders().get(SqsHeaders.MessageSystemAttributes.SQS_SENT_TIMESTAMP);
+        try {
+            long sentMillis;
+            if (sentTimestamp instanceof Number) {
+                sentMillis = ((Number) sentTimestamp).longValue();
+            } else if (sentTimestamp instanceof String) {
+                sentMillis = Long.parseLong((String) sentTimestamp);
+            } else {
+                return;
+            }
+            long dwellMillis = System.currentTimeMillis() - sentMillis;
+            metrics.onReceived(TimeUnit.MILLISECONDS.toNanos(Math.max(0, dwellMillis)));
+        } catch (RuntimeException e) {
+            log.debug("could not record queue dwell time", e);
+        }
     }
 
     /** 
@@ -173,20 +529,303 @@ public class LongRunningMessageHandler<I, O> {
         return messagesInProcessing.free();
     }
 
+    /**
+     * Returns the number of messages that may currently be processed in
+     * parallel. It equals {@code numberOfThreads} unless an adaptive
+     * concurrency limit is configured, see
+     * {@link LongRunningMessageHandlerFactory#setAdaptiveConcurrency(int)}.
+     *
+     * @return the current concurrency limit
+     */
+    public int getConcurrencyLimit() {
+        return messagesInProcessing.getMaximumSize();
+    }
+
     private void scheduleNewMessageTask(@NonNull MessageWrapper<I> message,
-            ScheduledFuture<?> visibilityTimeoutExtender) {
+            Future<?> visibilityTimeoutExtender) {
+        if (batcher != null) {
+            addToBatch(message, visibilityTimeoutExtender);
+            return;
+        }
         MessageHandlingRunnable<I, O> messageTask = messageHandlingRunnableFactory.get(worker,
-                message, finishedMessageCallback, messagesInProcessing, visibilityTimeoutExtender, errorHandlingStrategy);
+                message, finishedMessageCallback, messagesInProcessing, visibilityTimeoutExtender, errorHandlingStrategy,
+                completionOptions);
+        Object messageGroupId = fifoLanes == null ? null : message.getMessage().getHeaders().get(
+                SqsHeaders.MessageSystemAttributes.SQS_MESSAGE_GROUP_ID_HEADER);
+        AdmittedMessage admitted = admit(message, visibilityTimeoutExtender);
+        BooleanSupplier processing = () -> {
+            if (!admitted.start()) {
+                return true;
+            }
+            Future<?> deadline = scheduleDeadline(admitted);
+            try {
+                messageTask.run();
+            } catch (Throwable t) {
+                // the error handling strategy rethrows to prevent the acknowledgement
+                log.debug("message " + message.getMessageId() + " has not been acknowledged", t);
+                retry(message);
+            } finally {
+                if (deadline != null) {
+                    deadline.cancel(false);
+                }
+                finish(admitted);
+            }
+            return message.isAcknowledged();
+        };
+        Runnable task = processing::getAsBoolean;
+        admitted.task = task;
+
+        if (messageGroupId == null) {
+            if (maxBufferDwell != null) {
+                // returning a message of a group would let its successors overtake it
+                admitted.dwellTimeout = timeoutExtensionExecutor.schedule(() -> expireDwell(admitted),
+                        maxBufferDwell.toMillis(), TimeUnit.MILLISECONDS);
+            }
+            taskExecutor.execute(task);
+            return;
+        }
+        try {
+            fifoLanes.execute(messageGroupId.toString(), processing, () -> skip(admitted, messageGroupId));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("interrupted while waiting for the lane of message group "
+                    + messageGroupId, e);
+        }
+    }
+
+    private void addToBatch(MessageWrapper<I> message, Future<?> visibilityTimeoutExtender) {
+        BatchEntry<I, O> entry = new BatchEntry<>(message, visibilityTimeoutExtender,
+                metrics != MessageMetrics.NOOP ? System.nanoTime() : 0L);
+        entry.setCompletion(messageHandlingRunnableFactory.get((payload, headers) -> entry.getResult(), message,
+                finishedMessageCallback, messagesInProcessing, visibilityTimeoutExtender, errorHandlingStrategy,
+                completionOptions));
+        admit(message, visibilityTimeoutExtender);
+        batcher.add(entry);
+    }
+
+    private void submitBatch(List<BatchEntry<I, O>> batch) {
+        try {
+            taskExecutor.execute(() -> processBatch(batch));
+        } catch (RuntimeException rex) {
+            for (BatchEntry<I, O> entry : batch) {
+                admittedMessages.remove(entry.getMessageId());
+                entry.getVisibilityTimeoutExtender().cancel(true);
+                messagesInProcessing.remove(entry.getMessageId());
+                runOnFinished(entry.getMessageWrapper());
+            }
+            log.error("error while trying to submit batch processing task", rex);
+            throw rex;
+        }
+    }
+
+    /**
+     * Processes the entries of the batch that have not been returned to the
+     * queue by a shutdown in the meantime.
+     */
+    private void processBatch(List<BatchEntry<I, O>> batch) {
+        List<BatchEntry<I, O>> started = new ArrayList<>(batch.size());
+        List<AdmittedMessage> admitted = new ArrayList<>(batch.size());
+        for (BatchEntry<I, O> entry : batch) {
+            AdmittedMessage message = admittedMessages.get(entry.getMessageId());
+            if (message != null && message.start()) {
+                started.add(entry);
+                admitted.add(message);
+            }
+        }
+        if (started.isEmpty()) {
+            return;
+        }
+        try {
+            new BatchHandlingRunnable<>(batchWorker, started, metrics, this::retry).run();
+        } finally {
+            admitted.forEach(this::finish);
+        }
+    }
+
+    /**
+     * Applies the retry policy, if any, to a message whose acknowledgement the
+     * error handling strategy prevented.
+     */
+    private void retry(MessageWrapper<I> message) {
+        if (messageRetrier != null && message.abandon()) {
+            messageRetrier.retry(queue.getUrl(), message);
+        }
+    }
+
+    private AdmittedMessage admit(MessageWrapper<I> message, Future<?> visibilityTimeoutExtender) {
+        AdmittedMessage admitted = new AdmittedMessage(message, visibilityTimeoutExtender);
+        admittedMessages.put(message.getMessageId(), admitted);
+        return admitted;
+    }
+
+    /**
+     * Returns a message to the queue that is still waiting for a worker after
+     * {@link #maxBufferDwell}, so that a consumer with free capacity can take
+     * it.
+     */
+    private void expireDwell(AdmittedMessage admitted) {
+        if (!admitted.release()) {
+            return;
+        }
+        if (sharedPoolMember != null) {
+            sharedPoolMember.remove(admitted.task);
+        } else {
+            messageProcessingExecutor.getThreadPoolExecutor().remove(admitted.task);
+        }
+        log.info("returning message " + admitted.message.getMessageId() + ", it has waited "
+                + maxBufferDwell.toMillis() + " ms for a worker");
+        free(admitted, "message has waited too long for a worker");
+        timeoutExtenderFactory.release(queue.getUrl(), List.of(admitted.message));
+    }
+
+    /**
+     * Returns a message to the queue without processing it, because an
+     * earlier message of its group has not been acknowledged: processing it
+     * would overtake the redelivery of the earlier one.
+     */
+    private void skip(AdmittedMessage admitted, Object messageGroupId) {
+        if (!admitted.release()) {
+            return;
+        }
+        log.info("returning message " + admitted.message.getMessageId() + ", an earlier message of group "
+                + messageGroupId + " has not been acknowledged");
+        free(admitted, "an earlier message of its group has not been acknowledged");
+        timeoutExtenderFactory.release(queue.getUrl(), List.of(admitted.message));
+    }
+
+    /**
+     * Frees the slot of a message that has been released before it started.
+     */
+    private void free(AdmittedMessage admitted, String reason) {
+        String messageId = admitted.message.getMessageId();
+        admittedMessages.remove(messageId, admitted);
+        admitted.visibilityTimeoutExtender.cancel(false);
+        if (admitted.dwellTimeout != null) {
+            admitted.dwellTimeout.cancel(false);
+        }
+        messagesInProcessing.remove(messageId);
+        runOnFinished(admitted.message);
+        publishFailure(admitted.message, new CancellationException(reason));
+    }
+
+    private void runOnFinished(MessageWrapper<I> message) {
+        Runnable onFinished = message.getMessage().getHeaders().get(ON_FINISHED_HEADER, Runnable.class);
+        if (onFinished == null) {
+            return;
+        }
+        try {
+            onFinished.run();
+        } catch (RuntimeException e) {
+            log.error("error after finishing message " + message.getMessageId(), e);
+        }
+    }
+
+    private void publishFailure(MessageWrapper<I> message, Throwable failure) {
+        MessageOutcomeListener<I, O> listener = outcomeListener;
+        if (listener != null) {
+            try {
+                listener.onOutcome(new MessageOutcome<>(MessageOutcome.Status.FAILED, message.getMessage(), null,
+                        failure));
+            } catch (RuntimeException e) {
+                log.error("error in outcome listener for message " + message.getMessageId(), e);
+            }
+        }
+    }
+
+    private Future<?> scheduleDeadline(AdmittedMessage admitted) {
+        Duration deadline = getProcessingDeadline(admitted.message);
+        if (deadline == null) {
+            return null;
+        }
+        return timeoutExtensionExecutor.schedule(() -> expireDeadline(admitted, new DeadlineExceededException(
+                admitted.message.getMessageId(), deadline)), deadline.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Interrupts the worker of a message whose deadline has passed and returns
+     * the message to the queue right away, without waiting for the worker: a
+     * worker that ignores the interrupt keeps its thread and slot until it
+     * returns, but its result is discarded.
+     */
+    private void expireDeadline(AdmittedMessage admitted, DeadlineExceededException reason) {
+        MessageWrapper<I> message = admitted.message;
+        message.exceedDeadline(reason);
+        if (!message.abandon()) {
+            // acknowledged or returned in the meantime
+            return;
+        }
+        admitted.visibilityTimeoutExtender.cancel(false);
+        log.warn("cancelled processing of message " + message.getMessageId() + ", it will be returned to the queue",
+                reason);
+        try {
+            errorHandlingStrategy.handleWorkerException(reason, message);
+        } catch (RuntimeException rethrown) {
+            // the message is not acknowledged either way
+            log.debug("error handling strategy rethrew for message " + message.getMessageId(), rethrown);
+        }
+        timeoutExtenderFactory.release(queue.getUrl(), List.of(message), deadlineBackoff);
+        publishFailure(message, reason);
+    }
+
+    private Duration getProcessingDeadline(MessageWrapper<I> message) {
+        if (processingDeadlineAttribute == null) {
+            return processingDeadline;
+        }
+        Object value = message.getMessage().getHeaders().get(processingDeadlineAttribute);
+        if (value == null) {
+            return processingDeadline;
+        }
+        try {
+            long seconds = value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString()
+                    .trim());
+            if (seconds > 0) {
+                return Duration.ofSeconds(seconds);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("ignoring the processing deadline " + value + " of message " + message.getMessageId(), e);
+        }
+        return processingDeadline;
+    }
+
+    private void finish(AdmittedMessage admitted) {
+        admittedMessages.remove(admitted.message.getMessageId(), admitted);
+        runOnFinished(admitted.message);
+        if (forcedShutdown && admitted.message.abandon()) {
+            interruptedMessages.add(admitted.message);
+        }
+    }
+
+    private Future<?> scheduleNewVisibilityTimeoutExtender(@NonNull MessageWrapper<I> message) {
+        VisibilityTimeoutExtender timeoutExtender = timeoutExtenderFactory.get(message, queue,
+                errorHandlingStrategy, visibilityExtensionSchedule, metrics);
+        if (batchTimeoutExtender != null) {
+            return batchTimeoutExtender.register(timeoutExtender);
+        }
+        return timeoutExtender.scheduleOn(timeoutExtensionExecutor);
+    }
+
+    /**
+     * Sets the listener that is notified about the outcome of every message
+     * submitted afterwards.
+     *
+     * @param outcomeListener
+     *            the listener or null to remove it
+     */
+    synchronized void setOutcomeListener(@Nullable MessageOutcomeListener<I, O> outcomeListener) {
+        this.outcomeListener = outcomeListener;
+        completionOptions = completionOptions.toBuilder().outcomeListener(outcomeListener).build();
+    }
 
-        messageProcessingExecutor.submit(messageTask);
+    Queue getQueue() {
+        return queue;
     }
 
-    private ScheduledFuture<?> scheduleNewVisibilityTimeoutExtender(@NonNull MessageWrapper<I> message) {
-        return timeoutExtensionExecutor.scheduleAtFixedRate(
-                timeoutExtenderFactory.get(message, queue, errorHandlingStrategy),
-                timeUntilVisibilityTimeoutExtension.toMillis(),
-                timeUntilVisibilityTimeoutExtension.toMillis(),
-                TimeUnit.MILLISECONDS);
+    /**
+     * @return true if messages of the same FIFO message group are processed
+     *         in order
+     */
+    boolean isFifoOrdering() {
+        return fifoLanes != null;
     }
 
     /**
@@ -198,15 +837,85 @@ public class LongRunningMessageHandler<I, O> {
         return messagesInProcessing;
     }
 
+    /**
+     * Drains the handler: new messages are returned to the queue instead of
+     * being admitted, and the messages whose processing has already started
+     * get {@code awaitShutDown} to finish. Admitted messages that have not
+     * started yet, and messages that are interrupted because they did not
+     * finish in time, are returned to the queue with a visibility timeout of
+     * 0, so that other consumers receive them right away instead of after
+     * their visibility timeout.
+     */
     @SneakyThrows
     public void shutdown() {
-        messageProcessingExecutor.getThreadPoolExecutor().shutdown();
-        boolean successfullyTerminated = messageProcessingExecutor.getThreadPoolExecutor().awaitTermination(awaitShutDown.getSeconds(), TimeUnit.SECONDS);
-        if (!successfullyTerminated) {
-            messageProcessingExecutor.getThreadPoolExecutor().shutdownNow();
-            messageProcessingExecutor.getThreadPoolExecutor().awaitTermination(10, TimeUnit.SECONDS);
+        draining = true;
+        if (batcher != null) {
+            batcher.flush();
+        }
+        releaseMessages(releaseUnstartedMessages("the handler has been shut down"));
+
+        if (sharedPoolMember != null) {
+            if (!sharedPoolMember.drain(awaitShutDown)) {
+                forcedShutdown = true;
+                sharedPoolMember.shutdown(Duration.ZERO);
+                sharedPoolMember.drain(Duration.ofSeconds(10));
+            }
+        } else {
+            messageProcessingExecutor.getThreadPoolExecutor().shutdown();
+            boolean successfullyTerminated = messageProcessingExecutor.getThreadPoolExecutor().awaitTermination(awaitShutDown.getSeconds(), TimeUnit.SECONDS);
+            if (!successfullyTerminated) {
+                forcedShutdown = true;
+                messageProcessingExecutor.getThreadPoolExecutor().shutdownNow();
+                messageProcessingExecutor.getThreadPoolExecutor().awaitTermination(10, TimeUnit.SECONDS);
+            }
         }
+
+        // messages admitted while the first release was running, and the interrupted ones
+        List<MessageWrapper<I>> remaining = releaseUnstartedMessages("the handler has been shut down");
+        MessageWrapper<I> interrupted;
+        while ((interrupted = interruptedMessages.poll()) != null) {
+            remaining.add(interrupted);
+        }
+        releaseMessages(remaining);
     }
+
+    /**
+     * Returns the messages that have not started to the queue, once the
+     * shared worker pool dropped tasks of this handler: after the pool has
+     * been shut down none of them can start anymore.
+     */
+    private void returnDroppedMessages() {
+        List<MessageWrapper<I>> unstarted = releaseUnstartedMessages("the shared worker pool has been shut down");
+        if (!unstarted.isEmpty()) {
+            log.warn("returning " + unstarted.size() + " messages to " + queue.getName().getId()
+                    + ", the shared worker pool has been shut down");
+            timeoutExtenderFactory.release(queue.getUrl(), unstarted);
+        }
+    }
+
+    private List<MessageWrapper<I>> releaseUnstartedMessages(String reason) {
+        List<MessageWrapper<I>> unstarted = new ArrayList<>();
+        for (AdmittedMessage admitted : admittedMessages.values()) {
+            if (admitted.release()) {
+                free(admitted, reason);
+                unstarted.add(admitted.message);
+            }
+        }
+        return unstarted;
+    }
+
+    private void releaseMessages(List<MessageWrapper<I>> messages) throws InterruptedException {
+        if (messages.isEmpty()) {
+            return;
+        }
+        log.info("returning " + messages.size() + " unprocessed messages to " + queue.getName().getId());
+        try {
+            timeoutExtenderFactory.release(queue.getUrl(), messages).get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("could not return all unprocessed messages to " + queue.getName().getId(), e);
+        }
+    }
+
     /**
      * Returns the number of elements that the {@link #messageProcessingExecutor} can accept
      * <p>
@@ -216,10 +925,49 @@ public class LongRunningMessageHandler<I, O> {
      * @return Remaining queue capacity
      */
     public int getRemainingCapacity() {
+        if (sharedPoolMember != null) {
+            return sharedPoolMember.getMaxShare() - sharedPoolMember.getPending();
+        }
         return messageProcessingExecutor
                 .getThreadPoolExecutor()
                 .getQueue()
                 .remainingCapacity();
     }
 
-}
\ No newline at end of file
+    /**
+     * A scheduled message; either its processing starts or it is returned to
+     * the queue, whichever comes first, see {@link MessageWrapper#start()}.
+     */
+    private final class AdmittedMessage {
+
+        private final MessageWrapper<I> message;
+
+        private final Future<?> visibilityTimeoutExtender;
+
+        /** the task of a single message; null in batch mode */
+        private volatile Runnable task;
+
+        /** null unless the time in the local buffer is limited */
+        private volatile Future<?> dwellTimeout;
+
+        AdmittedMessage(MessageWrapper<I> message, Future<?> visibilityTimeoutExtender) {
+            this.message = message;
+            this.visibilityTimeoutExtender = visibilityTimeoutExtender;
+        }
+
+        boolean start() {
+            if (!message.start()) {
+                return false;
+            }
+            Future<?> timeout = dwellTimeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            return true;
+        }
+
+        boolean release() {
+            return message.release();
+        }
+    }
+}
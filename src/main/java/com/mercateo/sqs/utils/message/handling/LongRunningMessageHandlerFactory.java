@@ -16,45 +16,113 @@
 package com.mercateo.sqs.utils.message.handling;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.mercateo.sqs.utils.metrics.MessageMetrics;
 import com.mercateo.sqs.utils.queue.Queue;
 import com.mercateo.sqs.utils.queue.QueueFactory;
 import com.mercateo.sqs.utils.queue.QueueName;
+import com.mercateo.sqs.utils.visibility.BatchVisibilityTimeoutExtender;
+import com.mercateo.sqs.utils.visibility.HashedWheelTimer;
 import com.mercateo.sqs.utils.visibility.VisibilityTimeoutExtenderFactory;
 
 import java.time.Duration;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
 
 import jakarta.inject.Inject;
 import jakarta.inject.Named;
 
 import lombok.NonNull;
 
+import org.springframework.lang.Nullable;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
 
 @Named
 public class LongRunningMessageHandlerFactory {
 
+    private static final Duration ACKNOWLEDGEMENT_LINGER = Duration.ofMillis(100);
+
+    private static final Duration TIMER_TICK = Duration.ofMillis(100);
+
+    private static final int TIMER_TICKS_PER_WHEEL = 512;
+
+    private static final Duration POLL_WAIT_TIME = Duration.ofSeconds(20);
+
+    static final int DEFAULT_FIFO_LANE_BACKLOG = 10;
+
+    static final int DEFAULT_DEDUPLICATION_CAPACITY = 100_000;
+
     private final MessageHandlingRunnableFactory messageHandlingRunnableFactory;
 
     private final VisibilityTimeoutExtenderFactory timeoutExtenderFactory;
 
     private final QueueFactory queueFactory;
 
+    private final SqsAsyncClient sqsClient;
+
     private final ScheduledExecutorService executorService;
 
     private int maxNumberOfMessagesPerBatch;
 
-    @Inject
+    /** created once and kept, its tick runs as long as the executor */
+    private BatchVisibilityTimeoutExtender batchTimeoutExtender;
+
+    private boolean batchVisibilityTimeoutExtension;
+
+    private BatchAcknowledger batchAcknowledger;
+
+    private boolean virtualThreads;
+
+    private MessageMetrics messageMetrics = MessageMetrics.NOOP;
+
+    private double visibilityTimeoutGrowthFactor = 1;
+
+    private int minConcurrency;
+
+    private boolean fifoOrdering;
+
+    private int fifoLaneBacklog = DEFAULT_FIFO_LANE_BACKLOG;
+
+    private WorkerShare workerShare;
+
+    private Duration deduplicationWindow;
+
+    private int deduplicationCapacity = DEFAULT_DEDUPLICATION_CAPACITY;
+
+    private S3ClaimCheck claimCheck;
+
+    private Duration maxBufferDwell;
+
+    private Duration processingDeadline;
+
+    private String processingDeadlineAttribute;
+
+    private Duration deadlineBackoff = Duration.ZERO;
+
+    private RetryPolicy retryPolicy;
+
     public LongRunningMessageHandlerFactory(
             @NonNull MessageHandlingRunnableFactory messageHandlingRunnableFactory,
             @NonNull VisibilityTimeoutExtenderFactory timeoutExtenderFactory,
             @NonNull QueueFactory queueFactory) {
+        this(messageHandlingRunnableFactory, timeoutExtenderFactory, queueFactory, null);
+    }
+
+    @Inject
+    public LongRunningMessageHandlerFactory(
+            @NonNull MessageHandlingRunnableFactory messageHandlingRunnableFactory,
+            @NonNull VisibilityTimeoutExtenderFactory timeoutExtenderFactory,
+            @NonNull QueueFactory queueFactory,
+            @Nullable SqsAsyncClient sqsClient) {
         this.messageHandlingRunnableFactory = messageHandlingRunnableFactory;
         this.timeoutExtenderFactory = timeoutExtenderFactory;
         this.queueFactory = queueFactory;
+        this.sqsClient = sqsClient;
 
-        this.executorService = Executors.newScheduledThreadPool(1,
+        this.executorService = new HashedWheelTimer(
                 new ThreadFactory() {
 
                     private final ThreadFactory threadFactory = Executors.defaultThreadFactory();
@@ -67,7 +135,7 @@ public class LongRunningMessageHandlerFactory {
                         newThread.setName(LongRunningMessageHandlerFactory.class.getSimpleName() + "-" + createdThreads++);
                         return newThread;
                     }
-                });
+                }, TIMER_TICK, TIMER_TICKS_PER_WHEEL);
 
         this.maxNumberOfMessagesPerBatch = 10;
     }
@@ -81,6 +149,302 @@ public class LongRunningMessageHandlerFactory {
         return this.maxNumberOfMessagesPerBatch;
     }
 
+    /**
+     * Coalesces the visibility timeout extensions of all handlers created
+     * afterwards into {@code ChangeMessageVisibilityBatch} requests instead of
+     * sending one request per message and interval. Recommended if many
+     * messages are in flight at the same time. Handlers created before keep
+     * the way they extend, all of them share one batch extender.
+     *
+     * @param batchVisibilityTimeoutExtension
+     *            whether the extensions should be sent in batches
+     */
+    public void setBatchVisibilityTimeoutExtension(boolean batchVisibilityTimeoutExtension) {
+        if (batchVisibilityTimeoutExtension && batchTimeoutExtender == null) {
+            this.batchTimeoutExtender = timeoutExtenderFactory.getBatchExtender(executorService);
+        }
+        this.batchVisibilityTimeoutExtension = batchVisibilityTimeoutExtension;
+    }
+
+    /**
+     * Deletes the processed messages of all handlers created afterwards
+     * asynchronously in {@code DeleteMessageBatch} requests. The worker thread
+     * is released as soon as the message is handed over instead of waiting for
+     * the deletion. Failed deletions are passed to
+     * {@link ErrorHandlingStrategy#handleAcknowledgeMessageException}.
+     *
+     * @param batchAcknowledgement
+     *            whether processed messages should be deleted in batches
+     */
+    public void setBatchAcknowledgement(boolean batchAcknowledgement) {
+        if (!batchAcknowledgement) {
+            this.batchAcknowledger = null;
+        } else if (batchAcknowledger == null) {
+            if (sqsClient == null) {
+                throw new IllegalStateException("batch acknowledgement requires an SqsAsyncClient");
+            }
+            this.batchAcknowledger = new BatchAcknowledger(sqsClient, executorService, ACKNOWLEDGEMENT_LINGER,
+                    ForkJoinPool.commonPool());
+        }
+    }
+
+    /**
+     * Runs the workers of all handlers created afterwards on virtual threads
+     * instead of platform threads. Recommended for I/O-bound workers. The
+     * number of messages processed in parallel is still limited by
+     * {@code numberOfThreads} and the shutdown behaviour is unchanged.
+     *
+     * @param virtualThreads
+     *            whether workers should run on virtual threads
+     * @throws IllegalStateException
+     *             if the runtime does not support virtual threads (Java &lt;
+     *             21)
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        if (virtualThreads && !VirtualThreads.isSupported()) {
+            throw new IllegalStateException("virtual threads require Java 21 or newer, running on "
+                    + Runtime.version());
+        }
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Reports the lifecycle of every message of all handlers created afterwards
+     * to the given metrics, e.g. a
+     * {@link com.mercateo.sqs.utils.metrics.HistogramMessageMetrics}.
+     *
+     * @param messageMetrics
+     *            the metrics or {@link MessageMetrics#NOOP} to disable them
+     */
+    public void setMessageMetrics(@NonNull MessageMetrics messageMetrics) {
+        this.messageMetrics = messageMetrics;
+    }
+
+    /**
+     * Lets the visibility timeout extensions of all handlers created afterwards
+     * grow geometrically: the first extension happens
+     * {@code timeUntilVisibilityTimeoutExtension} after the message was
+     * received and requests the queue's visibility timeout, every further one
+     * requests {@code growthFactor} times the previous timeout, up to the SQS
+     * limit of 12 hours after the receive. Long-running workers then need far
+     * fewer {@code ChangeMessageVisibility} calls.
+     *
+     * @param growthFactor
+     *            1 (the default) extends at a fixed rate, e.g. 2 doubles every
+     *            extension
+     * @throws IllegalArgumentException
+     *             if the factor is less than 1
+     */
+    public void setVisibilityTimeoutGrowthFactor(double growthFactor) {
+        if (!(growthFactor >= 1)) {
+            throw new IllegalArgumentException("the growth factor has to be >= 1");
+        }
+        this.visibilityTimeoutGrowthFactor = growthFactor;
+    }
+
+    /**
+     * Lets the number of messages processed in parallel by all handlers
+     * created afterwards adapt to the worker: the limit starts at
+     * {@code numberOfThreads} and shrinks towards {@code minConcurrency} when
+     * the worker calls get slower or fail more often, and grows back when
+     * they recover. {@link LongRunningMessageHandler#handleMessage} and the
+     * free worker capacity follow the current limit.
+     *
+     * @param minConcurrency
+     *            the lower bound of the limit; 0 (the default) keeps it fixed
+     *            at {@code numberOfThreads}
+     * @throws IllegalArgumentException
+     *             if the bound is negative
+     */
+    public void setAdaptiveConcurrency(int minConcurrency) {
+        if (minConcurrency < 0) {
+            throw new IllegalArgumentException("the minimum concurrency has to be >= 0");
+        }
+        this.minConcurrency = minConcurrency;
+    }
+
+    /**
+     * Keeps the messages of each {@code MessageGroupId} of a FIFO queue
+     * strictly ordered in all handlers created afterwards: a message only
+     * starts once the previous message of its group has been processed, while
+     * different groups are processed in parallel. The groups are spread over
+     * one lane per thread, so groups sharing a lane wait for each other as
+     * well. If a message is not acknowledged, e.g. because the error handling
+     * strategy rethrows or its deadline passes, the waiting messages of its
+     * group are returned to the queue unprocessed, so that they follow its
+     * redelivery. Messages without a group id are processed without ordering.
+     * Batch handlers do not support this mode.
+     *
+     * @param fifoOrdering
+     *            whether messages should be ordered by their group
+     */
+    public void setFifoOrdering(boolean fifoOrdering) {
+        this.fifoOrdering = fifoOrdering;
+    }
+
+    /**
+     * Limits how many messages may wait in a lane while FIFO ordering is
+     * enabled, so a single busy group cannot take all worker slots. Submitting
+     * a message to a full lane blocks until the lane has caught up. Defaults
+     * to 10.
+     *
+     * @param fifoLaneBacklog
+     *            the maximum number of waiting messages per lane, at least 1
+     */
+    public void setFifoLaneBacklog(int fifoLaneBacklog) {
+        if (fifoLaneBacklog < 1) {
+            throw new IllegalArgumentException("the lane backlog has to be >= 1");
+        }
+        this.fifoLaneBacklog = fifoLaneBacklog;
+    }
+
+    /**
+     * Lets all handlers created afterwards run on the threads of a
+     * {@link SharedWorkerPool} instead of an own pool. The pool assigns its
+     * threads to the handlers in proportion to their weights and keeps the
+     * minimum share of each handler reserved for it; the number of threads of
+     * a handler becomes its maximum share. The handlers stop using the pool
+     * on shutdown, the pool itself has to be shut down by its owner; messages
+     * that are still waiting for its threads then are returned to their queue.
+     * The pool uses platform threads, creating a handler fails while
+     * {@link #setVirtualThreads(boolean)} is enabled as well.
+     *
+     * @param workerShare
+     *            the pool and the share of the handlers in it, or null to give
+     *            every handler its own pool
+     */
+    public void setWorkerShare(@Nullable WorkerShare workerShare) {
+        this.workerShare = workerShare;
+    }
+
+    /**
+     * Makes all handlers created afterwards remember the ids of completed
+     * messages for at least the given window. A redelivery of such a message,
+     * e.g. a duplicate on a standard queue or after a failed acknowledgement,
+     * is acknowledged right away instead of being processed again. Messages
+     * whose worker failed and that have not been acknowledged are not
+     * affected.
+     *
+     * @param deduplicationWindow
+     *            how long completed message ids are remembered, or null to
+     *            turn the de-duplication off
+     */
+    public void setDeduplicationWindow(@Nullable Duration deduplicationWindow) {
+        if (deduplicationWindow != null && (deduplicationWindow.isZero() || deduplicationWindow.isNegative())) {
+            throw new IllegalArgumentException("the de-duplication window has to be > 0");
+        }
+        this.deduplicationWindow = deduplicationWindow;
+    }
+
+    /**
+     * Limits the number of message ids each handler remembers within the
+     * de-duplication window; if more messages complete within the window,
+     * the oldest ids are forgotten earlier. Each id takes at most 64 bytes.
+     * Defaults to 100000.
+     *
+     * @param deduplicationCapacity
+     *            the maximum number of remembered ids per handler, between 1
+     *            and 2^24
+     */
+    public void setDeduplicationCapacity(int deduplicationCapacity) {
+        if (deduplicationCapacity < 1 || deduplicationCapacity > 1 << 24) {
+            throw new IllegalArgumentException("the de-duplication capacity has to be between 1 and 2^24");
+        }
+        this.deduplicationCapacity = deduplicationCapacity;
+    }
+
+    /**
+     * Limits how long a message of a handler created afterwards may wait in
+     * the local buffer for a free worker. A message that has not started
+     * within this time is returned to the queue with a visibility timeout of
+     * 0 and its slot is freed, so that a consumer with free capacity can take
+     * it instead of it being kept invisible behind long running jobs. Messages
+     * of FIFO message groups always wait, returning them would break their
+     * order.
+     *
+     * @param maxBufferDwell
+     *            the maximum waiting time, or null to wait as long as it takes
+     */
+    public void setMaxBufferDwell(@Nullable Duration maxBufferDwell) {
+        if (maxBufferDwell != null && (maxBufferDwell.isZero() || maxBufferDwell.isNegative())) {
+            throw new IllegalArgumentException("the maximum buffer dwell time has to be > 0");
+        }
+        this.maxBufferDwell = maxBufferDwell;
+    }
+
+    /**
+     * Limits how long the worker of a handler created afterwards may work on
+     * a message. When the deadline has passed, the worker is interrupted, a
+     * {@link DeadlineExceededException} is passed to the
+     * {@link ErrorHandlingStrategy} and the message is returned to the queue
+     * after the {@link #setDeadlineBackoff(Duration) backoff} instead of being
+     * acknowledged, so a hung call does not hold the visibility of the
+     * message for up to 12 hours. This happens when the deadline passes, also
+     * if the worker ignores the interrupt; such a worker keeps its thread and
+     * slot until it returns, and its result is discarded. Batch handlers do
+     * not support a processing deadline.
+     *
+     * @param processingDeadline
+     *            the maximum processing time per message, or null to let the
+     *            worker run as long as it takes
+     */
+    public void setProcessingDeadline(@Nullable Duration processingDeadline) {
+        if (processingDeadline != null && (processingDeadline.isZero() || processingDeadline.isNegative())) {
+            throw new IllegalArgumentException("the processing deadline has to be > 0");
+        }
+        this.processingDeadline = processingDeadline;
+    }
+
+    /**
+     * Lets single messages override the processing deadline: if the message
+     * has the given attribute with a positive number of seconds, it is used
+     * instead of the {@link #setProcessingDeadline(Duration) handler
+     * deadline}; a message without it keeps the handler deadline, if any.
+     *
+     * @param processingDeadlineAttribute
+     *            the name of the message attribute, or null to use the handler
+     *            deadline for all messages
+     */
+    public void setProcessingDeadlineAttribute(@Nullable String processingDeadlineAttribute) {
+        this.processingDeadlineAttribute = processingDeadlineAttribute;
+    }
+
+    /**
+     * Sets how long a message that exceeded its processing deadline stays
+     * invisible before it is received again. Defaults to 0, i.e. the message
+     * can be received again right away.
+     *
+     * @param deadlineBackoff
+     *            the visibility timeout of the returned message, between 0 and
+     *            12 hours
+     */
+    public void setDeadlineBackoff(@NonNull Duration deadlineBackoff) {
+        if (deadlineBackoff.isNegative() || deadlineBackoff.compareTo(Duration.ofHours(12)) > 0) {
+            throw new IllegalArgumentException("the deadline backoff has to be between 0 and 12 hours");
+        }
+        this.deadlineBackoff = deadlineBackoff;
+    }
+
+    /**
+     * Retries the failed messages of handlers created afterwards with an
+     * exponential, jittered backoff: when the {@link ErrorHandlingStrategy}
+     * prevents the acknowledgement of a message, its visibility timeout is set
+     * to the delay for its {@code ApproximateReceiveCount} instead of keeping
+     * the lease of the last extension, and after the last attempt it is moved
+     * to the dead-letter queue of the policy. Waiting for a retry costs no
+     * worker time. For batch workers the policy applies to every failed entry.
+     *
+     * @param retryPolicy
+     *            the policy, or null to let failed messages come back after
+     *            their visibility timeout
+     */
+    public void setRetryPolicy(@Nullable RetryPolicy retryPolicy) {
+        if (retryPolicy != null && sqsClient == null) {
+            throw new IllegalStateException("retries require an SqsAsyncClient");
+        }
+        this.retryPolicy = retryPolicy;
+    }
+
     /**
      * Creates a handler which should be called for each incoming message and
      * takes care of extending the visibility timeout of that message and
@@ -296,6 +660,7 @@ public class LongRunningMessageHandlerFactory {
 
         Queue queue = queueFactory.get(queueName);
         return new LongRunningMessageHandler<>(executorService,
+                getOptions(queueName),
                 maxNumberOfMessagesPerBatch,
                 numberOfThreads,
                 messageHandlingRunnableFactory,
@@ -308,7 +673,225 @@ public class LongRunningMessageHandlerFactory {
                 errorHandlingStrategy);
     }
 
+    /**
+     * Creates a handler that processes the messages in batches: they are
+     * collected until {@code maxBatchSize} messages are available or the
+     * first one has waited for {@code batchLinger}, then the worker is called
+     * with all of them. The visibility timeout of every message is extended
+     * until its batch has been processed, and only the messages the worker
+     * marked as succeeded are acknowledged.
+     *
+     * @param numberOfThreads
+     *            number of messages that may be in processing at the same
+     *            time, at least {@code maxBatchSize}
+     * @param batchWorker
+     *            the single worker instance that processes the batches;
+     *            should be stateless
+     * @param maxBatchSize
+     *            maximum number of messages per batch
+     * @param batchLinger
+     *            maximum time the first message of a batch waits for more
+     *            messages
+     * @param queueName
+     *            the name of the queue; required for timeout extension
+     * @param timeUntilVisibilityTimeoutExtension
+     *            the time between visibility timeout extensions; should be at
+     *            least 5 seconds smaller than the queue visibility timeout
+     * @param <I>
+     *            the input type of the message payload
+     * @param <O>
+     *            the output type of the message processing
+     * @return a LongRunningMessageHandler instance
+     */
+    public <I, O> LongRunningMessageHandler<I, O> getBatchHandler(int numberOfThreads,
+            @NonNull MessageBatchWorker<I, O> batchWorker, int maxBatchSize,
+            @NonNull Duration batchLinger,
+            @NonNull QueueName queueName,
+            @NonNull Duration timeUntilVisibilityTimeoutExtension) {
+        return this.getBatchHandler(numberOfThreads,
+                batchWorker,
+                maxBatchSize,
+                batchLinger,
+                queueName,
+                (input, output) -> {
+                },
+                timeUntilVisibilityTimeoutExtension,
+                Duration.ofSeconds(0),
+                new DefaultErrorHandlingStrategy<I>());
+    }
+
+    /**
+     * Like
+     * {@link #getBatchHandler(int, MessageBatchWorker, int, Duration, QueueName, Duration)},
+     * see {@link #get(int, MessageWorkerWithHeaders, QueueName, FinishedMessageCallback, Duration, Duration, ErrorHandlingStrategy)}
+     * for the remaining parameters.
+     *
+     * @param numberOfThreads
+     *            number of messages that may be in processing at the same
+     *            time, at least {@code maxBatchSize}
+     * @param batchWorker
+     *            the single worker instance that processes the batches;
+     *            should be stateless
+     * @param maxBatchSize
+     *            maximum number of messages per batch
+     * @param batchLinger
+     *            maximum time the first message of a batch waits for more
+     *            messages
+     * @param queueName
+     *            the name of the queue; required for timeout extension
+     * @param finishedMessageCallback
+     *            will be invoked for every succeeded message of a batch
+     * @param timeUntilVisibilityTimeoutExtension
+     *            the time between visibility timeout extensions
+     * @param awaitShutDown
+     *            in case of application shutdown this specifies the time frame
+     *            during which the batches can try to finish processing
+     * @param errorHandlingStrategy
+     *            handles the failed messages of a batch
+     * @param <I>
+     *            the input type of the message payload
+     * @param <O>
+     *            the output type of the message processing
+     * @return a LongRunningMessageHandler instance
+     */
+    public <I, O> LongRunningMessageHandler<I, O> getBatchHandler(int numberOfThreads,
+            @NonNull MessageBatchWorker<I, O> batchWorker, int maxBatchSize,
+            @NonNull Duration batchLinger,
+            @NonNull QueueName queueName,
+            @NonNull FinishedMessageCallback<I, O> finishedMessageCallback,
+            @NonNull Duration timeUntilVisibilityTimeoutExtension,
+            @NonNull Duration awaitShutDown,
+            @NonNull ErrorHandlingStrategy<I> errorHandlingStrategy) {
+
+        Queue queue = queueFactory.get(queueName);
+        return new LongRunningMessageHandler<>(executorService,
+                getOptions(queueName),
+                maxNumberOfMessagesPerBatch,
+                numberOfThreads,
+                messageHandlingRunnableFactory,
+                timeoutExtenderFactory,
+                batchWorker,
+                maxBatchSize,
+                batchLinger,
+                queue,
+                finishedMessageCallback,
+                timeUntilVisibilityTimeoutExtension,
+                awaitShutDown,
+                errorHandlingStrategy);
+    }
+
+    private HandlerOptions getOptions(QueueName queueName) {
+        return HandlerOptions.builder()
+                .batchTimeoutExtender(batchVisibilityTimeoutExtension ? batchTimeoutExtender : null)
+                .batchAcknowledger(batchAcknowledger)
+                .virtualThreads(virtualThreads)
+                .metrics(messageMetrics)
+                .visibilityTimeoutGrowthFactor(visibilityTimeoutGrowthFactor)
+                .minConcurrency(minConcurrency)
+                .fifoLaneBacklog(fifoOrdering ? fifoLaneBacklog : 0)
+                .workerShare(workerShare)
+                .completedMessages(deduplicationWindow == null ? null : new RecentlyCompletedMessages(
+                        deduplicationCapacity, deduplicationWindow))
+                .maxBufferDwell(maxBufferDwell)
+                .processingDeadline(processingDeadline)
+                .processingDeadlineAttribute(processingDeadlineAttribute)
+                .deadlineBackoff(deadlineBackoff)
+                .messageRetrier(retryPolicy == null ? null : new MessageRetrier(retryPolicy, sqsClient))
+                .refreshedQueue(() -> queueFactory.getIfResolved(queueName))
+                .build();
+    }
+
+    /**
+     * Resolves claim-check pointer messages in all adapters and pollers
+     * created afterwards: the download of the referenced S3 object starts
+     * while the message waits for a worker, for a bounded number of messages,
+     * and the object is streamed to the {@link PayloadDecoder}. Messages
+     * received by an {@code SqsListener} are not affected.
+     *
+     * @param claimCheck
+     *            the claim check or null to pass pointer messages on unchanged
+     */
+    public void setClaimCheck(@Nullable S3ClaimCheck claimCheck) {
+        this.claimCheck = claimCheck;
+    }
+
+    /**
+     * Creates an adapter that passes raw SQS messages to the given handler and
+     * decodes their body on the worker thread, so the thread that receives the
+     * messages does not deserialize them and waiting messages only hold the
+     * raw body.
+     *
+     * @param handler
+     *            the handler that processes the messages
+     * @param payloadDecoder
+     *            decodes the payload passed to the worker from the raw message
+     * @param <I>
+     *            the input type of the message payload
+     * @return a new adapter
+     */
+    public <I> SqsMessageAdapter<I> getSqsMessageAdapter(@NonNull LongRunningMessageHandler<I, ?> handler,
+            @NonNull PayloadDecoder<I> payloadDecoder) {
+        if (sqsClient == null) {
+            throw new IllegalStateException("raw messages require an SqsAsyncClient to be acknowledged");
+        }
+        return new SqsMessageAdapter<>(sqsClient, handler, payloadDecoder, claimCheck);
+    }
+
+    /**
+     * Creates a poller that receives messages for the given handler on demand,
+     * as an alternative to an {@code SqsListener} calling
+     * {@link LongRunningMessageHandler#handleMessage(org.springframework.messaging.Message)}.
+     * Each {@code ReceiveMessage} request asks for at most as many messages as
+     * the handler has free workers. The poller has to be started and should be
+     * stopped before the handler is shut down. Handlers that keep the order of
+     * FIFO message groups are not supported.
+     *
+     * @param handler
+     *            the handler that processes the received messages
+     * @param payloadConverter
+     *            converts the message body into the payload passed to the
+     *            worker, on the worker thread
+     * @param maxConcurrentReceives
+     *            maximum number of long polls that may be in flight at the
+     *            same time; more than one is only useful if the handler has
+     *            more than 10 workers
+     * @param <I>
+     *            the input type of the message payload
+     * @return a poller that has not been started yet
+     * @throws IllegalArgumentException
+     *             if the handler keeps the order of FIFO message groups
+     */
+    public <I> SqsMessagePoller<I> getPoller(@NonNull LongRunningMessageHandler<I, ?> handler,
+            @NonNull Function<String, I> payloadConverter, int maxConcurrentReceives) {
+        if (sqsClient == null) {
+            throw new IllegalStateException("polling requires an SqsAsyncClient");
+        }
+        return new SqsMessagePoller<>(sqsClient, executorService, ForkJoinPool.commonPool(), handler,
+                payloadConverter, maxConcurrentReceives, POLL_WAIT_TIME, claimCheck);
+    }
+
+    /**
+     * Creates a {@link java.util.concurrent.Flow.Subscriber} for the given
+     * handler that requests exactly as many messages as the handler has free
+     * workers and publishes the outcome of every message.
+     *
+     * @param handler
+     *            the handler that processes the messages; the adapter has to
+     *            be its only source of messages
+     * @param <I>
+     *            the input type of the message payload
+     * @param <O>
+     *            the output type of the message processing
+     * @return a new adapter
+     */
+    public <I, O> MessageFlowAdapter<I, O> getFlowAdapter(@NonNull LongRunningMessageHandler<I, O> handler) {
+        return new MessageFlowAdapter<>(handler, ForkJoinPool.commonPool(), Flow.defaultBufferSize());
+    }
+
     public void shutdown() {
+        if (batchAcknowledger != null) {
+            batchAcknowledger.flush();
+        }
         executorService.shutdownNow();
     }
 
@@ -0,0 +1,41 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Deletes processed messages from their queue without blocking the worker.
+ */
+interface MessageAcknowledger {
+
+    /**
+     * Schedules the deletion of the message and returns immediately. Failures
+     * are passed to
+     * {@link ErrorHandlingStrategy#handleAcknowledgeMessageException}.
+     *
+     * @param message
+     *            the processed message
+     * @param errorHandlingStrategy
+     *            handles a failed deletion
+     * @param <I>
+     *            the input type of the message payload
+     * @return completes when the message has been deleted, exceptionally if
+     *         the deletion failed
+     */
+    <I> CompletableFuture<Void> acknowledge(MessageWrapper<I> message, ErrorHandlingStrategy<I> errorHandlingStrategy);
+
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import java.util.List;
+
+/**
+ * Processes the messages of a {@link LongRunningMessageHandler} in batches,
+ * e.g. to write them to a database in one statement.
+ *
+ * <p>
+ * Each entry can be marked with {@link BatchEntry#succeed(Object)} or
+ * {@link BatchEntry#fail(Exception)}. Entries that are not marked succeed
+ * without an output if the method returns normally and fail with the thrown
+ * exception otherwise. Only succeeded entries are acknowledged, failed ones
+ * are passed to the {@link ErrorHandlingStrategy} like failures of a
+ * {@link MessageWorkerWithHeaders}.
+ *
+ * @param <I>
+ *            the input type of the message payload
+ * @param <O>
+ *            the output type of the message processing
+ */
+public interface MessageBatchWorker<I, O> {
+
+    void work(List<BatchEntry<I, O>> batch) throws Exception;
+
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import lombok.NonNull;
+
+/**
+ * Collects items into batches. A batch is handed over as soon as it contains
+ * {@code maxBatchSize} items or the first item in it has waited for the
+ * linger time, whichever comes first.
+ */
+class MessageBatcher<T> {
+
+    private final int maxBatchSize;
+
+    private final Duration linger;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Consumer<List<T>> batchConsumer;
+
+    /** guarded by this */
+    private List<T> pending;
+
+    /** guarded by this */
+    private Future<?> lingerFlush;
+
+    MessageBatcher(int maxBatchSize, @NonNull Duration linger, @NonNull ScheduledExecutorService scheduler,
+            @NonNull Consumer<List<T>> batchConsumer) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("the batch size has to be >= 1");
+        }
+        if (linger.isNegative()) {
+            throw new IllegalArgumentException("the linger time has to be >= 0");
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.linger = linger;
+        this.scheduler = scheduler;
+        this.batchConsumer = batchConsumer;
+    }
+
+    void add(@NonNull T item) {
+        List<T> full = null;
+        synchronized (this) {
+            if (pending == null) {
+                List<T> batch = new ArrayList<>(maxBatchSize);
+                pending = batch;
+                if (maxBatchSize > 1) {
+                    lingerFlush = scheduler.schedule(() -> flush(batch), linger.toMillis(), TimeUnit.MILLISECONDS);
+                }
+            }
+            pending.add(item);
+            if (pending.size() >= maxBatchSize) {
+                full = takePending();
+            }
+        }
+        if (full != null) {
+            batchConsumer.accept(full);
+        }
+    }
+
+    /**
+     * Hands over the collected items immediately, e.g. before shutting down.
+     */
+    void flush() {
+        List<T> batch;
+        synchronized (this) {
+            batch = takePending();
+        }
+        if (batch != null) {
+            batchConsumer.accept(batch);
+        }
+    }
+
+    private void flush(List<T> batch) {
+        synchronized (this) {
+            if (pending != batch) {
+                return;
+            }
+            takePending();
+        }
+        batchConsumer.accept(batch);
+    }
+
+    private List<T> takePending() {
+        List<T> batch = pending;
+        pending = null;
+        if (lingerFlush != null) {
+            lingerFlush.cancel(false);
+            lingerFlush = null;
+        }
+        return batch;
+    }
+}
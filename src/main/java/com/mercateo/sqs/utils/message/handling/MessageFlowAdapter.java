@@ -0,0 +1,234 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.messaging.Message;
+
+/**
+ * Connects a {@link LongRunningMessageHandler} to a
+ * {@link java.util.concurrent.Flow} pipeline. As a subscriber it requests
+ * exactly as many messages as the handler has free workers and requests more
+ * whenever a worker becomes free, so no thread has to block while waiting for
+ * capacity. The outcome of every message is published by
+ * {@link #getOutcomes()}.
+ *
+ * <p>
+ * The adapter has to be the only source of messages for its handler and can
+ * be subscribed only once. Outcome subscribers must keep up with the message
+ * throughput; outcomes that do not fit into the buffer of a subscriber are
+ * dropped instead of blocking the workers.
+ *
+ * @param <I>
+ *            the input type of the message payload
+ * @param <O>
+ *            the output type of the message processing
+ */
+@Slf4j
+public class MessageFlowAdapter<I, O> implements Flow.Subscriber<Message<I>> {
+
+    private final LongRunningMessageHandler<I, O> handler;
+
+    private final SubmissionPublisher<MessageOutcome<I, O>> outcomes;
+
+    /** guarded by this */
+    private Flow.Subscription subscription;
+
+    /** guarded by this; requested from upstream but not yet received */
+    private long outstanding;
+
+    /** guarded by this; submitted to the handler but not yet finished */
+    private long inFlight;
+
+    /** guarded by this; handed to an asynchronous acknowledger but not yet deleted */
+    private long acknowledging;
+
+    /** guarded by this */
+    private boolean upstreamDone;
+
+    /** guarded by this */
+    private Throwable upstreamFailure;
+
+    MessageFlowAdapter(@NonNull LongRunningMessageHandler<I, O> handler, @NonNull Executor executor,
+            int maxBufferCapacity) {
+        this.handler = handler;
+        this.outcomes = new SubmissionPublisher<>(executor, maxBufferCapacity);
+        handler.setOutcomeListener(new MessageOutcomeListener<>() {
+
+            @Override
+            public void onOutcome(MessageOutcome<I, O> outcome) {
+                MessageFlowAdapter.this.onOutcome(outcome);
+            }
+
+            @Override
+            public void onAcknowledging(CompletableFuture<Void> acknowledgement) {
+                MessageFlowAdapter.this.onAcknowledging(acknowledgement);
+            }
+        });
+    }
+
+    /**
+     * @return publishes the {@link MessageOutcome} of every processed message
+     *         and completes after the upstream completed and all messages
+     *         have been processed and, if so, acknowledged
+     */
+    public Flow.Publisher<MessageOutcome<I, O>> getOutcomes() {
+        return outcomes;
+    }
+
+    @Override
+    public void onSubscribe(@NonNull Flow.Subscription subscription) {
+        synchronized (this) {
+            if (this.subscription != null) {
+                subscription.cancel();
+                return;
+            }
+            this.subscription = subscription;
+        }
+        requestFreeCapacity();
+    }
+
+    @Override
+    public void onNext(@NonNull Message<I> message) {
+        synchronized (this) {
+            outstanding--;
+            // counted before submitting, a fast worker may publish its outcome first
+            inFlight++;
+        }
+        boolean submitted = false;
+        try {
+            submitted = handler.submitMessage(message);
+        } catch (RuntimeException e) {
+            log.error("could not submit message", e);
+        }
+        if (!submitted) {
+            synchronized (this) {
+                inFlight--;
+            }
+            requestFreeCapacity();
+            closeIfDone();
+        }
+    }
+
+    @Override
+    public void onError(@NonNull Throwable throwable) {
+        synchronized (this) {
+            upstreamDone = true;
+            upstreamFailure = throwable;
+        }
+        closeIfDone();
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (this) {
+            upstreamDone = true;
+        }
+        closeIfDone();
+    }
+
+    /**
+     * Stops requesting messages. Messages already submitted are still
+     * processed.
+     */
+    public void cancel() {
+        Flow.Subscription toCancel;
+        synchronized (this) {
+            toCancel = subscription;
+            upstreamDone = true;
+        }
+        if (toCancel != null) {
+            toCancel.cancel();
+        }
+        closeIfDone();
+    }
+
+    private void onOutcome(MessageOutcome<I, O> outcome) {
+        if (!outcomes.isClosed()) {
+            try {
+                outcomes.offer(outcome, (subscriber, dropped) -> {
+                    log.warn("outcome subscriber is too slow, dropped outcome of message " + dropped.getMessage()
+                            .getHeaders().getId());
+                    return false;
+                });
+            } catch (IllegalStateException e) {
+                // closed concurrently
+            }
+        }
+        if (outcome.getStatus() != MessageOutcome.Status.ACKNOWLEDGED) {
+            synchronized (this) {
+                inFlight--;
+            }
+            requestFreeCapacity();
+            closeIfDone();
+        }
+    }
+
+    /**
+     * Keeps the outcomes open until the acknowledgement of the message has
+     * been published; its worker slot is already free.
+     */
+    private void onAcknowledging(CompletableFuture<Void> acknowledgement) {
+        synchronized (this) {
+            acknowledging++;
+        }
+        acknowledgement.whenComplete((ignored, t) -> {
+            synchronized (this) {
+                acknowledging--;
+            }
+            closeIfDone();
+        });
+    }
+
+    private void requestFreeCapacity() {
+        Flow.Subscription toRequest;
+        long demand;
+        synchronized (this) {
+            if (subscription == null || upstreamDone) {
+                return;
+            }
+            demand = handler.getFreeWorkerCapacity() - outstanding;
+            if (demand <= 0) {
+                return;
+            }
+            outstanding += demand;
+            toRequest = subscription;
+        }
+        toRequest.request(demand);
+    }
+
+    private void closeIfDone() {
+        Throwable failure;
+        synchronized (this) {
+            if (!upstreamDone || inFlight > 0 || acknowledging > 0) {
+                return;
+            }
+            failure = upstreamFailure;
+        }
+        if (failure == null) {
+            outcomes.close();
+        } else {
+            outcomes.closeExceptionally(failure);
+        }
+    }
+}
@@ -14,71 +14,291 @@
  */
 package com.mercateo.sqs.utils.message.handling;
 
-import java.util.concurrent.ScheduledFuture;
+import com.mercateo.sqs.utils.metrics.MessageMetrics;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 
 import lombok.NonNull;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
 import org.springframework.messaging.MessageHeaders;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 
 @Slf4j
-@RequiredArgsConstructor
 public class MessageHandlingRunnable<I, O> implements Runnable {
 
-    @NonNull
+    /**
+     * header with a {@link Runnable} that is run once the message has been
+     * acknowledged successfully, e.g. to release a claim-checked payload
+     */
+    static final String ON_ACKNOWLEDGED_HEADER = "SqsUtils_OnAcknowledged";
+
     private final MessageWorkerWithHeaders<I, O> worker;
 
-    @NonNull
     private final MessageWrapper<I> messageWrapper;
 
-    @NonNull
     private final FinishedMessageCallback<I, O> finishedMessageCallback;
 
-    @NonNull
     private final SetWithUpperBound<String> messages;
 
-    @NonNull
-    private final ScheduledFuture<?> visibilityTimeoutExtender;
+    private final Future<?> visibilityTimeoutExtender;
 
-    @NonNull
     private final ErrorHandlingStrategy<I> errorHandlingStrategy;
 
+    private final MessageAcknowledger messageAcknowledger;
+
+    private final MessageOutcomeListener<I, O> outcomeListener;
+
+    private final MessageMetrics metrics;
+
+    /** null if redeliveries are not de-duplicated */
+    private final RecentlyCompletedMessages completedMessages;
+
+    /** 0 if the metrics are disabled */
+    private final long createdNanos;
+
+    MessageHandlingRunnable(@NonNull MessageWorkerWithHeaders<I, O> worker,
+            @NonNull MessageWrapper<I> messageWrapper,
+            @NonNull FinishedMessageCallback<I, O> finishedMessageCallback,
+            @NonNull SetWithUpperBound<String> messages, @NonNull Future<?> visibilityTimeoutExtender,
+            @NonNull ErrorHandlingStrategy<I> errorHandlingStrategy) {
+        this(worker, messageWrapper, finishedMessageCallback, messages, visibilityTimeoutExtender,
+                errorHandlingStrategy, CompletionOptions.none());
+    }
+
+    MessageHandlingRunnable(@NonNull MessageWorkerWithHeaders<I, O> worker,
+            @NonNull MessageWrapper<I> messageWrapper,
+            @NonNull FinishedMessageCallback<I, O> finishedMessageCallback,
+            @NonNull SetWithUpperBound<String> messages, @NonNull Future<?> visibilityTimeoutExtender,
+            @NonNull ErrorHandlingStrategy<I> errorHandlingStrategy, @NonNull CompletionOptions<I, O> options) {
+        this.worker = worker;
+        this.messageWrapper = messageWrapper;
+        this.finishedMessageCallback = finishedMessageCallback;
+        this.messages = messages;
+        this.visibilityTimeoutExtender = visibilityTimeoutExtender;
+        this.errorHandlingStrategy = errorHandlingStrategy;
+        this.messageAcknowledger = options.getMessageAcknowledger();
+        this.outcomeListener = options.getOutcomeListener();
+        this.metrics = options.getMetrics();
+        this.completedMessages = options.getCompletedMessages();
+        this.createdNanos = isMeasured() ? System.nanoTime() : 0L;
+    }
+
+    private boolean isMeasured() {
+        return metrics != MessageMetrics.NOOP;
+    }
+
     @Override
     public void run() {
+        if (isMeasured()) {
+            metrics.onStarted(System.nanoTime() - createdNanos);
+        }
+        process(true);
+    }
+
+    /**
+     * Completes the message with the result of the worker like
+     * {@link #run()}, but neither reports the start nor the duration of the
+     * worker call. Used for the entries of a batch whose worker call has
+     * already been measured as a whole.
+     */
+    void complete() {
+        process(false);
+    }
+
+    private void process(boolean measureWork) {
         String messageId = messageWrapper.getMessageId();
+        O output = null;
+        Throwable failure = null;
         try {
             log.info("starting processing of message " + messageId);
 
             I payload = messageWrapper.getMessage().getPayload();
             MessageHeaders headers = messageWrapper.getMessage().getHeaders();
-            O outcome = worker.work(payload, headers);
+            O outcome = callWorker(payload, headers, measureWork);
 
-            finishedMessageCallback.call(payload, outcome);
+            callFinishedMessageCallback(payload, outcome);
+            output = outcome;
             acknowledge();
             log.info("message task successfully processed and message acknowledged: " + messageId);
+        } catch (LeaseLostException e) {
+            failure = e;
+            log.warn("cancelled processing of message " + messageId + ", it will not be acknowledged", e);
+        } catch (DeadlineExceededException e) {
+            // whoever passed the deadline has returned the message and reported the outcome already
+            failure = e;
+            log.info("discarding the result of message " + messageId + ", its processing deadline has passed", e);
         } catch (InterruptedException e) {
+            failure = e;
             log.info("got interrupted, did not finish: " + messageId, e);
         } catch (Exception e) {
+            failure = e;
             errorHandlingStrategy.handleWorkerException(e, messageWrapper);
             acknowledge();
         } catch (Throwable t) {
+            failure = t;
             errorHandlingStrategy.handleWorkerThrowable(t, messageWrapper);
             acknowledge();
         } finally {
             visibilityTimeoutExtender.cancel(false);
             messages.remove(messageId);
+            if (isMeasured()) {
+                metrics.onCompleted(messageWrapper.getVisibilityExtensions());
+            }
+            if (failure == null) {
+                publish(MessageOutcome.Status.PROCESSED, output, null);
+            } else if (!(failure instanceof DeadlineExceededException)) {
+                publish(MessageOutcome.Status.FAILED, null, failure);
+            }
+        }
+    }
+
+    /**
+     * Runs the worker unless the lease of the message has been lost; a lost
+     * lease interrupts the worker and replaces its result by a
+     * {@link LeaseLostException}, a passed deadline likewise by a
+     * {@link DeadlineExceededException}. The deadline is enforced by the one
+     * who sets it, see {@link MessageWrapper#exceedDeadline}: it runs the error
+     * handling strategy and returns the message without waiting for the
+     * worker, so its result is only discarded here.
+     */
+    private O callWorker(I payload, MessageHeaders headers, boolean measureWork) throws Exception {
+        ensureLease(null);
+        ensureDeadline(null);
+        messageWrapper.startWork();
+        try {
+            O outcome = measureWork ? work(payload, headers) : worker.work(payload, headers);
+            ensureLease(null);
+            ensureDeadline(null);
+            return outcome;
+        } catch (LeaseLostException | DeadlineExceededException e) {
+            throw e;
+        } catch (Exception | Error e) {
+            ensureLease(e);
+            ensureDeadline(e);
+            throw e;
+        } finally {
+            messageWrapper.endWork();
+        }
+    }
+
+    private void ensureLease(Throwable workerFailure) {
+        RuntimeException leaseLoss = messageWrapper.getLeaseLoss();
+        if (leaseLoss == null) {
+            return;
+        }
+        LeaseLostException e = new LeaseLostException(messageWrapper.getMessageId(), leaseLoss);
+        if (workerFailure != null) {
+            e.addSuppressed(workerFailure);
+        }
+        throw e;
+    }
+
+    private void ensureDeadline(Throwable workerFailure) {
+        DeadlineExceededException deadlineExceeded = messageWrapper.getDeadlineExceeded();
+        if (deadlineExceeded == null) {
+            return;
+        }
+        if (workerFailure != null) {
+            deadlineExceeded.addSuppressed(workerFailure);
+        }
+        throw deadlineExceeded;
+    }
+
+    private O work(I payload, MessageHeaders headers) throws Exception {
+        if (!isMeasured()) {
+            return worker.work(payload, headers);
+        }
+        long start = System.nanoTime();
+        boolean successful = false;
+        try {
+            O outcome = worker.work(payload, headers);
+            successful = true;
+            return outcome;
+        } finally {
+            metrics.onWorked(System.nanoTime() - start, successful);
+        }
+    }
+
+    private void callFinishedMessageCallback(I payload, O outcome) {
+        if (!isMeasured()) {
+            finishedMessageCallback.call(payload, outcome);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            finishedMessageCallback.call(payload, outcome);
+        } finally {
+            metrics.onFinishedMessageCallback(System.nanoTime() - start);
         }
     }
 
     private void acknowledge() {
+        if (completedMessages != null) {
+            // also covers a failing acknowledgement, the redelivery is acknowledged instead
+            completedMessages.add(messageWrapper.getMessageId());
+        }
+        long start = isMeasured() ? System.nanoTime() : 0L;
+        if (messageAcknowledger != null) {
+            CompletableFuture<Void> acknowledged = messageAcknowledger.acknowledge(messageWrapper,
+                    errorHandlingStrategy);
+            if (isMeasured()) {
+                acknowledged.whenComplete((ignored, t) -> metrics.onAcknowledged(System.nanoTime() - start,
+                        t == null));
+            }
+            if (outcomeListener != null) {
+                CompletableFuture<Void> published = acknowledged.thenRun(() -> publish(
+                        MessageOutcome.Status.ACKNOWLEDGED, null, null));
+                try {
+                    outcomeListener.onAcknowledging(published);
+                } catch (RuntimeException e) {
+                    log.error("error in outcome listener for message " + messageWrapper.getMessageId(), e);
+                }
+            }
+            if (messageWrapper.getMessage().getHeaders().containsKey(ON_ACKNOWLEDGED_HEADER)) {
+                acknowledged.thenRun(this::runOnAcknowledged);
+            }
+            return;
+        }
+        boolean successful = false;
         try {
             messageWrapper.acknowledge();
+            successful = true;
+            publish(MessageOutcome.Status.ACKNOWLEDGED, null, null);
+            runOnAcknowledged();
         } catch (AwsServiceException e) {
             errorHandlingStrategy.handleAcknowledgeMessageException(e, messageWrapper);
         } catch (Exception e) {
             log.error("failure during acknowledge " + messageWrapper.getMessageId(), e);
+        } finally {
+            if (isMeasured()) {
+                metrics.onAcknowledged(System.nanoTime() - start, successful);
+            }
+        }
+    }
+
+    private void runOnAcknowledged() {
+        Runnable onAcknowledged = messageWrapper.getMessage().getHeaders().get(ON_ACKNOWLEDGED_HEADER,
+                Runnable.class);
+        if (onAcknowledged == null) {
+            return;
+        }
+        try {
+            onAcknowledged.run();
+        } catch (RuntimeException e) {
+            log.error("error after acknowledging message " + messageWrapper.getMessageId(), e);
+        }
+    }
+
+    private void publish(MessageOutcome.Status status, O output, Throwable failure) {
+        if (outcomeListener == null) {
+            return;
+        }
+        try {
+            outcomeListener.onOutcome(new MessageOutcome<>(status, messageWrapper.getMessage(), output, failure));
+        } catch (RuntimeException e) {
+            log.error("error in outcome listener for message " + messageWrapper.getMessageId(), e);
         }
     }
-}
\ No newline at end of file
+}
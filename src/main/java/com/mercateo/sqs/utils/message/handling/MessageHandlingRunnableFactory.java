@@ -15,7 +15,7 @@
  */
 package com.mercateo.sqs.utils.message.handling;
 
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Future;
 
 import jakarta.inject.Named;
 
@@ -28,10 +28,22 @@ public class MessageHandlingRunnableFactory {
             @NonNull MessageWrapper<I> messageWrapper,
             @NonNull FinishedMessageCallback<I, O> finishedMessageCallback,
             @NonNull SetWithUpperBound<String> messageSet,
-            @NonNull ScheduledFuture<?> visibilityTimeoutExtender,
+            @NonNull Future<?> visibilityTimeoutExtender,
             @NonNull ErrorHandlingStrategy<I> errorHandlingStrategy) {
 
+        return get(worker, messageWrapper, finishedMessageCallback, messageSet, visibilityTimeoutExtender,
+                errorHandlingStrategy, CompletionOptions.none());
+    }
+
+    <I, O> MessageHandlingRunnable<I, O> get(@NonNull MessageWorkerWithHeaders<I, O> worker,
+            @NonNull MessageWrapper<I> messageWrapper,
+            @NonNull FinishedMessageCallback<I, O> finishedMessageCallback,
+            @NonNull SetWithUpperBound<String> messageSet,
+            @NonNull Future<?> visibilityTimeoutExtender,
+            @NonNull ErrorHandlingStrategy<I> errorHandlingStrategy,
+            @NonNull CompletionOptions<I, O> options) {
+
         return new MessageHandlingRunnable<>(worker, messageWrapper, finishedMessageCallback, messageSet,
-                visibilityTimeoutExtender, errorHandlingStrategy);
+                visibilityTimeoutExtender, errorHandlingStrategy, options);
     }
-}
\ No newline at end of file
+}
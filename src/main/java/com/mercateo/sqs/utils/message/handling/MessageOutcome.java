@@ -0,0 +1,65 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import lombok.NonNull;
+import lombok.Value;
+
+import org.springframework.lang.Nullable;
+import org.springframework.messaging.Message;
+
+/**
+ * What happened to a message handed to a {@link LongRunningMessageHandler}.
+ * Every message results in exactly one {@link Status#PROCESSED} or
+ * {@link Status#FAILED} outcome once its worker slot is free again and, if it
+ * was deleted from the queue, an additional {@link Status#ACKNOWLEDGED}
+ * outcome. The order of these two outcomes is not defined.
+ *
+ * @param <I>
+ *            the input type of the message payload
+ * @param <O>
+ *            the output type of the message processing
+ */
+@Value
+public class MessageOutcome<I, O> {
+
+    public enum Status {
+        /** the worker and the finished message callback completed */
+        PROCESSED,
+        /** the worker or the finished message callback failed */
+        FAILED,
+        /** the message has been deleted from the queue */
+        ACKNOWLEDGED
+    }
+
+    @NonNull
+    Status status;
+
+    @NonNull
+    Message<I> message;
+
+    /**
+     * the output of the worker; only set for {@link Status#PROCESSED}
+     */
+    @Nullable
+    O output;
+
+    /**
+     * the cause; only set for {@link Status#FAILED}
+     */
+    @Nullable
+    Throwable failure;
+}
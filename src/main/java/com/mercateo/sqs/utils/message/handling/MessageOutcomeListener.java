@@ -0,0 +1,42 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Receives the {@link MessageOutcome}s of a handler. Called on worker and
+ * acknowledgement threads, so implementations must be thread-safe and must
+ * not block.
+ */
+interface MessageOutcomeListener<I, O> {
+
+    void onOutcome(MessageOutcome<I, O> outcome);
+
+    /**
+     * Called before the {@link MessageOutcome.Status#PROCESSED} or
+     * {@link MessageOutcome.Status#FAILED} outcome of a message whose deletion
+     * has been handed to an asynchronous acknowledger.
+     *
+     * @param acknowledgement
+     *            completes after the {@link MessageOutcome.Status#ACKNOWLEDGED}
+     *            outcome has been passed to {@link #onOutcome}, exceptionally
+     *            if the deletion failed and there is no such outcome
+     */
+    default void onAcknowledging(CompletableFuture<Void> acknowledgement) {
+    }
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import io.awspring.cloud.sqs.listener.SqsHeaders;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.messaging.MessageHeaders;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+
+/**
+ * Applies a {@link RetryPolicy} to a failed message: it either sets the
+ * visibility timeout of the message to the backoff delay for its
+ * {@code ApproximateReceiveCount} or, once the attempts are exhausted, moves
+ * it to the dead-letter queue by sending a copy there and deleting the
+ * original. Nothing blocks; failures are only logged, the message then
+ * becomes visible when its current visibility timeout expires.
+ */
+@Slf4j
+class MessageRetrier {
+
+    private final RetryPolicy retryPolicy;
+
+    private final SqsAsyncClient sqsClient;
+
+    MessageRetrier(@NonNull RetryPolicy retryPolicy, @NonNull SqsAsyncClient sqsClient) {
+        this.retryPolicy = retryPolicy;
+        this.sqsClient = sqsClient;
+    }
+
+    CompletableFuture<Void> retry(@NonNull String queueUrl, @NonNull MessageWrapper<?> message) {
+        int receiveCount = getReceiveCount(message.getMessage().getHeaders());
+        CompletableFuture<?> result;
+        try {
+            if (!retryPolicy.isExhausted(receiveCount)) {
+                result = delay(queueUrl, message, retryPolicy.getDelay(receiveCount));
+            } else if (retryPolicy.getDeadLetterQueueUrl() != null) {
+                result = moveToDeadLetterQueue(queueUrl, message, receiveCount);
+            } else {
+                result = delay(queueUrl, message, retryPolicy.getMaxDelay());
+            }
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        return result.handle((ignored, t) -> {
+            if (t != null) {
+                log.error("could not retry message " + message.getMessageId() + " after " + receiveCount
+                        + " receives", t);
+            }
+            return null;
+        });
+    }
+
+    private CompletableFuture<?> delay(String queueUrl, MessageWrapper<?> message, Duration delay) {
+        // rounded up, so that a short delay does not become an immediate redelivery
+        int seconds = (int) ((delay.toMillis() + 999) / 1000);
+        log.info("retrying message " + message.getMessageId() + " in " + seconds + " seconds");
+        return sqsClient.changeMessageVisibility(ChangeMessageVisibilityRequest.builder()
+                .queueUrl(queueUrl)
+                .receiptHandle(message.getReceiptHandle())
+                .visibilityTimeout(seconds)
+                .build());
+    }
+
+    private CompletableFuture<?> moveToDeadLetterQueue(String queueUrl, MessageWrapper<?> message,
+            int receiveCount) {
+        Object sourceData = message.getMessage().getHeaders().get(SqsHeaders.SQS_SOURCE_DATA_HEADER);
+        SendMessageRequest.Builder request = SendMessageRequest.builder()
+                .queueUrl(retryPolicy.getDeadLetterQueueUrl());
+        if (sourceData instanceof software.amazon.awssdk.services.sqs.model.Message) {
+            software.amazon.awssdk.services.sqs.model.Message source =
+                    (software.amazon.awssdk.services.sqs.model.Message) sourceData;
+            request.messageBody(source.body()).messageAttributes(source.messageAttributes());
+            String messageGroupId = source.attributes().get(MessageSystemAttributeName.MESSAGE_GROUP_ID);
+            if (messageGroupId != null) {
+                request.messageGroupId(messageGroupId).messageDeduplicationId(source.messageId());
+            }
+        } else if (message.getMessage().getPayload() instanceof String) {
+            request.messageBody((String) message.getMessage().getPayload());
+        } else {
+            log.warn("the body of message " + message.getMessageId() + " is unknown, it stays in the queue");
+            return delay(queueUrl, message, retryPolicy.getMaxDelay());
+        }
+
+        log.warn("moving message " + message.getMessageId() + " to " + retryPolicy.getDeadLetterQueueUrl()
+                + " after " + receiveCount + " receives");
+        return sqsClient.sendMessage(request.build()).thenCompose(sent -> sqsClient.deleteMessage(
+                DeleteMessageRequest.builder()
+                        .queueUrl(queueUrl)
+                        .receiptHandle(message.getReceiptHandle())
+                        .build()));
+    }
+
+    private static int getReceiveCount(MessageHeaders headers) {
+        Object receiveCount = headers.get(SqsHeaders.MessageSystemAttributes.SQS_APPROXIMATE_RECEIVE_COUNT);
+        try {
+            if (receiveCount instanceof Number) {
+                return ((Number) receiveCount).intValue();
+            }
+            if (receiveCount != null) {
+                return Integer.parseInt(receiveCount.toString().trim());
+            }
+        } catch (NumberFormatException e) {
+            log.debug("invalid receive count " + receiveCount, e);
+        }
+        return 1;
+    }
+}
@@ -3,7 +3,10 @@ package com.mercateo.sqs.utils.message.handling;
 import io.awspring.cloud.sqs.MessagingHeaders;
 
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import io.awspring.cloud.sqs.listener.acknowledgement.AcknowledgementCallback;
 import lombok.Getter;
@@ -14,15 +17,56 @@ import lombok.SneakyThrows;
 import org.springframework.messaging.Message;
 import software.amazon.awssdk.services.sqs.SqsAsyncClient;
 import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityResponse;
 
+/**
+ * A received message together with its lifecycle. Every transition of the
+ * {@link State} is a single compare-and-set, so no thread ever waits for
+ * another one, e.g. the visibility extension for a slow acknowledgement; a
+ * transition that lost a race is skipped instead. The state moves forward
+ * with one exception: if the deletion fails, {@link #acknowledge()} moves it
+ * from {@code ACKING} back to the state it had before, so the message can
+ * still be extended, acknowledged again or released.
+ */
 @RequiredArgsConstructor
 public class MessageWrapper<I> {
 
+    public enum State {
+        /** waiting for a worker */
+        BUFFERED,
+        /** a worker has taken the message */
+        RUNNING,
+        /** the deletion has been requested and is not yet confirmed */
+        ACKING,
+        /** the message has been deleted or its deletion has been handed over */
+        DONE,
+        /** the message has been returned to the queue without being processed */
+        RELEASED
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicIntegerFieldUpdater<MessageWrapper> VISIBILITY_EXTENSIONS = AtomicIntegerFieldUpdater
+            .newUpdater(MessageWrapper.class, "visibilityExtensions");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<MessageWrapper, State> STATE = AtomicReferenceFieldUpdater
+            .newUpdater(MessageWrapper.class, State.class, "state");
+
     @NonNull
     @Getter
     private final Message<I> message;
 
-    private boolean acknowledged = false;
+    @Getter
+    private volatile State state = State.BUFFERED;
+
+    private volatile int visibilityExtensions;
+
+    private volatile RuntimeException leaseLoss;
+
+    private volatile DeadlineExceededException deadlineExceeded;
+
+    /** guarded by this; the thread running the worker of this message */
+    private Thread workerThread;
 
     public String getMessageId() {
         return String.valueOf(message.getHeaders().get("id", UUID.class));
@@ -32,26 +76,220 @@ public class MessageWrapper<I> {
         return message.getHeaders().get("ReceiptHandle", String.class);
     }
 
+    /**
+     * @return true once the deletion of the message has been requested
+     */
+    public boolean isAcknowledged() {
+        State current = state;
+        return current == State.ACKING || current == State.DONE;
+    }
+
+    /**
+     * @return true while the visibility timeout of the message has to be
+     *         extended, i.e. until it is acknowledged or released
+     */
+    public boolean isActive() {
+        State current = state;
+        return current == State.BUFFERED || current == State.RUNNING;
+    }
+
+    /**
+     * Deletes the message from the queue and waits up to two minutes for the
+     * confirmation. Visibility changes are skipped from now on; if the
+     * deletion fails, the message becomes active again. Acknowledging a
+     * message that is already being acknowledged has no effect.
+     *
+     * @throws IllegalStateException
+     *             if the message has been released
+     */
     @SneakyThrows
-    public synchronized void acknowledge() {
+    public void acknowledge() {
         AcknowledgementCallback<I> acknowledgementCallback = message.getHeaders().get(
                 MessagingHeaders.ACKNOWLEDGMENT_CALLBACK_HEADER, AcknowledgementCallback.class);
         if (acknowledgementCallback == null) {
             throw new NullPointerException("There is no \"AcknowledgementCallback\" in the message headers");
         }
+        State previous;
+        do {
+            previous = state;
+            if (previous == State.ACKING || previous == State.DONE) {
+                return;
+            }
+            if (previous == State.RELEASED) {
+                throw new IllegalStateException("message " + getMessageId() + " has been released");
+            }
+        } while (!STATE.compareAndSet(this, previous, State.ACKING));
         try {
             acknowledgementCallback.onAcknowledge(message).get(2, TimeUnit.MINUTES);
-            acknowledged = true;
+            STATE.compareAndSet(this, State.ACKING, State.DONE);
         } catch (Exception e) {
+            STATE.compareAndSet(this, State.ACKING, previous);
             throw new RuntimeException("Failed to acknowledge message", e);
         }
     }
 
-    @SneakyThrows
-    public synchronized void changeMessageVisibility(SqsAsyncClient sqsClient, ChangeMessageVisibilityRequest request) {
-        if (acknowledged) {
+    /**
+     * Marks the message as acknowledged once its deletion has been handed
+     * over to an asynchronous acknowledger, so that no further visibility
+     * changes are sent for it.
+     */
+    void markAcknowledged() {
+        State current;
+        do {
+            current = state;
+            if (current == State.DONE || current == State.RELEASED) {
+                return;
+            }
+        } while (!STATE.compareAndSet(this, current, State.DONE));
+    }
+
+    /**
+     * Hands the message to a worker.
+     *
+     * @return false if the message is no longer waiting for a worker, e.g.
+     *         because it has been released
+     */
+    boolean start() {
+        return STATE.compareAndSet(this, State.BUFFERED, State.RUNNING);
+    }
+
+    /**
+     * Takes a message that still waits for a worker out of processing, so
+     * that it can be returned to the queue.
+     *
+     * @return false if a worker has taken the message already
+     */
+    boolean release() {
+        return STATE.compareAndSet(this, State.BUFFERED, State.RELEASED);
+    }
+
+    /**
+     * Gives up a message whose worker has been stopped before it was
+     * acknowledged, so that it can be returned to the queue.
+     *
+     * @return false if the message is not in processing anymore
+     */
+    boolean abandon() {
+        return STATE.compareAndSet(this, State.RUNNING, State.RELEASED);
+    }
+
+    /**
+     * Counts a successful visibility timeout extension of this message.
+     */
+    public void incrementVisibilityExtensions() {
+        VISIBILITY_EXTENSIONS.incrementAndGet(this);
+    }
+
+    public int getVisibilityExtensions() {
+        return visibilityExtensions;
+    }
+
+    /**
+     * Marks the visibility timeout of the message as no longer extended and
+     * interrupts its worker, if one is running. The message keeps its slot
+     * until the worker returns.
+     *
+     * @param reason
+     *            why the visibility timeout could not be extended
+     */
+    public synchronized void loseLease(@NonNull RuntimeException reason) {
+        if (leaseLoss != null) {
             return;
         }
-        sqsClient.changeMessageVisibility(request).get();
+        leaseLoss = reason;
+        if (workerThread != null) {
+            workerThread.interrupt();
+        }
+    }
+
+    /**
+     * Marks the processing deadline of the message as passed and interrupts
+     * its worker, if one is running. The caller returns the message to the
+     * queue; the result of the worker is discarded whenever it returns.
+     *
+     * @param reason
+     *            describes the deadline
+     */
+    synchronized void exceedDeadline(@NonNull DeadlineExceededException reason) {
+        if (deadlineExceeded != null) {
+            return;
+        }
+        deadlineExceeded = reason;
+        if (workerThread != null) {
+            workerThread.interrupt();
+        }
+    }
+
+    /**
+     * Workers that do not react to interrupts can poll this to give up a
+     * message whose result will be discarded anyway.
+     *
+     * @return true if the processing deadline of the message has passed
+     */
+    public boolean isDeadlineExceeded() {
+        return deadlineExceeded != null;
+    }
+
+    DeadlineExceededException getDeadlineExceeded() {
+        return deadlineExceeded;
+    }
+
+    /**
+     * Workers that do not react to interrupts can poll this to stop working
+     * on a message that may already be processed elsewhere, and to free its
+     * slot sooner.
+     *
+     * @return true if the visibility timeout could no longer be extended
+     */
+    public boolean isLeaseLost() {
+        return leaseLoss != null;
+    }
+
+    RuntimeException getLeaseLoss() {
+        return leaseLoss;
+    }
+
+    /**
+     * Registers the current thread to be interrupted if the lease is lost
+     * while the worker runs.
+     */
+    synchronized void startWork() {
+        workerThread = Thread.currentThread();
+    }
+
+    /**
+     * Unregisters the worker thread; an interrupt caused by a lost lease or a
+     * passed deadline is cleared so that it does not reach the next task of
+     * the thread.
+     */
+    synchronized void endWork() {
+        workerThread = null;
+        if (leaseLoss != null || deadlineExceeded != null) {
+            Thread.interrupted();
+        }
+    }
+
+    @SneakyThrows
+    public void changeMessageVisibility(SqsAsyncClient sqsClient, ChangeMessageVisibilityRequest request) {
+        changeMessageVisibilityAsync(sqsClient, request).get();
+    }
+
+    /**
+     * Sends the visibility change without waiting for the response. Nothing is
+     * sent if the message has already been acknowledged or released.
+     *
+     * @param sqsClient
+     *            the client to send the request with
+     * @param request
+     *            the visibility change of this message
+     * @return the pending response; completes with {@code null} if nothing was
+     *         sent
+     */
+    public CompletableFuture<ChangeMessageVisibilityResponse> changeMessageVisibilityAsync(
+            @NonNull SqsAsyncClient sqsClient, @NonNull ChangeMessageVisibilityRequest request) {
+        if (!isActive()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return sqsClient.changeMessageVisibility(request);
     }
 }
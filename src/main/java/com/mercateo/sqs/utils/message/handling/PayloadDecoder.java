@@ -0,0 +1,64 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes the payload of a raw SQS message, see
+ * {@link LongRunningMessageHandlerFactory#getSqsMessageAdapter(LongRunningMessageHandler, PayloadDecoder)}.
+ * It is called on the worker thread right before the worker and may be
+ * called concurrently for different messages.
+ *
+ * @param <I>
+ *            the input type of the message payload
+ */
+@FunctionalInterface
+public interface PayloadDecoder<I> {
+
+    /**
+     * @param sqsMessage
+     *            the message as received, with its body and attributes
+     * @return the payload passed to the worker
+     * @throws Exception
+     *             if the body cannot be decoded; it is handled like an
+     *             exception of the worker
+     */
+    I decode(software.amazon.awssdk.services.sqs.model.Message sqsMessage) throws Exception;
+
+    /**
+     * Decodes the payload of a claim-checked message, see
+     * {@link S3ClaimCheck}. The default reads the whole object into the body
+     * of the message and calls {@link #decode(software.amazon.awssdk.services.sqs.model.Message)};
+     * decoders of large payloads should read the stream instead.
+     *
+     * @param pointerMessage
+     *            the message as received, with the pointer as its body
+     * @param payload
+     *            the referenced object; it is closed by the caller
+     * @return the payload passed to the worker
+     * @throws Exception
+     *             if the payload cannot be decoded; it is handled like an
+     *             exception of the worker
+     */
+    default I decode(software.amazon.awssdk.services.sqs.model.Message pointerMessage, InputStream payload)
+            throws Exception {
+        return decode(pointerMessage.toBuilder()
+                .body(new String(payload.readAllBytes(), StandardCharsets.UTF_8))
+                .build());
+    }
+}
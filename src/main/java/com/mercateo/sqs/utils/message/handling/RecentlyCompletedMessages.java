@@ -0,0 +1,153 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+import lombok.NonNull;
+
+/**
+ * Remembers the ids of recently completed messages, so that a redelivery of a
+ * message that has already been processed can be recognized after the
+ * message left {@code messagesInProcessing}.
+ *
+ * <p>
+ * The ids are stored as 64 bit fingerprints in two open addressing tables of
+ * fixed size, the current and the previous generation. The current
+ * generation becomes the previous one after {@code window} or as soon as it
+ * holds {@code capacity} ids, and the old previous generation is dropped. An
+ * id is therefore remembered for at least {@code window} unless more than
+ * {@code capacity} messages complete within it, and the memory is bounded by
+ * 64 bytes per id of capacity. A fingerprint collision, i.e. a message
+ * mistaken for a duplicate, has a probability of about capacity / 2^64.
+ */
+class RecentlyCompletedMessages {
+
+    private final int capacity;
+
+    private final long windowNanos;
+
+    private final LongSupplier nanoClock;
+
+    private final int mask;
+
+    /** guarded by this; 0 marks an empty slot */
+    private long[] current;
+
+    /** guarded by this */
+    private long[] previous;
+
+    /** guarded by this */
+    private int currentSize;
+
+    /** guarded by this */
+    private long generationStart;
+
+    RecentlyCompletedMessages(int capacity, @NonNull Duration window) {
+        this(capacity, window, System::nanoTime);
+    }
+
+    RecentlyCompletedMessages(int capacity, @NonNull Duration window, @NonNull LongSupplier nanoClock) {
+        if (capacity < 1 || capacity > 1 << 24) {
+            throw new IllegalArgumentException("the capacity has to be between 1 and 2^24");
+        }
+        if (window.isZero() || window.isNegative()) {
+            throw new IllegalArgumentException("the window has to be > 0");
+        }
+        this.capacity = capacity;
+        this.windowNanos = window.toNanos();
+        this.nanoClock = nanoClock;
+        // a load factor of at most 0.5 keeps the probe sequences short
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        this.mask = tableSize - 1;
+        this.current = new long[tableSize];
+        this.previous = new long[tableSize];
+        this.generationStart = nanoClock.getAsLong();
+    }
+
+    synchronized void add(@NonNull String messageId) {
+        long fingerprint = fingerprint(messageId);
+        rotateIfExpired();
+        if (contains(previous, fingerprint) || contains(current, fingerprint)) {
+            return;
+        }
+        if (currentSize >= capacity) {
+            rotate();
+        }
+        int index = (int) fingerprint & mask;
+        while (current[index] != 0) {
+            index = (index + 1) & mask;
+        }
+        current[index] = fingerprint;
+        currentSize++;
+    }
+
+    synchronized boolean contains(@NonNull String messageId) {
+        long fingerprint = fingerprint(messageId);
+        rotateIfExpired();
+        return contains(current, fingerprint) || contains(previous, fingerprint);
+    }
+
+    private boolean contains(long[] table, long fingerprint) {
+        int index = (int) fingerprint & mask;
+        long slot;
+        while ((slot = table[index]) != 0) {
+            if (slot == fingerprint) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    private void rotateIfExpired() {
+        long age = nanoClock.getAsLong() - generationStart;
+        if (age < windowNanos) {
+            return;
+        }
+        rotate();
+        if (age >= 2 * windowNanos) {
+            // the previous generation has expired as well
+            Arrays.fill(previous, 0L);
+        }
+    }
+
+    private void rotate() {
+        long[] dropped = previous;
+        previous = current;
+        Arrays.fill(dropped, 0L);
+        current = dropped;
+        currentSize = 0;
+        generationStart = nanoClock.getAsLong();
+    }
+
+    static long fingerprint(String messageId) {
+        // FNV-1a, followed by the finalizer of MurmurHash3 to spread the bits
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < messageId.length(); i++) {
+            hash ^= messageId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb1fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+}
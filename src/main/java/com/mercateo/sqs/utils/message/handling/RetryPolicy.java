@@ -0,0 +1,119 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
+
+import lombok.AccessLevel;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+import lombok.Value;
+
+import org.springframework.lang.Nullable;
+
+/**
+ * How a message is retried when its worker failed and the
+ * {@link ErrorHandlingStrategy} prevented the acknowledgement, see
+ * {@link LongRunningMessageHandlerFactory#setRetryPolicy(RetryPolicy)}.
+ * Instead of waiting for the visibility timeout set by the last extension,
+ * the message becomes visible again after a delay that doubles with every
+ * receive, starting at {@code baseDelay} and capped at {@code maxDelay}. Half
+ * of the delay is random, so that messages that failed together do not come
+ * back together. Once a message has been received {@code maxAttempts} times it
+ * is moved to the dead-letter queue or, if none is configured, retried after
+ * {@code maxDelay}.
+ */
+@Value
+public class RetryPolicy {
+
+    private static final Duration MAX_VISIBILITY_TIMEOUT = Duration.ofHours(12);
+
+    /** the delay after the first receive */
+    @NonNull
+    Duration baseDelay;
+
+    /** the upper bound of the delay, at most 12 hours */
+    @NonNull
+    Duration maxDelay;
+
+    /** the number of receives after which a message is given up */
+    int maxAttempts;
+
+    /**
+     * the queue failed messages are moved to after {@code maxAttempts}
+     * receives; null keeps them in the queue and retries them after the
+     * maximum delay without jitter
+     */
+    @Nullable
+    String deadLetterQueueUrl;
+
+    @Getter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    DoubleSupplier random;
+
+    public RetryPolicy(@NonNull Duration baseDelay, @NonNull Duration maxDelay, int maxAttempts,
+            @Nullable String deadLetterQueueUrl) {
+        this(baseDelay, maxDelay, maxAttempts, deadLetterQueueUrl, () -> ThreadLocalRandom.current()
+                .nextDouble());
+    }
+
+    RetryPolicy(@NonNull Duration baseDelay, @NonNull Duration maxDelay, int maxAttempts,
+            @Nullable String deadLetterQueueUrl, @NonNull DoubleSupplier random) {
+        if (baseDelay.isNegative() || baseDelay.compareTo(maxDelay) > 0 || maxDelay.compareTo(
+                MAX_VISIBILITY_TIMEOUT) > 0) {
+            throw new IllegalArgumentException("the delays have to satisfy 0 <= baseDelay <= maxDelay <= 12h");
+        }
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("at least one attempt is required");
+        }
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.maxAttempts = maxAttempts;
+        this.deadLetterQueueUrl = deadLetterQueueUrl;
+        this.random = random;
+    }
+
+    /**
+     * @param receiveCount
+     *            how often the message has been received, starting at 1
+     * @return the time until the message is received again, between half and
+     *         all of the exponential delay
+     */
+    public Duration getDelay(int receiveCount) {
+        int doublings = Math.min(Math.max(receiveCount, 1) - 1, 62);
+        long delayMillis = baseDelay.toMillis();
+        for (int i = 0; i < doublings && delayMillis < maxDelay.toMillis(); i++) {
+            delayMillis *= 2;
+        }
+        delayMillis = Math.min(delayMillis, maxDelay.toMillis());
+        long half = delayMillis / 2;
+        return Duration.ofMillis(delayMillis - half + (long) (random.getAsDouble() * half));
+    }
+
+    /**
+     * @param receiveCount
+     *            how often the message has been received, starting at 1
+     * @return true if the message must not be retried anymore
+     */
+    public boolean isExhausted(int receiveCount) {
+        return receiveCount >= maxAttempts;
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.lang.Nullable;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+/**
+ * Claim-check support for payloads that exceed the SQS size limit and are
+ * stored in S3 (or an S3 compatible store), see
+ * {@link LongRunningMessageHandlerFactory#setClaimCheck(S3ClaimCheck)}.
+ *
+ * <p>
+ * Pointer messages use the format of the Amazon SQS Extended Client Library:
+ * the body is
+ * {@code ["software.amazon.payloadoffloading.PayloadS3Pointer",{"s3BucketName":"...","s3Key":"..."}]}.
+ * The download of the referenced object starts as soon as the message is
+ * received, so it overlaps with the time the message waits for a worker, but
+ * for at most {@code maxPrefetches} messages at a time; the objects of further
+ * messages are requested when their worker starts. The object is streamed to
+ * the {@link PayloadDecoder} rather than buffered, and the download of a
+ * message that is returned to the queue unprocessed is aborted. After the
+ * message has been acknowledged the object can be deleted; otherwise it has to
+ * be expired by a lifecycle rule of the bucket.
+ *
+ * <p>
+ * Requires {@code software.amazon.awssdk:s3} on the classpath.
+ */
+@Slf4j
+public class S3ClaimCheck {
+
+    static final String POINTER_CLASS = "software.amazon.payloadoffloading.PayloadS3Pointer";
+
+    private static final String POINTER_PREFIX = "[\"" + POINTER_CLASS + "\"";
+
+    static final int DEFAULT_MAX_PREFETCHES = 10;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final S3AsyncClient s3Client;
+
+    private final boolean deleteAfterAcknowledgement;
+
+    /** one permit per download that may start before its worker */
+    private final Semaphore prefetches;
+
+    /**
+     * Prefetches the objects of up to {@value #DEFAULT_MAX_PREFETCHES}
+     * messages.
+     *
+     * @param s3Client
+     *            downloads and deletes the objects
+     * @param deleteAfterAcknowledgement
+     *            whether the object is deleted once its message has been
+     *            acknowledged; objects of messages that fail are kept
+     */
+    public S3ClaimCheck(@NonNull S3AsyncClient s3Client, boolean deleteAfterAcknowledgement) {
+        this(s3Client, deleteAfterAcknowledgement, DEFAULT_MAX_PREFETCHES);
+    }
+
+    /**
+     * @param s3Client
+     *            downloads and deletes the objects
+     * @param deleteAfterAcknowledgement
+     *            whether the object is deleted once its message has been
+     *            acknowledged; objects of messages that fail are kept
+     * @param maxPrefetches
+     *            how many messages waiting for a worker may hold an open
+     *            download; 0 requests every object when its worker starts
+     * @throws IllegalArgumentException
+     *             if maxPrefetches is negative
+     */
+    public S3ClaimCheck(@NonNull S3AsyncClient s3Client, boolean deleteAfterAcknowledgement, int maxPrefetches) {
+        if (maxPrefetches < 0) {
+            throw new IllegalArgumentException("the maximum number of prefetches has to be >= 0");
+        }
+        this.s3Client = s3Client;
+        this.deleteAfterAcknowledgement = deleteAfterAcknowledgement;
+        this.prefetches = new Semaphore(maxPrefetches);
+    }
+
+    /**
+     * Starts downloading the object if the message is a pointer message and
+     * the number of prefetches allows it.
+     *
+     * @param sqsMessage
+     *            the message as received
+     * @return null if the message carries its payload itself
+     */
+    @Nullable
+    Claim claim(@NonNull software.amazon.awssdk.services.sqs.model.Message sqsMessage) {
+        String body = sqsMessage.body();
+        if (body == null || !body.startsWith(POINTER_PREFIX)) {
+            return null;
+        }
+        String bucket;
+        String key;
+        try {
+            JsonNode pointer = OBJECT_MAPPER.readTree(body).get(1);
+            bucket = pointer.get("s3BucketName").asText();
+            key = pointer.get("s3Key").asText();
+        } catch (Exception e) {
+            return new Claim(null, null, CompletableFuture.failedFuture(new IllegalArgumentException(
+                    "invalid S3 pointer in message " + sqsMessage.messageId(), e)), false);
+        }
+        if (!prefetches.tryAcquire()) {
+            return new Claim(bucket, key, null, false);
+        }
+        return new Claim(bucket, key, download(bucket, key), true);
+    }
+
+    private CompletableFuture<ResponseInputStream<GetObjectResponse>> download(String bucket, String key) {
+        GetObjectRequest request = GetObjectRequest.builder().bucket(bucket).key(key).build();
+        try {
+            return s3Client.getObject(request, AsyncResponseTransformer.toBlockingInputStream());
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * The object referenced by a pointer message.
+     */
+    class Claim {
+
+        private final String bucket;
+
+        private final String key;
+
+        /** null until the worker starts if the download was not prefetched */
+        private volatile CompletableFuture<ResponseInputStream<GetObjectResponse>> body;
+
+        /** false once the prefetch permit has been returned, or if there is none */
+        private final AtomicBoolean prefetched;
+
+        /** true once the object has been handed to the worker */
+        private volatile boolean taken;
+
+        private Claim(String bucket, String key, CompletableFuture<ResponseInputStream<GetObjectResponse>> body,
+                boolean prefetched) {
+            this.bucket = bucket;
+            this.key = key;
+            this.body = body;
+            this.prefetched = new AtomicBoolean(prefetched);
+        }
+
+        /**
+         * Starts the download if it has not been prefetched and waits until
+         * the object starts to arrive. The caller has to close the stream.
+         *
+         * @return the content of the object
+         * @throws Exception
+         *             if the object could not be downloaded
+         */
+        InputStream getBody() throws Exception {
+            taken = true;
+            CompletableFuture<ResponseInputStream<GetObjectResponse>> download = body;
+            if (download == null) {
+                download = download(bucket, key);
+                body = download;
+            }
+            try {
+                return download.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw e;
+            } finally {
+                // the stream belongs to the worker now, which bounds the downloads itself
+                returnPrefetch();
+            }
+        }
+
+        /**
+         * Aborts the download unless the object has been handed to the worker,
+         * called once the handler is done with the message, e.g. because it has
+         * been returned to the queue before its worker started.
+         */
+        void cancel() {
+            returnPrefetch();
+            if (taken) {
+                return;
+            }
+            CompletableFuture<ResponseInputStream<GetObjectResponse>> download = body;
+            if (download == null || download.cancel(false) || download.isCompletedExceptionally()) {
+                return;
+            }
+            download.join().abort();
+        }
+
+        private void returnPrefetch() {
+            if (prefetched.compareAndSet(true, false)) {
+                prefetches.release();
+            }
+        }
+
+        /**
+         * Deletes the object if configured, called after the message has been
+         * acknowledged.
+         */
+        void release() {
+            if (!deleteAfterAcknowledgement || key == null) {
+                return;
+            }
+            DeleteObjectRequest request = DeleteObjectRequest.builder().bucket(bucket).key(key).build();
+            try {
+                s3Client.deleteObject(request).whenComplete((response, t) -> {
+                    if (t != null) {
+                        log.warn("could not delete claim-checked object " + bucket + "/" + key, t);
+                    }
+                });
+            } catch (RuntimeException e) {
+                log.warn("could not delete claim-checked object " + bucket + "/" + key, e);
+            }
+        }
+    }
+}
@@ -15,20 +15,39 @@
  */
 package com.mercateo.sqs.utils.message.handling;
 
+import java.time.Duration;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import lombok.NonNull;
 
+/**
+ * Registry of the messages in processing combined with a fair permit gate.
+ * Every element holds one permit; a removed element releases its permit to
+ * one thread waiting in {@link #waitUntilAtLeastOneFree()}. The waiting thread
+ * does not keep the permit but passes it on to the next waiting thread, so
+ * every waiter returns once the set is below its maximum size, while each
+ * removal only wakes a single thread at a time. Only {@link #add(Object)}
+ * takes a permit, because elements may be added before their thread waits.
+ *
+ * <p>
+ * The maximum size can be changed at runtime. Lowering it below the current
+ * size does not evict anything, new elements are only admitted again once
+ * enough elements have been removed.
+ */
 class SetWithUpperBound<T> {
 
     private final Set<T> backingSet = ConcurrentHashMap.newKeySet();
 
-    private final Object lock = new Object();
+    private final Permits permits;
 
-    private final int maximumSize;
+    /** guarded by this */
+    private int maximumSize;
 
     SetWithUpperBound(int maximumSize) {
+        this.permits = new Permits(maximumSize);
         this.maximumSize = maximumSize;
     }
 
@@ -38,36 +57,81 @@ class SetWithUpperBound<T> {
 
     /**
      *
-     * Tries to add a new element to the set
+     * Adds a new element to the set without blocking. The element takes a
+     * permit, possibly below zero if the set is already full.
      *
      * @param object
      *            the element to be added
      */
     void add(@NonNull T object) {
-        backingSet.add(object);
+        if (backingSet.add(object)) {
+            permits.reduce(1);
+        }
     }
 
     void remove(@NonNull T object) {
-        backingSet.remove(object);
-        synchronized (lock) {
-            lock.notifyAll();
+        if (backingSet.remove(object)) {
+            permits.release();
         }
     }
 
-    void waitUntilAtLeastOneFree() {
-        synchronized (lock) {
-            while (!(backingSet.size() < maximumSize)) {
-                try {
-                    lock.wait();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
+    /**
+     * Blocks until a slot is free. The slot is not reserved, it is only taken
+     * by the next {@link #add(Object)}.
+     *
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting
+     */
+    void waitUntilAtLeastOneFree() throws InterruptedException {
+        permits.acquire();
+        // pass the wake-up on to the next waiting thread
+        permits.release();
+    }
+
+    /**
+     * Like {@link #waitUntilAtLeastOneFree()}, but gives up after the timeout.
+     *
+     * @param timeout
+     *            the maximum time to wait
+     * @return whether a slot is free
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting
+     */
+    boolean waitUntilAtLeastOneFree(@NonNull Duration timeout) throws InterruptedException {
+        if (!permits.tryAcquire(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+            return false;
         }
+        permits.release();
+        return true;
     }
 
     int free() {
-        return maximumSize - backingSet.size();
+        return Math.max(0, permits.availablePermits());
+    }
+
+    synchronized int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Changes the number of elements the set admits. Growing releases the
+     * additional permits to waiting threads right away, shrinking takes
+     * permits away, possibly below zero until enough elements are removed.
+     *
+     * @param maximumSize
+     *            the new maximum size, at least 1
+     */
+    synchronized void setMaximumSize(int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("the maximum size has to be >= 1");
+        }
+        int delta = maximumSize - this.maximumSize;
+        this.maximumSize = maximumSize;
+        if (delta > 0) {
+            permits.release(delta);
+        } else if (delta < 0) {
+            permits.reduce(-delta);
+        }
     }
 
     /**
@@ -78,4 +142,17 @@ class SetWithUpperBound<T> {
     Set<T> getBackingSet() {
         return backingSet;
     }
-}
\ No newline at end of file
+
+    private static class Permits extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        Permits(int permits) {
+            super(permits, true);
+        }
+
+        void reduce(int reduction) {
+            reducePermits(reduction);
+        }
+    }
+}
@@ -0,0 +1,409 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A fixed number of worker threads shared by several
+ * {@link LongRunningMessageHandler}s, see
+ * {@link LongRunningMessageHandlerFactory#setWorkerShare(WorkerShare)}.
+ *
+ * <p>
+ * Every handler registers as a member with a weight, a minimum share and a
+ * maximum share of the threads. A task is only handed to a thread when one is
+ * free, and the next task is taken from the member with waiting work that
+ * <ol>
+ * <li>runs fewer tasks than its minimum share, or else</li>
+ * <li>has received the least service relative to its weight (stride
+ * scheduling, an approximation of weighted fair queuing),</li>
+ * </ol>
+ * never exceeding the maximum share of a member. Idle members do not save up
+ * credit, so a queue that wakes up gets its fair share from then on, but not
+ * more.
+ *
+ * <p>
+ * The pool is not shut down by the handlers or the factory, call
+ * {@link #shutdown()} once all handlers using it have been shut down. Tasks
+ * that can no longer run because the pool has been shut down are reported to
+ * their member, see {@link #register(String, double, int, int, Runnable)}.
+ */
+@Slf4j
+public class SharedWorkerPool {
+
+    private final int numberOfThreads;
+
+    private final ExecutorService executor;
+
+    /** guarded by this */
+    private final List<Member> members = new ArrayList<>();
+
+    /** guarded by this */
+    private int running;
+
+    /** guarded by this */
+    private int reservedThreads;
+
+    /** guarded by this; the pass of the member that has been served last */
+    private double currentPass;
+
+    /** guarded by this */
+    private boolean shutdown;
+
+    public SharedWorkerPool(int numberOfThreads) {
+        if (numberOfThreads < 1) {
+            throw new IllegalArgumentException("at least one thread is required");
+        }
+        this.numberOfThreads = numberOfThreads;
+        this.executor = Executors.newFixedThreadPool(numberOfThreads, new ThreadFactory() {
+
+            private final AtomicInteger createdThreads = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, SharedWorkerPool.class.getSimpleName() + "-" + createdThreads
+                        .getAndIncrement());
+            }
+        });
+    }
+
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    /**
+     * Registers a member, e.g. a handler.
+     *
+     * @param name
+     *            used for logging
+     * @param weight
+     *            the relative share of the threads when several members have
+     *            waiting work
+     * @param minShare
+     *            number of threads the member gets first whenever it has
+     *            waiting work
+     * @param maxShare
+     *            maximum number of threads the member may use at the same time
+     * @return the executor of the member
+     * @throws IllegalStateException
+     *             if the minimum shares of all members exceed the threads
+     */
+    Member register(@NonNull String name, double weight, int minShare, int maxShare) {
+        return register(name, weight, minShare, maxShare, () -> {
+        });
+    }
+
+    /**
+     * Registers a member, e.g. a handler, that is told when some of its tasks
+     * have been dropped.
+     *
+     * @param name
+     *            used for logging
+     * @param weight
+     *            the relative share of the threads when several members have
+     *            waiting work
+     * @param minShare
+     *            number of threads the member gets first whenever it has
+     *            waiting work
+     * @param maxShare
+     *            maximum number of threads the member may use at the same time
+     * @param onDropped
+     *            called without a lock, possibly several times, once tasks of
+     *            the member will not run because the pool has been shut down
+     * @return the executor of the member
+     * @throws IllegalStateException
+     *             if the minimum shares of all members exceed the threads
+     */
+    synchronized Member register(@NonNull String name, double weight, int minShare, int maxShare,
+            @NonNull Runnable onDropped) {
+        if (!(weight > 0) || minShare < 0 || maxShare < 1 || minShare > maxShare) {
+            throw new IllegalArgumentException("invalid share for " + name + ": weight " + weight + ", min "
+                    + minShare + ", max " + maxShare);
+        }
+        if (reservedThreads + minShare > numberOfThreads) {
+            throw new IllegalStateException("the minimum share of " + minShare + " threads for " + name
+                    + " exceeds the " + (numberOfThreads - reservedThreads) + " unreserved threads");
+        }
+        reservedThreads += minShare;
+        Member member = new Member(name, weight, minShare, maxShare, onDropped);
+        members.add(member);
+        return member;
+    }
+
+    /**
+     * Stops all threads and rejects further tasks; tasks that have not been
+     * started are dropped and reported to their members.
+     */
+    public void shutdown() {
+        List<Runnable> notStarted = executor.shutdownNow();
+        Set<Member> dropping = new HashSet<>();
+        synchronized (this) {
+            shutdown = true;
+            for (Runnable task : notStarted) {
+                Dispatched dispatched = (Dispatched) task;
+                dispatched.member.running--;
+                running--;
+                dropping.add(dispatched.member);
+            }
+            for (Member member : members) {
+                if (!member.tasks.isEmpty()) {
+                    member.tasks.clear();
+                    dropping.add(member);
+                }
+            }
+            notifyAll();
+        }
+        dropping.forEach(Member::dropped);
+    }
+
+    private void dispatch() {
+        List<Dispatched> dispatched = new ArrayList<>();
+        synchronized (this) {
+            Member next;
+            while (!shutdown && running < numberOfThreads && (next = pickNext()) != null) {
+                Runnable task = next.tasks.poll();
+                next.running++;
+                running++;
+                currentPass = next.pass;
+                next.pass += 1 / next.weight;
+                dispatched.add(new Dispatched(next, task));
+            }
+        }
+        for (Dispatched task : dispatched) {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                log.warn("the shared worker pool has been shut down, dropping a task of " + task.member.name, e);
+                synchronized (this) {
+                    task.member.running--;
+                    running--;
+                    notifyAll();
+                }
+                task.member.dropped();
+            }
+        }
+    }
+
+    /** guarded by this */
+    private Member pickNext() {
+        Member next = null;
+        boolean nextBelowMinShare = false;
+        for (Member member : members) {
+            if (member.tasks.isEmpty() || member.running >= member.maxShare) {
+                continue;
+            }
+            boolean belowMinShare = member.running < member.minShare;
+            if (next == null || belowMinShare && !nextBelowMinShare
+                    || belowMinShare == nextBelowMinShare && member.pass < next.pass) {
+                next = member;
+                nextBelowMinShare = belowMinShare;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * A task that has been handed to a thread of the pool.
+     */
+    private static final class Dispatched implements Runnable {
+
+        private final Member member;
+
+        private final Runnable task;
+
+        Dispatched(Member member, Runnable task) {
+            this.member = member;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            member.run(task);
+        }
+    }
+
+    /**
+     * The executor of a single member. Tasks that throw are logged and do not
+     * affect the pool.
+     */
+    class Member implements Executor {
+
+        private final String name;
+
+        private final double weight;
+
+        private final int minShare;
+
+        private final int maxShare;
+
+        private final Runnable onDropped;
+
+        /** guarded by the pool */
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        /** guarded by the pool */
+        private final Set<Thread> threads = new HashSet<>();
+
+        /** guarded by the pool */
+        private int running;
+
+        /** guarded by the pool */
+        private double pass;
+
+        /** guarded by the pool */
+        private boolean closed;
+
+        private Member(String name, double weight, int minShare, int maxShare, Runnable onDropped) {
+            this.name = name;
+            this.weight = weight;
+            this.minShare = minShare;
+            this.maxShare = maxShare;
+            this.onDropped = onDropped;
+        }
+
+        @Override
+        public void execute(@NonNull Runnable task) {
+            synchronized (SharedWorkerPool.this) {
+                if (closed) {
+                    throw new RejectedExecutionException(name + " has been shut down");
+                }
+                if (shutdown) {
+                    throw new RejectedExecutionException("the shared worker pool has been shut down");
+                }
+                if (tasks.isEmpty() && running == 0) {
+                    // an idle member starts at the current pass instead of catching up
+                    pass = Math.max(pass, currentPass);
+                }
+                tasks.add(task);
+            }
+            dispatch();
+        }
+
+        private void run(Runnable task) {
+            synchronized (SharedWorkerPool.this) {
+                threads.add(Thread.currentThread());
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                log.debug("task of " + name + " failed", t);
+            } finally {
+                synchronized (SharedWorkerPool.this) {
+                    threads.remove(Thread.currentThread());
+                    running--;
+                    SharedWorkerPool.this.running--;
+                    SharedWorkerPool.this.notifyAll();
+                }
+                // clear an interrupt meant for this task before the thread serves the next one
+                Thread.interrupted();
+                dispatch();
+            }
+        }
+
+        private void dropped() {
+            try {
+                onDropped.run();
+            } catch (RuntimeException e) {
+                log.error("error while returning the dropped tasks of " + name, e);
+            }
+        }
+
+        /**
+         * Removes a task that has not been started yet.
+         *
+         * @param task
+         *            the task passed to {@link #execute(Runnable)}
+         * @return true if the task was still waiting
+         */
+        boolean remove(@NonNull Runnable task) {
+            synchronized (SharedWorkerPool.this) {
+                boolean removed = tasks.remove(task);
+                SharedWorkerPool.this.notifyAll();
+                return removed;
+            }
+        }
+
+        /**
+         * @return the number of tasks waiting or running
+         */
+        int getPending() {
+            synchronized (SharedWorkerPool.this) {
+                return tasks.size() + running;
+            }
+        }
+
+        int getMaxShare() {
+            return maxShare;
+        }
+
+        /**
+         * Rejects further tasks and waits for the pending ones to finish.
+         *
+         * @param timeout
+         *            maximum time to wait for the pending tasks
+         * @return true if no task is waiting or running anymore
+         * @throws InterruptedException
+         *             if the thread is interrupted while waiting
+         */
+        boolean drain(@NonNull Duration timeout) throws InterruptedException {
+            synchronized (SharedWorkerPool.this) {
+                closed = true;
+                long deadline = System.nanoTime() + timeout.toNanos();
+                long remaining;
+                while ((!tasks.isEmpty() || running > 0) && (remaining = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(SharedWorkerPool.this, remaining);
+                }
+                return tasks.isEmpty() && running == 0;
+            }
+        }
+
+        /**
+         * Rejects further tasks, waits for the pending ones to finish and
+         * then drops the remaining waiting tasks and interrupts the running
+         * ones. The member's share is released.
+         *
+         * @param timeout
+         *            maximum time to wait for the pending tasks
+         * @throws InterruptedException
+         *             if the thread is interrupted while waiting
+         */
+        void shutdown(@NonNull Duration timeout) throws InterruptedException {
+            synchronized (SharedWorkerPool.this) {
+                drain(timeout);
+                tasks.clear();
+                threads.forEach(Thread::interrupt);
+                if (members.remove(this)) {
+                    reservedThreads -= minShare;
+                }
+            }
+        }
+    }
+}
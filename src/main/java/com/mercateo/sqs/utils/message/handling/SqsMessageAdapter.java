@@ -0,0 +1,122 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import io.awspring.cloud.sqs.MessagingHeaders;
+import io.awspring.cloud.sqs.listener.acknowledgement.AcknowledgementCallback;
+import io.awspring.cloud.sqs.support.converter.MessagingMessageHeaders;
+import io.awspring.cloud.sqs.support.converter.SqsHeaderMapper;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import lombok.NonNull;
+
+import org.springframework.lang.Nullable;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
+
+/**
+ * Feeds raw SQS messages, e.g. from an own {@code ReceiveMessage} loop or a
+ * listener receiving the SDK type, into a {@link LongRunningMessageHandler}.
+ * Only the attributes are mapped to headers on the calling thread; the body
+ * is decoded by a {@link PayloadDecoder} on the worker thread right before
+ * the worker runs, so messages waiting for a worker only hold the raw body.
+ * A body that cannot be decoded is handled like a failing worker. Pointer
+ * messages are resolved by an optional {@link S3ClaimCheck}.
+ *
+ * @param <I>
+ *            the input type of the message payload
+ */
+public class SqsMessageAdapter<I> {
+
+    private final SqsAsyncClient sqsClient;
+
+    private final LongRunningMessageHandler<I, ?> handler;
+
+    private final PayloadDecoder<I> payloadDecoder;
+
+    /** null if pointer messages are passed on unchanged */
+    private final S3ClaimCheck claimCheck;
+
+    private final String queueUrl;
+
+    private final SqsHeaderMapper headerMapper = new SqsHeaderMapper();
+
+    private final AcknowledgementCallback<I> acknowledgementCallback = new DeletingAcknowledgementCallback();
+
+    SqsMessageAdapter(@NonNull SqsAsyncClient sqsClient, @NonNull LongRunningMessageHandler<I, ?> handler,
+            @NonNull PayloadDecoder<I> payloadDecoder) {
+        this(sqsClient, handler, payloadDecoder, null);
+    }
+
+    SqsMessageAdapter(@NonNull SqsAsyncClient sqsClient, @NonNull LongRunningMessageHandler<I, ?> handler,
+            @NonNull PayloadDecoder<I> payloadDecoder, @Nullable S3ClaimCheck claimCheck) {
+        this.sqsClient = sqsClient;
+        this.handler = handler;
+        this.payloadDecoder = payloadDecoder;
+        this.claimCheck = claimCheck;
+        this.queueUrl = handler.getQueue().getUrl();
+    }
+
+    /**
+     * Like {@link LongRunningMessageHandler#handleMessage(Message)}: schedules
+     * the message and blocks until a worker is free.
+     *
+     * @param sqsMessage
+     *            the message as received, with its attributes and receipt
+     *            handle
+     */
+    public void handleMessage(@NonNull software.amazon.awssdk.services.sqs.model.Message sqsMessage) {
+        handler.handleMessage(toMessage(sqsMessage));
+    }
+
+    Message<I> toMessage(@NonNull software.amazon.awssdk.services.sqs.model.Message sqsMessage) {
+        MessageHeaders sqsHeaders = headerMapper.toHeaders(sqsMessage);
+        Map<String, Object> headers = new HashMap<>(sqsHeaders);
+        headers.put("ReceiptHandle", sqsMessage.receiptHandle());
+        headers.put(MessagingHeaders.ACKNOWLEDGMENT_CALLBACK_HEADER, acknowledgementCallback);
+        S3ClaimCheck.Claim claim = claimCheck == null ? null : claimCheck.claim(sqsMessage);
+        if (claim == null) {
+            return new LazyPayloadMessage<>(sqsMessage, new MessagingMessageHeaders(headers, sqsHeaders.getId()),
+                    payloadDecoder);
+        }
+        headers.put(MessageHandlingRunnable.ON_ACKNOWLEDGED_HEADER, (Runnable) claim::release);
+        headers.put(LongRunningMessageHandler.ON_FINISHED_HEADER, (Runnable) claim::cancel);
+        return new LazyPayloadMessage<>(sqsMessage, new MessagingMessageHeaders(headers, sqsHeaders.getId()),
+                pointerMessage -> {
+                    try (InputStream payload = claim.getBody()) {
+                        return payloadDecoder.decode(pointerMessage, payload);
+                    }
+                });
+    }
+
+    private class DeletingAcknowledgementCallback implements AcknowledgementCallback<I> {
+
+        @Override
+        public CompletableFuture<Void> onAcknowledge(Message<I> message) {
+            DeleteMessageRequest request = DeleteMessageRequest.builder()
+                    .queueUrl(queueUrl)
+                    .receiptHandle(message.getHeaders().get("ReceiptHandle", String.class))
+                    .build();
+            return sqsClient.deleteMessage(request).thenApply(response -> null);
+        }
+    }
+}
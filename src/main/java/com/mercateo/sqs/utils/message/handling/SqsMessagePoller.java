@@ -0,0 +1,211 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.lang.Nullable;
+import org.springframework.messaging.Message;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
+
+/**
+ * Receives messages for a {@link LongRunningMessageHandler} on demand instead
+ * of relying on an {@code SqsListener}. Every {@code ReceiveMessage} request
+ * asks for at most as many messages as there are free workers that are not
+ * already promised to another outstanding request, so no received message has
+ * to wait in the local buffer and no listener thread has to block.
+ *
+ * <p>
+ * Up to {@code maxConcurrentReceives} long polls run at the same time, each
+ * for up to {@value #MAX_NUMBER_OF_MESSAGES} messages. Polls only start while
+ * there is unclaimed capacity, so the number of concurrent polls follows the
+ * number of free workers.
+ *
+ * <p>
+ * Handlers that keep the order of FIFO message groups are not supported:
+ * submitting to a full lane would block the callback executor.
+ */
+@Slf4j
+public class SqsMessagePoller<I> {
+
+    static final int MAX_NUMBER_OF_MESSAGES = 10;
+
+    static final Duration IDLE_DELAY = Duration.ofMillis(100);
+
+    private static final Duration ERROR_DELAY = Duration.ofSeconds(1);
+
+    private final SqsAsyncClient sqsClient;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Executor callbackExecutor;
+
+    private final LongRunningMessageHandler<I, ?> handler;
+
+    private final String queueUrl;
+
+    private final int maxConcurrentReceives;
+
+    private final int waitTimeSeconds;
+
+    private final SqsMessageAdapter<I> messageAdapter;
+
+    /** guarded by this */
+    private int claimedCapacity;
+
+    private volatile boolean running;
+
+    /**
+     * incremented by every start, so the polls of an earlier start end instead
+     * of running next to the new ones
+     */
+    private volatile int generation;
+
+    SqsMessagePoller(@NonNull SqsAsyncClient sqsClient, @NonNull ScheduledExecutorService scheduler,
+            @NonNull Executor callbackExecutor, @NonNull LongRunningMessageHandler<I, ?> handler,
+            @NonNull Function<String, I> payloadConverter, int maxConcurrentReceives,
+            @NonNull Duration waitTime) {
+        this(sqsClient, scheduler, callbackExecutor, handler, payloadConverter, maxConcurrentReceives, waitTime,
+                null);
+    }
+
+    SqsMessagePoller(@NonNull SqsAsyncClient sqsClient, @NonNull ScheduledExecutorService scheduler,
+            @NonNull Executor callbackExecutor, @NonNull LongRunningMessageHandler<I, ?> handler,
+            @NonNull Function<String, I> payloadConverter, int maxConcurrentReceives,
+            @NonNull Duration waitTime, @Nullable S3ClaimCheck claimCheck) {
+        if (maxConcurrentReceives < 1) {
+            throw new IllegalArgumentException("at least one concurrent receive is required");
+        }
+        if (handler.isFifoOrdering()) {
+            throw new IllegalArgumentException("the poller cannot keep the order of FIFO message groups");
+        }
+        this.sqsClient = sqsClient;
+        this.scheduler = scheduler;
+        this.callbackExecutor = callbackExecutor;
+        this.handler = handler;
+        // the body is converted on the worker thread, not on the callback executor
+        this.messageAdapter = new SqsMessageAdapter<>(sqsClient, handler, sqsMessage -> payloadConverter.apply(
+                sqsMessage.body()), claimCheck);
+        this.queueUrl = handler.getQueue().getUrl();
+        this.maxConcurrentReceives = maxConcurrentReceives;
+        this.waitTimeSeconds = (int) Math.min(20, Math.max(0, waitTime.getSeconds()));
+    }
+
+    /**
+     * Starts receiving messages. Calling it on a running poller has no effect.
+     * After a restart, receives of the previous start that are still in flight
+     * are completed but not repeated.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        int started = ++generation;
+        for (int i = 0; i < maxConcurrentReceives; i++) {
+            callbackExecutor.execute(() -> poll(started));
+        }
+    }
+
+    /**
+     * Stops receiving messages. Receives that are still in flight are
+     * completed and their messages are processed.
+     */
+    public synchronized void stop() {
+        running = false;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void poll(int started) {
+        if (!running || started != generation) {
+            return;
+        }
+        int demand = claimCapacity();
+        if (demand == 0) {
+            scheduler.schedule(() -> poll(started), IDLE_DELAY.toMillis(), TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        ReceiveMessageRequest request = ReceiveMessageRequest.builder()
+                .queueUrl(queueUrl)
+                .maxNumberOfMessages(demand)
+                .waitTimeSeconds(waitTimeSeconds)
+                .messageSystemAttributeNames(MessageSystemAttributeName.ALL)
+                .messageAttributeNames("All")
+                .build();
+        CompletableFuture<ReceiveMessageResponse> response;
+        try {
+            response = sqsClient.receiveMessage(request);
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        response.whenCompleteAsync((result, t) -> {
+            try {
+                if (t != null) {
+                    log.error("error while receiving messages from " + queueUrl, t);
+                } else {
+                    result.messages().forEach(this::submit);
+                }
+            } finally {
+                releaseCapacity(demand);
+            }
+            if (t != null) {
+                scheduler.schedule(() -> poll(started), ERROR_DELAY.toMillis(), TimeUnit.MILLISECONDS);
+            } else {
+                poll(started);
+            }
+        }, callbackExecutor);
+    }
+
+    private synchronized int claimCapacity() {
+        int demand = Math.min(MAX_NUMBER_OF_MESSAGES, handler.getFreeWorkerCapacity() - claimedCapacity);
+        if (demand <= 0) {
+            return 0;
+        }
+        claimedCapacity += demand;
+        return demand;
+    }
+
+    private synchronized void releaseCapacity(int capacity) {
+        claimedCapacity -= capacity;
+    }
+
+    private void submit(software.amazon.awssdk.services.sqs.model.Message sqsMessage) {
+        try {
+            handler.submitMessage(toMessage(sqsMessage));
+        } catch (RuntimeException e) {
+            log.error("could not submit message " + sqsMessage.messageId(), e);
+        }
+    }
+
+    Message<I> toMessage(software.amazon.awssdk.services.sqs.model.Message sqsMessage) {
+        return messageAdapter.toMessage(sqsMessage);
+    }
+}
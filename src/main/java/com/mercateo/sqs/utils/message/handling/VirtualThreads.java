@@ -0,0 +1,72 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+import lombok.NonNull;
+
+/**
+ * Creates virtual thread factories on Java 21+ while the library itself is
+ * still compiled for Java 17.
+ */
+final class VirtualThreads {
+
+    private static final Method OF_VIRTUAL = lookup(Thread.class, "ofVirtual");
+
+    private static final Method NAME = OF_VIRTUAL == null ? null
+            : lookup(OF_VIRTUAL.getReturnType(), "name", String.class, long.class);
+
+    private static final Method FACTORY = OF_VIRTUAL == null ? null
+            : lookup(OF_VIRTUAL.getReturnType(), "factory");
+
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return OF_VIRTUAL != null && NAME != null && FACTORY != null;
+    }
+
+    /**
+     * @param namePrefix
+     *            prefix of the thread names, followed by a counter
+     * @return a factory for virtual threads
+     * @throws IllegalStateException
+     *             if the runtime does not support virtual threads
+     */
+    static ThreadFactory factory(@NonNull String namePrefix) {
+        if (!isSupported()) {
+            throw new IllegalStateException("virtual threads require Java 21 or newer, running on "
+                    + Runtime.version());
+        }
+        try {
+            Object builder = OF_VIRTUAL.invoke(null);
+            builder = NAME.invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) FACTORY.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("could not create a virtual thread factory", e);
+        }
+    }
+
+    private static Method lookup(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            return type.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
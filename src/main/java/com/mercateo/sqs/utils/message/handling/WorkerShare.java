@@ -0,0 +1,51 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.message.handling;
+
+import lombok.NonNull;
+import lombok.Value;
+
+/**
+ * The share of a {@link SharedWorkerPool} a handler is entitled to. The
+ * maximum share of a handler is its {@code numberOfThreads}.
+ */
+@Value
+public class WorkerShare {
+
+    @NonNull
+    SharedWorkerPool pool;
+
+    /**
+     * the relative share of the threads when several handlers have waiting
+     * messages
+     */
+    double weight;
+
+    /**
+     * number of threads the handler gets first whenever it has waiting
+     * messages
+     */
+    int minShare;
+
+    public WorkerShare(@NonNull SharedWorkerPool pool, double weight, int minShare) {
+        if (!(weight > 0) || minShare < 0) {
+            throw new IllegalArgumentException("the weight has to be > 0 and the minimum share >= 0");
+        }
+        this.pool = pool;
+        this.weight = weight;
+        this.minShare = minShare;
+    }
+}
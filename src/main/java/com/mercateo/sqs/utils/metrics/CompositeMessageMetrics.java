@@ -0,0 +1,71 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.metrics;
+
+import lombok.RequiredArgsConstructor;
+
+/**
+ * See {@link MessageMetrics#combine(MessageMetrics, MessageMetrics)}.
+ */
+@RequiredArgsConstructor
+class CompositeMessageMetrics implements MessageMetrics {
+
+    private final MessageMetrics first;
+
+    private final MessageMetrics second;
+
+    @Override
+    public void onReceived(long queueDwellNanos) {
+        first.onReceived(queueDwellNanos);
+        second.onReceived(queueDwellNanos);
+    }
+
+    @Override
+    public void onStarted(long bufferWaitNanos) {
+        first.onStarted(bufferWaitNanos);
+        second.onStarted(bufferWaitNanos);
+    }
+
+    @Override
+    public void onWorked(long workNanos, boolean successful) {
+        first.onWorked(workNanos, successful);
+        second.onWorked(workNanos, successful);
+    }
+
+    @Override
+    public void onFinishedMessageCallback(long callbackNanos) {
+        first.onFinishedMessageCallback(callbackNanos);
+        second.onFinishedMessageCallback(callbackNanos);
+    }
+
+    @Override
+    public void onVisibilityExtended(long latencyNanos, boolean successful) {
+        first.onVisibilityExtended(latencyNanos, successful);
+        second.onVisibilityExtended(latencyNanos, successful);
+    }
+
+    @Override
+    public void onAcknowledged(long latencyNanos, boolean successful) {
+        first.onAcknowledged(latencyNanos, successful);
+        second.onAcknowledged(latencyNanos, successful);
+    }
+
+    @Override
+    public void onCompleted(int visibilityExtensions) {
+        first.onCompleted(visibilityExtensions);
+        second.onCompleted(visibilityExtensions);
+    }
+}
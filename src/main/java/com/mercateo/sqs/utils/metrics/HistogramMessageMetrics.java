@@ -0,0 +1,109 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * Default {@link MessageMetrics} that records every duration in a
+ * {@link LockFreeHistogram} and counts failures. The histograms can be read at
+ * any time, e.g. by a periodic reporter.
+ */
+@Getter
+public class HistogramMessageMetrics implements MessageMetrics {
+
+    private final LockFreeHistogram queueDwellTime = new LockFreeHistogram();
+
+    private final LockFreeHistogram bufferWaitTime = new LockFreeHistogram();
+
+    private final LockFreeHistogram workDuration = new LockFreeHistogram();
+
+    private final LockFreeHistogram finishedMessageCallbackDuration = new LockFreeHistogram();
+
+    private final LockFreeHistogram visibilityExtensionLatency = new LockFreeHistogram();
+
+    private final LockFreeHistogram acknowledgeLatency = new LockFreeHistogram();
+
+    private final LockFreeHistogram visibilityExtensionsPerMessage = new LockFreeHistogram();
+
+    @Getter(AccessLevel.NONE)
+    private final LongAdder workFailures = new LongAdder();
+
+    @Getter(AccessLevel.NONE)
+    private final LongAdder visibilityExtensionFailures = new LongAdder();
+
+    @Getter(AccessLevel.NONE)
+    private final LongAdder acknowledgeFailures = new LongAdder();
+
+    @Override
+    public void onReceived(long queueDwellNanos) {
+        queueDwellTime.record(queueDwellNanos);
+    }
+
+    @Override
+    public void onStarted(long bufferWaitNanos) {
+        bufferWaitTime.record(bufferWaitNanos);
+    }
+
+    @Override
+    public void onWorked(long workNanos, boolean successful) {
+        workDuration.record(workNanos);
+        if (!successful) {
+            workFailures.increment();
+        }
+    }
+
+    @Override
+    public void onFinishedMessageCallback(long callbackNanos) {
+        finishedMessageCallbackDuration.record(callbackNanos);
+    }
+
+    @Override
+    public void onVisibilityExtended(long latencyNanos, boolean successful) {
+        visibilityExtensionLatency.record(latencyNanos);
+        if (!successful) {
+            visibilityExtensionFailures.increment();
+        }
+    }
+
+    @Override
+    public void onAcknowledged(long latencyNanos, boolean successful) {
+        acknowledgeLatency.record(latencyNanos);
+        if (!successful) {
+            acknowledgeFailures.increment();
+        }
+    }
+
+    @Override
+    public void onCompleted(int visibilityExtensions) {
+        visibilityExtensionsPerMessage.record(visibilityExtensions);
+    }
+
+    public long getWorkFailures() {
+        return workFailures.sum();
+    }
+
+    public long getVisibilityExtensionFailures() {
+        return visibilityExtensionFailures.sum();
+    }
+
+    public long getAcknowledgeFailures() {
+        return acknowledgeFailures.sum();
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.metrics;
+
+import lombok.NonNull;
+
+/**
+ * Listener for the lifecycle of messages processed by a
+ * {@code LongRunningMessageHandler}. All durations are in nanoseconds. The
+ * methods are called on worker, scheduler and SDK callback threads, so
+ * implementations must be thread-safe and must not block.
+ *
+ * <p>
+ * Every method does nothing by default. Callers skip all time measurements
+ * if the metrics are {@link #NOOP}, so the default costs nothing.
+ */
+public interface MessageMetrics {
+
+    MessageMetrics NOOP = new MessageMetrics() {
+    };
+
+    /**
+     * Combines two metrics into one that reports every event to both.
+     *
+     * @param first
+     *            notified first
+     * @param second
+     *            notified second
+     * @return the combined metrics, or one of the two if the other is
+     *         {@link #NOOP}
+     */
+    static MessageMetrics combine(@NonNull MessageMetrics first, @NonNull MessageMetrics second) {
+        if (first == NOOP) {
+            return second;
+        }
+        if (second == NOOP) {
+            return first;
+        }
+        return new CompositeMessageMetrics(first, second);
+    }
+
+    /**
+     * @param queueDwellNanos
+     *            time between sending the message to the queue (its
+     *            {@code SentTimestamp}) and handing it to the handler
+     */
+    default void onReceived(long queueDwellNanos) {
+    }
+
+    /**
+     * @param bufferWaitNanos
+     *            time the message waited in the local buffer for a worker
+     */
+    default void onStarted(long bufferWaitNanos) {
+    }
+
+    /**
+     * @param workNanos
+     *            duration of the worker call
+     * @param successful
+     *            false if the worker threw
+     */
+    default void onWorked(long workNanos, boolean successful) {
+    }
+
+    /**
+     * @param callbackNanos
+     *            duration of the finished message callback
+     */
+    default void onFinishedMessageCallback(long callbackNanos) {
+    }
+
+    /**
+     * @param latencyNanos
+     *            time until SQS answered the visibility extension, including
+     *            retries
+     * @param successful
+     *            false if the extension failed
+     */
+    default void onVisibilityExtended(long latencyNanos, boolean successful) {
+    }
+
+    /**
+     * @param latencyNanos
+     *            time until the message was deleted from the queue
+     * @param successful
+     *            false if the deletion failed
+     */
+    default void onAcknowledged(long latencyNanos, boolean successful) {
+    }
+
+    /**
+     * @param visibilityExtensions
+     *            number of successful visibility extensions of the message
+     *            when its worker finished
+     */
+    default void onCompleted(int visibilityExtensions) {
+    }
+}
@@ -15,43 +15,214 @@
  */
 package com.mercateo.sqs.utils.queue;
 
+import java.time.Duration;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
 
 import jakarta.inject.Inject;
 import jakarta.inject.Named;
 
 import lombok.NonNull;
 import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import org.springframework.lang.Nullable;
 import software.amazon.awssdk.services.sqs.SqsAsyncClient;
 import software.amazon.awssdk.services.sqs.model.GetQueueAttributesRequest;
 import software.amazon.awssdk.services.sqs.model.GetQueueUrlRequest;
 import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
 
+/**
+ * Resolves queue names into {@link Queue}s. The results are cached: the URL
+ * of a queue is resolved once, its attributes are reloaded in the background
+ * when they are older than the time to live. Until the reload completes, the
+ * previous attributes are returned, so no caller ever waits for a refresh.
+ * Failed resolutions are not cached.
+ *
+ * <p>
+ * Resolving many queues at startup is fastest with
+ * {@link #getAll(Collection)}, which sends all requests in parallel.
+ */
+@Slf4j
 @Named
 public class QueueFactory {
 
+    static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofMinutes(5);
+
     private final SqsAsyncClient amazonSQS;
 
+    private final LongSupplier nanoClock;
+
+    private final ConcurrentMap<QueueName, CachedQueue> cache = new ConcurrentHashMap<>();
+
+    private volatile long timeToLiveNanos = DEFAULT_TIME_TO_LIVE.toNanos();
+
     @Inject
     public QueueFactory(@NonNull SqsAsyncClient amazonSQS) {
+        this(amazonSQS, System::nanoTime);
+    }
+
+    QueueFactory(@NonNull SqsAsyncClient amazonSQS, @NonNull LongSupplier nanoClock) {
         this.amazonSQS = amazonSQS;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Sets how long the attributes of a queue are used before they are
+     * reloaded in the background. Defaults to 5 minutes.
+     *
+     * @param timeToLive
+     *            the time to live, has to be positive
+     */
+    public void setTimeToLive(@NonNull Duration timeToLive) {
+        if (timeToLive.isZero() || timeToLive.isNegative()) {
+            throw new IllegalArgumentException("the time to live has to be > 0");
+        }
+        this.timeToLiveNanos = timeToLive.toNanos();
     }
 
     @SneakyThrows
     public Queue get(@NonNull QueueName queueName) {
-        GetQueueUrlRequest urlRequest = GetQueueUrlRequest.builder()
-                .queueName(queueName.getId())
-                .build();
-        String queueUrl = amazonSQS.getQueueUrl(urlRequest).get().queueUrl();
+        return getAsync(queueName).get();
+    }
 
+    /**
+     * Resolves the queue without blocking.
+     *
+     * @param queueName
+     *            the name of the queue
+     * @return the cached queue or a future that completes once the queue has
+     *         been resolved
+     */
+    public CompletableFuture<Queue> getAsync(@NonNull QueueName queueName) {
+        CachedQueue cached = cache.get(queueName);
+        if (cached == null) {
+            CachedQueue created = new CachedQueue(queueName);
+            cached = cache.putIfAbsent(queueName, created);
+            if (cached == null) {
+                created.load();
+                return created.current;
+            }
+        }
+        cached.refreshIfExpired();
+        return cached.current;
+    }
+
+    /**
+     * Resolves all queues in parallel.
+     *
+     * @param queueNames
+     *            the names of the queues
+     * @return a future that completes once all queues have been resolved, or
+     *         exceptionally if one of them could not be resolved
+     */
+    public CompletableFuture<Map<QueueName, Queue>> getAll(@NonNull Collection<QueueName> queueNames) {
+        Map<QueueName, CompletableFuture<Queue>> queues = new LinkedHashMap<>();
+        queueNames.forEach(queueName -> queues.put(queueName, getAsync(queueName)));
+        return CompletableFuture.allOf(queues.values().toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            Map<QueueName, Queue> result = new LinkedHashMap<>();
+            queues.forEach((queueName, queue) -> result.put(queueName, queue.join()));
+            return result;
+        });
+    }
+
+    /**
+     * Returns the latest resolved state of the queue without blocking and
+     * starts a background refresh if it is older than the time to live.
+     *
+     * @param queueName
+     *            the name of the queue
+     * @return the queue, or null if it has not been resolved (yet)
+     */
+    @Nullable
+    public Queue getIfResolved(@NonNull QueueName queueName) {
+        CachedQueue cached = cache.get(queueName);
+        if (cached == null) {
+            return null;
+        }
+        cached.refreshIfExpired();
+        CompletableFuture<Queue> current = cached.current;
+        return current.isDone() && !current.isCompletedExceptionally() ? current.join() : null;
+    }
+
+    private CompletableFuture<Queue> loadAttributes(QueueName queueName, String queueUrl) {
         GetQueueAttributesRequest attributesRequest = GetQueueAttributesRequest
                 .builder()
                 .queueUrl(queueUrl)
                 .attributeNamesWithStrings(Collections.singletonList("All")).build();
-        Map<QueueAttributeName, String> attributes = amazonSQS.getQueueAttributes(attributesRequest)
-                .get().attributes();
+        return amazonSQS.getQueueAttributes(attributesRequest).thenApply(response -> {
+            Map<QueueAttributeName, String> attributes = response.attributes();
+            return new Queue(queueName, queueUrl, attributes);
+        });
+    }
+
+    private class CachedQueue {
+
+        private final QueueName queueName;
+
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private volatile CompletableFuture<Queue> current = new CompletableFuture<>();
+
+        private volatile long loadedNanos;
+
+        CachedQueue(QueueName queueName) {
+            this.queueName = queueName;
+        }
+
+        void load() {
+            GetQueueUrlRequest urlRequest = GetQueueUrlRequest.builder()
+                    .queueName(queueName.getId())
+                    .build();
+            CompletableFuture<Queue> loading;
+            try {
+                loading = amazonSQS.getQueueUrl(urlRequest).thenCompose(response -> loadAttributes(queueName,
+                        response.queueUrl()));
+            } catch (RuntimeException e) {
+                loading = CompletableFuture.failedFuture(e);
+            }
+            CompletableFuture<Queue> target = current;
+            loading.whenComplete((queue, t) -> {
+                if (t != null) {
+                    cache.remove(queueName, this);
+                    target.completeExceptionally(t);
+                } else {
+                    loadedNanos = nanoClock.getAsLong();
+                    target.complete(queue);
+                }
+            });
+        }
 
-        return new Queue(queueName, queueUrl, attributes);
+        void refreshIfExpired() {
+            CompletableFuture<Queue> loaded = current;
+            if (!loaded.isDone() || loaded.isCompletedExceptionally()
+                    || nanoClock.getAsLong() - loadedNanos < timeToLiveNanos
+                    || !refreshing.compareAndSet(false, true)) {
+                return;
+            }
+            CompletableFuture<Queue> refresh;
+            try {
+                refresh = loadAttributes(queueName, loaded.join().getUrl());
+            } catch (RuntimeException e) {
+                refresh = CompletableFuture.failedFuture(e);
+            }
+            refresh.whenComplete((queue, t) -> {
+                if (t != null) {
+                    log.warn("could not refresh the attributes of queue " + queueName.getId()
+                            + ", keeping the previous ones", t);
+                } else {
+                    current = CompletableFuture.completedFuture(queue);
+                }
+                loadedNanos = nanoClock.getAsLong();
+                refreshing.set(false);
+            });
+        }
     }
-}
\ No newline at end of file
+}
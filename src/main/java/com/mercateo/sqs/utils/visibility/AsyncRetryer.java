@@ -0,0 +1,157 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.visibility;
+
+import com.github.rholder.retry.Attempt;
+import com.github.rholder.retry.RetryException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Non-blocking counterpart of {@link com.github.rholder.retry.Retryer}. Failed
+ * calls are retried according to the {@link RetryStrategy} without ever
+ * sleeping on the calling thread; every continuation runs on the given
+ * executor.
+ */
+@RequiredArgsConstructor
+class AsyncRetryer {
+
+    @NonNull
+    private final RetryStrategy retryStrategy;
+
+    @NonNull
+    private final Predicate<Throwable> retryIf;
+
+    @NonNull
+    private final Executor executor;
+
+    /**
+     * @param call
+     *            fires the request; may throw instead of returning a failed
+     *            future
+     * @param <T>
+     *            the response type
+     * @return a future that completes with the first successful response, with
+     *         the exception of a call that must not be retried or with a
+     *         {@link RetryException} if the retries are exhausted
+     */
+    <T> CompletableFuture<T> call(@NonNull Supplier<CompletableFuture<T>> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(call, result, 1, System.nanoTime());
+        return result;
+    }
+
+    private <T> void attempt(Supplier<CompletableFuture<T>> call, CompletableFuture<T> result,
+            int attemptNumber, long start) {
+        CompletableFuture<T> response;
+        try {
+            response = call.get();
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        response.whenCompleteAsync((value, t) -> {
+            if (t == null) {
+                result.complete(value);
+                return;
+            }
+            Throwable cause = unwrap(t);
+            if (!retryIf.test(cause)) {
+                result.completeExceptionally(cause);
+                return;
+            }
+            FailedAttempt attempt = new FailedAttempt(cause, attemptNumber, TimeUnit.NANOSECONDS.toMillis(
+                    System.nanoTime() - start));
+            if (retryStrategy.getRetryStopStrategy().shouldStop(attempt)) {
+                result.completeExceptionally(new RetryException(attemptNumber, attempt));
+                return;
+            }
+            long sleepTime = retryStrategy.getRetryWaitStrategy().computeSleepTime(attempt);
+            CompletableFuture.delayedExecutor(sleepTime, TimeUnit.MILLISECONDS, executor).execute(
+                    () -> attempt(call, result, attemptNumber + 1, start));
+        }, executor);
+    }
+
+    static Throwable unwrap(Throwable t) {
+        while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t;
+    }
+
+    static <T extends Throwable> T findCause(Throwable t, Class<T> type) {
+        while (t != null) {
+            if (type.isInstance(t)) {
+                return type.cast(t);
+            }
+            t = t.getCause();
+        }
+        return null;
+    }
+
+    @RequiredArgsConstructor
+    private static class FailedAttempt implements Attempt<Object> {
+
+        private final Throwable cause;
+
+        private final long attemptNumber;
+
+        private final long delaySinceFirstAttempt;
+
+        @Override
+        public Object get() throws ExecutionException {
+            throw new ExecutionException(cause);
+        }
+
+        @Override
+        public boolean hasResult() {
+            return false;
+        }
+
+        @Override
+        public boolean hasException() {
+            return true;
+        }
+
+        @Override
+        public Object getResult() {
+            throw new IllegalStateException("the attempt resulted in an exception");
+        }
+
+        @Override
+        public Throwable getExceptionCause() {
+            return cause;
+        }
+
+        @Override
+        public long getAttemptNumber() {
+            return attemptNumber;
+        }
+
+        @Override
+        public long getDelaySinceFirstAttempt() {
+            return delaySinceFirstAttempt;
+        }
+    }
+}
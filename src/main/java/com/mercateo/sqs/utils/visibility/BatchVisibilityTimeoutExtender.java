@@ -0,0 +1,219 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.visibility;
+
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SqsException;
+
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Extends the visibility timeout of many messages with as few SQS calls as
+ * possible. Instead of sending one {@code ChangeMessageVisibility} request per
+ * message and interval, all registered messages that are due for an extension
+ * are grouped per queue and sent as {@code ChangeMessageVisibilityBatch}
+ * requests of up to {@value #MAX_BATCH_SIZE} entries.
+ *
+ * <p>
+ * Due messages are collected once per tick, so an extension may happen up to
+ * one tick later than its interval. The tick only fires the requests;
+ * responses and retries are processed on the callback executor. Failed entries
+ * are passed to the
+ * {@link com.mercateo.sqs.utils.message.handling.ErrorHandlingStrategy} of the
+ * respective message, exactly like a failed single extension.
+ */
+@Slf4j
+public class BatchVisibilityTimeoutExtender {
+
+    static final int MAX_BATCH_SIZE = 10;
+
+    private final SqsAsyncClient sqsClient;
+
+    private final AsyncRetryer retryer;
+
+    private final Executor callbackExecutor;
+
+    private final Set<Registration> registrations = ConcurrentHashMap.newKeySet();
+
+    BatchVisibilityTimeoutExtender(@NonNull SqsAsyncClient sqsClient,
+            @NonNull ScheduledExecutorService scheduler, @NonNull Duration tickInterval,
+            @NonNull RetryStrategy retryStrategy, @NonNull Executor callbackExecutor) {
+        this.sqsClient = sqsClient;
+        this.callbackExecutor = callbackExecutor;
+        this.retryer = new AsyncRetryer(retryStrategy,
+                t -> AsyncRetryer.findCause(t, UnknownHostException.class) != null, callbackExecutor);
+
+        scheduler.scheduleWithFixedDelay(this::extendDueVisibilityTimeouts, tickInterval.toMillis(),
+                tickInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers a message for periodic visibility timeout extension.
+     *
+     * @param extender
+     *            describes the message, its queue and the schedule of its
+     *            extensions
+     * @return a handle that stops the extension when cancelled; it completes
+     *         exceptionally if the extension had to be given up
+     */
+    public Future<?> register(@NonNull VisibilityTimeoutExtender extender) {
+        Registration registration = new Registration(extender);
+        registrations.add(registration);
+        registration.handle.whenComplete((ignored, t) -> registrations.remove(registration));
+        return registration.handle;
+    }
+
+    /**
+     * Visible for Testing
+     *
+     * @return number of messages currently registered for extension
+     */
+    int size() {
+        return registrations.size();
+    }
+
+    void extendDueVisibilityTimeouts() {
+        try {
+            long now = System.nanoTime();
+            Map<String, List<Registration>> dueByQueue = new LinkedHashMap<>();
+            for (Registration registration : registrations) {
+                if (registration.isDue(now)) {
+                    dueByQueue.computeIfAbsent(registration.extender.getQueueUrl(), url -> new ArrayList<>())
+                            .add(registration);
+                }
+            }
+
+            dueByQueue.forEach((queueUrl, due) -> {
+                for (int i = 0; i < due.size(); i += MAX_BATCH_SIZE) {
+                    extend(queueUrl, due.subList(i, Math.min(i + MAX_BATCH_SIZE, due.size())));
+                }
+            });
+        } catch (RuntimeException e) {
+            log.error("error while extending message visibilities", e);
+        }
+    }
+
+    private void extend(String queueUrl, List<Registration> due) {
+        List<Registration> batch = new ArrayList<>(due.size());
+        List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(due.size());
+        for (Registration registration : due) {
+            ChangeMessageVisibilityBatchRequestEntry entry = registration.extender.toBatchRequestEntry(String
+                    .valueOf(batch.size()));
+            if (entry == null) {
+                registration.handle.completeExceptionally(registration.extender.getFailure());
+                continue;
+            }
+            registration.scheduleNext();
+            batch.add(registration);
+            entries.add(entry);
+        }
+        if (entries.isEmpty()) {
+            return;
+        }
+        ChangeMessageVisibilityBatchRequest request = ChangeMessageVisibilityBatchRequest.builder()
+                .queueUrl(queueUrl)
+                .entries(entries)
+                .build();
+
+        long start = System.nanoTime();
+        retryer.call(() -> sqsClient.changeMessageVisibilityBatch(request))
+                .whenCompleteAsync((response, t) -> {
+                    long latency = System.nanoTime() - start;
+                    if (t != null) {
+                        Throwable cause = AsyncRetryer.unwrap(t);
+                        batch.forEach(registration -> {
+                            registration.extender.recordExtension(latency, false);
+                            registration.handleFailure(cause);
+                        });
+                        return;
+                    }
+                    boolean[] failedEntries = new boolean[batch.size()];
+                    for (BatchResultErrorEntry failed : response.failed()) {
+                        int index = Integer.parseInt(failed.id());
+                        failedEntries[index] = true;
+                        batch.get(index).extender.recordExtension(latency, false);
+                        batch.get(index).handleFailure(toException(failed));
+                    }
+                    for (int i = 0; i < failedEntries.length; i++) {
+                        if (!failedEntries[i]) {
+                            batch.get(i).extender.recordExtension(latency, true);
+                        }
+                    }
+                }, callbackExecutor);
+    }
+
+    private static AwsServiceException toException(BatchResultErrorEntry failed) {
+        return SqsException.builder()
+                .message(failed.message())
+                .statusCode(Boolean.TRUE.equals(failed.senderFault()) ? 400 : 500)
+                .awsErrorDetails(AwsErrorDetails.builder()
+                        .errorCode(failed.code())
+                        .errorMessage(failed.message())
+                        .build())
+                .build();
+    }
+
+    private static class Registration {
+
+        private final VisibilityTimeoutExtender extender;
+
+        private final CompletableFuture<Void> handle = new CompletableFuture<>();
+
+        private volatile long nextExtension;
+
+        Registration(VisibilityTimeoutExtender extender) {
+            this.extender = extender;
+            scheduleNext();
+        }
+
+        void scheduleNext() {
+            nextExtension = System.nanoTime() + extender.getNextDelay().toNanos();
+        }
+
+        boolean isDue(long now) {
+            return !handle.isDone() && extender.getMessageWrapper().isActive()
+                    && now - nextExtension >= 0;
+        }
+
+        void handleFailure(Throwable t) {
+            extender.handleFailure(t);
+            RuntimeException failure = extender.getFailure();
+            if (failure != null) {
+                handle.completeExceptionally(failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.visibility;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import lombok.NonNull;
+
+/**
+ * A {@link ScheduledExecutorService} backed by a hashed timing wheel, intended
+ * for a large number of coarse-grained, mostly cancelled tasks such as
+ * visibility timeout extensions.
+ *
+ * <p>
+ * Scheduling and cancelling a task are O(1): a task is appended to the bucket
+ * of its deadline tick and a cancelled task is unlinked from its bucket
+ * immediately, so it does not keep its message reachable until its deadline.
+ * A single thread advances the wheel once per tick and runs the expired tasks,
+ * so tasks fire up to one tick late and must not block.
+ */
+public class HashedWheelTimer extends AbstractExecutorService implements ScheduledExecutorService {
+
+    private final long tickNanos;
+
+    private final Bucket[] wheel;
+
+    private final int mask;
+
+    private final long startTime;
+
+    private final Object lock = new Object();
+
+    private final Thread workerThread;
+
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    /** guarded by lock */
+    private long currentTick;
+
+    /** guarded by lock */
+    private int size;
+
+    private volatile boolean shutdown;
+
+    /**
+     * @param threadFactory
+     *            creates the single thread that advances the wheel and runs
+     *            the tasks
+     * @param tickDuration
+     *            the resolution of the timer
+     * @param ticksPerWheel
+     *            number of buckets, rounded up to the next power of two
+     */
+    public HashedWheelTimer(@NonNull ThreadFactory threadFactory, @NonNull Duration tickDuration,
+            int ticksPerWheel) {
+        if (tickDuration.isZero() || tickDuration.isNegative()) {
+            throw new IllegalArgumentException("the tick duration has to be > 0");
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("the number of ticks per wheel has to be in (0, 2^30]");
+        }
+        int wheelSize = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        wheelSize = Math.max(wheelSize, 1);
+        this.wheel = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = wheelSize - 1;
+        this.tickNanos = tickDuration.toNanos();
+        this.startTime = System.nanoTime();
+        this.workerThread = threadFactory.newThread(this::runWorker);
+        workerThread.start();
+    }
+
+    public HashedWheelTimer(@NonNull Duration tickDuration, int ticksPerWheel) {
+        this(Executors.defaultThreadFactory(), tickDuration, ticksPerWheel);
+    }
+
+    /**
+     * Visible for Testing
+     *
+     * @return number of tasks that are currently scheduled
+     */
+    int size() {
+        synchronized (lock) {
+            return size;
+        }
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(@NonNull Runnable command, long delay, @NonNull TimeUnit unit) {
+        return schedule(new Timeout<Void>(command, null, deadline(delay, unit), 0));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(@NonNull Callable<V> callable, long delay, @NonNull TimeUnit unit) {
+        return schedule(new Timeout<>(callable, deadline(delay, unit)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(@NonNull Runnable command, long initialDelay, long period,
+            @NonNull TimeUnit unit) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("the period has to be > 0");
+        }
+        return schedule(new Timeout<Void>(command, null, deadline(initialDelay, unit), unit.toNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(@NonNull Runnable command, long initialDelay, long delay,
+            @NonNull TimeUnit unit) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("the delay has to be > 0");
+        }
+        return schedule(new Timeout<Void>(command, null, deadline(initialDelay, unit), -unit.toNanos(delay)));
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+        schedule(command, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        synchronized (lock) {
+            for (Bucket bucket : wheel) {
+                Timeout<?> timeout = bucket.head;
+                while (timeout != null) {
+                    Timeout<?> next = timeout.next;
+                    if (timeout.isPeriodic()) {
+                        timeout.cancel(false);
+                    }
+                    timeout = next;
+                }
+            }
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> pending = new ArrayList<>();
+        synchronized (lock) {
+            for (Bucket bucket : wheel) {
+                while (bucket.head != null) {
+                    Timeout<?> timeout = bucket.head;
+                    unlink(timeout);
+                    pending.add(timeout);
+                }
+            }
+        }
+        workerThread.interrupt();
+        return pending;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return terminated.getCount() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    private long deadline(long delay, TimeUnit unit) {
+        return plus(System.nanoTime() - startTime, Math.max(unit.toNanos(delay), 0));
+    }
+
+    /**
+     * Saturates at {@link Long#MAX_VALUE} like
+     * {@link java.util.concurrent.ScheduledThreadPoolExecutor}, so a delay of
+     * {@code Long.MAX_VALUE} means never instead of overflowing into the past.
+     */
+    private static long plus(long nanos, long delta) {
+        long sum = nanos + delta;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    private <V> ScheduledFuture<V> schedule(Timeout<V> timeout) {
+        synchronized (lock) {
+            if (shutdown) {
+                throw new RejectedExecutionException("the timer has been shut down");
+            }
+            link(timeout);
+        }
+        return timeout;
+    }
+
+    /** requires lock */
+    private void link(Timeout<?> timeout) {
+        long deadline = timeout.deadline;
+        long deadlineTick = deadline / tickNanos + (deadline % tickNanos == 0 ? 0 : 1);
+        long tick = Math.max(deadlineTick, currentTick);
+        timeout.remainingRounds = (tick - currentTick) / wheel.length;
+        Bucket bucket = wheel[(int) (tick & mask)];
+        timeout.bucket = bucket;
+        timeout.prev = bucket.tail;
+        if (bucket.tail == null) {
+            bucket.head = timeout;
+        } else {
+            bucket.tail.next = timeout;
+        }
+        bucket.tail = timeout;
+        size++;
+    }
+
+    /** requires lock */
+    private void unlink(Timeout<?> timeout) {
+        Bucket bucket = timeout.bucket;
+        if (bucket == null) {
+            return;
+        }
+        if (timeout.prev == null) {
+            bucket.head = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next == null) {
+            bucket.tail = timeout.prev;
+        } else {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.bucket = null;
+        timeout.prev = null;
+        timeout.next = null;
+        size--;
+    }
+
+    private void runWorker() {
+        try {
+            List<Timeout<?>> expired = new ArrayList<>();
+            while (awaitNextTick()) {
+                synchronized (lock) {
+                    Bucket bucket = wheel[(int) (currentTick & mask)];
+                    Timeout<?> timeout = bucket.head;
+                    while (timeout != null) {
+                        Timeout<?> next = timeout.next;
+                        if (timeout.remainingRounds <= 0) {
+                            unlink(timeout);
+                            expired.add(timeout);
+                        } else {
+                            timeout.remainingRounds--;
+                        }
+                        timeout = next;
+                    }
+                    currentTick++;
+                }
+                for (Timeout<?> timeout : expired) {
+                    timeout.run();
+                }
+                expired.clear();
+            }
+        } finally {
+            terminated.countDown();
+        }
+    }
+
+    /**
+     * @return false if the worker should stop
+     */
+    private boolean awaitNextTick() {
+        synchronized (lock) {
+            while (true) {
+                if (shutdown && size == 0) {
+                    return false;
+                }
+                long sleepNanos = currentTick * tickNanos - (System.nanoTime() - startTime);
+                if (sleepNanos <= 0) {
+                    return true;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(lock, sleepNanos);
+                } catch (InterruptedException e) {
+                    if (shutdown) {
+                        return false;
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Bucket {
+
+        private Timeout<?> head;
+
+        private Timeout<?> tail;
+    }
+
+    private class Timeout<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+
+        /**
+         * nanos since start of the timer
+         */
+        private volatile long deadline;
+
+        /**
+         * 0 for one-shot tasks, &gt; 0 for fixed rate, &lt; 0 for fixed delay
+         */
+        private final long period;
+
+        private long remainingRounds;
+
+        private Bucket bucket;
+
+        private Timeout<?> prev;
+
+        private Timeout<?> next;
+
+        Timeout(Runnable runnable, V result, long deadline, long period) {
+            super(runnable, result);
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        Timeout(Callable<V> callable, long deadline) {
+            super(callable);
+            this.deadline = deadline;
+            this.period = 0;
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - (System.nanoTime() - startTime), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                synchronized (lock) {
+                    unlink(this);
+                }
+            }
+            return cancelled;
+        }
+
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (super.runAndReset()) {
+                deadline = period > 0 ? plus(deadline, period) : plus(System.nanoTime() - startTime, -period);
+                synchronized (lock) {
+                    if (!isCancelled() && !shutdown) {
+                        link(this);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright © 2017 Mercateo AG (http://www.mercateo.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.mercateo.sqs.utils.visibility;
+
+import java.time.Duration;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+
+/**
+ * Decides when the visibility timeout of a message is extended and by how
+ * much. The schedule is anchored on the time the message was received from
+ * SQS, so time spent in a listener or in the local buffer is taken into
+ * account.
+ *
+ * <p>
+ * The first extension happens {@code interval} after the receive and sets the
+ * queue's visibility timeout again. With a growth factor above 1 every further
+ * extension requests {@code growthFactor} times the previous timeout and is
+ * sent the same safety margin ({@code visibilityTimeout - interval}) before
+ * the previous one expires. Long jobs therefore need only a logarithmic number
+ * of extensions. No extension reaches beyond {@value #MAX_VISIBILITY_HOURS}
+ * hours after the receive, the limit of SQS.
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+public class VisibilityExtensionSchedule {
+
+    static final int MAX_VISIBILITY_HOURS = 12;
+
+    public static final Duration MAX_VISIBILITY_TIMEOUT = Duration.ofHours(MAX_VISIBILITY_HOURS);
+
+    private final Duration visibilityTimeout;
+
+    private final Duration interval;
+
+    private final double growthFactor;
+
+    /**
+     * @param visibilityTimeout
+     *            the visibility timeout of the queue, requested by the first
+     *            extension
+     * @param interval
+     *            the time between the receive and the first extension; has to
+     *            be shorter than the visibility timeout
+     * @param growthFactor
+     *            factor by which every extension grows; 1 extends at a fixed
+     *            rate
+     */
+    public VisibilityExtensionSchedule(@NonNull Duration visibilityTimeout, @NonNull Duration interval,
+            double growthFactor) {
+        if (interval.isZero() || interval.isNegative() || interval.compareTo(visibilityTimeout) >= 0) {
+            throw new IllegalArgumentException("the interval has to be > 0 and shorter than the visibility timeout");
+        }
+        if (!(growthFactor >= 1)) {
+            throw new IllegalArgumentException("the growth factor has to be >= 1");
+        }
+        this.visibilityTimeout = visibilityTimeout;
+        this.interval = interval;
+        this.growthFactor = growthFactor;
+    }
+
+    public boolean isFixedRate() {
+        return growthFactor == 1;
+    }
+
+    /**
+     * @param sinceReceive
+     *            the time that passed since the message was received
+     * @return the delay until the first extension; zero if it is overdue
+     */
+    Duration getFirstDelay(@NonNull Duration sinceReceive) {
+        Duration delay = interval.minus(sinceReceive);
+        return delay.isNegative() ? Duration.ZERO : delay;
+    }
+
+    /**
+     * @param extension
+     *            the number of extensions that were sent before
+     * @param sinceReceive
+     *            the time that passed since the message was received
+     * @return the visibility timeout to request; zero if the message cannot be
+     *         extended anymore
+     */
+    Duration getTimeout(int extension, @NonNull Duration sinceReceive) {
+        long remaining = MAX_VISIBILITY_TIMEOUT.minus(sinceReceive).getSeconds();
+        if (remaining <= 0) {
+            return Duration.ZERO;
+        }
+        double seconds = visibilityTimeout.getSeconds() * Math.pow(growthFactor, extension);
+        return Duration.ofSeconds(Math.min(remaining, (long) Math.min(seconds, MAX_VISIBILITY_TIMEOUT
+                .getSeconds())));
+    }
+
+    /**
+     * @param timeout
+     *            the visibility timeout requested by the previous extension
+     * @return the delay until the next extension
+     */
+    Duration getDelayAfter(@NonNull Duration timeout) {
+        Duration delay = timeout.minus(visibilityTimeout.minus(interval));
+        return delay.compareTo(interval) < 0 ? interval : delay;
+    }
+}
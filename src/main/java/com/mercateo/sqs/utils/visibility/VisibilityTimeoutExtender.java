@@ -17,69 +17,281 @@ package com.mercateo.sqs.utils.visibility;
 
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.services.sqs.*;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
 import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
 
-import com.github.rholder.retry.Retryer;
-import com.github.rholder.retry.RetryerBuilder;
 import com.mercateo.sqs.utils.message.handling.ErrorHandlingStrategy;
 import com.mercateo.sqs.utils.message.handling.MessageWrapper;
+import com.mercateo.sqs.utils.metrics.MessageMetrics;
 
 import java.net.UnknownHostException;
 import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Extends the visibility timeout of a single message without blocking the
+ * thread that runs it. {@link #run()} only fires the request; the response,
+ * retries and calls to the {@link ErrorHandlingStrategy} are processed on the
+ * callback executor. The timeout of every extension and the delay until the
+ * next one are taken from a {@link VisibilityExtensionSchedule}, anchored on
+ * the time the message was received.
+ */
 @Slf4j
 public class VisibilityTimeoutExtender implements Runnable {
 
     private final SqsAsyncClient sqsClient;
 
-    private final ChangeMessageVisibilityRequest request;
+    private final VisibilityExtensionSchedule schedule;
+
+    private final long receivedNanos;
+
+    private final String queueUrl;
 
     private final MessageWrapper<?> messageWrapper;
 
     private final ErrorHandlingStrategy<?> errorHandlingStrategy;
 
-    private final Retryer<Void> retryer;
+    private final AsyncRetryer retryer;
+
+    private final Executor callbackExecutor;
+
+    private final MessageMetrics metrics;
+
+    /** only changed by the thread that schedules the extensions */
+    private volatile int extensions;
 
-    VisibilityTimeoutExtender(@NonNull SqsAsyncClient sqsClient, @NonNull Duration newVisibilityTimeout,
-            @NonNull MessageWrapper<?> messageWrapper, @NonNull String queueUrl,
+    private volatile Duration lastTimeout;
+
+    private volatile RuntimeException failure;
+
+    VisibilityTimeoutExtender(@NonNull SqsAsyncClient sqsClient, @NonNull VisibilityExtensionSchedule schedule,
+            long receivedNanos, @NonNull MessageWrapper<?> messageWrapper, @NonNull String queueUrl,
             @NonNull ErrorHandlingStrategy<?> errorHandlingStrategy,
-            @NonNull RetryStrategy retryStrategy) {
+            @NonNull RetryStrategy retryStrategy, @NonNull Executor callbackExecutor,
+            @NonNull MessageMetrics metrics) {
         this.sqsClient = sqsClient;
+        this.schedule = schedule;
+        this.receivedNanos = receivedNanos;
+        this.queueUrl = queueUrl;
+        this.metrics = metrics;
         this.messageWrapper = messageWrapper;
         this.errorHandlingStrategy = errorHandlingStrategy;
-        this.retryer = RetryerBuilder
-                .<Void> newBuilder()
-                .retryIfException(t -> (t.getCause() instanceof UnknownHostException))
-                .withWaitStrategy(retryStrategy.getRetryWaitStrategy())
-                .withStopStrategy(retryStrategy.getRetryStopStrategy())
-                .build();
+        this.callbackExecutor = callbackExecutor;
+        this.retryer = new AsyncRetryer(retryStrategy,
+                t -> AsyncRetryer.findCause(t, UnknownHostException.class) != null, callbackExecutor);
+    }
 
-        request = ChangeMessageVisibilityRequest.builder()
-                .queueUrl(queueUrl)
+    String getQueueUrl() {
+        return queueUrl;
+    }
+
+    MessageWrapper<?> getMessageWrapper() {
+        return messageWrapper;
+    }
+
+    /**
+     * @return the reason why the extension was given up or {@code null} if it
+     *         is still active
+     */
+    RuntimeException getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return the delay until the next extension is due, based on the receive
+     *         time and the previous extension
+     */
+    Duration getNextDelay() {
+        Duration last = lastTimeout;
+        return last == null ? schedule.getFirstDelay(getSinceReceive()) : schedule.getDelayAfter(last);
+    }
+
+    private Duration getSinceReceive() {
+        return Duration.ofNanos(System.nanoTime() - receivedNanos);
+    }
+
+    /**
+     * Takes the visibility timeout for the next extension from the schedule.
+     * Gives the extension up if the maximum visibility of the message is
+     * reached.
+     *
+     * @return the new visibility timeout or {@code null} if the extension was
+     *         given up
+     */
+    private Integer nextTimeoutInSeconds() {
+        Duration timeout = schedule.getTimeout(extensions, getSinceReceive());
+        if (timeout.isZero()) {
+            failure = new IllegalStateException("the visibility timeout of message "
+                    + messageWrapper.getMessageId() + " cannot be extended beyond "
+                    + VisibilityExtensionSchedule.MAX_VISIBILITY_TIMEOUT);
+            log.error(failure.getMessage());
+            messageWrapper.loseLease(failure);
+            return null;
+        }
+        extensions++;
+        lastTimeout = timeout;
+        return (int) timeout.getSeconds();
+    }
+
+    /**
+     * @return the next extension as batch entry or {@code null} if the
+     *         extension was given up, see {@link #getFailure()}
+     */
+    ChangeMessageVisibilityBatchRequestEntry toBatchRequestEntry(@NonNull String entryId) {
+        Integer timeout = nextTimeoutInSeconds();
+        if (timeout == null) {
+            return null;
+        }
+        return ChangeMessageVisibilityBatchRequestEntry.builder()
+                .id(entryId)
                 .receiptHandle(messageWrapper.getReceiptHandle())
-                .visibilityTimeout(timeoutInSeconds(newVisibilityTimeout))
+                .visibilityTimeout(timeout)
                 .build();
     }
 
-    private Integer timeoutInSeconds(Duration timeout) {
-        return (int) timeout.getSeconds();
+    /**
+     * Schedules this extender according to its schedule, at a fixed rate or
+     * with growing delays.
+     *
+     * @param scheduler
+     *            the executor that runs the extensions
+     * @return a handle that stops the extensions when cancelled
+     */
+    public Future<?> scheduleOn(@NonNull ScheduledExecutorService scheduler) {
+        long firstDelay = getNextDelay().toMillis();
+        if (schedule.isFixedRate()) {
+            return scheduler.scheduleAtFixedRate(this, firstDelay, schedule.getInterval().toMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+        return new Rescheduling(scheduler).start(firstDelay);
+    }
+
+    boolean isMeasured() {
+        return metrics != MessageMetrics.NOOP;
+    }
+
+    /**
+     * Counts a successful extension for the message and reports the latency of
+     * an answered extension request.
+     *
+     * @param latencyNanos
+     *            time from sending the request until its response, including
+     *            retries
+     * @param successful
+     *            false if SQS rejected the extension
+     */
+    void recordExtension(long latencyNanos, boolean successful) {
+        if (successful) {
+            messageWrapper.incrementVisibilityExtensions();
+        }
+        metrics.onVisibilityExtended(latencyNanos, successful);
+    }
+
+    /**
+     * Passes a failed extension to the {@link ErrorHandlingStrategy}. The
+     * extension is given up if the strategy throws or if the failure was not
+     * caused by SQS itself; the message then loses its lease, which cancels
+     * its worker.
+     *
+     * @param t
+     *            the reason of the failed extension
+     */
+    void handleFailure(@NonNull Throwable t) {
+        AwsServiceException serviceException = AsyncRetryer.findCause(t, AwsServiceException.class);
+        if (serviceException == null) {
+            log.error("error while extending message visibility for {}", messageWrapper.getMessageId(), t);
+            failure = new RuntimeException(t);
+            messageWrapper.loseLease(failure);
+            return;
+        }
+        try {
+            errorHandlingStrategy.handleExtendVisibilityTimeoutException(serviceException, messageWrapper);
+        } catch (RuntimeException e) {
+            failure = e;
+            messageWrapper.loseLease(e);
+        }
     }
 
+    /**
+     * Fires the extension request and returns immediately. If a previous
+     * extension had to be given up, the failure is thrown instead, which ends a
+     * periodic schedule of this extender.
+     */
     @Override
     public void run() {
-        try {
-            retryer.call(() -> {
-                messageWrapper.changeMessageVisibility(sqsClient, request);
-                return null;
+        RuntimeException failure = this.failure;
+        if (failure != null) {
+            throw failure;
+        }
+        Integer timeout = nextTimeoutInSeconds();
+        if (timeout == null) {
+            throw this.failure;
+        }
+        ChangeMessageVisibilityRequest request = ChangeMessageVisibilityRequest.builder()
+                .queueUrl(queueUrl)
+                .receiptHandle(messageWrapper.getReceiptHandle())
+                .visibilityTimeout(timeout)
+                .build();
+        long start = isMeasured() ? System.nanoTime() : 0L;
+        retryer.call(() -> messageWrapper.changeMessageVisibilityAsync(sqsClient, request))
+                .whenCompleteAsync((response, t) -> {
+                    if (response != null || t != null) {
+                        recordExtension(isMeasured() ? System.nanoTime() - start : 0L, t == null);
+                    }
+                    if (t != null) {
+                        handleFailure(AsyncRetryer.unwrap(t));
+                    }
+                }, callbackExecutor);
+    }
+
+    /**
+     * Runs the extender with the delay of its schedule after every extension,
+     * until it is cancelled or fails.
+     */
+    private class Rescheduling implements Runnable {
+
+        private final ScheduledExecutorService scheduler;
+
+        private final CompletableFuture<Void> handle = new CompletableFuture<>();
+
+        private volatile Future<?> next;
+
+        Rescheduling(ScheduledExecutorService scheduler) {
+            this.scheduler = scheduler;
+            handle.whenComplete((ignored, t) -> {
+                Future<?> pending = next;
+                if (pending != null) {
+                    pending.cancel(false);
+                }
             });
-        } catch (AwsServiceException e) {
-            errorHandlingStrategy.handleExtendVisibilityTimeoutException(e, messageWrapper);
-        } catch (Exception e) {
-            log.error("error while extending message visibility for {}", messageWrapper.getMessageId(), e);
-            throw new RuntimeException(e);
+        }
+
+        Future<?> start(long delay) {
+            next = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+            return handle;
+        }
+
+        @Override
+        public void run() {
+            if (handle.isDone()) {
+                return;
+            }
+            try {
+                VisibilityTimeoutExtender.this.run();
+                next = scheduler.schedule(this, getNextDelay().toMillis(), TimeUnit.MILLISECONDS);
+                if (handle.isDone()) {
+                    next.cancel(false);
+                }
+            } catch (RuntimeException e) {
+                handle.completeExceptionally(e);
+            }
         }
     }
-}
\ No newline at end of file
+}
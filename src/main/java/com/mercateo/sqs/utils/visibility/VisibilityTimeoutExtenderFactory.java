@@ -16,39 +16,188 @@
 package com.mercateo.sqs.utils.visibility;
 
 import software.amazon.awssdk.services.sqs.*;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResponse;
 
 import com.github.rholder.retry.StopStrategies;
 import com.github.rholder.retry.WaitStrategies;
 import com.mercateo.sqs.utils.message.handling.ErrorHandlingStrategy;
 import com.mercateo.sqs.utils.message.handling.MessageWrapper;
+import com.mercateo.sqs.utils.metrics.MessageMetrics;
 import com.mercateo.sqs.utils.queue.Queue;
 
+import io.awspring.cloud.sqs.listener.SqsHeaders;
+
 import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import jakarta.inject.Inject;
 import jakarta.inject.Named;
 
 import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
 
+@Slf4j
 @Named
 public class VisibilityTimeoutExtenderFactory {
 
+    private static final Duration BATCH_TICK_INTERVAL = Duration.ofSeconds(1);
+
     private final SqsAsyncClient sqsClient;
 
+    private final Executor callbackExecutor;
+
     @Inject
     public VisibilityTimeoutExtenderFactory(@NonNull SqsAsyncClient amazonSQS) {
+        this(amazonSQS, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param amazonSQS
+     *            the client to send the extensions with
+     * @param callbackExecutor
+     *            processes the responses, retries and error handling of the
+     *            extensions so that the scheduling thread never waits for SQS
+     */
+    public VisibilityTimeoutExtenderFactory(@NonNull SqsAsyncClient amazonSQS,
+            @NonNull Executor callbackExecutor) {
         this.sqsClient = amazonSQS;
+        this.callbackExecutor = callbackExecutor;
     }
 
     public VisibilityTimeoutExtender get(@NonNull MessageWrapper messageWrapper, @NonNull Queue queue,
             @NonNull ErrorHandlingStrategy<?> errorHandlingStrategy) {
-
         Duration defaultVisibilityTimeout = queue.getDefaultVisibilityTimeout();
+        return get(messageWrapper, queue, errorHandlingStrategy, new VisibilityExtensionSchedule(
+                defaultVisibilityTimeout, defaultVisibilityTimeout.dividedBy(2), 1), MessageMetrics.NOOP);
+    }
+
+    /**
+     * @param schedule
+     *            decides when and by how much the visibility timeout is
+     *            extended
+     * @param metrics
+     *            receives the latency and outcome of every extension
+     * @return a new VisibilityTimeoutExtender instance, anchored on the
+     *         {@value SqsHeaders#SQS_RECEIVED_AT_HEADER} header of the message
+     *         or on the current time if it has none
+     */
+    public VisibilityTimeoutExtender get(@NonNull MessageWrapper messageWrapper, @NonNull Queue queue,
+            @NonNull ErrorHandlingStrategy<?> errorHandlingStrategy, @NonNull VisibilityExtensionSchedule schedule,
+            @NonNull MessageMetrics metrics) {
+        return new VisibilityTimeoutExtender(sqsClient, schedule, receivedNanos(messageWrapper), messageWrapper,
+                queue.getUrl(), errorHandlingStrategy, defaultRetryStrategy(), callbackExecutor, metrics);
+    }
+
+    private static long receivedNanos(MessageWrapper<?> messageWrapper) {
+        long now = System.nanoTime();
+        Object receivedAt = messageWrapper.getMessage().getHeaders().get(SqsHeaders.SQS_RECEIVED_AT_HEADER);
+        if (!(receivedAt instanceof Instant)) {
+            return now;
+        }
+        Duration sinceReceive = Duration.between((Instant) receivedAt, Instant.now());
+        return sinceReceive.isNegative() ? now : now - sinceReceive.toNanos();
+    }
+
+    /**
+     * Creates an extender that coalesces the visibility timeout extensions of
+     * all registered messages into batch requests.
+     *
+     * @param scheduler
+     *            the executor on which the due extensions are collected and
+     *            sent
+     * @return a new BatchVisibilityTimeoutExtender instance
+     */
+    public BatchVisibilityTimeoutExtender getBatchExtender(@NonNull ScheduledExecutorService scheduler) {
+        return new BatchVisibilityTimeoutExtender(sqsClient, scheduler, BATCH_TICK_INTERVAL,
+                defaultRetryStrategy(), callbackExecutor);
+    }
+
+    /**
+     * Makes the messages visible again right away, so that another consumer
+     * can receive them without waiting for their visibility timeout. The
+     * messages are sent as {@code ChangeMessageVisibilityBatch} requests of up
+     * to {@value BatchVisibilityTimeoutExtender#MAX_BATCH_SIZE} entries with a
+     * visibility timeout of 0; acknowledged messages are skipped. Failures
+     * are only logged, the affected messages become visible once their
+     * visibility timeout expires.
+     *
+     * @param queueUrl
+     *            the queue the messages have been received from
+     * @param messages
+     *            the messages to return to the queue
+     * @return completes when all requests have been answered, never
+     *         exceptionally
+     */
+    public CompletableFuture<Void> release(@NonNull String queueUrl,
+            @NonNull List<? extends MessageWrapper<?>> messages) {
+        return release(queueUrl, messages, Duration.ZERO);
+    }
+
+    /**
+     * Like {@link #release(String, List)}, but the messages become visible
+     * again only after the given backoff.
+     *
+     * @param queueUrl
+     *            the queue the messages have been received from
+     * @param messages
+     *            the messages to return to the queue
+     * @param visibilityTimeout
+     *            the time until the messages become visible again, at most 12
+     *            hours
+     * @return completes when all requests have been answered, never
+     *         exceptionally
+     */
+    public CompletableFuture<Void> release(@NonNull String queueUrl,
+            @NonNull List<? extends MessageWrapper<?>> messages, @NonNull Duration visibilityTimeout) {
+        int visibilityTimeoutSeconds = (int) Math.min(visibilityTimeout.getSeconds(), Duration.ofHours(12)
+                .getSeconds());
+        List<ChangeMessageVisibilityBatchRequestEntry> entries = new ArrayList<>(messages.size());
+        for (MessageWrapper<?> message : messages) {
+            if (!message.isAcknowledged()) {
+                entries.add(ChangeMessageVisibilityBatchRequestEntry.builder()
+                        .id(Integer.toString(entries.size()))
+                        .receiptHandle(message.getReceiptHandle())
+                        .visibilityTimeout(visibilityTimeoutSeconds)
+                        .build());
+            }
+        }
+        List<CompletableFuture<?>> requests = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i += BatchVisibilityTimeoutExtender.MAX_BATCH_SIZE) {
+            ChangeMessageVisibilityBatchRequest request = ChangeMessageVisibilityBatchRequest.builder()
+                    .queueUrl(queueUrl)
+                    .entries(entries.subList(i, Math.min(entries.size(), i
+                            + BatchVisibilityTimeoutExtender.MAX_BATCH_SIZE)))
+                    .build();
+            CompletableFuture<ChangeMessageVisibilityBatchResponse> response;
+            try {
+                response = sqsClient.changeMessageVisibilityBatch(request);
+            } catch (RuntimeException e) {
+                response = CompletableFuture.failedFuture(e);
+            }
+            requests.add(response.handle((result, t) -> {
+                if (t != null) {
+                    log.warn("could not return " + request.entries().size() + " messages to " + queueUrl, t);
+                } else if (result.hasFailed()) {
+                    result.failed().forEach(failed -> log.warn("could not return a message to " + queueUrl
+                            + ": " + failed.code() + " " + failed.message()));
+                }
+                return null;
+            }));
+        }
+        return CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0]));
+    }
 
-        return new VisibilityTimeoutExtender(sqsClient, defaultVisibilityTimeout, messageWrapper, queue
-                .getUrl(), errorHandlingStrategy,
-                new RetryStrategy(WaitStrategies.fixedWait(1000, TimeUnit.MILLISECONDS),
-                        StopStrategies.stopAfterAttempt(5)));
+    private RetryStrategy defaultRetryStrategy() {
+        return new RetryStrategy(WaitStrategies.fixedWait(1000, TimeUnit.MILLISECONDS),
+                StopStrategies.stopAfterAttempt(5));
     }
 }
\ No newline at end of file
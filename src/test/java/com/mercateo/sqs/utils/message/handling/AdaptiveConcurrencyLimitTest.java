@@ -0,0 +1,102 @@
+package com.mercateo.sqs.utils.message.handling;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class AdaptiveConcurrencyLimitTest {
+
+    private final List<Integer> limits = new ArrayList<>();
+
+    private AdaptiveConcurrencyLimit uut;
+
+    @BeforeEach
+    void setUp() {
+        uut = new AdaptiveConcurrencyLimit(2, 20, limits::add);
+    }
+
+    @Test
+    void testConstructor_rejectsInvalidBounds() {
+        // when
+        Throwable result = catchThrowable(() -> new AdaptiveConcurrencyLimit(5, 4, limits::add));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testOnWorked_startsAtUpperBoundAndKeepsItForStableLatency() {
+        // when
+        work(100, 1000, true);
+
+        // then
+        assertThat(uut.getLimit()).isEqualTo(20);
+        assertThat(limits).isEmpty();
+    }
+
+    @Test
+    void testOnWorked_decreasesMultiplicativelyOnErrors() {
+        // when
+        work(20, 1000, false);
+
+        // then
+        assertThat(limits).containsExactly(18);
+    }
+
+    @Test
+    void testOnWorked_toleratesFewErrors() {
+        // given
+        work(19, 1000, true);
+
+        // when
+        work(1, 1000, false);
+
+        // then
+        assertThat(uut.getLimit()).isEqualTo(20);
+    }
+
+    @Test
+    void testOnWorked_decreasesWithLatencyGradient() {
+        // given
+        work(20, 1000, true);
+
+        // when
+        work(20, 3000, true);
+
+        // then
+        assertThat(limits).containsExactly(10);
+    }
+
+    @Test
+    void testOnWorked_neverLeavesTheBounds() {
+        // when
+        work(1000, 1000, false);
+
+        // then
+        assertThat(uut.getLimit()).isEqualTo(2);
+    }
+
+    @Test
+    void testOnWorked_increasesAdditivelyAfterRecovery() {
+        // given
+        work(20, 1000, true);
+        work(20, 3000, true);
+
+        // when
+        work(10, 1000, true);
+
+        // then
+        assertThat(limits).containsExactly(10, 11);
+    }
+
+    private void work(int samples, long workNanos, boolean successful) {
+        for (int i = 0; i < samples; i++) {
+            uut.onWorked(workNanos, successful);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.mercateo.sqs.utils.message.handling;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.testing.NullPointerTester;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.GenericMessage;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+
+class BatchAcknowledgerTest {
+
+    @Mock
+    private SqsAsyncClient sqsClient;
+
+    @Mock
+    private ScheduledExecutorService scheduler;
+
+    @Mock
+    private ErrorHandlingStrategy<Object> errorHandlingStrategy;
+
+    private BatchAcknowledger uut;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        uut = new BatchAcknowledger(sqsClient, scheduler, Duration.ofMillis(100), Runnable::run);
+        when(sqsClient.deleteMessageBatch(any(DeleteMessageBatchRequest.class))).thenReturn(CompletableFuture
+                .completedFuture(DeleteMessageBatchResponse.builder().build()));
+    }
+
+    @Test
+    void testNullContracts() {
+        // given
+        NullPointerTester nullPointerTester = new NullPointerTester();
+        nullPointerTester.setDefault(MessageWrapper.class, createMessage(1));
+
+        // when
+        nullPointerTester.testInstanceMethods(uut, NullPointerTester.Visibility.PACKAGE);
+    }
+
+    @Test
+    void testAcknowledge_marksMessageAsAcknowledgedAndSchedulesLingerFlush() {
+        // given
+        MessageWrapper<Object> message = createMessage(1);
+
+        // when
+        uut.acknowledge("queue", message, errorHandlingStrategy);
+
+        // then
+        assertThat(message.isAcknowledged()).isTrue();
+        verify(scheduler).schedule(any(Runnable.class), eq(100L), eq(TimeUnit.MILLISECONDS));
+        verify(sqsClient, never()).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+    }
+
+    @Test
+    void testAcknowledge_sendsFullBatchImmediately() {
+        // when
+        for (int i = 0; i < 10; i++) {
+            uut.acknowledge("queue", createMessage(i), errorHandlingStrategy);
+        }
+
+        // then
+        ArgumentCaptor<DeleteMessageBatchRequest> captor = ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+        verify(sqsClient).deleteMessageBatch(captor.capture());
+        assertThat(captor.getValue().queueUrl()).isEqualTo("queue");
+        assertThat(captor.getValue().entries()).hasSize(10);
+        assertThat(captor.getValue().entries().get(3).receiptHandle()).isEqualTo("rhd3");
+    }
+
+    @Test
+    void testAcknowledge_lingerFlushSendsPartialBatch() {
+        // given
+        uut.acknowledge("queue", createMessage(1), errorHandlingStrategy);
+        uut.acknowledge("queue", createMessage(2), errorHandlingStrategy);
+        ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(flush.capture(), anyLong(), any());
+
+        // when
+        flush.getValue().run();
+
+        // then
+        ArgumentCaptor<DeleteMessageBatchRequest> captor = ArgumentCaptor.forClass(DeleteMessageBatchRequest.class);
+        verify(sqsClient).deleteMessageBatch(captor.capture());
+        assertThat(captor.getValue().entries()).hasSize(2);
+    }
+
+    @Test
+    void testFlush_sendsOneBatchPerQueue() {
+        // given
+        uut.acknowledge("queue1", createMessage(1), errorHandlingStrategy);
+        uut.acknowledge("queue2", createMessage(2), errorHandlingStrategy);
+
+        // when
+        uut.flush();
+
+        // then
+        verify(sqsClient, times(2)).deleteMessageBatch(any(DeleteMessageBatchRequest.class));
+    }
+
+    @Test
+    void testAcknowledge_passesFailedEntryToErrorHandlingStrategy() {
+        // given
+        MessageWrapper<Object> failing = createMessage(1);
+        when(sqsClient.deleteMessageBatch(any(DeleteMessageBatchRequest.class))).thenReturn(CompletableFuture
+                .completedFuture(DeleteMessageBatchResponse.builder()
+                        .failed(BatchResultErrorEntry.builder()
+                                .id("1")
+                                .code("ReceiptHandleIsInvalid")
+                                .message("invalid")
+                                .senderFault(true)
+                                .build())
+                        .build()));
+        CompletableFuture<Void> succeeded = uut.acknowledge("queue", createMessage(0), errorHandlingStrategy);
+        CompletableFuture<Void> failed = uut.acknowledge("queue", failing, errorHandlingStrategy);
+
+        // when
+        uut.flush();
+
+        // then
+        assertThat(succeeded).isCompleted();
+        assertThat(failed).isCompletedExceptionally();
+        ArgumentCaptor<AwsServiceException> captor = ArgumentCaptor.forClass(AwsServiceException.class);
+        verify(errorHandlingStrategy).handleAcknowledgeMessageException(captor.capture(), eq(failing));
+        assertThat(captor.getValue().awsErrorDetails().errorCode()).isEqualTo("ReceiptHandleIsInvalid");
+    }
+
+    private MessageWrapper<Object> createMessage(int number) {
+        HashMap<String, Object> headerMap = new HashMap<>();
+        headerMap.put("ReceiptHandle", "rhd" + number);
+        return new MessageWrapper<>(new GenericMessage<>(new Object(), new MessageHeaders(headerMap)));
+    }
+}
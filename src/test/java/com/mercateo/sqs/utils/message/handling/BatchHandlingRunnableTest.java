@@ -0,0 +1,155 @@
+package com.mercateo.sqs.utils.message.handling;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.mercateo.sqs.utils.metrics.MessageMetrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.GenericMessage;
+
+class BatchHandlingRunnableTest {
+
+    @Mock
+    private MessageAcknowledger messageAcknowledger;
+
+    @Mock
+    private ErrorHandlingStrategy<Integer> errorHandlingStrategy;
+
+    @Mock
+    private FinishedMessageCallback<Integer, String> finishedMessageCallback;
+
+    @Mock
+    private Future<?> visibilityTimeoutExtender;
+
+    private final SetWithUpperBound<String> messages = new SetWithUpperBound<>(10);
+
+    private final List<BatchEntry<Integer, String>> batch = new ArrayList<>();
+
+    private final Map<Integer, MessageWrapper<Integer>> wrappers = new HashMap<>();
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        when(messageAcknowledger.acknowledge(any(), any())).thenReturn(CompletableFuture.completedFuture(null));
+        doThrow(new IllegalStateException("do not acknowledge")).when(errorHandlingStrategy)
+                .handleWorkerException(any(), any());
+        for (int i = 0; i < 3; i++) {
+            batch.add(createEntry(i));
+        }
+    }
+
+    @Test
+    void testRun_acknowledgesOnlySucceededEntries() {
+        // given
+        Exception failure = new Exception("test");
+        BatchHandlingRunnable<Integer, String> uut = new BatchHandlingRunnable<>(entries -> {
+            entries.get(0).succeed("0");
+            entries.get(1).fail(failure);
+        }, batch, MessageMetrics.NOOP, message -> {
+        });
+
+        // when
+        uut.run();
+
+        // then
+        verify(messageAcknowledger).acknowledge(eq(wrapper(0)), eq(errorHandlingStrategy));
+        verify(messageAcknowledger, never()).acknowledge(eq(wrapper(1)), any());
+        verify(messageAcknowledger).acknowledge(eq(wrapper(2)), eq(errorHandlingStrategy));
+        verify(errorHandlingStrategy).handleWorkerException(eq(failure), eq(wrapper(1)));
+        verify(finishedMessageCallback).call(0, "0");
+        verify(finishedMessageCallback).call(2, null);
+        assertThat(messages.getBackingSet()).isEmpty();
+    }
+
+    @Test
+    void testRun_failsUnmarkedEntriesIfTheWorkerThrows() {
+        // given
+        Exception failure = new Exception("test");
+        BatchHandlingRunnable<Integer, String> uut = new BatchHandlingRunnable<>(entries -> {
+            entries.get(0).succeed("0");
+            throw failure;
+        }, batch, MessageMetrics.NOOP, message -> {
+        });
+
+        // when
+        uut.run();
+
+        // then
+        verify(messageAcknowledger).acknowledge(eq(wrapper(0)), eq(errorHandlingStrategy));
+        verify(errorHandlingStrategy).handleWorkerException(eq(failure), eq(wrapper(1)));
+        verify(errorHandlingStrategy).handleWorkerException(eq(failure), eq(wrapper(2)));
+        assertThat(messages.getBackingSet()).isEmpty();
+    }
+
+    @Test
+    void testRun_retriesEntriesThatWereNotAcknowledged() {
+        // given
+        List<MessageWrapper<Integer>> retried = new ArrayList<>();
+        BatchHandlingRunnable<Integer, String> uut = new BatchHandlingRunnable<>(entries -> {
+            entries.get(0).succeed("0");
+            entries.get(1).fail(new Exception("test"));
+            entries.get(2).succeed("2");
+        }, batch, MessageMetrics.NOOP, retried::add);
+
+        // when
+        uut.run();
+
+        // then
+        assertThat(retried).containsExactly(wrapper(1));
+    }
+
+    @Test
+    void testRun_reportsOneWorkerCallAndEveryStart() {
+        // given
+        MessageMetrics metrics = mock(MessageMetrics.class);
+        BatchHandlingRunnable<Integer, String> uut = new BatchHandlingRunnable<>(entries -> {
+        }, batch, metrics, message -> {
+        });
+
+        // when
+        uut.run();
+
+        // then
+        verify(metrics).onWorked(any(Long.class), eq(true));
+        verify(metrics, times(3)).onStarted(any(Long.class));
+    }
+
+    private BatchEntry<Integer, String> createEntry(int number) {
+        MessageWrapper<Integer> message = wrapper(number);
+        messages.add(message.getMessageId());
+        BatchEntry<Integer, String> entry = new BatchEntry<>(message, visibilityTimeoutExtender, 0L);
+        entry.setCompletion(new MessageHandlingRunnable<>((payload, headers) -> entry.getResult(), message,
+                finishedMessageCallback, messages, visibilityTimeoutExtender, errorHandlingStrategy,
+                CompletionOptions.<Integer, String> builder()
+                        .messageAcknowledger(messageAcknowledger)
+                        .build()));
+        return entry;
+    }
+
+    private MessageWrapper<Integer> wrapper(int number) {
+        return wrappers.computeIfAbsent(number, n -> {
+            Map<String, Object> headers = new HashMap<>();
+            headers.put("id", "bf308aa2-bf48-49b8-a839-61611c71043" + n);
+            return new MessageWrapper<>(new GenericMessage<>(n, new MessageHeaders(headers)));
+        });
+    }
+}
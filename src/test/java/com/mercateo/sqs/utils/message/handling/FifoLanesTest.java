@@ -0,0 +1,168 @@
+package com.mercateo.sqs.utils.message.handling;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+import com.google.common.testing.NullPointerTester;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class FifoLanesTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void testNullContracts() throws Exception {
+        // given
+        FifoLanes uut = new FifoLanes(2, 2, executor);
+        NullPointerTester nullPointerTester = new NullPointerTester();
+
+        // when
+        nullPointerTester.testInstanceMethods(uut, NullPointerTester.Visibility.PACKAGE);
+    }
+
+    @Test
+    void testExecute_runsTasksOfAGroupInOrderAndOneAtATime() throws Exception {
+        // given
+        FifoLanes uut = new FifoLanes(4, 100, executor);
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+
+        // when
+        for (int i = 0; i < 50; i++) {
+            int number = i;
+            uut.execute("group", () -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                order.add(number);
+                running.decrementAndGet();
+            });
+        }
+
+        // then
+        await().until(() -> order.size() == 50);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            expected.add(i);
+        }
+        assertThat(order).isEqualTo(expected);
+        assertThat(maxRunning.get()).isEqualTo(1);
+    }
+
+    @Test
+    void testExecute_runsDifferentGroupsInParallel() throws Exception {
+        // given
+        FifoLanes uut = new FifoLanes(16, 10, executor);
+        CountDownLatch groupBStarted = new CountDownLatch(1);
+        CountDownLatch groupAFinished = new CountDownLatch(1);
+        uut.execute("a", () -> {
+            try {
+                if (groupBStarted.await(10, TimeUnit.SECONDS)) {
+                    groupAFinished.countDown();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        // when
+        uut.execute("b", groupBStarted::countDown);
+
+        // then
+        assertThat(groupAFinished.await(10, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    void testExecute_blocksWhileTheLaneIsFull() throws Exception {
+        // given
+        List<Runnable> dispatched = new CopyOnWriteArrayList<>();
+        FifoLanes uut = new FifoLanes(1, 1, dispatched::add);
+        uut.execute("group", () -> {
+        });
+
+        // when
+        Thread submitter = new Thread(() -> {
+            try {
+                uut.execute("group", () -> {
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        submitter.start();
+
+        // then
+        await().until(() -> submitter.getState() == Thread.State.WAITING);
+
+        // when
+        dispatched.get(0).run();
+
+        // then
+        await().until(() -> !submitter.isAlive());
+        assertThat(uut.getBacklog()).isEqualTo(1);
+    }
+
+    @Test
+    void testExecute_continuesLaneAfterFailingTask() throws Exception {
+        // given
+        FifoLanes uut = new FifoLanes(1, 10, executor);
+        CountDownLatch secondTaskRun = new CountDownLatch(1);
+
+        // when
+        uut.execute("group", () -> {
+            throw new IllegalStateException("test");
+        });
+        uut.execute("group", secondTaskRun::countDown);
+
+        // then
+        assertThat(secondTaskRun.await(10, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    void testExecute_skipsTheWaitingTasksOfAGroupAfterAnUnacknowledgedTask() throws Exception {
+        // given
+        List<Runnable> dispatched = new CopyOnWriteArrayList<>();
+        FifoLanes uut = new FifoLanes(1, 10, dispatched::add);
+        List<String> events = new CopyOnWriteArrayList<>();
+        uut.execute("group", () -> {
+            events.add("run 1");
+            return false;
+        }, () -> events.add("skip 1"));
+        uut.execute("group", () -> {
+            events.add("run 2");
+            return true;
+        }, () -> events.add("skip 2"));
+        uut.execute("other", () -> {
+            events.add("run 3");
+            return true;
+        }, () -> events.add("skip 3"));
+
+        // when
+        for (int i = 0; i < 3; i++) {
+            dispatched.get(i).run();
+        }
+        uut.execute("group", () -> {
+            events.add("run 4");
+            return true;
+        }, () -> events.add("skip 4"));
+        dispatched.get(3).run();
+
+        // then
+        assertThat(events).containsExactly("run 1", "skip 2", "run 3", "run 4");
+    }
+}
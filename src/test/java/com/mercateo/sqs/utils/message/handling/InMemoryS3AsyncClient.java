@@ -0,0 +1,70 @@
+package com.mercateo.sqs.utils.message.handling;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+/**
+ * A local stand-in for an S3 compatible store that keeps the objects in
+ * memory and answers through the regular response transformers.
+ */
+class InMemoryS3AsyncClient implements S3AsyncClient {
+
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+
+    private final AtomicInteger downloads = new AtomicInteger();
+
+    void putObject(String bucket, String key, String content) {
+        objects.put(bucket + "/" + key, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    boolean containsObject(String bucket, String key) {
+        return objects.containsKey(bucket + "/" + key);
+    }
+
+    int getDownloads() {
+        return downloads.get();
+    }
+
+    @Override
+    public <T> CompletableFuture<T> getObject(GetObjectRequest request,
+            AsyncResponseTransformer<GetObjectResponse, T> transformer) {
+        downloads.incrementAndGet();
+        byte[] content = objects.get(request.bucket() + "/" + request.key());
+        if (content == null) {
+            return CompletableFuture.failedFuture(NoSuchKeyException.builder()
+                    .message("no object " + request.key())
+                    .build());
+        }
+        CompletableFuture<T> result = transformer.prepare();
+        transformer.onResponse(GetObjectResponse.builder().contentLength((long) content.length).build());
+        transformer.onStream(AsyncRequestBody.fromBytes(content));
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<DeleteObjectResponse> deleteObject(DeleteObjectRequest request) {
+        objects.remove(request.bucket() + "/" + request.key());
+        return CompletableFuture.completedFuture(DeleteObjectResponse.builder().build());
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+}
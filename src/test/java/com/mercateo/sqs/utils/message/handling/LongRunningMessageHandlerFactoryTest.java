@@ -1,12 +1,21 @@
 package com.mercateo.sqs.utils.message.handling;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import com.google.common.testing.NullPointerTester;
 import com.mercateo.sqs.utils.queue.QueueFactory;
 import com.mercateo.sqs.utils.queue.QueueName;
+import com.mercateo.sqs.utils.visibility.BatchVisibilityTimeoutExtender;
 import com.mercateo.sqs.utils.visibility.VisibilityTimeoutExtenderFactory;
 
+import java.time.Duration;
+
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mock;
@@ -41,6 +50,7 @@ public class LongRunningMessageHandlerFactoryTest {
                 timeoutExtenderFactory);
         nullPointerTester.setDefault(QueueFactory.class, queueFactory);
         nullPointerTester.setDefault(Integer.class, 10);
+        nullPointerTester.setDefault(LongRunningMessageHandler.class, mock(LongRunningMessageHandler.class));
 
         // when
         nullPointerTester.testInstanceMethods(uut, NullPointerTester.Visibility.PACKAGE);
@@ -58,4 +68,104 @@ public class LongRunningMessageHandlerFactoryTest {
         // then
         assertThat(uut.getMaxConcurrentMessages()).isEqualTo(expectedBatchSize);
     }
-}
\ No newline at end of file
+
+    @Test
+    void testSetBatchVisibilityTimeoutExtension_createsOneBatchExtender() {
+        // given
+        when(timeoutExtenderFactory.getBatchExtender(any())).thenReturn(mock(BatchVisibilityTimeoutExtender.class));
+
+        // when
+        uut.setBatchVisibilityTimeoutExtension(true);
+        uut.setBatchVisibilityTimeoutExtension(false);
+        uut.setBatchVisibilityTimeoutExtension(true);
+
+        // then
+        verify(timeoutExtenderFactory, times(1)).getBatchExtender(any());
+    }
+
+    @Test
+    void testSetBatchAcknowledgement_requiresSqsClient() {
+        // when
+        Throwable result = catchThrowable(() -> uut.setBatchAcknowledgement(true));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void testSetVirtualThreads_requiresJava21() {
+        // when
+        Throwable result = catchThrowable(() -> uut.setVirtualThreads(true));
+
+        // then
+        if (Runtime.version().feature() >= 21) {
+            assertThat(result).isNull();
+        } else {
+            assertThat(result).isInstanceOf(IllegalStateException.class);
+        }
+    }
+
+    @Test
+    void testSetVisibilityTimeoutGrowthFactor_rejectsShrinkingTimeouts() {
+        // when
+        Throwable result = catchThrowable(() -> uut.setVisibilityTimeoutGrowthFactor(0.5));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testSetAdaptiveConcurrency_rejectsNegativeBound() {
+        // when
+        Throwable result = catchThrowable(() -> uut.setAdaptiveConcurrency(-1));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testSetFifoLaneBacklog_rejectsEmptyBacklog() {
+        // when
+        Throwable result = catchThrowable(() -> uut.setFifoLaneBacklog(0));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testSetDeduplicationWindow_rejectsEmptyWindow() {
+        // when
+        Throwable result = catchThrowable(() -> uut.setDeduplicationWindow(Duration.ZERO));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testSetRetryPolicy_requiresSqsClient() {
+        // when
+        Throwable result = catchThrowable(() -> uut.setRetryPolicy(new RetryPolicy(Duration.ofSeconds(1), Duration
+                .ofMinutes(1), 3, null)));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void testSetMaxBufferDwell_rejectsNegativeDuration() {
+        // when
+        Throwable result = catchThrowable(() -> uut.setMaxBufferDwell(Duration.ofSeconds(-1)));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testSetDeadlineBackoff_rejectsBackoffBeyondTheVisibilityTimeoutLimit() {
+        // when
+        Throwable result = catchThrowable(() -> uut.setDeadlineBackoff(Duration.ofHours(13)));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -2,35 +2,58 @@ package com.mercateo.sqs.utils.message.handling;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.catchThrowable;
 import static org.awaitility.Awaitility.await;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import com.mercateo.sqs.utils.queue.Queue;
 import com.mercateo.sqs.utils.queue.QueueName;
 import com.mercateo.sqs.utils.visibility.VisibilityTimeoutExtenderFactory;
 
+import io.awspring.cloud.sqs.MessagingHeaders;
+import io.awspring.cloud.sqs.listener.SqsHeaders;
+import io.awspring.cloud.sqs.listener.acknowledgement.AcknowledgementCallback;
+
 import java.time.Duration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import lombok.Getter;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.Spy;
 import org.springframework.core.task.TaskRejectedException;
+import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageHeaders;
 import org.springframework.messaging.support.GenericMessage;
 import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResponse;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityResponse;
 import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
 
 public class LongRunningMessageHandlerIntegrationTest {
@@ -228,6 +251,539 @@ public class LongRunningMessageHandlerIntegrationTest {
         assertThat(uut.getMessagesInProcessing().getBackingSet()).containsExactlyElementsOf(messageId);
     }
 
+    @Test
+    void testSubmitMessage_processesFullBatchInOneWorkerCall() {
+        // given
+        List<List<BatchEntry<InputObject, String>>> batches = new CopyOnWriteArrayList<>();
+        Map<QueueAttributeName, String> attributes = new HashMap<>();
+        attributes.put(QueueAttributeName.VISIBILITY_TIMEOUT, "10");
+        uut = new LongRunningMessageHandler<>(scheduledExecutorService, HandlerOptions.DEFAULT, 4, 2,
+                messageHandlingRunnableFactory, new VisibilityTimeoutExtenderFactory(sqsClient), batches::add, 2,
+                Duration.ofMinutes(1), new Queue(new QueueName("queueName"), "queueUrl", attributes),
+                finishedMessageCallback, Duration.ofMillis(1), Duration.ZERO, errorHandlingStrategy);
+        MessageWrapper<InputObject> message1 = createMessage(1);
+        MessageWrapper<InputObject> message2 = createMessage(2);
+
+        // when
+        uut.submitMessage(message1.getMessage());
+        uut.submitMessage(message2.getMessage());
+
+        // then
+        await().until(() -> uut.getMessagesInProcessing().getBackingSet().isEmpty());
+        assertThat(batches).hasSize(1);
+        assertThat(batches.get(0)).extracting(BatchEntry::getMessageId).containsExactly(message1.getMessageId(),
+                message2.getMessageId());
+    }
+
+    @Test
+    void testSubmitMessage_processesMessagesOfAGroupInOrder() {
+        // given
+        Map<QueueAttributeName, String> attributes = new HashMap<>();
+        attributes.put(QueueAttributeName.VISIBILITY_TIMEOUT, "10");
+        uut = new LongRunningMessageHandler<>(scheduledExecutorService, HandlerOptions.builder()
+                .fifoLaneBacklog(10).build(), 4, 3, messageHandlingRunnableFactory,
+                new VisibilityTimeoutExtenderFactory(sqsClient), worker, new Queue(new QueueName("queueName"),
+                        "queueUrl", attributes), finishedMessageCallback, Duration.ofMillis(1), Duration.ZERO,
+                errorHandlingStrategy);
+        MessageWrapper<InputObject> message1 = createMessage(1, "group");
+        MessageWrapper<InputObject> message2 = createMessage(2, "group");
+        MessageWrapper<InputObject> message3 = createMessage(3, "other");
+
+        // when
+        uut.submitMessage(message1.getMessage());
+        uut.submitMessage(message2.getMessage());
+        uut.submitMessage(message3.getMessage());
+
+        // then
+        await().until(() -> message1.getMessage().getPayload().isRunning());
+        await().until(() -> message3.getMessage().getPayload().isRunning());
+        assertThat(message2.getMessage().getPayload().isRunning()).isFalse();
+
+        // when
+        message1.getMessage().getPayload().stop();
+
+        // then
+        await().until(() -> message2.getMessage().getPayload().isRunning());
+    }
+
+    @Test
+    void testSubmitMessage_returnsTheMessagesOfAGroupAfterAFailedMessage() {
+        // given
+        when(sqsClient.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class))).thenReturn(
+                CompletableFuture.completedFuture(ChangeMessageVisibilityBatchResponse.builder().build()));
+        doThrow(new IllegalStateException("test")).when(errorHandlingStrategy).handleWorkerException(any(), any());
+        MessageWrapper<InputObject> message1 = createMessage(1, "group");
+        MessageWrapper<InputObject> message2 = createMessage(2, "group");
+        List<InputObject> processed = new CopyOnWriteArrayList<>();
+        CountDownLatch submitted = new CountDownLatch(1);
+        Map<QueueAttributeName, String> attributes = new HashMap<>();
+        attributes.put(QueueAttributeName.VISIBILITY_TIMEOUT, "10");
+        uut = new LongRunningMessageHandler<>(scheduledExecutorService, HandlerOptions.builder()
+                .fifoLaneBacklog(10).build(), 4, 3, messageHandlingRunnableFactory,
+                new VisibilityTimeoutExtenderFactory(sqsClient), (object, headers) -> {
+                    processed.add(object);
+                    submitted.await();
+                    throw new IllegalStateException("test");
+                }, new Queue(new QueueName("queueName"), "queueUrl", attributes), finishedMessageCallback,
+                Duration.ofMillis(1), Duration.ZERO, errorHandlingStrategy);
+
+        // when
+        uut.submitMessage(message1.getMessage());
+        uut.submitMessage(message2.getMessage());
+        submitted.countDown();
+
+        // then
+        await().until(() -> uut.getFreeWorkerCapacity() == 3);
+        assertThat(processed).containsExactly(message1.getMessage().getPayload());
+        ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor = ArgumentCaptor.forClass(
+                ChangeMessageVisibilityBatchRequest.class);
+        verify(sqsClient).changeMessageVisibilityBatch(captor.capture());
+        assertThat(releasedReceiptHandles(captor)).containsExactly("receiptHandle2");
+    }
+
+    @Test
+    void testSubmitMessage_runsOnTheThreadsOfASharedPool() {
+        // given
+        SharedWorkerPool pool = new SharedWorkerPool(1);
+        Map<QueueAttributeName, String> attributes = new HashMap<>();
+        attributes.put(QueueAttributeName.VISIBILITY_TIMEOUT, "10");
+        uut = new LongRunningMessageHandler<>(scheduledExecutorService, HandlerOptions.builder()
+                .workerShare(new WorkerShare(pool, 1, 1)).build(), 4, 2, messageHandlingRunnableFactory,
+                new VisibilityTimeoutExtenderFactory(sqsClient), worker, new Queue(new QueueName("queueName"),
+                        "queueUrl", attributes), finishedMessageCallback, Duration.ofMillis(1), Duration.ZERO,
+                errorHandlingStrategy);
+        MessageWrapper<InputObject> message1 = createMessage(1);
+        MessageWrapper<InputObject> message2 = createMessage(2);
+
+        // when
+        uut.submitMessage(message1.getMessage());
+        uut.submitMessage(message2.getMessage());
+
+        // then
+        await().until(() -> message1.getMessage().getPayload().isRunning());
+        assertThat(message2.getMessage().getPayload().isRunning()).isFalse();
+        assertThat(uut.getRemainingCapacity()).isZero();
+
+        // when
+        message1.getMessage().getPayload().stop();
+
+        // then
+        await().until(() -> message2.getMessage().getPayload().isRunning());
+        message2.getMessage().getPayload().stop();
+        pool.shutdown();
+    }
+
+    @Test
+    void testSubmitMessage_returnsMessagesDroppedByAStoppedSharedPool() {
+        // given
+        when(sqsClient.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class))).thenReturn(
+                CompletableFuture.completedFuture(ChangeMessageVisibilityBatchResponse.builder().build()));
+        SharedWorkerPool pool = new SharedWorkerPool(1);
+        Map<QueueAttributeName, String> attributes = new HashMap<>();
+        attributes.put(QueueAttributeName.VISIBILITY_TIMEOUT, "10");
+        uut = new LongRunningMessageHandler<>(scheduledExecutorService, HandlerOptions.builder()
+                .workerShare(new WorkerShare(pool, 1, 1)).build(), 4, 2, messageHandlingRunnableFactory,
+                new VisibilityTimeoutExtenderFactory(sqsClient), worker, new Queue(new QueueName("queueName"),
+                        "queueUrl", attributes), finishedMessageCallback, Duration.ofMillis(1), Duration.ZERO,
+                errorHandlingStrategy);
+        MessageWrapper<InputObject> message1 = createMessage(1);
+        MessageWrapper<InputObject> message2 = createMessage(2);
+        uut.submitMessage(message1.getMessage());
+        uut.submitMessage(message2.getMessage());
+        await().until(() -> message1.getMessage().getPayload().isRunning());
+
+        // when
+        pool.shutdown();
+
+        // then
+        await().until(() -> !uut.getMessagesInProcessing().contains(message2.getMessageId()));
+        ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor = ArgumentCaptor.forClass(
+                ChangeMessageVisibilityBatchRequest.class);
+        verify(sqsClient).changeMessageVisibilityBatch(captor.capture());
+        assertThat(releasedReceiptHandles(captor)).containsExactly("receiptHandle2");
+        assertThat(message2.getMessage().getPayload().isRunning()).isFalse();
+    }
+
+    @Test
+    void testHandleMessage_decodesRawMessageOnTheWorkerThread() {
+        // given
+        List<String> decodingThreads = new CopyOnWriteArrayList<>();
+        SqsMessageAdapter<InputObject> adapter = new SqsMessageAdapter<>(sqsClient, uut, sqsMessage -> {
+            decodingThreads.add(Thread.currentThread().getName());
+            return new InputObject();
+        });
+
+        // when
+        adapter.handleMessage(software.amazon.awssdk.services.sqs.model.Message.builder()
+                .messageId("bf308aa2-bf48-49b8-a839-61611c710431")
+                .receiptHandle("receiptHandle1")
+                .body("{}")
+                .build());
+
+        // then
+        await().until(() -> decodingThreads.size() == 1);
+        assertThat(decodingThreads.get(0)).startsWith("LongRunningMessageHandler-queueName-");
+    }
+
+    @Test
+    void testShutdown_returnsQueuedAndInterruptedMessagesToTheQueue() {
+        // given
+        when(sqsClient.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class))).thenReturn(
+                CompletableFuture.completedFuture(ChangeMessageVisibilityBatchResponse.builder().build()));
+        Map<QueueAttributeName, String> attributes = new HashMap<>();
+        attributes.put(QueueAttributeName.VISIBILITY_TIMEOUT, "10");
+        uut = new LongRunningMessageHandler<>(scheduledExecutorService, 4, 2, messageHandlingRunnableFactory,
+                new VisibilityTimeoutExtenderFactory(sqsClient), (object, headers) -> {
+                    object.start();
+                    Thread.sleep(60_000);
+                    return "done";
+                }, new Queue(new QueueName("queueName"), "queueUrl", attributes), finishedMessageCallback,
+                Duration.ofMillis(1), Duration.ZERO, errorHandlingStrategy);
+        MessageWrapper<InputObject> message1 = createMessage(1);
+        MessageWrapper<InputObject> message2 = createMessage(2);
+        MessageWrapper<InputObject> message3 = createMessage(3);
+        uut.submitMessage(message1.getMessage());
+        uut.submitMessage(message2.getMessage());
+        await().until(() -> message1.getMessage().getPayload().isRunning());
+        await().until(() -> message2.getMessage().getPayload().isRunning());
+        uut.submitMessage(message3.getMessage());
+
+        // when
+        uut.shutdown();
+
+        // then
+        ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor = ArgumentCaptor.forClass(
+                ChangeMessageVisibilityBatchRequest.class);
+        verify(sqsClient, times(2)).changeMessageVisibilityBatch(captor.capture());
+        assertThat(captor.getAllValues().get(0).entries()).extracting(
+                ChangeMessageVisibilityBatchRequestEntry::receiptHandle).containsExactly("receiptHandle3");
+        assertThat(captor.getAllValues().get(1).entries()).extracting(
+                ChangeMessageVisibilityBatchRequestEntry::receiptHandle).containsExactlyInAnyOrder(
+                        "receiptHandle1", "receiptHandle2");
+        assertThat(captor.getAllValues()).flatExtracting(ChangeMessageVisibilityBatchRequest::entries)
+                .extracting(ChangeMessageVisibilityBatchRequestEntry::visibilityTimeout).containsOnly(0);
+        assertThat(message3.getMessage().getPayload().isRunning()).isFalse();
+        assertThat(uut.getMessagesInProcessing().getBackingSet()).isEmpty();
+    }
+
+    @Test
+    void testSubmitMessage_queuesMessageWhileTheThreadOfAFreedSlotIsStillBusy() throws InterruptedException {
+        // given
+        uut = new LongRunningMessageHandler<>(scheduledExecutorService, 1, 1, messageHandlingRunnableFactory,
+                new VisibilityTimeoutExtenderFactory(sqsClient), worker, new Queue(new QueueName("queueName"),
+                        "queueUrl", Map.of(QueueAttributeName.VISIBILITY_TIMEOUT, "10")), finishedMessageCallback,
+                Duration.ofMillis(1), Duration.ZERO, errorHandlingStrategy);
+        CountDownLatch outcomePublished = new CountDownLatch(1);
+        CountDownLatch releaseThread = new CountDownLatch(1);
+        // the outcome is published after the slot has been freed
+        uut.setOutcomeListener(outcome -> {
+            outcomePublished.countDown();
+            try {
+                releaseThread.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        MessageWrapper<InputObject> message1 = createMessage(1);
+        MessageWrapper<InputObject> message2 = createMessage(2);
+        uut.submitMessage(message1.getMessage());
+        await().until(() -> message1.getMessage().getPayload().isRunning());
+        message1.getMessage().getPayload().stop();
+        assertThat(outcomePublished.await(10, TimeUnit.SECONDS)).isTrue();
+
+        // when
+        boolean result = uut.submitMessage(message2.getMessage());
+
+        // then
+        assertThat(result).isTrue();
+        releaseThread.countDown();
+        await().until(() -> message2.getMessage().getPayload().isRunning());
+        message2.getMessage().getPayload().stop();
+    }
+
+    @Test
+    void testSubmitMessage_returnsMessageThatWaitedTooLongForAWorker() {
+        // given
+        when(sqsClient.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class))).thenReturn(
+                CompletableFuture.completedFuture(ChangeMessageVisibilityBatchResponse.builder().build()));
+        Map<QueueAttributeName, String> attributes = new HashMap<>();
+        attributes.put(QueueAttributeName.VISIBILITY_TIMEOUT, "10");
+        uut = new LongRunningMessageHandler<>(scheduledExecutorService, HandlerOptions.builder()
+                .maxBufferDwell(Duration.ofMillis(100)).build(), 4, 1, messageHandlingRunnableFactory,
+                new VisibilityTimeoutExtenderFactory(sqsClient), worker, new Queue(new QueueName("queueName"),
+                        "queueUrl", attributes), finishedMessageCallback, Duration.ofMillis(1), Duration.ZERO,
+                errorHandlingStrategy);
+        MessageWrapper<InputObject> message1 = createMessage(1);
+        MessageWrapper<InputObject> message2 = createMessage(2);
+        uut.submitMessage(message1.getMessage());
+        await().until(() -> message1.getMessage().getPayload().isRunning());
+
+        // when
+        uut.submitMessage(message2.getMessage());
+
+        // then
+        ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor = ArgumentCaptor.forClass(
+                ChangeMessageVisibilityBatchRequest.class);
+        await().untilAsserted(() -> verify(sqsClient).changeMessageVisibilityBatch(captor.capture()));
+        assertThat(captor.getValue().entries()).extracting(ChangeMessageVisibilityBatchRequestEntry::receiptHandle)
+                .containsExactly("receiptHandle2");
+        assertThat(uut.getMessagesInProcessing().getBackingSet()).containsExactly(message1.getMessageId());
+        assertThat(uut.getRemainingCapacity()).isEqualTo(3);
+
+        // when
+        message1.getMessage().getPayload().stop();
+
+        // then
+        await().until(() -> uut.getMessagesInProcessing().getBackingSet().isEmpty());
+        assertThat(message2.getMessage().getPayload().isFinished()).isFalse();
+    }
+
+    @Test
+    void testSubmitMessage_finishesMessageThatWaitedTooLongForAWorker() {
+        // given
+        when(sqsClient.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class))).thenReturn(
+                CompletableFuture.completedFuture(ChangeMessageVisibilityBatchResponse.builder().build()));
+        Map<QueueAttributeName, String> attributes = new HashMap<>();
+        attributes.put(QueueAttributeName.VISIBILITY_TIMEOUT, "10");
+        uut = new LongRunningMessageHandler<>(scheduledExecutorService, HandlerOptions.builder()
+                .maxBufferDwell(Duration.ofMillis(100)).build(), 4, 1, messageHandlingRunnableFactory,
+                new VisibilityTimeoutExtenderFactory(sqsClient), worker, new Queue(new QueueName("queueName"),
+                        "queueUrl", attributes), finishedMessageCallback, Duration.ofMillis(1), Duration.ZERO,
+                errorHandlingStrategy);
+        MessageWrapper<InputObject> message1 = createMessage(1);
+        CountDownLatch finished = new CountDownLatch(1);
+        Map<String, Object> headers = new HashMap<>(createMessage(2).getMessage().getHeaders());
+        headers.put(LongRunningMessageHandler.ON_FINISHED_HEADER, (Runnable) finished::countDown);
+        GenericMessage<InputObject> message2 = new GenericMessage<>(new InputObject(), new MessageHeaders(headers));
+        uut.submitMessage(message1.getMessage());
+        await().until(() -> message1.getMessage().getPayload().isRunning());
+
+        // when
+        uut.submitMessage(message2);
+
+        // then
+        await().until(() -> finished.getCount() == 0);
+        assertThat(message2.getPayload().isRunning()).isFalse();
+        message1.getMessage().getPayload().stop();
+    }
+
+    @Test
+    void testSubmitMessage_doesNotReturnRejectedMessageAfterTheBufferDwell() throws InterruptedException {
+        // given
+        when(sqsClient.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class))).thenReturn(
+                CompletableFuture.completedFuture(ChangeMessageVisibilityBatchResponse.builder().build()));
+        Map<QueueAttributeName, String> attributes = new HashMap<>();
+        attributes.put(QueueAttributeName.VISIBILITY_TIMEOUT, "10");
+        uut = new LongRunningMessageHandler<>(scheduledExecutorService, HandlerOptions.builder()
+                .maxBufferDwell(Duration.ofMillis(500)).build(), 4, 1, messageHandlingRunnableFactory,
+                new VisibilityTimeoutExtenderFactory(sqsClient), worker, new Queue(new QueueName("queueName"),
+                        "queueUrl", attributes), finishedMessageCallback, Duration.ofMillis(1), Duration.ZERO,
+                errorHandlingStrategy);
+        MessageWrapper<InputObject> message1 = createMessage(1);
+        uut.submitMessage(message1.getMessage());
+        await().until(() -> message1.getMessage().getPayload().isRunning());
+        for (int i = 2; i <= 4; i++) {
+            uut.submitMessage(createMessage(i).getMessage());
+        }
+
+        // when
+        MessageWrapper<InputObject> message5 = createMessage(5);
+        Throwable result = catchThrowable(() -> uut.submitMessage(message5.getMessage()));
+
+        // then
+        assertThat(result).hasCauseInstanceOf(TaskRejectedException.class);
+        ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor = ArgumentCaptor.forClass(
+                ChangeMessageVisibilityBatchRequest.class);
+        await().untilAsserted(() -> {
+            verify(sqsClient, atLeastOnce()).changeMessageVisibilityBatch(captor.capture());
+            assertThat(releasedReceiptHandles(captor)).contains("receiptHandle2", "receiptHandle3",
+                    "receiptHandle4");
+        });
+        Thread.sleep(500);
+        verify(sqsClient, atLeastOnce()).changeMessageVisibilityBatch(captor.capture());
+        assertThat(releasedReceiptHandles(captor)).doesNotContain("receiptHandle5");
+        assertThat(uut.getMessagesInProcessing().getBackingSet()).containsExactly(message1.getMessageId());
+        message1.getMessage().getPayload().stop();
+    }
+
+    @Test
+    void testSubmitMessage_returnsMessageWithBackoffAfterItsDeadline() {
+        // given
+        when(sqsClient.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class))).thenReturn(
+                CompletableFuture.completedFuture(ChangeMessageVisibilityBatchResponse.builder().build()));
+        Map<QueueAttributeName, String> attributes = new HashMap<>();
+        attributes.put(QueueAttributeName.VISIBILITY_TIMEOUT, "10");
+        uut = new LongRunningMessageHandler<>(scheduledExecutorService, HandlerOptions.builder()
+                .processingDeadline(Duration.ofMillis(100))
+                .processingDeadlineAttribute("ProcessingDeadline")
+                .deadlineBackoff(Duration.ofSeconds(30))
+                .build(), 4, 2, messageHandlingRunnableFactory, new VisibilityTimeoutExtenderFactory(sqsClient),
+                (object, headers) -> {
+                    object.start();
+                    Thread.sleep(60_000);
+                    return "done";
+                }, new Queue(new QueueName("queueName"), "queueUrl", attributes), finishedMessageCallback,
+                Duration.ofMillis(1), Duration.ZERO, errorHandlingStrategy);
+        MessageWrapper<InputObject> message1 = createMessage(1);
+        Map<String, Object> headers = new HashMap<>(createMessage(2).getMessage().getHeaders());
+        headers.put("ProcessingDeadline", "60");
+        MessageWrapper<InputObject> message2 = new MessageWrapper<>(new GenericMessage<>(new InputObject(),
+                new MessageHeaders(headers)));
+
+        // when
+        uut.submitMessage(message1.getMessage());
+        uut.submitMessage(message2.getMessage());
+
+        // then
+        ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor = ArgumentCaptor.forClass(
+                ChangeMessageVisibilityBatchRequest.class);
+        await().untilAsserted(() -> verify(sqsClient).changeMessageVisibilityBatch(captor.capture()));
+        assertThat(captor.getValue().entries()).singleElement().satisfies(entry -> {
+            assertThat(entry.receiptHandle()).isEqualTo("receiptHandle1");
+            assertThat(entry.visibilityTimeout()).isEqualTo(30);
+        });
+        verify(errorHandlingStrategy).handleWorkerException(any(DeadlineExceededException.class), any());
+        assertThat(uut.getMessagesInProcessing().getBackingSet()).containsExactly(message2.getMessageId());
+    }
+
+    @Test
+    void testSubmitMessage_returnsMessageAtItsDeadlineWhenTheWorkerIgnoresInterrupts() {
+        // given
+        when(sqsClient.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class))).thenReturn(
+                CompletableFuture.completedFuture(ChangeMessageVisibilityBatchResponse.builder().build()));
+        when(sqsClient.changeMessageVisibility(any(ChangeMessageVisibilityRequest.class))).thenReturn(
+                CompletableFuture.completedFuture(ChangeMessageVisibilityResponse.builder().build()));
+        CountDownLatch hungCall = new CountDownLatch(1);
+        Map<QueueAttributeName, String> attributes = new HashMap<>();
+        attributes.put(QueueAttributeName.VISIBILITY_TIMEOUT, "10");
+        uut = new LongRunningMessageHandler<>(scheduledExecutorService, HandlerOptions.builder()
+                .processingDeadline(Duration.ofMillis(100))
+                .deadlineBackoff(Duration.ofSeconds(30))
+                .build(), 4, 2, messageHandlingRunnableFactory, new VisibilityTimeoutExtenderFactory(sqsClient),
+                (object, headers) -> {
+                    object.start();
+                    while (hungCall.getCount() > 0) {
+                        try {
+                            hungCall.await();
+                        } catch (InterruptedException e) {
+                            // like a socket read that does not react to interrupts
+                        }
+                    }
+                    return "done";
+                }, new Queue(new QueueName("queueName"), "queueUrl", attributes), finishedMessageCallback,
+                Duration.ofMillis(1), Duration.ZERO, errorHandlingStrategy);
+        MessageWrapper<InputObject> message = createMessage(1);
+
+        // when
+        uut.submitMessage(message.getMessage());
+
+        // then
+        ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor = ArgumentCaptor.forClass(
+                ChangeMessageVisibilityBatchRequest.class);
+        await().untilAsserted(() -> verify(sqsClient).changeMessageVisibilityBatch(captor.capture()));
+        assertThat(captor.getValue().entries()).singleElement().satisfies(entry -> {
+            assertThat(entry.receiptHandle()).isEqualTo("receiptHandle1");
+            assertThat(entry.visibilityTimeout()).isEqualTo(30);
+        });
+        verify(errorHandlingStrategy).handleWorkerException(any(DeadlineExceededException.class), any());
+        assertThat(message.getMessage().getPayload().isRunning()).isTrue();
+        assertThat(uut.getMessagesInProcessing().getBackingSet()).containsExactly(message.getMessageId());
+
+        // when
+        clearInvocations(sqsClient);
+
+        // then
+        await().pollDelay(Duration.ofMillis(200)).untilAsserted(() -> verify(sqsClient, never())
+                .changeMessageVisibility(any(ChangeMessageVisibilityRequest.class)));
+
+        // when
+        hungCall.countDown();
+
+        // then
+        await().until(() -> uut.getMessagesInProcessing().getBackingSet().isEmpty());
+        verify(finishedMessageCallback, never()).call(any(), any());
+        verify(errorHandlingStrategy, times(1)).handleWorkerException(any(), any());
+    }
+
+    @Test
+    void testSubmitMessage_delaysFailedMessageByTheRetryBackoff() {
+        // given
+        when(sqsClient.changeMessageVisibility(any(ChangeMessageVisibilityRequest.class))).thenReturn(
+                CompletableFuture.completedFuture(ChangeMessageVisibilityResponse.builder().build()));
+        IllegalStateException failure = new IllegalStateException("failed");
+        doThrow(failure).when(errorHandlingStrategy).handleWorkerException(any(), any());
+        Map<QueueAttributeName, String> attributes = new HashMap<>();
+        attributes.put(QueueAttributeName.VISIBILITY_TIMEOUT, "10");
+        uut = new LongRunningMessageHandler<>(scheduledExecutorService, HandlerOptions.builder()
+                .messageRetrier(new MessageRetrier(new RetryPolicy(Duration.ofSeconds(10), Duration.ofMinutes(
+                        10), 5, null, () -> 1.0), sqsClient))
+                .build(), 4, 2, messageHandlingRunnableFactory, new VisibilityTimeoutExtenderFactory(sqsClient),
+                (object, headers) -> {
+                    throw failure;
+                }, new Queue(new QueueName("queueName"), "queueUrl", attributes), finishedMessageCallback,
+                Duration.ofMillis(1), Duration.ZERO, errorHandlingStrategy);
+        Map<String, Object> headers = new HashMap<>(createMessage(1).getMessage().getHeaders());
+        headers.put(SqsHeaders.MessageSystemAttributes.SQS_APPROXIMATE_RECEIVE_COUNT, "3");
+        MessageWrapper<InputObject> message = new MessageWrapper<>(new GenericMessage<>(new InputObject(),
+                new MessageHeaders(headers)));
+
+        // when
+        uut.submitMessage(message.getMessage());
+
+        // then
+        ArgumentCaptor<ChangeMessageVisibilityRequest> captor = ArgumentCaptor.forClass(
+                ChangeMessageVisibilityRequest.class);
+        // the first extension of the visibility timeout may or may not have happened before
+        await().untilAsserted(() -> {
+            verify(sqsClient, atLeastOnce()).changeMessageVisibility(captor.capture());
+            assertThat(captor.getAllValues()).extracting(ChangeMessageVisibilityRequest::visibilityTimeout)
+                    .contains(40);
+        });
+        assertThat(captor.getAllValues()).extracting(ChangeMessageVisibilityRequest::receiptHandle)
+                .containsOnly("receiptHandle1");
+    }
+
+    @Test
+    void testSubmitMessage_returnsMessageAfterShutdown() {
+        // given
+        when(sqsClient.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class))).thenReturn(
+                CompletableFuture.completedFuture(ChangeMessageVisibilityBatchResponse.builder().build()));
+        MessageWrapper<InputObject> message = createMessage(1);
+        uut.shutdown();
+
+        // when
+        boolean result = uut.submitMessage(message.getMessage());
+
+        // then
+        assertThat(result).isFalse();
+        ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor = ArgumentCaptor.forClass(
+                ChangeMessageVisibilityBatchRequest.class);
+        verify(sqsClient).changeMessageVisibilityBatch(captor.capture());
+        assertThat(captor.getValue().queueUrl()).isEqualTo("queueUrl");
+        assertThat(captor.getValue().entries()).extracting(ChangeMessageVisibilityBatchRequestEntry::receiptHandle)
+                .containsExactly("receiptHandle1");
+    }
+
+    private static List<String> releasedReceiptHandles(ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor) {
+        return captor.getAllValues()
+                .stream()
+                .flatMap(request -> request.entries().stream())
+                .map(ChangeMessageVisibilityBatchRequestEntry::receiptHandle)
+                .collect(Collectors.toList());
+    }
+
+    private MessageWrapper<InputObject> createMessage(int number, String messageGroupId) {
+        MessageWrapper<InputObject> message = createMessage(number);
+        Map<String, Object> headers = new HashMap<>(message.getMessage().getHeaders());
+        headers.put(SqsHeaders.MessageSystemAttributes.SQS_MESSAGE_GROUP_ID_HEADER, messageGroupId);
+        AcknowledgementCallback<InputObject> acknowledgementCallback = mock(AcknowledgementCallback.class);
+        when(acknowledgementCallback.onAcknowledge(any(Message.class))).thenReturn(CompletableFuture.completedFuture(
+                null));
+        headers.put(MessagingHeaders.ACKNOWLEDGMENT_CALLBACK_HEADER, acknowledgementCallback);
+        return new MessageWrapper<>(new GenericMessage<>(message.getMessage().getPayload(), new MessageHeaders(
+                headers)));
+    }
+
     private MessageWrapper<InputObject> createMessage(int number) {
         Map<String, Object> headers = new HashMap<>();
         headers.put("id", UUID.fromString("bf308aa2-bf48-49b8-a839-61611c71043" + number).toString());
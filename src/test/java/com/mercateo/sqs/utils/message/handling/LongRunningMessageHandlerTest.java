@@ -4,25 +4,41 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.assertj.core.api.Assertions.catchThrowable;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.common.testing.NullPointerTester;
 import com.google.common.testing.NullPointerTester.Visibility;
+import com.mercateo.sqs.utils.metrics.MessageMetrics;
 import com.mercateo.sqs.utils.queue.Queue;
 import com.mercateo.sqs.utils.queue.QueueName;
+import com.mercateo.sqs.utils.visibility.BatchVisibilityTimeoutExtender;
+import com.mercateo.sqs.utils.visibility.VisibilityExtensionSchedule;
+import com.mercateo.sqs.utils.visibility.VisibilityTimeoutExtender;
 import com.mercateo.sqs.utils.visibility.VisibilityTimeoutExtenderFactory;
 
+import io.awspring.cloud.sqs.MessagingHeaders;
+import io.awspring.cloud.sqs.listener.SqsHeaders;
+import io.awspring.cloud.sqs.listener.acknowledgement.AcknowledgementCallback;
+
 import java.time.Duration;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ScheduledExecutorService;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageHeaders;
 import org.springframework.messaging.support.GenericMessage;
 
@@ -49,6 +65,9 @@ public class LongRunningMessageHandlerTest {
     @Mock
     private ErrorHandlingStrategy<Integer> errorHandlingStrategy;
 
+    @Mock
+    private VisibilityTimeoutExtender timeoutExtender;
+
     private LongRunningMessageHandler<Integer, String> uut;
 
     @BeforeEach
@@ -56,6 +75,8 @@ public class LongRunningMessageHandlerTest {
         MockitoAnnotations.openMocks(this);
         when(queue.getName()).thenReturn(new QueueName("queuename"));
         when(queue.getDefaultVisibilityTimeout()).thenReturn(Duration.ofSeconds(120));
+        when(timeoutExtenderFactory.get(any(), eq(queue), eq(errorHandlingStrategy), any(), any())).thenReturn(
+                timeoutExtender);
         uut = new LongRunningMessageHandler<>(timeoutExtensionExecutor, 1, 1,
                 messageHandlingRunnableFactory, timeoutExtenderFactory, worker, queue,
                 finishedMessageCallback, Duration.ofSeconds(115), Duration.ZERO, errorHandlingStrategy);
@@ -68,6 +89,7 @@ public class LongRunningMessageHandlerTest {
         nullPointerTester.setDefault(VisibilityTimeoutExtenderFactory.class,
                 timeoutExtenderFactory);
         nullPointerTester.setDefault(Queue.class, queue);
+        nullPointerTester.setDefault(HandlerOptions.class, HandlerOptions.DEFAULT);
 
         // when
         nullPointerTester.testInstanceMethods(uut, NullPointerTester.Visibility.PACKAGE);
@@ -103,8 +125,7 @@ public class LongRunningMessageHandlerTest {
         // given
         MessageWrapper<Integer> message = createMessage();
         RuntimeException exception = new RuntimeException("test exception");
-        when(timeoutExtensionExecutor.scheduleAtFixedRate(any(), anyLong(), anyLong(), any()))
-                .thenThrow(exception);
+        when(timeoutExtender.scheduleOn(timeoutExtensionExecutor)).thenThrow(exception);
 
         // when
         assertThatThrownBy(() -> uut.handleMessage(message.getMessage())).hasCause(exception);
@@ -113,6 +134,237 @@ public class LongRunningMessageHandlerTest {
         assertThat(uut.getMessagesInProcessing().getBackingSet()).isEmpty();
     }
 
+    @Test
+    void testHandleMessage_registersAtBatchExtender() {
+        // given
+        BatchVisibilityTimeoutExtender batchTimeoutExtender = mock(BatchVisibilityTimeoutExtender.class);
+        MessageWrapper<Integer> message = createMessage();
+        when(messageHandlingRunnableFactory.get(any(), any(), any(), any(), any(), any(), any()))
+                .thenReturn(mock(
+                MessageHandlingRunnable.class));
+        uut = new LongRunningMessageHandler<>(timeoutExtensionExecutor, HandlerOptions.builder()
+                .batchTimeoutExtender(batchTimeoutExtender).build(), 1, 2,
+                messageHandlingRunnableFactory, timeoutExtenderFactory, worker, queue,
+                finishedMessageCallback, Duration.ofSeconds(115), Duration.ZERO, errorHandlingStrategy);
+
+        // when
+        uut.handleMessage(message.getMessage());
+
+        // then
+        verify(batchTimeoutExtender).register(timeoutExtender);
+        verify(timeoutExtender, never()).scheduleOn(any());
+    }
+
+    @Test
+    void testHandleMessage_reportsQueueDwellTime() {
+        // given
+        MessageMetrics metrics = mock(MessageMetrics.class);
+        Map<String, Object> headers = new HashMap<>();
+        headers.put(SqsHeaders.MessageSystemAttributes.SQS_SENT_TIMESTAMP, String.valueOf(System
+                .currentTimeMillis() - 5000));
+        when(messageHandlingRunnableFactory.get(any(), any(), any(), any(), any(), any(), any()))
+                .thenReturn(mock(MessageHandlingRunnable.class));
+        uut = new LongRunningMessageHandler<>(timeoutExtensionExecutor, HandlerOptions.builder()
+                .metrics(metrics).build(), 1, 2,
+                messageHandlingRunnableFactory, timeoutExtenderFactory, worker, queue,
+                finishedMessageCallback, Duration.ofSeconds(115), Duration.ZERO, errorHandlingStrategy);
+
+        // when
+        uut.handleMessage(new GenericMessage<>(1, new MessageHeaders(headers)));
+
+        // then
+        ArgumentCaptor<Long> dwellTime = ArgumentCaptor.forClass(Long.class);
+        verify(metrics).onReceived(dwellTime.capture());
+        assertThat(dwellTime.getValue()).isBetween(Duration.ofSeconds(5).toNanos(), Duration.ofSeconds(60)
+                .toNanos());
+        verify(timeoutExtenderFactory).get(any(), eq(queue), eq(errorHandlingStrategy), eq(
+                new VisibilityExtensionSchedule(Duration.ofSeconds(120), Duration.ofSeconds(115), 1)), eq(metrics));
+    }
+
+    @Test
+    void testHandleMessage_adaptiveConcurrencyLimitShrinksOnFailingWorkers() {
+        // given
+        when(messageHandlingRunnableFactory.get(any(), any(), any(), any(), any(), any(), any()))
+                .thenReturn(mock(MessageHandlingRunnable.class));
+        uut = new LongRunningMessageHandler<>(timeoutExtensionExecutor, HandlerOptions.builder()
+                .minConcurrency(2).build(), 1, 4,
+                messageHandlingRunnableFactory, timeoutExtenderFactory, worker, queue,
+                finishedMessageCallback, Duration.ofSeconds(115), Duration.ZERO, errorHandlingStrategy);
+        uut.handleMessage(createMessage().getMessage());
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<CompletionOptions<Integer, String>> options = ArgumentCaptor.forClass(
+                CompletionOptions.class);
+        verify(messageHandlingRunnableFactory).get(any(), any(), any(), any(), any(), any(), options.capture());
+        MessageMetrics metrics = options.getValue().getMetrics();
+
+        // when
+        for (int i = 0; i < AdaptiveConcurrencyLimit.MIN_WINDOW; i++) {
+            metrics.onWorked(1000, false);
+        }
+
+        // then
+        assertThat(uut.getConcurrencyLimit()).isEqualTo(3);
+        assertThat(uut.getFreeWorkerCapacity()).isEqualTo(2);
+    }
+
+    @Test
+    void testHandleMessage_adoptsRefreshedVisibilityTimeout() {
+        // given
+        Queue refreshed = mock(Queue.class);
+        when(refreshed.getName()).thenReturn(new QueueName("queuename"));
+        when(refreshed.getDefaultVisibilityTimeout()).thenReturn(Duration.ofSeconds(240));
+        when(timeoutExtenderFactory.get(any(), eq(refreshed), eq(errorHandlingStrategy), any(), any())).thenReturn(
+                timeoutExtender);
+        when(messageHandlingRunnableFactory.get(any(), any(), any(), any(), any(), any(), any()))
+                .thenReturn(mock(MessageHandlingRunnable.class));
+        uut = new LongRunningMessageHandler<>(timeoutExtensionExecutor, HandlerOptions.builder()
+                .refreshedQueue(() -> refreshed).build(), 1, 2,
+                messageHandlingRunnableFactory, timeoutExtenderFactory, worker, queue,
+                finishedMessageCallback, Duration.ofSeconds(115), Duration.ZERO, errorHandlingStrategy);
+
+        // when
+        uut.handleMessage(createMessage().getMessage());
+
+        // then
+        assertThat(uut.getQueue()).isSameAs(refreshed);
+        verify(timeoutExtenderFactory).get(any(), eq(refreshed), eq(errorHandlingStrategy), eq(
+                new VisibilityExtensionSchedule(Duration.ofSeconds(240), Duration.ofSeconds(115), 1)), any());
+    }
+
+    @Test
+    void testHandleMessage_ignoresRefreshedVisibilityTimeoutBelowExtensionInterval() {
+        // given
+        Queue refreshed = mock(Queue.class);
+        when(refreshed.getName()).thenReturn(new QueueName("queuename"));
+        when(refreshed.getDefaultVisibilityTimeout()).thenReturn(Duration.ofSeconds(60));
+        when(timeoutExtenderFactory.get(any(), eq(refreshed), eq(errorHandlingStrategy), any(), any())).thenReturn(
+                timeoutExtender);
+        when(messageHandlingRunnableFactory.get(any(), any(), any(), any(), any(), any(), any()))
+                .thenReturn(mock(MessageHandlingRunnable.class));
+        uut = new LongRunningMessageHandler<>(timeoutExtensionExecutor, HandlerOptions.builder()
+                .refreshedQueue(() -> refreshed).build(), 1, 2,
+                messageHandlingRunnableFactory, timeoutExtenderFactory, worker, queue,
+                finishedMessageCallback, Duration.ofSeconds(115), Duration.ZERO, errorHandlingStrategy);
+
+        // when
+        uut.handleMessage(createMessage().getMessage());
+
+        // then
+        verify(timeoutExtenderFactory).get(any(), eq(refreshed), eq(errorHandlingStrategy), eq(
+                new VisibilityExtensionSchedule(Duration.ofSeconds(120), Duration.ofSeconds(115), 1)), any());
+    }
+
+    @Test
+    void testHandleMessage_warnsOnceAboutAnIgnoredVisibilityTimeout() {
+        // given
+        Queue firstRefresh = mock(Queue.class);
+        when(firstRefresh.getName()).thenReturn(new QueueName("queuename"));
+        when(firstRefresh.getDefaultVisibilityTimeout()).thenReturn(Duration.ofSeconds(60));
+        Queue secondRefresh = mock(Queue.class);
+        when(secondRefresh.getName()).thenReturn(new QueueName("queuename"));
+        when(secondRefresh.getDefaultVisibilityTimeout()).thenReturn(Duration.ofSeconds(60));
+        Iterator<Queue> refreshes = List.of(firstRefresh, secondRefresh).iterator();
+        when(timeoutExtenderFactory.get(any(), any(), eq(errorHandlingStrategy), any(), any())).thenReturn(
+                timeoutExtender);
+        when(messageHandlingRunnableFactory.get(any(), any(), any(), any(), any(), any(), any()))
+                .thenReturn(mock(MessageHandlingRunnable.class));
+        uut = new LongRunningMessageHandler<>(timeoutExtensionExecutor, HandlerOptions.builder()
+                .refreshedQueue(refreshes::next).build(), 3, 3,
+                messageHandlingRunnableFactory, timeoutExtenderFactory, worker, queue,
+                finishedMessageCallback, Duration.ofSeconds(115), Duration.ZERO, errorHandlingStrategy);
+
+        // when
+        uut.handleMessage(createMessage().getMessage());
+        uut.handleMessage(createMessage().getMessage());
+
+        // then
+        verify(firstRefresh).getName();
+        verify(secondRefresh, never()).getName();
+        assertThat(uut.getQueue()).isSameAs(secondRefresh);
+    }
+
+    @Test
+    void testConstructor_rejectsBatchesLargerThanTheWorkerLimit() {
+        // when
+        Throwable result = catchThrowable(() -> new LongRunningMessageHandler<Integer, String>(
+                timeoutExtensionExecutor, HandlerOptions.DEFAULT, 1, 2, messageHandlingRunnableFactory,
+                timeoutExtenderFactory, batch -> {
+                }, 3, Duration.ofMillis(10), queue, finishedMessageCallback, Duration.ofSeconds(115),
+                Duration.ZERO, errorHandlingStrategy));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testConstructor_rejectsVirtualThreadsOnASharedPool() {
+        // given
+        SharedWorkerPool pool = new SharedWorkerPool(1);
+
+        // when
+        Throwable result = catchThrowable(() -> new LongRunningMessageHandler<>(timeoutExtensionExecutor,
+                HandlerOptions.builder().workerShare(new WorkerShare(pool, 1, 0)).virtualThreads(true).build(), 1,
+                2, messageHandlingRunnableFactory, timeoutExtenderFactory, worker, queue, finishedMessageCallback,
+                Duration.ofSeconds(115), Duration.ZERO, errorHandlingStrategy));
+        pool.shutdown();
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testConstructor_rejectsBatchesInFifoMode() {
+        // when
+        Throwable result = catchThrowable(() -> new LongRunningMessageHandler<Integer, String>(
+                timeoutExtensionExecutor, HandlerOptions.builder().fifoLaneBacklog(10).build(), 1, 2,
+                messageHandlingRunnableFactory, timeoutExtenderFactory, batch -> {
+                }, 2, Duration.ofMillis(10), queue, finishedMessageCallback, Duration.ofSeconds(115),
+                Duration.ZERO, errorHandlingStrategy));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testConstructor_rejectsBatchesWithAProcessingDeadline() {
+        // when
+        Throwable result = catchThrowable(() -> new LongRunningMessageHandler<Integer, String>(
+                timeoutExtensionExecutor, HandlerOptions.builder().processingDeadline(Duration.ofMinutes(1))
+                        .build(), 1, 2, messageHandlingRunnableFactory, timeoutExtenderFactory, batch -> {
+                        }, 2, Duration.ofMillis(10), queue, finishedMessageCallback, Duration.ofSeconds(115),
+                Duration.ZERO, errorHandlingStrategy));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class).hasMessageContaining("deadline");
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void testHandleMessage_acknowledgesRedeliveryOfCompletedMessage() {
+        // given
+        RecentlyCompletedMessages completedMessages = new RecentlyCompletedMessages(10, Duration.ofMinutes(1));
+        uut = new LongRunningMessageHandler<>(timeoutExtensionExecutor, HandlerOptions.builder()
+                .completedMessages(completedMessages).build(), 1, 1,
+                messageHandlingRunnableFactory, timeoutExtenderFactory, worker, queue,
+                finishedMessageCallback, Duration.ofSeconds(115), Duration.ZERO, errorHandlingStrategy);
+        AcknowledgementCallback<Integer> acknowledgementCallback = mock(AcknowledgementCallback.class);
+        when(acknowledgementCallback.onAcknowledge(any(Message.class))).thenReturn(CompletableFuture.completedFuture(null));
+        Map<String, Object> headers = new HashMap<>(createMessage().getMessage().getHeaders());
+        headers.put(MessagingHeaders.ACKNOWLEDGMENT_CALLBACK_HEADER, acknowledgementCallback);
+        MessageWrapper<Integer> message = new MessageWrapper<>(new GenericMessage<>(1, new MessageHeaders(
+                headers)));
+        completedMessages.add(message.getMessageId());
+
+        // when
+        uut.handleMessage(message.getMessage());
+
+        // then
+        verify(acknowledgementCallback).onAcknowledge(any(Message.class));
+        verify(messageHandlingRunnableFactory, never()).get(any(), any(), any(), any(), any(), any(), any());
+        assertThat(uut.getMessagesInProcessing().getBackingSet()).isEmpty();
+        assertThat(uut.getFreeWorkerCapacity()).isEqualTo(1);
+    }
+
     private MessageWrapper<Integer> createMessage() {
         Map<String, Object> headers = new HashMap<>();
         String messageId = UUID.fromString("bf308aa2-bf48-49b8-a839-61611c710430").toString();
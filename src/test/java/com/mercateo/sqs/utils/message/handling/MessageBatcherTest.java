@@ -0,0 +1,117 @@
+package com.mercateo.sqs.utils.message.handling;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import com.google.common.testing.NullPointerTester;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+class MessageBatcherTest {
+
+    @Mock
+    private ScheduledExecutorService scheduler;
+
+    @Mock
+    private ScheduledFuture<?> lingerFlush;
+
+    private final List<List<Integer>> batches = new ArrayList<>();
+
+    private MessageBatcher<Integer> uut;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        doReturn(lingerFlush).when(scheduler).schedule(any(Runnable.class), eq(50L), eq(TimeUnit.MILLISECONDS));
+        uut = new MessageBatcher<>(3, Duration.ofMillis(50), scheduler, batches::add);
+    }
+
+    @Test
+    void testNullContracts() {
+        // given
+        NullPointerTester nullPointerTester = new NullPointerTester();
+
+        // when
+        nullPointerTester.testInstanceMethods(uut, NullPointerTester.Visibility.PACKAGE);
+    }
+
+    @Test
+    void testConstructor_rejectsEmptyBatches() {
+        // when
+        Throwable result = catchThrowable(() -> new MessageBatcher<Integer>(0, Duration.ZERO, scheduler,
+                batches::add));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testAdd_handsOverFullBatchImmediately() {
+        // when
+        uut.add(1);
+        uut.add(2);
+        uut.add(3);
+        uut.add(4);
+
+        // then
+        assertThat(batches).containsExactly(List.of(1, 2, 3));
+        verify(lingerFlush).cancel(false);
+    }
+
+    @Test
+    void testAdd_lingerFlushHandsOverPartialBatch() {
+        // given
+        uut.add(1);
+        uut.add(2);
+        ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(flush.capture(), eq(50L), eq(TimeUnit.MILLISECONDS));
+
+        // when
+        flush.getValue().run();
+
+        // then
+        assertThat(batches).containsExactly(List.of(1, 2));
+    }
+
+    @Test
+    void testFlush_handsOverPendingItemsOnce() {
+        // given
+        uut.add(1);
+
+        // when
+        uut.flush();
+        uut.flush();
+
+        // then
+        assertThat(batches).containsExactly(List.of(1));
+    }
+
+    @Test
+    void testAdd_doesNotLingerForSingleItemBatches() {
+        // given
+        ScheduledExecutorService unusedScheduler = mock(ScheduledExecutorService.class);
+        uut = new MessageBatcher<>(1, Duration.ofMillis(50), unusedScheduler, batches::add);
+
+        // when
+        uut.add(1);
+
+        // then
+        assertThat(batches).containsExactly(List.of(1));
+    }
+}
@@ -0,0 +1,228 @@
+package com.mercateo.sqs.utils.message.handling;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.GenericMessage;
+
+class MessageFlowAdapterTest {
+
+    @Mock
+    private LongRunningMessageHandler<Integer, String> handler;
+
+    @Mock
+    private Flow.Subscription subscription;
+
+    private MessageOutcomeListener<Integer, String> outcomeListener;
+
+    private MessageFlowAdapter<Integer, String> uut;
+
+    @SuppressWarnings("unchecked")
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        uut = new MessageFlowAdapter<>(handler, Runnable::run, 16);
+        ArgumentCaptor<MessageOutcomeListener<Integer, String>> captor = ArgumentCaptor.forClass(
+                MessageOutcomeListener.class);
+        verify(handler).setOutcomeListener(captor.capture());
+        outcomeListener = captor.getValue();
+    }
+
+    @Test
+    void testOnSubscribe_requestsFreeCapacity() {
+        // given
+        when(handler.getFreeWorkerCapacity()).thenReturn(4);
+
+        // when
+        uut.onSubscribe(subscription);
+
+        // then
+        verify(subscription).request(4);
+    }
+
+    @Test
+    void testOnSubscribe_cancelsSecondSubscription() {
+        // given
+        Flow.Subscription second = mock(Flow.Subscription.class);
+        uut.onSubscribe(subscription);
+
+        // when
+        uut.onSubscribe(second);
+
+        // then
+        verify(second).cancel();
+    }
+
+    @Test
+    void testOnNext_submitsMessageAndRequestsMoreWhenWorkerIsFree() {
+        // given
+        Message<Integer> message = new GenericMessage<>(1);
+        when(handler.getFreeWorkerCapacity()).thenReturn(1);
+        when(handler.submitMessage(message)).thenReturn(true);
+        uut.onSubscribe(subscription);
+
+        // when
+        uut.onNext(message);
+        outcomeListener.onOutcome(new MessageOutcome<>(MessageOutcome.Status.PROCESSED, message, "1", null));
+
+        // then
+        verify(handler).submitMessage(message);
+        verify(subscription, times(2)).request(1);
+    }
+
+    @Test
+    void testOnNext_requestsReplacementForDuplicate() {
+        // given
+        Message<Integer> message = new GenericMessage<>(1);
+        when(handler.getFreeWorkerCapacity()).thenReturn(1);
+        when(handler.submitMessage(message)).thenReturn(false);
+        uut.onSubscribe(subscription);
+
+        // when
+        uut.onNext(message);
+
+        // then
+        verify(subscription, times(2)).request(1);
+    }
+
+    @Test
+    void testGetOutcomes_publishesOutcomesAndCompletesAfterInFlightMessages() {
+        // given
+        Message<Integer> message = new GenericMessage<>(1);
+        when(handler.getFreeWorkerCapacity()).thenReturn(1);
+        when(handler.submitMessage(any())).thenReturn(true);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        uut.getOutcomes().subscribe(subscriber);
+        uut.onSubscribe(subscription);
+        uut.onNext(message);
+
+        // when
+        uut.onComplete();
+
+        // then
+        assertThat(subscriber.completed).isFalse();
+
+        // when
+        outcomeListener.onOutcome(new MessageOutcome<>(MessageOutcome.Status.PROCESSED, message, "1", null));
+
+        // then
+        assertThat(subscriber.outcomes).extracting(MessageOutcome::getOutput).containsExactly("1");
+        assertThat(subscriber.completed).isTrue();
+    }
+
+    @Test
+    void testGetOutcomes_keepsOpenWhileMessagesAreInFlightAfterAFastOutcome() {
+        // given
+        Message<Integer> fast = new GenericMessage<>(1);
+        Message<Integer> slow = new GenericMessage<>(2);
+        when(handler.getFreeWorkerCapacity()).thenReturn(2);
+        when(handler.submitMessage(slow)).thenReturn(true);
+        when(handler.submitMessage(fast)).thenAnswer(invocation -> {
+            // the worker finishes before submitMessage returns
+            outcomeListener.onOutcome(new MessageOutcome<>(MessageOutcome.Status.PROCESSED, fast, "1", null));
+            return true;
+        });
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        uut.getOutcomes().subscribe(subscriber);
+        uut.onSubscribe(subscription);
+        uut.onNext(slow);
+        uut.cancel();
+
+        // when
+        uut.onNext(fast);
+
+        // then
+        assertThat(subscriber.completed).isFalse();
+
+        // when
+        outcomeListener.onOutcome(new MessageOutcome<>(MessageOutcome.Status.PROCESSED, slow, "2", null));
+
+        // then
+        assertThat(subscriber.outcomes).extracting(MessageOutcome::getOutput).containsExactly("1", "2");
+        assertThat(subscriber.completed).isTrue();
+    }
+
+    @Test
+    void testGetOutcomes_keepsOpenUntilALateAcknowledgementHasBeenPublished() {
+        // given
+        Message<Integer> message = new GenericMessage<>(1);
+        MessageWrapper<Integer> messageWrapper = new MessageWrapper<>(message);
+        CompletableFuture<Void> acknowledgement = new CompletableFuture<>();
+        MessageAcknowledger acknowledger = mock(MessageAcknowledger.class);
+        when(acknowledger.acknowledge(any(), any())).thenReturn(acknowledgement);
+        when(handler.getFreeWorkerCapacity()).thenReturn(1);
+        when(handler.submitMessage(message)).thenAnswer(invocation -> {
+            new MessageHandlingRunnable<>((Integer payload, MessageHeaders headers) -> "1", messageWrapper,
+                    (payload, output) -> {
+                    }, mock(SetWithUpperBound.class), mock(Future.class), mock(ErrorHandlingStrategy.class),
+                    CompletionOptions.<Integer, String> builder()
+                            .messageAcknowledger(acknowledger)
+                            .outcomeListener(outcomeListener)
+                            .build()).run();
+            return true;
+        });
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        uut.getOutcomes().subscribe(subscriber);
+        uut.onSubscribe(subscription);
+        uut.onNext(message);
+
+        // when
+        uut.onComplete();
+
+        // then
+        assertThat(subscriber.outcomes).extracting(MessageOutcome::getStatus).containsExactly(
+                MessageOutcome.Status.PROCESSED);
+        assertThat(subscriber.completed).isFalse();
+
+        // when
+        acknowledgement.complete(null);
+
+        // then
+        assertThat(subscriber.outcomes).extracting(MessageOutcome::getStatus).containsExactly(
+                MessageOutcome.Status.PROCESSED, MessageOutcome.Status.ACKNOWLEDGED);
+        assertThat(subscriber.completed).isTrue();
+    }
+
+    private static class RecordingSubscriber implements Flow.Subscriber<MessageOutcome<Integer, String>> {
+
+        private final List<MessageOutcome<Integer, String>> outcomes = new ArrayList<>();
+
+        private boolean completed;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(MessageOutcome<Integer, String> item) {
+            outcomes.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}
@@ -2,14 +2,20 @@ package com.mercateo.sqs.utils.message.handling;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 import com.google.common.testing.NullPointerTester;
+import com.mercateo.sqs.utils.metrics.MessageMetrics;
 
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
@@ -19,6 +25,7 @@ import io.awspring.cloud.sqs.MessagingHeaders;
 import io.awspring.cloud.sqs.listener.acknowledgement.AcknowledgementCallback;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.springframework.messaging.MessageHeaders;
@@ -130,4 +137,250 @@ class MessageHandlingRunnableTest {
         verify(visibilityTimeoutExtender).cancel(false);
         verify(messages).remove(messageGeneratedUUID.toString());
     }
-}
\ No newline at end of file
+
+    @Test
+    void testRun_handsOverToMessageAcknowledger() throws Throwable {
+        // given
+        MessageAcknowledger messageAcknowledger = mock(MessageAcknowledger.class);
+        uut = new MessageHandlingRunnable<>(worker, message, finishedMessageCallback, messages,
+                visibilityTimeoutExtender, errorHandlingStrategy, CompletionOptions.<Integer, String> builder()
+                        .messageAcknowledger(messageAcknowledger)
+                        .build());
+        when(worker.work(3, message.getMessage().getHeaders())).thenReturn("3S");
+
+        // when
+        uut.run();
+
+        // then
+        verify(messageAcknowledger).acknowledge(message, errorHandlingStrategy);
+        verifyNoInteractions(acknowledgment);
+        verify(visibilityTimeoutExtender).cancel(false);
+        verify(messages).remove(messageGeneratedUUID.toString());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void testRun_publishesOutcomes() throws Throwable {
+        // given
+        MessageOutcomeListener<Integer, String> outcomeListener = mock(MessageOutcomeListener.class);
+        uut = new MessageHandlingRunnable<>(worker, message, finishedMessageCallback, messages,
+                visibilityTimeoutExtender, errorHandlingStrategy, CompletionOptions.<Integer, String> builder()
+                        .outcomeListener(outcomeListener)
+                        .build());
+        when(worker.work(3, message.getMessage().getHeaders())).thenReturn("3S");
+        when(acknowledgment.onAcknowledge(message.getMessage()))
+                .thenReturn(mock(CompletableFuture.class));
+
+        // when
+        uut.run();
+
+        // then
+        verify(outcomeListener).onOutcome(new MessageOutcome<>(MessageOutcome.Status.ACKNOWLEDGED, message
+                .getMessage(), null, null));
+        verify(outcomeListener).onOutcome(new MessageOutcome<>(MessageOutcome.Status.PROCESSED, message
+                .getMessage(), "3S", null));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void testRun_publishesFailure() throws Throwable {
+        // given
+        MessageOutcomeListener<Integer, String> outcomeListener = mock(MessageOutcomeListener.class);
+        uut = new MessageHandlingRunnable<>(worker, message, finishedMessageCallback, messages,
+                visibilityTimeoutExtender, errorHandlingStrategy, CompletionOptions.<Integer, String> builder()
+                        .outcomeListener(outcomeListener)
+                        .build());
+        Exception e = new IllegalArgumentException();
+        doThrow(e).when(worker).work(3, message.getMessage().getHeaders());
+        doThrow(e).when(errorHandlingStrategy).handleWorkerException(e, message);
+
+        // when
+        catchThrowable(() -> uut.run());
+
+        // then
+        verify(outcomeListener).onOutcome(new MessageOutcome<>(MessageOutcome.Status.FAILED, message
+                .getMessage(), null, e));
+    }
+
+    @Test
+    void testRun_reportsLifecycleToMetrics() throws Throwable {
+        // given
+        MessageMetrics metrics = mock(MessageMetrics.class);
+        MessageAcknowledger acknowledger = mock(MessageAcknowledger.class);
+        when(acknowledger.acknowledge(message, errorHandlingStrategy)).thenReturn(CompletableFuture
+                .completedFuture(null));
+        uut = new MessageHandlingRunnable<>(worker, message, finishedMessageCallback, messages,
+                visibilityTimeoutExtender, errorHandlingStrategy, CompletionOptions.<Integer, String> builder()
+                        .messageAcknowledger(acknowledger)
+                        .metrics(metrics)
+                        .build());
+        when(worker.work(3, message.getMessage().getHeaders())).thenReturn("3S");
+        message.incrementVisibilityExtensions();
+
+        // when
+        uut.run();
+
+        // then
+        verify(metrics).onStarted(anyLong());
+        verify(metrics).onWorked(anyLong(), eq(true));
+        verify(metrics).onFinishedMessageCallback(anyLong());
+        verify(metrics).onAcknowledged(anyLong(), eq(true));
+        verify(metrics).onCompleted(1);
+    }
+
+    @Test
+    void testRun_reportsFailedWork() throws Throwable {
+        // given
+        MessageMetrics metrics = mock(MessageMetrics.class);
+        uut = new MessageHandlingRunnable<>(worker, message, finishedMessageCallback, messages,
+                visibilityTimeoutExtender, errorHandlingStrategy, CompletionOptions.<Integer, String> builder()
+                        .metrics(metrics)
+                        .build());
+        when(worker.work(3, message.getMessage().getHeaders())).thenThrow(new IllegalArgumentException());
+        when(acknowledgment.onAcknowledge(message.getMessage())).thenReturn(CompletableFuture.completedFuture(
+                null));
+
+        // when
+        uut.run();
+
+        // then
+        verify(metrics).onWorked(anyLong(), eq(false));
+        verify(metrics, never()).onFinishedMessageCallback(anyLong());
+        verify(metrics).onAcknowledged(anyLong(), eq(true));
+        verify(metrics).onCompleted(0);
+    }
+
+    @Test
+    void testRun_remembersAcknowledgedMessage() throws Throwable {
+        // given
+        RecentlyCompletedMessages completedMessages = new RecentlyCompletedMessages(10, Duration.ofMinutes(1));
+        uut = new MessageHandlingRunnable<>(worker, message, finishedMessageCallback, messages,
+                visibilityTimeoutExtender, errorHandlingStrategy, CompletionOptions.<Integer, String> builder()
+                        .completedMessages(completedMessages)
+                        .build());
+        when(worker.work(3, message.getMessage().getHeaders())).thenReturn("3S");
+        when(acknowledgment.onAcknowledge(message.getMessage())).thenReturn(CompletableFuture.completedFuture(
+                null));
+
+        // when
+        uut.run();
+
+        // then
+        assertThat(completedMessages.contains(message.getMessageId())).isTrue();
+    }
+
+    @Test
+    void testRun_doesNotRememberUnacknowledgedMessage() throws Throwable {
+        // given
+        RecentlyCompletedMessages completedMessages = new RecentlyCompletedMessages(10, Duration.ofMinutes(1));
+        uut = new MessageHandlingRunnable<>(worker, message, finishedMessageCallback, messages,
+                visibilityTimeoutExtender, errorHandlingStrategy, CompletionOptions.<Integer, String> builder()
+                        .completedMessages(completedMessages)
+                        .build());
+        Exception e = new IllegalArgumentException();
+        doThrow(e).when(worker).work(3, message.getMessage().getHeaders());
+        doThrow(e).when(errorHandlingStrategy).handleWorkerException(e, message);
+
+        // when
+        catchThrowable(() -> uut.run());
+
+        // then
+        assertThat(completedMessages.contains(message.getMessageId())).isFalse();
+    }
+
+    @Test
+    void testRun_runsHookAfterAcknowledgement() throws Throwable {
+        // given
+        Runnable onAcknowledged = mock(Runnable.class);
+        HashMap<String, Object> headerMap = new HashMap<>(message.getMessage().getHeaders());
+        headerMap.put(MessageHandlingRunnable.ON_ACKNOWLEDGED_HEADER, onAcknowledged);
+        message = new MessageWrapper<>(new GenericMessage<>(3, new MessageHeaders(headerMap)));
+        uut = new MessageHandlingRunnable<>(worker, message, finishedMessageCallback, messages,
+                visibilityTimeoutExtender, errorHandlingStrategy);
+        when(worker.work(3, message.getMessage().getHeaders())).thenReturn("3S");
+        when(acknowledgment.onAcknowledge(message.getMessage())).thenReturn(CompletableFuture.completedFuture(
+                null));
+
+        // when
+        uut.run();
+
+        // then
+        verify(onAcknowledged).run();
+    }
+
+    @Test
+    void testRun_skipsWorkerAndAcknowledgementAfterLostLease() throws Throwable {
+        // given
+        message.loseLease(new IllegalStateException("receipt handle invalid"));
+
+        // when
+        uut.run();
+
+        // then
+        verifyNoInteractions(worker);
+        verifyNoInteractions(finishedMessageCallback);
+        verifyNoInteractions(acknowledgment);
+        verify(messages).remove(messageGeneratedUUID.toString());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void testRun_interruptsWorkerWhenLeaseIsLost() throws Throwable {
+        // given
+        MessageOutcomeListener<Integer, String> outcomeListener = mock(MessageOutcomeListener.class);
+        uut = new MessageHandlingRunnable<>(worker, message, finishedMessageCallback, messages,
+                visibilityTimeoutExtender, errorHandlingStrategy, CompletionOptions.<Integer, String> builder()
+                        .outcomeListener(outcomeListener)
+                        .build());
+        when(worker.work(3, message.getMessage().getHeaders())).thenAnswer(invocation -> {
+            message.loseLease(new IllegalStateException("receipt handle invalid"));
+            Thread.sleep(10_000);
+            return "3S";
+        });
+
+        // when
+        long start = System.nanoTime();
+        uut.run();
+
+        // then
+        assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofSeconds(5));
+        assertThat(Thread.currentThread().isInterrupted()).isFalse();
+        verifyNoInteractions(finishedMessageCallback);
+        verifyNoInteractions(acknowledgment);
+        verify(errorHandlingStrategy, never()).handleWorkerException(any(), any());
+        verify(messages).remove(messageGeneratedUUID.toString());
+        ArgumentCaptor<MessageOutcome<Integer, String>> captor = ArgumentCaptor.forClass(MessageOutcome.class);
+        verify(outcomeListener).onOutcome(captor.capture());
+        assertThat(captor.getValue().getFailure()).isInstanceOf(LeaseLostException.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void testRun_interruptsWorkerAndDiscardsResultAfterDeadline() throws Throwable {
+        // given
+        MessageOutcomeListener<Integer, String> outcomeListener = mock(MessageOutcomeListener.class);
+        uut = new MessageHandlingRunnable<>(worker, message, finishedMessageCallback, messages,
+                visibilityTimeoutExtender, errorHandlingStrategy, CompletionOptions.<Integer, String> builder()
+                        .outcomeListener(outcomeListener)
+                        .build());
+        when(worker.work(3, message.getMessage().getHeaders())).thenAnswer(invocation -> {
+            message.exceedDeadline(new DeadlineExceededException(messageGeneratedUUID.toString(), Duration
+                    .ofSeconds(1)));
+            Thread.sleep(10_000);
+            return "3S";
+        });
+
+        // when
+        long start = System.nanoTime();
+        uut.run();
+
+        // then
+        assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofSeconds(5));
+        assertThat(Thread.currentThread().isInterrupted()).isFalse();
+        verifyNoInteractions(errorHandlingStrategy);
+        verifyNoInteractions(finishedMessageCallback);
+        verifyNoInteractions(acknowledgment);
+        verifyNoInteractions(outcomeListener);
+        verify(messages).remove(messageGeneratedUUID.toString());
+    }
+}
@@ -0,0 +1,146 @@
+package com.mercateo.sqs.utils.message.handling;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.testing.NullPointerTester;
+
+import io.awspring.cloud.sqs.listener.SqsHeaders;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.GenericMessage;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityResponse;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageResponse;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageResponse;
+
+class MessageRetrierTest {
+
+    @Mock
+    private SqsAsyncClient sqsClient;
+
+    private MessageRetrier uut;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        uut = new MessageRetrier(new RetryPolicy(Duration.ofSeconds(10), Duration.ofMinutes(10), 3, "dlq",
+                () -> 1.0), sqsClient);
+        when(sqsClient.changeMessageVisibility(any(ChangeMessageVisibilityRequest.class))).thenReturn(
+                CompletableFuture.completedFuture(ChangeMessageVisibilityResponse.builder().build()));
+        when(sqsClient.sendMessage(any(SendMessageRequest.class))).thenReturn(CompletableFuture.completedFuture(
+                SendMessageResponse.builder().build()));
+        when(sqsClient.deleteMessage(any(DeleteMessageRequest.class))).thenReturn(CompletableFuture
+                .completedFuture(DeleteMessageResponse.builder().build()));
+    }
+
+    @Test
+    void testNullContracts() {
+        // given
+        NullPointerTester nullPointerTester = new NullPointerTester();
+        nullPointerTester.setDefault(MessageWrapper.class, createMessage("1", null));
+
+        // when
+        nullPointerTester.testInstanceMethods(uut, NullPointerTester.Visibility.PACKAGE);
+    }
+
+    @Test
+    void testRetry_delaysMessageByTheBackoffForItsReceiveCount() {
+        // when
+        uut.retry("queue", createMessage("2", null)).join();
+
+        // then
+        ArgumentCaptor<ChangeMessageVisibilityRequest> captor = ArgumentCaptor.forClass(
+                ChangeMessageVisibilityRequest.class);
+        verify(sqsClient).changeMessageVisibility(captor.capture());
+        assertThat(captor.getValue().queueUrl()).isEqualTo("queue");
+        assertThat(captor.getValue().receiptHandle()).isEqualTo("rhd");
+        assertThat(captor.getValue().visibilityTimeout()).isEqualTo(20);
+        verify(sqsClient, never()).sendMessage(any(SendMessageRequest.class));
+    }
+
+    @Test
+    void testRetry_movesExhaustedMessageToDeadLetterQueue() {
+        // given
+        software.amazon.awssdk.services.sqs.model.Message source = software.amazon.awssdk.services.sqs.model.Message
+                .builder()
+                .messageId("mid")
+                .body("body")
+                .attributes(Map.of(MessageSystemAttributeName.MESSAGE_GROUP_ID, "group"))
+                .build();
+
+        // when
+        uut.retry("queue", createMessage("3", source)).join();
+
+        // then
+        ArgumentCaptor<SendMessageRequest> captor = ArgumentCaptor.forClass(SendMessageRequest.class);
+        verify(sqsClient).sendMessage(captor.capture());
+        assertThat(captor.getValue().queueUrl()).isEqualTo("dlq");
+        assertThat(captor.getValue().messageBody()).isEqualTo("body");
+        assertThat(captor.getValue().messageGroupId()).isEqualTo("group");
+        assertThat(captor.getValue().messageDeduplicationId()).isEqualTo("mid");
+        ArgumentCaptor<DeleteMessageRequest> deleteCaptor = ArgumentCaptor.forClass(DeleteMessageRequest.class);
+        verify(sqsClient).deleteMessage(deleteCaptor.capture());
+        assertThat(deleteCaptor.getValue().queueUrl()).isEqualTo("queue");
+        assertThat(deleteCaptor.getValue().receiptHandle()).isEqualTo("rhd");
+        verify(sqsClient, never()).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+    }
+
+    @Test
+    void testRetry_delaysExhaustedMessageByTheMaximumDelayWithoutDeadLetterQueue() {
+        // given
+        uut = new MessageRetrier(new RetryPolicy(Duration.ofSeconds(10), Duration.ofMinutes(10), 3, null,
+                () -> 0.0), sqsClient);
+
+        // when
+        uut.retry("queue", createMessage("3", null)).join();
+
+        // then
+        ArgumentCaptor<ChangeMessageVisibilityRequest> captor = ArgumentCaptor.forClass(
+                ChangeMessageVisibilityRequest.class);
+        verify(sqsClient).changeMessageVisibility(captor.capture());
+        assertThat(captor.getValue().visibilityTimeout()).isEqualTo(600);
+    }
+
+    @Test
+    void testRetry_keepsMessageWhenSendingToDeadLetterQueueFails() {
+        // given
+        when(sqsClient.sendMessage(any(SendMessageRequest.class))).thenReturn(CompletableFuture.failedFuture(
+                new IllegalStateException("unavailable")));
+
+        // when
+        CompletableFuture<Void> result = uut.retry("queue", createMessage("3", null));
+
+        // then
+        assertThat(result).isCompleted();
+        verify(sqsClient, never()).deleteMessage(any(DeleteMessageRequest.class));
+    }
+
+    private MessageWrapper<String> createMessage(String receiveCount,
+            software.amazon.awssdk.services.sqs.model.Message source) {
+        HashMap<String, Object> headerMap = new HashMap<>();
+        headerMap.put("ReceiptHandle", "rhd");
+        headerMap.put(SqsHeaders.MessageSystemAttributes.SQS_APPROXIMATE_RECEIVE_COUNT, receiveCount);
+        if (source != null) {
+            headerMap.put(SqsHeaders.SQS_SOURCE_DATA_HEADER, source);
+        }
+        return new MessageWrapper<>(new GenericMessage<>("payload", new MessageHeaders(headerMap)));
+    }
+}
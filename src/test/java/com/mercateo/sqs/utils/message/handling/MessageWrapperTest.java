@@ -0,0 +1,142 @@
+package com.mercateo.sqs.utils.message.handling;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.awspring.cloud.sqs.MessagingHeaders;
+import io.awspring.cloud.sqs.listener.acknowledgement.AcknowledgementCallback;
+
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.GenericMessage;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
+
+class MessageWrapperTest {
+
+    private AcknowledgementCallback<String> acknowledgementCallback;
+
+    private MessageWrapper<String> uut;
+
+    @SuppressWarnings("unchecked")
+    @BeforeEach
+    void setUp() {
+        acknowledgementCallback = mock(AcknowledgementCallback.class);
+        HashMap<String, Object> headers = new HashMap<>();
+        headers.put("id", UUID.fromString("bf308aa2-bf48-49b8-a839-61611c710430"));
+        headers.put("ReceiptHandle", "rhd");
+        headers.put(MessagingHeaders.ACKNOWLEDGMENT_CALLBACK_HEADER, acknowledgementCallback);
+        uut = new MessageWrapper<>(new GenericMessage<>("payload", new MessageHeaders(headers)));
+    }
+
+    @Test
+    void testStart_failsForReleasedMessage() {
+        // given
+        assertThat(uut.release()).isTrue();
+
+        // when
+        boolean result = uut.start();
+
+        // then
+        assertThat(result).isFalse();
+        assertThat(uut.getState()).isEqualTo(MessageWrapper.State.RELEASED);
+        assertThat(uut.isActive()).isFalse();
+    }
+
+    @Test
+    void testRelease_failsForStartedMessage() {
+        // given
+        assertThat(uut.start()).isTrue();
+
+        // when
+        boolean result = uut.release();
+
+        // then
+        assertThat(result).isFalse();
+        assertThat(uut.getState()).isEqualTo(MessageWrapper.State.RUNNING);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void testChangeMessageVisibilityAsync_skipsPendingAcknowledgementWithoutWaiting() {
+        // given
+        CompletableFuture<Void> deletion = new CompletableFuture<>();
+        when(acknowledgementCallback.onAcknowledge(any(Message.class))).thenReturn(deletion);
+        SqsAsyncClient sqsClient = mock(SqsAsyncClient.class);
+        uut.start();
+        Thread acknowledging = new Thread(uut::acknowledge);
+        acknowledging.start();
+        await().until(() -> uut.getState() == MessageWrapper.State.ACKING);
+
+        // when
+        CompletableFuture<?> result = uut.changeMessageVisibilityAsync(sqsClient, ChangeMessageVisibilityRequest
+                .builder().build());
+
+        // then
+        assertThat(result).isCompletedWithValue(null);
+        verify(sqsClient, never()).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+        assertThat(uut.isAcknowledged()).isTrue();
+
+        // when
+        deletion.complete(null);
+
+        // then
+        await().until(() -> !acknowledging.isAlive());
+        assertThat(uut.getState()).isEqualTo(MessageWrapper.State.DONE);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void testAcknowledge_failedDeletionReactivatesMessage() {
+        // given
+        when(acknowledgementCallback.onAcknowledge(any(Message.class))).thenReturn(CompletableFuture
+                .failedFuture(new IllegalStateException("failed")));
+        uut.start();
+
+        // when
+        Throwable result = catchThrowable(uut::acknowledge);
+
+        // then
+        assertThat(result).hasRootCauseInstanceOf(IllegalStateException.class);
+        assertThat(uut.getState()).isEqualTo(MessageWrapper.State.RUNNING);
+        assertThat(uut.isActive()).isTrue();
+    }
+
+    @Test
+    void testAcknowledge_rejectsReleasedMessage() {
+        // given
+        uut.release();
+
+        // when
+        Throwable result = catchThrowable(uut::acknowledge);
+
+        // then
+        assertThat(result).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void testMarkAcknowledged_keepsReleasedMessage() {
+        // given
+        uut.start();
+        uut.abandon();
+
+        // when
+        uut.markAcknowledged();
+
+        // then
+        assertThat(uut.getState()).isEqualTo(MessageWrapper.State.RELEASED);
+        assertThat(uut.isAcknowledged()).isFalse();
+    }
+}
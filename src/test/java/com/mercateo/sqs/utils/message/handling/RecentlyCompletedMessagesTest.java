@@ -0,0 +1,111 @@
+package com.mercateo.sqs.utils.message.handling;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+import com.google.common.testing.NullPointerTester;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class RecentlyCompletedMessagesTest {
+
+    private final AtomicLong nanoTime = new AtomicLong();
+
+    private final RecentlyCompletedMessages uut = new RecentlyCompletedMessages(4, Duration.ofSeconds(10),
+            nanoTime::get);
+
+    @Test
+    void testNullContracts() {
+        // given
+        NullPointerTester nullPointerTester = new NullPointerTester();
+
+        // when
+        nullPointerTester.testInstanceMethods(uut, NullPointerTester.Visibility.PACKAGE);
+    }
+
+    @Test
+    void testConstructor_rejectsInvalidCapacity() {
+        // when
+        Throwable result = catchThrowable(() -> new RecentlyCompletedMessages(0, Duration.ofSeconds(10)));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testContains_findsAddedMessages() {
+        // when
+        uut.add("a");
+        uut.add("b");
+
+        // then
+        assertThat(uut.contains("a")).isTrue();
+        assertThat(uut.contains("b")).isTrue();
+        assertThat(uut.contains("c")).isFalse();
+    }
+
+    @Test
+    void testContains_remembersMessagesForAtLeastTheWindow() {
+        // given
+        uut.add("a");
+
+        // when
+        nanoTime.set(Duration.ofSeconds(19).toNanos());
+
+        // then
+        assertThat(uut.contains("a")).isTrue();
+    }
+
+    @Test
+    void testContains_forgetsMessagesAfterTwoWindows() {
+        // given
+        uut.add("a");
+        nanoTime.set(Duration.ofSeconds(10).toNanos());
+        uut.add("b");
+
+        // when
+        nanoTime.set(Duration.ofSeconds(20).toNanos());
+
+        // then
+        assertThat(uut.contains("a")).isFalse();
+        assertThat(uut.contains("b")).isTrue();
+
+        // when
+        nanoTime.set(Duration.ofSeconds(40).toNanos());
+
+        // then
+        assertThat(uut.contains("b")).isFalse();
+    }
+
+    @Test
+    void testAdd_forgetsOldestMessagesBeyondTheCapacity() {
+        // when
+        for (int i = 0; i < 9; i++) {
+            uut.add("message" + i);
+        }
+
+        // then
+        assertThat(uut.contains("message0")).isFalse();
+        for (int i = 4; i < 9; i++) {
+            assertThat(uut.contains("message" + i)).isTrue();
+        }
+    }
+
+    @Test
+    void testAdd_ignoresMessagesThatAreAlreadyKnown() {
+        // when
+        for (int i = 0; i < 10; i++) {
+            uut.add("a");
+        }
+        uut.add("b");
+        uut.add("c");
+        uut.add("d");
+
+        // then
+        assertThat(uut.contains("a")).isTrue();
+        assertThat(uut.contains("d")).isTrue();
+    }
+}
@@ -0,0 +1,76 @@
+package com.mercateo.sqs.utils.message.handling;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+class RetryPolicyTest {
+
+    @Test
+    void testGetDelay_doublesWithEveryReceiveUpToTheMaximum() {
+        // given
+        RetryPolicy uut = new RetryPolicy(Duration.ofSeconds(10), Duration.ofSeconds(60), 5, null, () -> 1.0);
+
+        // then
+        assertThat(uut.getDelay(1)).isEqualTo(Duration.ofSeconds(10));
+        assertThat(uut.getDelay(2)).isEqualTo(Duration.ofSeconds(20));
+        assertThat(uut.getDelay(3)).isEqualTo(Duration.ofSeconds(40));
+        assertThat(uut.getDelay(4)).isEqualTo(Duration.ofSeconds(60));
+        assertThat(uut.getDelay(Integer.MAX_VALUE)).isEqualTo(Duration.ofSeconds(60));
+    }
+
+    @Test
+    void testGetDelay_randomizesTheUpperHalf() {
+        // given
+        RetryPolicy uut = new RetryPolicy(Duration.ofSeconds(10), Duration.ofSeconds(60), 5, null, () -> 0.0);
+
+        // when
+        Duration result = uut.getDelay(2);
+
+        // then
+        assertThat(result).isEqualTo(Duration.ofSeconds(10));
+    }
+
+    @Test
+    void testIsExhausted() {
+        // given
+        RetryPolicy uut = new RetryPolicy(Duration.ofSeconds(1), Duration.ofSeconds(1), 3, "dlq");
+
+        // then
+        assertThat(uut.isExhausted(2)).isFalse();
+        assertThat(uut.isExhausted(3)).isTrue();
+    }
+
+    @Test
+    void testConstructor_rejectsBaseDelayAboveMaxDelay() {
+        // when
+        Throwable result = catchThrowable(() -> new RetryPolicy(Duration.ofSeconds(2), Duration.ofSeconds(1), 3,
+                null));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testConstructor_rejectsMaxDelayAboveTwelveHours() {
+        // when
+        Throwable result = catchThrowable(() -> new RetryPolicy(Duration.ofSeconds(1), Duration.ofHours(13), 3,
+                null));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testConstructor_rejectsZeroAttempts() {
+        // when
+        Throwable result = catchThrowable(() -> new RetryPolicy(Duration.ofSeconds(1), Duration.ofSeconds(1), 0,
+                null));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class);
+    }
+}
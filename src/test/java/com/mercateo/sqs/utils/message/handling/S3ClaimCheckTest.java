@@ -0,0 +1,198 @@
+package com.mercateo.sqs.utils.message.handling;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.testing.NullPointerTester;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+class S3ClaimCheckTest {
+
+    private final InMemoryS3AsyncClient s3Client = new InMemoryS3AsyncClient();
+
+    private final S3ClaimCheck uut = new S3ClaimCheck(s3Client, true);
+
+    @Test
+    void testNullContracts() {
+        // given
+        NullPointerTester nullPointerTester = new NullPointerTester();
+
+        // when
+        nullPointerTester.testInstanceMethods(uut, NullPointerTester.Visibility.PACKAGE);
+        nullPointerTester.testAllPublicConstructors(uut.getClass());
+    }
+
+    @Test
+    void testClaim_ignoresRegularMessages() {
+        // when
+        S3ClaimCheck.Claim result = uut.claim(createSqsMessage("{\"some\":\"payload\"}"));
+
+        // then
+        assertThat(result).isNull();
+        assertThat(s3Client.getDownloads()).isZero();
+    }
+
+    @Test
+    void testClaim_downloadsReferencedObject() throws Exception {
+        // given
+        s3Client.putObject("bucket", "key", "large payload");
+
+        // when
+        S3ClaimCheck.Claim result = uut.claim(createSqsMessage(pointer("bucket", "key")));
+
+        // then
+        assertThat(s3Client.getDownloads()).isEqualTo(1);
+        assertThat(read(result)).isEqualTo("large payload");
+    }
+
+    @Test
+    void testClaim_prefetchesAtMostTheMaximumNumberOfObjects() throws Exception {
+        // given
+        s3Client.putObject("bucket", "key", "large payload");
+        S3ClaimCheck uut = new S3ClaimCheck(s3Client, true, 1);
+        uut.claim(createSqsMessage(pointer("bucket", "key")));
+
+        // when
+        S3ClaimCheck.Claim result = uut.claim(createSqsMessage(pointer("bucket", "key")));
+
+        // then
+        assertThat(s3Client.getDownloads()).isEqualTo(1);
+        assertThat(read(result)).isEqualTo("large payload");
+        assertThat(s3Client.getDownloads()).isEqualTo(2);
+    }
+
+    @Test
+    void testGetBody_returnsThePrefetch() throws Exception {
+        // given
+        s3Client.putObject("bucket", "key", "large payload");
+        S3ClaimCheck uut = new S3ClaimCheck(s3Client, true, 1);
+        read(uut.claim(createSqsMessage(pointer("bucket", "key"))));
+
+        // when
+        uut.claim(createSqsMessage(pointer("bucket", "key")));
+
+        // then
+        assertThat(s3Client.getDownloads()).isEqualTo(2);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void testCancel_abortsTheDownloadAndReturnsThePrefetch() {
+        // given
+        AtomicBoolean aborted = new AtomicBoolean();
+        S3AsyncClient client = mock(S3AsyncClient.class);
+        when(client.getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class))).thenReturn(
+                CompletableFuture.completedFuture(new ResponseInputStream<>(GetObjectResponse.builder().build(),
+                        AbortableInputStream.create(new ByteArrayInputStream(new byte[0]), () -> aborted.set(
+                                true)))));
+        S3ClaimCheck uut = new S3ClaimCheck(client, true, 1);
+        S3ClaimCheck.Claim claim = uut.claim(createSqsMessage(pointer("bucket", "key")));
+
+        // when
+        claim.cancel();
+        uut.claim(createSqsMessage(pointer("bucket", "key")));
+
+        // then
+        assertThat(aborted).isTrue();
+        verify(client, times(2)).getObject(any(GetObjectRequest.class), any(AsyncResponseTransformer.class));
+    }
+
+    @Test
+    void testConstructor_rejectsNegativePrefetches() {
+        // when
+        Throwable result = catchThrowable(() -> new S3ClaimCheck(s3Client, true, -1));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testClaim_failsForMissingObject() {
+        // given
+        S3ClaimCheck.Claim claim = uut.claim(createSqsMessage(pointer("bucket", "missing")));
+
+        // when
+        Throwable result = catchThrowable(claim::getBody);
+
+        // then
+        assertThat(result).isInstanceOf(NoSuchKeyException.class);
+    }
+
+    @Test
+    void testClaim_failsForInvalidPointer() {
+        // given
+        S3ClaimCheck.Claim claim = uut.claim(createSqsMessage("[\"" + S3ClaimCheck.POINTER_CLASS + "\",{}]"));
+
+        // when
+        Throwable result = catchThrowable(claim::getBody);
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class);
+        assertThat(s3Client.getDownloads()).isZero();
+    }
+
+    @Test
+    void testRelease_deletesObject() {
+        // given
+        s3Client.putObject("bucket", "key", "large payload");
+        S3ClaimCheck.Claim claim = uut.claim(createSqsMessage(pointer("bucket", "key")));
+
+        // when
+        claim.release();
+
+        // then
+        assertThat(s3Client.containsObject("bucket", "key")).isFalse();
+    }
+
+    @Test
+    void testRelease_keepsObjectIfNotConfigured() {
+        // given
+        s3Client.putObject("bucket", "key", "large payload");
+        S3ClaimCheck.Claim claim = new S3ClaimCheck(s3Client, false).claim(createSqsMessage(pointer("bucket",
+                "key")));
+
+        // when
+        claim.release();
+
+        // then
+        assertThat(s3Client.containsObject("bucket", "key")).isTrue();
+    }
+
+    private static String read(S3ClaimCheck.Claim claim) throws Exception {
+        try (InputStream body = claim.getBody()) {
+            return new String(body.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    static String pointer(String bucket, String key) {
+        return "[\"" + S3ClaimCheck.POINTER_CLASS + "\",{\"s3BucketName\":\"" + bucket + "\",\"s3Key\":\"" + key
+                + "\"}]";
+    }
+
+    private static software.amazon.awssdk.services.sqs.model.Message createSqsMessage(String body) {
+        return software.amazon.awssdk.services.sqs.model.Message.builder()
+                .messageId("bf308aa2-bf48-49b8-a839-61611c710430")
+                .receiptHandle("rhd")
+                .body(body)
+                .build();
+    }
+}
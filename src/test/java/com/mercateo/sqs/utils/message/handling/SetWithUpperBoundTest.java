@@ -1,9 +1,11 @@
 package com.mercateo.sqs.utils.message.handling;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
 
 import com.google.common.testing.NullPointerTester;
 
+import java.time.Duration;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -77,16 +79,17 @@ public class SetWithUpperBoundTest {
         setWithUpperBound.add("hi3");
 
         // when
-        new Thread(() -> {
-            waitingThreadsToBeStarted.countDown();
-            setWithUpperBound.waitUntilAtLeastOneFree();
-            waitingThreads.countDown();
-        }).start();
-        new Thread(() -> {
-            waitingThreadsToBeStarted.countDown();
-            setWithUpperBound.waitUntilAtLeastOneFree();
-            waitingThreads.countDown();
-        }).start();
+        for (int i = 0; i < 2; i++) {
+            new Thread(() -> {
+                waitingThreadsToBeStarted.countDown();
+                try {
+                    setWithUpperBound.waitUntilAtLeastOneFree();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                waitingThreads.countDown();
+            }).start();
+        }
         new Thread(() -> {
             try {
                 waitingThreadsToBeStarted.await();
@@ -99,4 +102,122 @@ public class SetWithUpperBoundTest {
         // then
         assertThat(waitingThreads.await(100, TimeUnit.MILLISECONDS)).isTrue();
     }
-}
\ No newline at end of file
+
+    @Test
+    void testWaitUntilAtLeastOneFree_releasesMoreWaitersThanSlots() throws InterruptedException {
+        // given
+        int threads = 10;
+        CountDownLatch added = new CountDownLatch(threads);
+        CountDownLatch waitingThreads = new CountDownLatch(threads);
+        SetWithUpperBound<Integer> setWithUpperBound = new SetWithUpperBound<>(2);
+        for (int i = 0; i < threads; i++) {
+            int element = i;
+            new Thread(() -> {
+                setWithUpperBound.add(element);
+                added.countDown();
+                try {
+                    setWithUpperBound.waitUntilAtLeastOneFree();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                waitingThreads.countDown();
+            }).start();
+        }
+        assertThat(added.await(1, TimeUnit.SECONDS)).isTrue();
+
+        // when
+        for (int i = 0; i < threads; i++) {
+            setWithUpperBound.remove(i);
+        }
+
+        // then
+        assertThat(waitingThreads.await(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(setWithUpperBound.free()).isEqualTo(2);
+    }
+
+    @Test
+    void testWaitUntilAtLeastOneFree_timesOut() throws InterruptedException {
+        // given
+        SetWithUpperBound<String> setWithUpperBound = new SetWithUpperBound<>(1);
+        setWithUpperBound.add("hi");
+
+        // when
+        boolean free = setWithUpperBound.waitUntilAtLeastOneFree(Duration.ofMillis(10));
+
+        // then
+        assertThat(free).isFalse();
+    }
+
+    @Test
+    void testWaitUntilAtLeastOneFree_honoursInterruption() {
+        // given
+        SetWithUpperBound<String> setWithUpperBound = new SetWithUpperBound<>(1);
+        setWithUpperBound.add("hi");
+        Thread.currentThread().interrupt();
+
+        // when
+        Throwable result = catchThrowable(setWithUpperBound::waitUntilAtLeastOneFree);
+
+        // then
+        assertThat(result).isInstanceOf(InterruptedException.class);
+    }
+
+    @Test
+    void testFree_isNotChangedByWaiting() throws InterruptedException {
+        // given
+        SetWithUpperBound<String> setWithUpperBound = new SetWithUpperBound<>(3);
+        setWithUpperBound.add("hi");
+
+        // when
+        setWithUpperBound.waitUntilAtLeastOneFree();
+
+        // then
+        assertThat(setWithUpperBound.free()).isEqualTo(2);
+
+        // when
+        setWithUpperBound.add("hi2");
+        setWithUpperBound.add("hi3");
+
+        // then
+        assertThat(setWithUpperBound.free()).isZero();
+        assertThat(setWithUpperBound.waitUntilAtLeastOneFree(Duration.ZERO)).isFalse();
+    }
+
+    @Test
+    void testSetMaximumSize_admitsMoreElements() {
+        // given
+        SetWithUpperBound<String> setWithUpperBound = new SetWithUpperBound<>(1);
+        setWithUpperBound.add("1");
+
+        // when
+        setWithUpperBound.setMaximumSize(3);
+
+        // then
+        assertThat(setWithUpperBound.free()).isEqualTo(2);
+        assertThat(setWithUpperBound.getMaximumSize()).isEqualTo(3);
+    }
+
+    @Test
+    void testSetMaximumSize_admitsNothingUntilEnoughElementsAreRemoved() throws InterruptedException {
+        // given
+        SetWithUpperBound<String> setWithUpperBound = new SetWithUpperBound<>(3);
+        setWithUpperBound.add("1");
+        setWithUpperBound.add("2");
+        setWithUpperBound.add("3");
+
+        // when
+        setWithUpperBound.setMaximumSize(1);
+        setWithUpperBound.remove("1");
+
+        // then
+        assertThat(setWithUpperBound.free()).isZero();
+        assertThat(setWithUpperBound.waitUntilAtLeastOneFree(Duration.ofMillis(10))).isFalse();
+
+        // when
+        setWithUpperBound.remove("2");
+        setWithUpperBound.remove("3");
+
+        // then
+        assertThat(setWithUpperBound.free()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,243 @@
+package com.mercateo.sqs.utils.message.handling;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.awaitility.Awaitility.await;
+
+import com.google.common.testing.NullPointerTester;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class SharedWorkerPoolTest {
+
+    private SharedWorkerPool uut;
+
+    @AfterEach
+    void tearDown() {
+        if (uut != null) {
+            uut.shutdown();
+        }
+    }
+
+    @Test
+    void testNullContracts() {
+        // given
+        uut = new SharedWorkerPool(1);
+        NullPointerTester nullPointerTester = new NullPointerTester();
+
+        // when
+        nullPointerTester.testInstanceMethods(uut, NullPointerTester.Visibility.PACKAGE);
+        nullPointerTester.testInstanceMethods(uut.register("member", 1, 0, 1), NullPointerTester.Visibility.PACKAGE);
+    }
+
+    @Test
+    void testRegister_rejectsMinimumSharesExceedingTheThreads() {
+        // given
+        uut = new SharedWorkerPool(2);
+        uut.register("a", 1, 1, 2);
+
+        // when
+        Throwable result = catchThrowable(() -> uut.register("b", 1, 2, 2));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void testExecute_servesMinimumShareFirst() throws Exception {
+        // given
+        uut = new SharedWorkerPool(1);
+        SharedWorkerPool.Member blocker = uut.register("blocker", 1, 0, 1);
+        SharedWorkerPool.Member a = uut.register("a", 10, 0, 1);
+        SharedWorkerPool.Member b = uut.register("b", 1, 1, 1);
+        CountDownLatch release = block(blocker);
+        List<String> order = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            a.execute(() -> order.add("a"));
+            b.execute(() -> order.add("b"));
+        }
+
+        // when
+        release.countDown();
+
+        // then
+        await().until(() -> order.size() == 6);
+        assertThat(order).containsExactly("b", "b", "b", "a", "a", "a");
+    }
+
+    @Test
+    void testExecute_sharesThreadsInProportionToTheWeights() throws Exception {
+        // given
+        uut = new SharedWorkerPool(1);
+        SharedWorkerPool.Member blocker = uut.register("blocker", 1, 0, 1);
+        SharedWorkerPool.Member a = uut.register("a", 3, 0, 1);
+        SharedWorkerPool.Member b = uut.register("b", 1, 0, 1);
+        CountDownLatch release = block(blocker);
+        List<String> order = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            a.execute(() -> order.add("a"));
+            b.execute(() -> order.add("b"));
+        }
+
+        // when
+        release.countDown();
+
+        // then
+        await().until(() -> order.size() == 16);
+        assertThat(order.subList(0, 8)).filteredOn("a"::equals).hasSize(6);
+    }
+
+    @Test
+    void testExecute_idleMemberDoesNotSaveUpCredit() throws Exception {
+        // given
+        uut = new SharedWorkerPool(1);
+        SharedWorkerPool.Member a = uut.register("a", 1, 0, 1);
+        SharedWorkerPool.Member b = uut.register("b", 1, 0, 1);
+        AtomicInteger done = new AtomicInteger();
+        for (int i = 0; i < 10; i++) {
+            a.execute(done::incrementAndGet);
+        }
+        await().until(() -> done.get() == 10);
+        CountDownLatch release = block(a);
+        List<String> order = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            b.execute(() -> order.add("b"));
+            a.execute(() -> order.add("a"));
+        }
+
+        // when
+        release.countDown();
+
+        // then
+        await().until(() -> order.size() == 8);
+        assertThat(order.subList(0, 4)).containsExactly("b", "a", "b", "a");
+    }
+
+    @Test
+    void testExecute_neverExceedsTheMaximumShare() throws Exception {
+        // given
+        uut = new SharedWorkerPool(4);
+        SharedWorkerPool.Member member = uut.register("member", 1, 0, 2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+
+        // when
+        for (int i = 0; i < 8; i++) {
+            member.execute(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                sleep(20);
+                running.decrementAndGet();
+                done.incrementAndGet();
+            });
+        }
+
+        // then
+        await().until(() -> done.get() == 8);
+        assertThat(maxRunning.get()).isEqualTo(2);
+    }
+
+    @Test
+    void testShutdown_rejectsTasksAndReleasesTheMinimumShare() throws Exception {
+        // given
+        uut = new SharedWorkerPool(2);
+        SharedWorkerPool.Member member = uut.register("member", 1, 2, 2);
+        AtomicInteger done = new AtomicInteger();
+        member.execute(done::incrementAndGet);
+
+        // when
+        member.shutdown(Duration.ofSeconds(5));
+
+        // then
+        assertThat(done.get()).isEqualTo(1);
+        assertThat(member.getPending()).isZero();
+        assertThat(catchThrowable(() -> member.execute(done::incrementAndGet))).isInstanceOf(
+                RejectedExecutionException.class);
+        assertThat(uut.register("next", 1, 2, 2)).isNotNull();
+    }
+
+    @Test
+    void testDrain_reportsTasksThatDidNotFinishInTime() throws Exception {
+        // given
+        uut = new SharedWorkerPool(1);
+        SharedWorkerPool.Member member = uut.register("member", 1, 0, 1);
+        CountDownLatch release = block(member);
+
+        // when
+        boolean result = member.drain(Duration.ofMillis(50));
+
+        // then
+        assertThat(result).isFalse();
+        assertThat(member.getPending()).isEqualTo(1);
+        release.countDown();
+        assertThat(member.drain(Duration.ofSeconds(5))).isTrue();
+    }
+
+    @Test
+    void testExecute_doesNotCountTasksRejectedByAStoppedPool() throws Exception {
+        // given
+        uut = new SharedWorkerPool(1);
+        SharedWorkerPool.Member member = uut.register("member", 1, 0, 1);
+        uut.shutdown();
+
+        // when
+        Throwable result = catchThrowable(() -> member.execute(() -> {
+        }));
+
+        // then
+        assertThat(result).isInstanceOf(RejectedExecutionException.class);
+        assertThat(member.getPending()).isZero();
+        assertThat(member.drain(Duration.ofSeconds(5))).isTrue();
+    }
+
+    @Test
+    void testShutdown_reportsDroppedTasksToTheirMember() throws Exception {
+        // given
+        uut = new SharedWorkerPool(1);
+        AtomicInteger dropped = new AtomicInteger();
+        SharedWorkerPool.Member member = uut.register("member", 1, 0, 1, dropped::incrementAndGet);
+        block(member);
+        AtomicInteger runs = new AtomicInteger();
+        member.execute(runs::incrementAndGet);
+
+        // when
+        uut.shutdown();
+
+        // then
+        assertThat(dropped).hasValue(1);
+        assertThat(member.drain(Duration.ofSeconds(5))).isTrue();
+        assertThat(runs).hasValue(0);
+    }
+
+    private CountDownLatch block(SharedWorkerPool.Member member) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        member.execute(() -> {
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+        return release;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
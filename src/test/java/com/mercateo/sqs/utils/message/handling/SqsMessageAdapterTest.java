@@ -0,0 +1,185 @@
+package com.mercateo.sqs.utils.message.handling;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.testing.NullPointerTester;
+import com.mercateo.sqs.utils.queue.Queue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.converter.MessageConversionException;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageResponse;
+
+class SqsMessageAdapterTest {
+
+    private static final String MESSAGE_ID = "bf308aa2-bf48-49b8-a839-61611c710430";
+
+    @Mock
+    private SqsAsyncClient sqsClient;
+
+    @Mock
+    private LongRunningMessageHandler<Integer, String> handler;
+
+    @Mock
+    private Queue queue;
+
+    private final AtomicInteger decodedMessages = new AtomicInteger();
+
+    private SqsMessageAdapter<Integer> uut;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        when(handler.getQueue()).thenReturn(queue);
+        when(queue.getUrl()).thenReturn("queueUrl");
+        uut = new SqsMessageAdapter<>(sqsClient, handler, sqsMessage -> {
+            decodedMessages.incrementAndGet();
+            return Integer.valueOf(sqsMessage.body());
+        });
+    }
+
+    @Test
+    void testNullContracts() {
+        // given
+        NullPointerTester nullPointerTester = new NullPointerTester();
+        nullPointerTester.setDefault(LongRunningMessageHandler.class, handler);
+
+        // when
+        nullPointerTester.testInstanceMethods(uut, NullPointerTester.Visibility.PACKAGE);
+        nullPointerTester.testConstructors(uut.getClass(), NullPointerTester.Visibility.PACKAGE);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void testHandleMessage_passesMessageWithoutDecodingIt() {
+        // when
+        uut.handleMessage(createSqsMessage("42"));
+
+        // then
+        ArgumentCaptor<Message<Integer>> captor = ArgumentCaptor.forClass(Message.class);
+        verify(handler).handleMessage(captor.capture());
+        MessageWrapper<Integer> message = new MessageWrapper<>(captor.getValue());
+        assertThat(message.getMessageId()).isEqualTo(MESSAGE_ID);
+        assertThat(message.getReceiptHandle()).isEqualTo("rhd");
+        assertThat(decodedMessages.get()).isZero();
+    }
+
+    @Test
+    void testToMessage_decodesPayloadOnce() {
+        // given
+        Message<Integer> message = uut.toMessage(createSqsMessage("42"));
+
+        // when
+        Integer first = message.getPayload();
+        Integer second = message.getPayload();
+
+        // then
+        assertThat(first).isEqualTo(42);
+        assertThat(second).isEqualTo(42);
+        assertThat(decodedMessages.get()).isEqualTo(1);
+    }
+
+    @Test
+    void testToMessage_failsOnUndecodablePayload() {
+        // given
+        Message<Integer> message = uut.toMessage(createSqsMessage("no number"));
+
+        // when
+        Throwable first = catchThrowable(message::getPayload);
+        Throwable second = catchThrowable(message::getPayload);
+
+        // then
+        assertThat(first).isInstanceOf(MessageConversionException.class).hasCauseInstanceOf(
+                NumberFormatException.class);
+        assertThat(second).isSameAs(first);
+        assertThat(message.toString()).contains("not decoded");
+    }
+
+    @Test
+    void testToMessage_acknowledgementDeletesMessage() {
+        // given
+        when(sqsClient.deleteMessage(any(DeleteMessageRequest.class))).thenReturn(CompletableFuture
+                .completedFuture(DeleteMessageResponse.builder().build()));
+        Message<Integer> message = uut.toMessage(createSqsMessage("42"));
+
+        // when
+        new MessageWrapper<>(message).acknowledge();
+
+        // then
+        ArgumentCaptor<DeleteMessageRequest> captor = ArgumentCaptor.forClass(DeleteMessageRequest.class);
+        verify(sqsClient).deleteMessage(captor.capture());
+        assertThat(captor.getValue().queueUrl()).isEqualTo("queueUrl");
+        assertThat(captor.getValue().receiptHandle()).isEqualTo("rhd");
+        assertThat(decodedMessages.get()).isZero();
+    }
+
+    @Test
+    void testToMessage_prefetchesClaimCheckedPayload() {
+        // given
+        InMemoryS3AsyncClient s3Client = new InMemoryS3AsyncClient();
+        s3Client.putObject("bucket", "key", "42");
+        uut = new SqsMessageAdapter<>(sqsClient, handler, sqsMessage -> Integer.valueOf(sqsMessage.body()),
+                new S3ClaimCheck(s3Client, true));
+
+        // when
+        Message<Integer> message = uut.toMessage(createSqsMessage(S3ClaimCheckTest.pointer("bucket", "key")));
+
+        // then
+        assertThat(s3Client.getDownloads()).isEqualTo(1);
+        assertThat(message.getPayload()).isEqualTo(42);
+        assertThat(message.getHeaders().get(MessageHandlingRunnable.ON_ACKNOWLEDGED_HEADER)).isInstanceOf(
+                Runnable.class);
+    }
+
+    @Test
+    void testToMessage_streamsClaimCheckedPayloadToTheDecoder() {
+        // given
+        InMemoryS3AsyncClient s3Client = new InMemoryS3AsyncClient();
+        s3Client.putObject("bucket", "key", "42");
+        uut = new SqsMessageAdapter<>(sqsClient, handler, new PayloadDecoder<>() {
+
+            @Override
+            public Integer decode(software.amazon.awssdk.services.sqs.model.Message sqsMessage) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Integer decode(software.amazon.awssdk.services.sqs.model.Message pointerMessage,
+                    InputStream payload) throws IOException {
+                return Integer.valueOf(new String(payload.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }, new S3ClaimCheck(s3Client, true));
+
+        // when
+        Message<Integer> message = uut.toMessage(createSqsMessage(S3ClaimCheckTest.pointer("bucket", "key")));
+
+        // then
+        assertThat(message.getPayload()).isEqualTo(42);
+        assertThat(message.getHeaders().get(LongRunningMessageHandler.ON_FINISHED_HEADER)).isInstanceOf(
+                Runnable.class);
+    }
+
+    private software.amazon.awssdk.services.sqs.model.Message createSqsMessage(String body) {
+        return software.amazon.awssdk.services.sqs.model.Message.builder()
+                .messageId(MESSAGE_ID)
+                .receiptHandle("rhd")
+                .body(body)
+                .build();
+    }
+}
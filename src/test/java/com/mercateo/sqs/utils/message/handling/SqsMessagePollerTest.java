@@ -0,0 +1,223 @@
+package com.mercateo.sqs.utils.message.handling;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.mercateo.sqs.utils.queue.Queue;
+
+import io.awspring.cloud.sqs.MessagingHeaders;
+import io.awspring.cloud.sqs.listener.acknowledgement.AcknowledgementCallback;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.messaging.Message;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageResponse;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
+
+class SqsMessagePollerTest {
+
+    private static final String MESSAGE_ID = "bf308aa2-bf48-49b8-a839-61611c710430";
+
+    @Mock
+    private SqsAsyncClient sqsClient;
+
+    @Mock
+    private ScheduledExecutorService scheduler;
+
+    @Mock
+    private LongRunningMessageHandler<Integer, String> handler;
+
+    @Mock
+    private Queue queue;
+
+    private SqsMessagePoller<Integer> uut;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        when(handler.getQueue()).thenReturn(queue);
+        when(queue.getUrl()).thenReturn("queueUrl");
+        uut = new SqsMessagePoller<>(sqsClient, scheduler, Runnable::run, handler, Integer::valueOf, 2,
+                Duration.ofSeconds(20));
+    }
+
+    @Test
+    void testPoll_receivesAsManyMessagesAsThereAreFreeWorkers() {
+        // given
+        when(handler.getFreeWorkerCapacity()).thenReturn(3);
+        when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(new CompletableFuture<>());
+
+        // when
+        uut.start();
+
+        // then
+        ArgumentCaptor<ReceiveMessageRequest> captor = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+        verify(sqsClient).receiveMessage(captor.capture());
+        assertThat(captor.getValue().maxNumberOfMessages()).isEqualTo(3);
+        assertThat(captor.getValue().waitTimeSeconds()).isEqualTo(20);
+        assertThat(captor.getValue().queueUrl()).isEqualTo("queueUrl");
+        verify(scheduler).schedule(any(Runnable.class), eq(SqsMessagePoller.IDLE_DELAY.toMillis()), eq(
+                TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void testPoll_splitsHighCapacityAcrossConcurrentReceives() {
+        // given
+        when(handler.getFreeWorkerCapacity()).thenReturn(15);
+        when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(new CompletableFuture<>());
+
+        // when
+        uut.start();
+
+        // then
+        ArgumentCaptor<ReceiveMessageRequest> captor = ArgumentCaptor.forClass(ReceiveMessageRequest.class);
+        verify(sqsClient, times(2)).receiveMessage(captor.capture());
+        assertThat(captor.getAllValues()).extracting(ReceiveMessageRequest::maxNumberOfMessages)
+                .containsExactly(10, 5);
+    }
+
+    @Test
+    void testPoll_doesNotReceiveWithoutFreeWorkers() {
+        // given
+        when(handler.getFreeWorkerCapacity()).thenReturn(0);
+
+        // when
+        uut.start();
+
+        // then
+        verify(sqsClient, never()).receiveMessage(any(ReceiveMessageRequest.class));
+        verify(scheduler, times(2)).schedule(any(Runnable.class), eq(SqsMessagePoller.IDLE_DELAY.toMillis()), eq(
+                TimeUnit.MILLISECONDS));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void testPoll_submitsReceivedMessages() {
+        // given
+        when(handler.getFreeWorkerCapacity()).thenReturn(1, 0);
+        when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(CompletableFuture
+                .completedFuture(ReceiveMessageResponse.builder()
+                        .messages(software.amazon.awssdk.services.sqs.model.Message.builder()
+                                .messageId(MESSAGE_ID)
+                                .receiptHandle("rhd")
+                                .body("42")
+                                .build())
+                        .build()));
+        uut = new SqsMessagePoller<>(sqsClient, scheduler, Runnable::run, handler, Integer::valueOf, 1,
+                Duration.ofSeconds(20));
+
+        // when
+        uut.start();
+
+        // then
+        ArgumentCaptor<Message<Integer>> captor = ArgumentCaptor.forClass(Message.class);
+        verify(handler).submitMessage(captor.capture());
+        MessageWrapper<Integer> message = new MessageWrapper<>(captor.getValue());
+        assertThat(message.getMessage().getPayload()).isEqualTo(42);
+        assertThat(message.getMessageId()).isEqualTo(MESSAGE_ID);
+        assertThat(message.getReceiptHandle()).isEqualTo("rhd");
+        assertThat(message.getMessage().getHeaders().get(MessagingHeaders.ACKNOWLEDGMENT_CALLBACK_HEADER))
+                .isInstanceOf(AcknowledgementCallback.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    void testToMessage_acknowledgementDeletesMessage() {
+        // given
+        when(sqsClient.deleteMessage(any(DeleteMessageRequest.class))).thenReturn(CompletableFuture
+                .completedFuture(DeleteMessageResponse.builder().build()));
+        Message<Integer> message = uut.toMessage(software.amazon.awssdk.services.sqs.model.Message.builder()
+                .messageId(MESSAGE_ID)
+                .receiptHandle("rhd")
+                .body("42")
+                .build());
+
+        // when
+        new MessageWrapper<>(message).acknowledge();
+
+        // then
+        ArgumentCaptor<DeleteMessageRequest> captor = ArgumentCaptor.forClass(DeleteMessageRequest.class);
+        verify(sqsClient).deleteMessage(captor.capture());
+        assertThat(captor.getValue().queueUrl()).isEqualTo("queueUrl");
+        assertThat(captor.getValue().receiptHandle()).isEqualTo("rhd");
+    }
+
+    @Test
+    void testStop_stopsPolling() {
+        // given
+        when(handler.getFreeWorkerCapacity()).thenReturn(0);
+        uut.start();
+        List<Runnable> idlePolls = scheduledIdlePolls(2);
+        when(handler.getFreeWorkerCapacity()).thenReturn(1);
+        uut.stop();
+
+        // when
+        idlePolls.forEach(Runnable::run);
+
+        // then
+        assertThat(uut.isRunning()).isFalse();
+        verify(sqsClient, never()).receiveMessage(any(ReceiveMessageRequest.class));
+    }
+
+    @Test
+    void testStart_endsThePollsOfThePreviousStart() {
+        // given
+        when(handler.getFreeWorkerCapacity()).thenReturn(0);
+        uut.start();
+        List<Runnable> previousPolls = scheduledIdlePolls(2);
+        uut.stop();
+        uut.start();
+        when(handler.getFreeWorkerCapacity()).thenReturn(20);
+        when(sqsClient.receiveMessage(any(ReceiveMessageRequest.class))).thenReturn(new CompletableFuture<>());
+
+        // when
+        previousPolls.forEach(Runnable::run);
+
+        // then
+        verify(sqsClient, never()).receiveMessage(any(ReceiveMessageRequest.class));
+
+        // when
+        scheduledIdlePolls(4).subList(2, 4).forEach(Runnable::run);
+
+        // then
+        verify(sqsClient, times(2)).receiveMessage(any(ReceiveMessageRequest.class));
+    }
+
+    @Test
+    void testConstructor_rejectsFifoOrdering() {
+        // given
+        when(handler.isFifoOrdering()).thenReturn(true);
+
+        // when
+        Throwable result = catchThrowable(() -> new SqsMessagePoller<>(sqsClient, scheduler, Runnable::run,
+                handler, Integer::valueOf, 1, Duration.ofSeconds(20)));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private List<Runnable> scheduledIdlePolls(int count) {
+        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler, times(count)).schedule(captor.capture(), eq(SqsMessagePoller.IDLE_DELAY.toMillis()),
+                eq(TimeUnit.MILLISECONDS));
+        return captor.getAllValues();
+    }
+}
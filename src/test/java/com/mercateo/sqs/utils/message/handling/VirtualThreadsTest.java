@@ -0,0 +1,45 @@
+package com.mercateo.sqs.utils.message.handling;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.util.concurrent.ThreadFactory;
+
+import org.junit.jupiter.api.Test;
+
+class VirtualThreadsTest {
+
+    @Test
+    void testIsSupported_dependsOnRuntimeVersion() {
+        // then
+        assertThat(VirtualThreads.isSupported()).isEqualTo(Runtime.version().feature() >= 21);
+    }
+
+    @Test
+    void testFactory_failsBeforeJava21() {
+        // given
+        assumeTrue(Runtime.version().feature() < 21);
+
+        // when
+        Throwable result = catchThrowable(() -> VirtualThreads.factory("worker-"));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void testFactory_createsNamedVirtualThreads() throws Exception {
+        // given
+        assumeTrue(Runtime.version().feature() >= 21);
+        ThreadFactory uut = VirtualThreads.factory("worker-");
+
+        // when
+        Thread thread = uut.newThread(() -> {
+        });
+
+        // then
+        assertThat(thread.getName()).isEqualTo("worker-0");
+        assertThat(Thread.class.getMethod("isVirtual").invoke(thread)).isEqualTo(true);
+    }
+}
@@ -0,0 +1,44 @@
+package com.mercateo.sqs.utils.metrics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+class HistogramMessageMetricsTest {
+
+    private final HistogramMessageMetrics uut = new HistogramMessageMetrics();
+
+    @Test
+    void testOnWorked_recordsDurationAndCountsFailures() {
+        // when
+        uut.onWorked(10, true);
+        uut.onWorked(12, false);
+
+        // then
+        assertThat(uut.getWorkDuration().getCount()).isEqualTo(2);
+        assertThat(uut.getWorkDuration().getMax()).isEqualTo(12);
+        assertThat(uut.getWorkFailures()).isEqualTo(1);
+    }
+
+    @Test
+    void testOnVisibilityExtendedAndOnAcknowledged_countFailures() {
+        // when
+        uut.onVisibilityExtended(5, false);
+        uut.onAcknowledged(7, true);
+
+        // then
+        assertThat(uut.getVisibilityExtensionLatency().getCount()).isEqualTo(1);
+        assertThat(uut.getVisibilityExtensionFailures()).isEqualTo(1);
+        assertThat(uut.getAcknowledgeLatency().getMax()).isEqualTo(7);
+        assertThat(uut.getAcknowledgeFailures()).isZero();
+    }
+
+    @Test
+    void testOnCompleted_recordsExtensionsPerMessage() {
+        // when
+        uut.onCompleted(3);
+
+        // then
+        assertThat(uut.getVisibilityExtensionsPerMessage().getMax()).isEqualTo(3);
+    }
+}
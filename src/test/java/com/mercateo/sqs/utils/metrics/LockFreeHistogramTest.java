@@ -0,0 +1,86 @@
+package com.mercateo.sqs.utils.metrics;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class LockFreeHistogramTest {
+
+    private final LockFreeHistogram uut = new LockFreeHistogram();
+
+    @Test
+    void testRecord_smallValuesAreExact() {
+        // when
+        for (int i = 0; i < 16; i++) {
+            uut.record(i);
+        }
+
+        // then
+        assertThat(uut.getCount()).isEqualTo(16);
+        assertThat(uut.getMax()).isEqualTo(15);
+        assertThat(uut.getMean()).isEqualTo(7.5);
+        assertThat(uut.getValueAtPercentile(50)).isEqualTo(7);
+        assertThat(uut.getValueAtPercentile(100)).isEqualTo(15);
+    }
+
+    @Test
+    void testGetValueAtPercentile_relativeErrorIsBounded() {
+        // when
+        for (long i = 1; i <= 100_000; i++) {
+            uut.record(i * 1000);
+        }
+
+        // then
+        assertThat((double) uut.getValueAtPercentile(50)).isCloseTo(50_000_000, within(50_000_000 / 16.0));
+        assertThat((double) uut.getValueAtPercentile(99)).isCloseTo(99_000_000, within(99_000_000 / 16.0));
+        assertThat(uut.getValueAtPercentile(100)).isEqualTo(100_000_000);
+    }
+
+    @Test
+    void testBucketIndex_coversWholeRange() {
+        // then
+        assertThat(LockFreeHistogram.bucketIndex(0)).isZero();
+        assertThat(LockFreeHistogram.upperBound(LockFreeHistogram.bucketIndex(Long.MAX_VALUE)))
+                .isEqualTo(Long.MAX_VALUE);
+        for (long value : new long[] { 16, 17, 31, 32, 1000, 123_456_789 }) {
+            assertThat(LockFreeHistogram.upperBound(LockFreeHistogram.bucketIndex(value))).isGreaterThanOrEqualTo(
+                    value);
+        }
+    }
+
+    @Test
+    void testRecord_negativeValuesCountAsZero() {
+        // when
+        uut.record(-5);
+
+        // then
+        assertThat(uut.getCount()).isEqualTo(1);
+        assertThat(uut.getValueAtPercentile(100)).isZero();
+    }
+
+    @Test
+    void testRecord_concurrently() throws InterruptedException {
+        // given
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        // when
+        for (int t = 0; t < 4; t++) {
+            executor.execute(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    uut.record(i);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        // then
+        assertThat(uut.getCount()).isEqualTo(40_000);
+        assertThat(uut.getMax()).isEqualTo(9_999);
+    }
+}
@@ -3,12 +3,18 @@ package com.mercateo.sqs.utils.queue;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.common.testing.NullPointerTester;
 
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -22,12 +28,14 @@ public class QueueFactoryTest {
     @Mock
     private SqsAsyncClient amazonSQS;
 
+    private final AtomicLong nanoClock = new AtomicLong();
+
     private QueueFactory uut;
 
     @BeforeEach
     void setUp() throws Exception {
         MockitoAnnotations.openMocks(this);
-        uut = new QueueFactory(amazonSQS);
+        uut = new QueueFactory(amazonSQS, nanoClock::get);
     }
 
     @Test
@@ -69,4 +77,103 @@ public class QueueFactoryTest {
         assertThat(queue.getName().getId()).isEqualTo("q1");
         assertThat(queue.getQueueAttributes()).isEqualTo(attributes);
     }
-}
\ No newline at end of file
+
+    @Test
+    void testGet_cachesQueue() {
+        // given
+        stubQueueUrl("q1", CompletableFuture.completedFuture(urlResponse("url1")));
+        when(amazonSQS.getQueueAttributes(any(GetQueueAttributesRequest.class))).thenReturn(CompletableFuture
+                .completedFuture(attributesResponse("30")));
+        Queue first = uut.get(new QueueName("q1"));
+
+        // when
+        Queue second = uut.get(new QueueName("q1"));
+
+        // then
+        assertThat(second).isSameAs(first);
+        verify(amazonSQS).getQueueUrl(any(GetQueueUrlRequest.class));
+        verify(amazonSQS).getQueueAttributes(any(GetQueueAttributesRequest.class));
+    }
+
+    @Test
+    void testGetAll_resolvesQueuesInParallel() {
+        // given
+        CompletableFuture<GetQueueUrlResponse> url1 = new CompletableFuture<>();
+        CompletableFuture<GetQueueUrlResponse> url2 = new CompletableFuture<>();
+        stubQueueUrl("q1", url1);
+        stubQueueUrl("q2", url2);
+        when(amazonSQS.getQueueAttributes(any(GetQueueAttributesRequest.class))).thenReturn(CompletableFuture
+                .completedFuture(attributesResponse("30")));
+
+        // when
+        CompletableFuture<Map<QueueName, Queue>> result = uut.getAll(Arrays.asList(new QueueName("q1"),
+                new QueueName("q2")));
+
+        // then
+        verify(amazonSQS, times(2)).getQueueUrl(any(GetQueueUrlRequest.class));
+        assertThat(result).isNotDone();
+
+        // when
+        url2.complete(urlResponse("url2"));
+        url1.complete(urlResponse("url1"));
+
+        // then
+        assertThat(result.join()).containsOnlyKeys(new QueueName("q1"), new QueueName("q2"));
+        assertThat(result.join().get(new QueueName("q2")).getUrl()).isEqualTo("url2");
+    }
+
+    @Test
+    void testGetIfResolved_refreshesExpiredAttributesInTheBackground() {
+        // given
+        QueueName queueName = new QueueName("q1");
+        CompletableFuture<GetQueueAttributesResponse> refresh = new CompletableFuture<>();
+        stubQueueUrl("q1", CompletableFuture.completedFuture(urlResponse("url1")));
+        when(amazonSQS.getQueueAttributes(any(GetQueueAttributesRequest.class))).thenReturn(CompletableFuture
+                .completedFuture(attributesResponse("30")), refresh);
+        uut.setTimeToLive(Duration.ofSeconds(10));
+        uut.get(queueName);
+        nanoClock.set(Duration.ofSeconds(10).toNanos());
+
+        // when
+        Queue stale = uut.getIfResolved(queueName);
+
+        // then
+        assertThat(stale.getDefaultVisibilityTimeout()).isEqualTo(Duration.ofSeconds(30));
+
+        // when
+        refresh.complete(attributesResponse("60"));
+
+        // then
+        assertThat(uut.getIfResolved(queueName).getDefaultVisibilityTimeout()).isEqualTo(Duration.ofSeconds(60));
+        verify(amazonSQS).getQueueUrl(any(GetQueueUrlRequest.class));
+        verify(amazonSQS, times(2)).getQueueAttributes(any(GetQueueAttributesRequest.class));
+    }
+
+    @Test
+    void testGetAsync_doesNotCacheFailures() {
+        // given
+        stubQueueUrl("q1", CompletableFuture.failedFuture(new IllegalStateException("test")));
+        assertThat(uut.getAsync(new QueueName("q1"))).isCompletedExceptionally();
+
+        // when
+        uut.getAsync(new QueueName("q1"));
+
+        // then
+        verify(amazonSQS, times(2)).getQueueUrl(any(GetQueueUrlRequest.class));
+        assertThat(uut.getIfResolved(new QueueName("q1"))).isNull();
+    }
+
+    private void stubQueueUrl(String queueName, CompletableFuture<GetQueueUrlResponse> response) {
+        when(amazonSQS.getQueueUrl(GetQueueUrlRequest.builder().queueName(queueName).build())).thenReturn(response);
+    }
+
+    private static GetQueueUrlResponse urlResponse(String queueUrl) {
+        return GetQueueUrlResponse.builder().queueUrl(queueUrl).build();
+    }
+
+    private static GetQueueAttributesResponse attributesResponse(String visibilityTimeout) {
+        return GetQueueAttributesResponse.builder()
+                .attributes(Map.of(QueueAttributeName.VISIBILITY_TIMEOUT, visibilityTimeout))
+                .build();
+    }
+}
@@ -0,0 +1,203 @@
+package com.mercateo.sqs.utils.visibility;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.github.rholder.retry.StopStrategies;
+import com.github.rholder.retry.WaitStrategies;
+import com.google.common.testing.NullPointerTester;
+import com.mercateo.sqs.utils.message.handling.ErrorHandlingStrategy;
+import com.mercateo.sqs.utils.message.handling.MessageWrapper;
+import com.mercateo.sqs.utils.metrics.MessageMetrics;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.GenericMessage;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResponse;
+
+class BatchVisibilityTimeoutExtenderTest {
+
+    @Mock
+    private SqsAsyncClient sqsClient;
+
+    @Mock
+    private ScheduledExecutorService scheduler;
+
+    @Mock
+    private ErrorHandlingStrategy<Object> errorHandlingStrategy;
+
+    private final RetryStrategy retryStrategy = new RetryStrategy(WaitStrategies.fixedWait(1,
+            TimeUnit.MICROSECONDS), StopStrategies.stopAfterAttempt(5));
+
+    private BatchVisibilityTimeoutExtender uut;
+
+    @BeforeEach
+    void setUp() {
+        MockitoAnnotations.openMocks(this);
+        uut = new BatchVisibilityTimeoutExtender(sqsClient, scheduler, Duration.ofSeconds(1), retryStrategy,
+                Runnable::run);
+    }
+
+    @Test
+    void testNullContracts() {
+        // given
+        NullPointerTester nullPointerTester = new NullPointerTester();
+        nullPointerTester.setDefault(VisibilityTimeoutExtender.class, createExtender("queue", 1));
+
+        // when
+        nullPointerTester.testInstanceMethods(uut, NullPointerTester.Visibility.PACKAGE);
+    }
+
+    @Test
+    void testConstructor_schedulesTick() {
+        // then
+        verify(scheduler).scheduleWithFixedDelay(any(), eq(1000L), eq(1000L), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void testExtendDueVisibilityTimeouts_groupsPerQueueIntoBatchesOfTen() {
+        // given
+        for (int i = 0; i < 12; i++) {
+            uut.register(createExtender("queue1", i));
+        }
+        uut.register(createExtender("queue2", 12));
+        when(sqsClient.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+                .thenReturn(CompletableFuture.completedFuture(ChangeMessageVisibilityBatchResponse.builder()
+                        .build()));
+
+        // when
+        uut.extendDueVisibilityTimeouts();
+
+        // then
+        ArgumentCaptor<ChangeMessageVisibilityBatchRequest> captor = ArgumentCaptor.forClass(
+                ChangeMessageVisibilityBatchRequest.class);
+        verify(sqsClient, times(3)).changeMessageVisibilityBatch(captor.capture());
+        List<Integer> sizesOfQueue1 = new ArrayList<>();
+        List<Integer> sizesOfQueue2 = new ArrayList<>();
+        for (ChangeMessageVisibilityBatchRequest request : captor.getAllValues()) {
+            (request.queueUrl().equals("queue1") ? sizesOfQueue1 : sizesOfQueue2).add(request.entries().size());
+            assertThat(request.entries()).allSatisfy(entry -> assertThat(entry.visibilityTimeout()).isEqualTo(600));
+        }
+        assertThat(sizesOfQueue1).containsExactlyInAnyOrder(10, 2);
+        assertThat(sizesOfQueue2).containsExactly(1);
+    }
+
+    @Test
+    void testExtendDueVisibilityTimeouts_skipsMessagesThatAreNotDue() {
+        // given
+        uut.register(createExtender("queue", 1, System.nanoTime()));
+
+        // when
+        uut.extendDueVisibilityTimeouts();
+
+        // then
+        verify(sqsClient, never()).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
+    }
+
+    @Test
+    void testExtendDueVisibilityTimeouts_givesUpAtMaximumVisibility() {
+        // given
+        Future<?> handle = uut.register(createExtender("queue", 1, System.nanoTime() - Duration.ofHours(12)
+                .toNanos()));
+
+        // when
+        uut.extendDueVisibilityTimeouts();
+
+        // then
+        assertThat(handle.isDone()).isTrue();
+        assertThat(catchThrowable(handle::get)).hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(uut.size()).isZero();
+        verify(sqsClient, never()).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
+    }
+
+    @Test
+    void testExtendDueVisibilityTimeouts_passesFailedEntryToErrorHandlingStrategy() {
+        // given
+        VisibilityTimeoutExtender failing = createExtender("queue", 1);
+        uut.register(createExtender("queue", 0));
+        Future<?> handle = uut.register(failing);
+        when(sqsClient.changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class)))
+                .thenAnswer(invocation -> {
+                    ChangeMessageVisibilityBatchRequest request = invocation.getArgument(0);
+                    String failedId = request.entries().stream()
+                            .filter(entry -> entry.receiptHandle().equals("rhd1"))
+                            .findFirst()
+                            .orElseThrow()
+                            .id();
+                    return CompletableFuture.completedFuture(ChangeMessageVisibilityBatchResponse.builder()
+                            .failed(BatchResultErrorEntry.builder()
+                                    .id(failedId)
+                                    .code("ReceiptHandleIsInvalid")
+                                    .message("invalid")
+                                    .senderFault(true)
+                                    .build())
+                            .build());
+                });
+        doThrow(new IllegalStateException()).when(errorHandlingStrategy)
+                .handleExtendVisibilityTimeoutException(any(), any());
+
+        // when
+        uut.extendDueVisibilityTimeouts();
+
+        // then
+        ArgumentCaptor<AwsServiceException> captor = ArgumentCaptor.forClass(AwsServiceException.class);
+        verify(errorHandlingStrategy).handleExtendVisibilityTimeoutException(captor.capture(), eq(failing
+                .getMessageWrapper()));
+        assertThat(captor.getValue().awsErrorDetails().errorCode()).isEqualTo("ReceiptHandleIsInvalid");
+        assertThat(handle.isDone()).isTrue();
+        assertThat(handle.isCancelled()).isFalse();
+        assertThat(uut.size()).isEqualTo(1);
+    }
+
+    @Test
+    void testRegister_cancelStopsExtension() {
+        // given
+        Future<?> handle = uut.register(createExtender("queue", 1));
+
+        // when
+        handle.cancel(false);
+        uut.extendDueVisibilityTimeouts();
+
+        // then
+        assertThat(uut.size()).isZero();
+        verify(sqsClient, never()).changeMessageVisibilityBatch(any(ChangeMessageVisibilityBatchRequest.class));
+    }
+
+    private VisibilityTimeoutExtender createExtender(String queueUrl, int number) {
+        return createExtender(queueUrl, number, System.nanoTime() - Duration.ofMinutes(1).toNanos());
+    }
+
+    private VisibilityTimeoutExtender createExtender(String queueUrl, int number, long receivedNanos) {
+        HashMap<String, Object> headerMap = new HashMap<>();
+        headerMap.put("ReceiptHandle", "rhd" + number);
+        MessageWrapper<Object> message = new MessageWrapper<>(new GenericMessage<>(new Object(),
+                new MessageHeaders(headerMap)));
+        return new VisibilityTimeoutExtender(sqsClient, new VisibilityExtensionSchedule(Duration.ofSeconds(10 * 60),
+                Duration.ofSeconds(30), 1), receivedNanos, message, queueUrl,
+                errorHandlingStrategy, retryStrategy, Runnable::run, MessageMetrics.NOOP);
+    }
+}
@@ -0,0 +1,194 @@
+package com.mercateo.sqs.utils.visibility;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.awaitility.Awaitility.await;
+
+import com.google.common.testing.NullPointerTester;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class HashedWheelTimerTest {
+
+    private HashedWheelTimer uut;
+
+    @BeforeEach
+    void setUp() {
+        uut = new HashedWheelTimer(Duration.ofMillis(10), 8);
+    }
+
+    @AfterEach
+    void tearDown() {
+        uut.shutdownNow();
+    }
+
+    @Test
+    void testNullContracts() {
+        // given
+        NullPointerTester nullPointerTester = new NullPointerTester();
+        nullPointerTester.setDefault(Duration.class, Duration.ofMillis(10));
+        nullPointerTester.setDefault(int.class, 8);
+
+        // when
+        nullPointerTester.testInstanceMethods(uut, NullPointerTester.Visibility.PACKAGE);
+    }
+
+    @Test
+    void testConstructor_rejectsNonPositiveTick() {
+        // when
+        Throwable result = catchThrowable(() -> new HashedWheelTimer(Duration.ZERO, 8));
+
+        // then
+        assertThat(result).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testSchedule_runsTaskAfterDelay() throws Exception {
+        // given
+        long start = System.nanoTime();
+
+        // when
+        ScheduledFuture<String> future = uut.schedule(() -> "done", 50, TimeUnit.MILLISECONDS);
+
+        // then
+        assertThat(future.get(5, TimeUnit.SECONDS)).isEqualTo("done");
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50));
+        assertThat(uut.size()).isZero();
+    }
+
+    @Test
+    void testSchedule_delayLongerThanOneRotation() throws Exception {
+        // given
+        long start = System.nanoTime();
+
+        // when
+        ScheduledFuture<?> future = uut.schedule(() -> {
+        }, 200, TimeUnit.MILLISECONDS);
+
+        // then
+        future.get(5, TimeUnit.SECONDS);
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test
+    void testSchedule_maximumDelayNeverFires() {
+        // given
+        AtomicInteger runs = new AtomicInteger();
+
+        // when
+        ScheduledFuture<?> nanos = uut.schedule(runs::incrementAndGet, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        ScheduledFuture<?> days = uut.schedule(runs::incrementAndGet, Long.MAX_VALUE, TimeUnit.DAYS);
+        ScheduledFuture<?> periodic = uut.scheduleWithFixedDelay(runs::incrementAndGet, Long.MAX_VALUE,
+                Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+        // then
+        await().pollDelay(Duration.ofMillis(100)).atMost(Duration.ofSeconds(5)).untilAsserted(() -> {
+            assertThat(runs).hasValue(0);
+            assertThat(uut.size()).isEqualTo(3);
+        });
+        assertThat(nanos.getDelay(TimeUnit.DAYS)).isGreaterThan(365L * 100);
+        assertThat(days.getDelay(TimeUnit.DAYS)).isGreaterThan(365L * 100);
+        assertThat(periodic.getDelay(TimeUnit.DAYS)).isGreaterThan(365L * 100);
+    }
+
+    @Test
+    void testScheduleAtFixedRate_maximumPeriodRunsOnce() {
+        // given
+        AtomicInteger runs = new AtomicInteger();
+
+        // when
+        ScheduledFuture<?> future = uut.scheduleAtFixedRate(runs::incrementAndGet, 0, Long.MAX_VALUE,
+                TimeUnit.NANOSECONDS);
+
+        // then
+        await().atMost(Duration.ofSeconds(5)).until(() -> runs.get() == 1);
+        await().pollDelay(Duration.ofMillis(100)).atMost(Duration.ofSeconds(5)).untilAsserted(() -> {
+            assertThat(runs).hasValue(1);
+            assertThat(uut.size()).isEqualTo(1);
+        });
+        assertThat(future.getDelay(TimeUnit.DAYS)).isGreaterThan(365L * 100);
+    }
+
+    @Test
+    void testScheduleAtFixedRate_repeatsUntilCancelled() {
+        // given
+        AtomicInteger runs = new AtomicInteger();
+
+        // when
+        ScheduledFuture<?> future = uut.scheduleAtFixedRate(runs::incrementAndGet, 10, 10, TimeUnit.MILLISECONDS);
+
+        // then
+        await().atMost(Duration.ofSeconds(5)).until(() -> runs.get() >= 3);
+        future.cancel(false);
+        assertThat(uut.size()).isZero();
+    }
+
+    @Test
+    void testScheduleAtFixedRate_stopsWhenTaskThrows() {
+        // given
+        AtomicInteger runs = new AtomicInteger();
+
+        // when
+        ScheduledFuture<?> future = uut.scheduleAtFixedRate(() -> {
+            runs.incrementAndGet();
+            throw new IllegalStateException();
+        }, 10, 10, TimeUnit.MILLISECONDS);
+
+        // then
+        await().atMost(Duration.ofSeconds(5)).until(future::isDone);
+        assertThat(runs.get()).isEqualTo(1);
+        assertThat(uut.size()).isZero();
+    }
+
+    @Test
+    void testCancel_removesTaskImmediately() {
+        // given
+        ScheduledFuture<?> future = uut.scheduleAtFixedRate(() -> {
+        }, 1, 1, TimeUnit.HOURS);
+        assertThat(uut.size()).isEqualTo(1);
+
+        // when
+        future.cancel(false);
+
+        // then
+        assertThat(uut.size()).isZero();
+    }
+
+    @Test
+    void testShutdownNow_returnsPendingTasksAndRejectsNewOnes() throws Exception {
+        // given
+        uut.schedule(() -> {
+        }, 1, TimeUnit.HOURS);
+
+        // when
+        List<Runnable> pending = uut.shutdownNow();
+
+        // then
+        assertThat(pending).hasSize(1);
+        assertThat(uut.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(catchThrowable(() -> uut.execute(() -> {
+        }))).isInstanceOf(RejectedExecutionException.class);
+    }
+
+    @Test
+    void testShutdown_runsPendingOneShotTasks() throws Exception {
+        // given
+        ScheduledFuture<String> future = uut.schedule(() -> "done", 30, TimeUnit.MILLISECONDS);
+
+        // when
+        uut.shutdown();
+
+        // then
+        assertThat(future.get(5, TimeUnit.SECONDS)).isEqualTo("done");
+        assertThat(uut.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+    }
+}
@@ -0,0 +1,67 @@
+package com.mercateo.sqs.utils.visibility;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+class VisibilityExtensionScheduleTest {
+
+    private final VisibilityExtensionSchedule uut = new VisibilityExtensionSchedule(Duration.ofMinutes(2), Duration
+            .ofSeconds(90), 2);
+
+    @Test
+    void testConstructor_rejectsInvalidArguments() {
+        // then
+        assertThat(catchThrowable(() -> new VisibilityExtensionSchedule(Duration.ofMinutes(2), Duration.ofMinutes(2),
+                1))).isInstanceOf(IllegalArgumentException.class);
+        assertThat(catchThrowable(() -> new VisibilityExtensionSchedule(Duration.ofMinutes(2), Duration.ofMinutes(1),
+                0.5))).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testGetFirstDelay_isAnchoredOnReceive() {
+        // then
+        assertThat(uut.getFirstDelay(Duration.ZERO)).isEqualTo(Duration.ofSeconds(90));
+        assertThat(uut.getFirstDelay(Duration.ofSeconds(60))).isEqualTo(Duration.ofSeconds(30));
+        assertThat(uut.getFirstDelay(Duration.ofMinutes(5))).isEqualTo(Duration.ZERO);
+    }
+
+    @Test
+    void testGetTimeout_growsGeometrically() {
+        // then
+        assertThat(uut.getTimeout(0, Duration.ZERO)).isEqualTo(Duration.ofMinutes(2));
+        assertThat(uut.getTimeout(1, Duration.ZERO)).isEqualTo(Duration.ofMinutes(4));
+        assertThat(uut.getTimeout(3, Duration.ZERO)).isEqualTo(Duration.ofMinutes(16));
+    }
+
+    @Test
+    void testGetTimeout_isCappedAtTwelveHoursAfterReceive() {
+        // then
+        assertThat(uut.getTimeout(20, Duration.ZERO)).isEqualTo(Duration.ofHours(12));
+        assertThat(uut.getTimeout(20, Duration.ofHours(11))).isEqualTo(Duration.ofHours(1));
+        assertThat(uut.getTimeout(0, Duration.ofHours(12))).isEqualTo(Duration.ZERO);
+    }
+
+    @Test
+    void testGetDelayAfter_keepsSafetyMargin() {
+        // then
+        assertThat(uut.getDelayAfter(Duration.ofMinutes(2))).isEqualTo(Duration.ofSeconds(90));
+        assertThat(uut.getDelayAfter(Duration.ofMinutes(16))).isEqualTo(Duration.ofSeconds(16 * 60 - 30));
+        assertThat(uut.getDelayAfter(Duration.ofSeconds(10))).isEqualTo(Duration.ofSeconds(90));
+    }
+
+    @Test
+    void testFixedRate() {
+        // given
+        VisibilityExtensionSchedule fixed = new VisibilityExtensionSchedule(Duration.ofMinutes(2), Duration
+                .ofSeconds(90), 1);
+
+        // then
+        assertThat(fixed.isFixedRate()).isTrue();
+        assertThat(fixed.getTimeout(10, Duration.ofHours(1))).isEqualTo(Duration.ofMinutes(2));
+        assertThat(fixed.getDelayAfter(Duration.ofMinutes(2))).isEqualTo(Duration.ofSeconds(90));
+    }
+}
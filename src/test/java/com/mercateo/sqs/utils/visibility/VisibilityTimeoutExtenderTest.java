@@ -2,7 +2,14 @@ package com.mercateo.sqs.utils.visibility;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.awaitility.Awaitility.await;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -13,11 +20,15 @@ import com.github.rholder.retry.WaitStrategies;
 import com.google.common.testing.NullPointerTester;
 import com.mercateo.sqs.utils.message.handling.ErrorHandlingStrategy;
 import com.mercateo.sqs.utils.message.handling.MessageWrapper;
+import com.mercateo.sqs.utils.metrics.MessageMetrics;
 
 import java.net.UnknownHostException;
 import java.time.Duration;
 import java.util.HashMap;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.jupiter.api.BeforeEach;
@@ -31,6 +42,7 @@ import software.amazon.awssdk.core.exception.SdkClientException;
 import software.amazon.awssdk.services.sqs.SqsAsyncClient;
 import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityRequest;
 import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityResponse;
+import software.amazon.awssdk.services.sqs.model.SqsException;
 
 class VisibilityTimeoutExtenderTest {
 
@@ -42,17 +54,24 @@ class VisibilityTimeoutExtenderTest {
     @Mock
     private ErrorHandlingStrategy<?> errorHandlingStrategy;
 
+    @Mock
+    private MessageMetrics metrics;
+
+    @Mock
+    private ScheduledExecutorService scheduler;
+
+    private final RetryStrategy retryStrategy = new RetryStrategy(WaitStrategies.fixedWait(1,
+            TimeUnit.MICROSECONDS), StopStrategies.stopAfterAttempt(5));
+
+    private MessageWrapper<Object> message;
+
     @BeforeEach
     void setUp() {
         MockitoAnnotations.openMocks(this);
         HashMap<String, Object> headerMap = new HashMap<>();
         headerMap.put("ReceiptHandle", "rhd");
-        MessageWrapper<Object> message = new MessageWrapper<>(new GenericMessage<>(new Object(), new MessageHeaders(
-                headerMap)));
-        RetryStrategy retryStrategy = new RetryStrategy(WaitStrategies.fixedWait(1, TimeUnit.MICROSECONDS),
-                StopStrategies.stopAfterAttempt(5));
-        uut = new VisibilityTimeoutExtender(sqsClient, Duration.ofSeconds(10*60), message, "queue",
-                errorHandlingStrategy, retryStrategy);
+        message = new MessageWrapper<>(new GenericMessage<>(new Object(), new MessageHeaders(headerMap)));
+        uut = createExtender(1, System.nanoTime());
     }
 
     @Test
@@ -87,6 +106,100 @@ class VisibilityTimeoutExtenderTest {
 
     }
 
+    @Test
+    void testRun_recordsSuccessfulExtension() {
+        // given
+        when(sqsClient.changeMessageVisibility(any(ChangeMessageVisibilityRequest.class))).thenReturn(
+                CompletableFuture.completedFuture(ChangeMessageVisibilityResponse.builder().build()));
+
+        // when
+        uut.run();
+        uut.run();
+
+        // then
+        assertThat(message.getVisibilityExtensions()).isEqualTo(2);
+        verify(metrics, times(2)).onVisibilityExtended(anyLong(), eq(true));
+    }
+
+    @Test
+    void testRun_growsVisibilityTimeout() {
+        // given
+        uut = createExtender(2, System.nanoTime());
+        when(sqsClient.changeMessageVisibility(any(ChangeMessageVisibilityRequest.class))).thenReturn(
+                CompletableFuture.completedFuture(ChangeMessageVisibilityResponse.builder().build()));
+
+        // when
+        uut.run();
+        uut.run();
+        uut.run();
+
+        // then
+        ArgumentCaptor<ChangeMessageVisibilityRequest> captor = ArgumentCaptor.forClass(
+                ChangeMessageVisibilityRequest.class);
+        verify(sqsClient, times(3)).changeMessageVisibility(captor.capture());
+        assertThat(captor.getAllValues()).extracting(ChangeMessageVisibilityRequest::visibilityTimeout)
+                .containsExactly(600, 1200, 2400);
+        assertThat(uut.getNextDelay()).isEqualTo(Duration.ofSeconds(2400 - 570));
+    }
+
+    @Test
+    void testRun_givesUpAtMaximumVisibility() {
+        // given
+        uut = createExtender(2, System.nanoTime() - Duration.ofHours(12).toNanos());
+
+        // when
+        Throwable result = catchThrowable(() -> uut.run());
+
+        // then
+        assertThat(result).isInstanceOf(IllegalStateException.class);
+        assertThat(uut.getFailure()).isSameAs(result);
+        verify(sqsClient, never()).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+    }
+
+    @Test
+    void testScheduleOn_fixedRateIsAnchoredOnReceive() {
+        // given
+        uut = createExtender(1, System.nanoTime() - Duration.ofSeconds(20).toNanos());
+
+        // when
+        uut.scheduleOn(scheduler);
+
+        // then
+        ArgumentCaptor<Long> firstDelay = ArgumentCaptor.forClass(Long.class);
+        verify(scheduler).scheduleAtFixedRate(eq(uut), firstDelay.capture(), eq(30_000L), eq(
+                TimeUnit.MILLISECONDS));
+        assertThat(firstDelay.getValue()).isBetween(9_000L, 10_000L);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Test
+    void testScheduleOn_progressiveReschedulesWithGrowingDelay() {
+        // given
+        uut = createExtender(2, System.nanoTime());
+        ScheduledFuture next = mock(ScheduledFuture.class);
+        when(scheduler.schedule(any(Runnable.class), anyLong(), any())).thenReturn(next);
+        when(sqsClient.changeMessageVisibility(any(ChangeMessageVisibilityRequest.class))).thenReturn(
+                CompletableFuture.completedFuture(ChangeMessageVisibilityResponse.builder().build()));
+        Future<?> handle = uut.scheduleOn(scheduler);
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        verify(scheduler).schedule(task.capture(), anyLong(), eq(TimeUnit.MILLISECONDS));
+
+        // when
+        task.getValue().run();
+        task.getValue().run();
+
+        // then
+        ArgumentCaptor<Long> delays = ArgumentCaptor.forClass(Long.class);
+        verify(scheduler, times(3)).schedule(eq(task.getValue()), delays.capture(), eq(TimeUnit.MILLISECONDS));
+        assertThat(delays.getAllValues().subList(1, 3)).containsExactly(30_000L, 630_000L);
+
+        // when
+        handle.cancel(false);
+
+        // then
+        verify(next).cancel(false);
+    }
+
     @Test
     void retryForUnknownHostException() {
 
@@ -97,6 +210,8 @@ class VisibilityTimeoutExtenderTest {
         when(sqsClient.changeMessageVisibility(any(ChangeMessageVisibilityRequest.class)))
                 .thenThrow(sdkClientException);
         // when
+        uut.run();
+        await().until(() -> uut.getFailure() != null);
         Throwable result = catchThrowable(() -> uut.run());
 
         // then
@@ -113,6 +228,7 @@ class VisibilityTimeoutExtenderTest {
         // given
         when(sqsClient.changeMessageVisibility(any(ChangeMessageVisibilityRequest.class))).thenThrow(sdkClientException);
         // when
+        uut.run();
         Throwable result = catchThrowable(() -> uut.run());
 
         // then
@@ -120,4 +236,90 @@ class VisibilityTimeoutExtenderTest {
         verify(sqsClient, times(1)).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
     }
 
-}
\ No newline at end of file
+    @Test
+    void retryAsynchronouslyUntilSuccessful() {
+
+        SdkClientException sdkClientException =
+                SdkClientException.builder().cause(new UnknownHostException()).build();
+
+        // given
+        when(sqsClient.changeMessageVisibility(any(ChangeMessageVisibilityRequest.class)))
+                .thenReturn(CompletableFuture.failedFuture(sdkClientException))
+                .thenReturn(CompletableFuture.completedFuture(ChangeMessageVisibilityResponse.builder().build()));
+
+        // when
+        uut.run();
+
+        // then
+        verify(sqsClient, timeout(1000).times(2)).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+        assertThat(uut.getFailure()).isNull();
+    }
+
+    @Test
+    void handOverAwsServiceExceptionToErrorHandlingStrategy() {
+
+        SqsException sqsException = (SqsException) SqsException.builder().message("invalid").build();
+
+        // given
+        when(sqsClient.changeMessageVisibility(any(ChangeMessageVisibilityRequest.class)))
+                .thenReturn(CompletableFuture.failedFuture(sqsException));
+        doThrow(sqsException).when(errorHandlingStrategy).handleExtendVisibilityTimeoutException(any(), any());
+
+        // when
+        uut.run();
+        Throwable result = catchThrowable(() -> uut.run());
+
+        // then
+        verify(errorHandlingStrategy).handleExtendVisibilityTimeoutException(eq(sqsException), any());
+        assertThat(result).isEqualTo(sqsException);
+        verify(sqsClient, times(1)).changeMessageVisibility(any(ChangeMessageVisibilityRequest.class));
+    }
+
+    @Test
+    void testHandleFailure_losesLeaseIfStrategyRethrows() {
+        // given
+        SqsException sqsException = (SqsException) SqsException.builder().message("invalid").build();
+        when(sqsClient.changeMessageVisibility(any(ChangeMessageVisibilityRequest.class)))
+                .thenReturn(CompletableFuture.failedFuture(sqsException));
+        doThrow(sqsException).when(errorHandlingStrategy).handleExtendVisibilityTimeoutException(any(), any());
+
+        // when
+        uut.run();
+
+        // then
+        assertThat(message.isLeaseLost()).isTrue();
+    }
+
+    @Test
+    void testHandleFailure_keepsLeaseIfStrategyHandlesFailure() {
+        // given
+        SqsException sqsException = (SqsException) SqsException.builder().message("throttled").build();
+        when(sqsClient.changeMessageVisibility(any(ChangeMessageVisibilityRequest.class)))
+                .thenReturn(CompletableFuture.failedFuture(sqsException));
+
+        // when
+        uut.run();
+
+        // then
+        assertThat(message.isLeaseLost()).isFalse();
+    }
+
+    @Test
+    void testRun_losesLeaseAtMaximumVisibility() {
+        // given
+        uut = createExtender(2, System.nanoTime() - Duration.ofHours(12).toNanos());
+
+        // when
+        catchThrowable(() -> uut.run());
+
+        // then
+        assertThat(message.isLeaseLost()).isTrue();
+    }
+
+
+    private VisibilityTimeoutExtender createExtender(double growthFactor, long receivedNanos) {
+        return new VisibilityTimeoutExtender(sqsClient, new VisibilityExtensionSchedule(Duration.ofSeconds(10 * 60),
+                Duration.ofSeconds(30), growthFactor), receivedNanos, message, "queue", errorHandlingStrategy,
+                retryStrategy, Runnable::run, metrics);
+    }
+}